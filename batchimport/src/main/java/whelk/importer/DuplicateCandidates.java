@@ -0,0 +1,101 @@
+package whelk.importer;
+
+import groovy.lang.Tuple2;
+import se.kb.libris.util.marc.MarcRecord;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The identifier values of the bib records in an import batch, and the documents found with them, looked up
+ * for the whole batch before it is imported.
+ *
+ * Records in a batch are imported one at a time, and a record may create or change a document that a later
+ * record in the same batch should be matched with. Lookups for values touched by an imported record are
+ * therefore no longer answered from here, but have to be done again.
+ */
+class DuplicateCandidates
+{
+    /**
+     * The identifier values of a bib record, per duplication type, and the type of its main entity.
+     */
+    record BibIdentifiers(String thingType, Map<Parameters.DUPLICATION_TYPE, Set<Tuple2<String, String>>> values)
+    {
+        Set<Tuple2<String, String>> get(Parameters.DUPLICATION_TYPE dupType)
+        {
+            return values.getOrDefault(dupType, Collections.emptySet());
+        }
+
+        Set<Tuple2<String, String>> all()
+        {
+            Set<Tuple2<String, String>> all = new HashSet<>();
+            values.values().forEach(all::addAll);
+            return all;
+        }
+    }
+
+    private final Map<MarcRecord, BibIdentifiers> identifiers = new IdentityHashMap<>();
+    private final Map<Tuple2<String, String>, Set<String>> found = new HashMap<>();
+    private final Set<Tuple2<String, String>> stale = new HashSet<>();
+
+    void add(MarcRecord marcRecord, BibIdentifiers bibIdentifiers)
+    {
+        identifiers.put(marcRecord, bibIdentifiers);
+    }
+
+    Set<Tuple2<String, String>> allValues()
+    {
+        Set<Tuple2<String, String>> all = new HashSet<>();
+        identifiers.values().forEach(i -> all.addAll(i.all()));
+        return all;
+    }
+
+    /**
+     * @param lookedUp the ids found for each of allValues(), values without any documents may be left out
+     */
+    void setFound(Map<Tuple2<String, String>, Set<String>> lookedUp)
+    {
+        for (Tuple2<String, String> value : allValues())
+            found.put(value, lookedUp.getOrDefault(value, Collections.emptySet()));
+    }
+
+    /**
+     * @return the identifiers of the record, or null if it wasn't part of the batch
+     */
+    BibIdentifiers identifiersFor(MarcRecord marcRecord)
+    {
+        return identifiers.get(marcRecord);
+    }
+
+    /**
+     * @return the ids of the documents with the value, or null if it has to be looked up
+     */
+    Set<String> get(Tuple2<String, String> value)
+    {
+        return stale.contains(value) ? null : found.get(value);
+    }
+
+    /**
+     * Called for each bib record when it is imported, with the ids of the existing documents it was matched with.
+     */
+    void invalidate(MarcRecord marcRecord, Set<String> duplicateIDs)
+    {
+        BibIdentifiers bibIdentifiers = identifiers.get(marcRecord);
+        if (bibIdentifiers != null)
+            stale.addAll(bibIdentifiers.all());
+
+        // A matched document may be replaced or merged into, and gain or lose identifiers
+        if (!duplicateIDs.isEmpty())
+        {
+            for (Map.Entry<Tuple2<String, String>, Set<String>> entry : found.entrySet())
+            {
+                if (!Collections.disjoint(entry.getValue(), duplicateIDs))
+                    stale.add(entry.getKey());
+            }
+        }
+    }
+}
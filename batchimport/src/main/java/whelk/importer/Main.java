@@ -5,14 +5,17 @@ import io.prometheus.client.Counter;
 import io.prometheus.client.exporter.PushGateway;
 import se.kb.libris.util.marc.MarcRecord;
 import se.kb.libris.util.marc.io.Iso2709MarcRecordReader;
+import se.kb.libris.util.marc.io.MarcRecordReader;
 import se.kb.libris.util.marc.io.MarcXmlRecordReader;
-import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
 import whelk.component.PostgreSQLComponent;
 import whelk.util.BlockingThreadPool;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -21,18 +24,17 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Main {
     private static XL s_librisXl = null;
@@ -41,7 +43,7 @@ public class Main {
 
     private static boolean verbose = false;
 
-    private static final List tempfiles = Collections.synchronizedList(new ArrayList<File>());
+    private static final int TRANSFORM_PIPE_SIZE = 1024 * 1024;
 
     // Metrics
     private final static String METRICS_PUSHGATEWAY = "metrics.libris.kb.se:9091";
@@ -145,22 +147,15 @@ public class Main {
 
     private static void importStream(InputStream inputStream, Parameters parameters)
             throws Exception {
-        inputStream = streamAsXml(inputStream, parameters);
-
-        // Apply any transforms specified on the command line.
-        // The expectation is that after these transforms, the stream will consist of a series
-        // of marcxml records that the jmarctools.MarcXmlRecordReader can read. The order of the records
-        // is also expected to be; one bib record followed by any related holding records, after which
+        // Records are read, transformed and batched one at a time. The thread pool queue is bounded, so
+        // reading is held back when the importing threads can't keep up.
+        // The expectation is that after any transforms, the stream will consist of a series of marc
+        // records, in the order; one bib record followed by any related holding records, after which
         // comes the next bib record and so on.
 
-        for (Templates template : parameters.getTemplates()) {
-            inputStream = transform(template.newTransformer(), inputStream);
-            //inputStream = transform(transformer, inputStream);
-        }
-
-        MarcXmlRecordReader reader = null;
+        MarcRecordReader reader = null;
         try {
-            reader = new MarcXmlRecordReader(inputStream, "/collection/record", null);
+            reader = openReader(inputStream, parameters);
 
             long start = System.currentTimeMillis();
             long recordsBatched = 0;
@@ -208,23 +203,10 @@ public class Main {
         }
 
         inputStream.close();
-        removeTemporaryFiles();
-    }
-
-    private static void removeTemporaryFiles() {
-        synchronized (tempfiles) {
-            Iterator<File> i = tempfiles.iterator();
-            while (i.hasNext()) {
-                File f = i.next();
-                f.delete();
-                i.remove();
-            }
-        }
-
     }
 
-
     private static void importBatch(List<MarcRecord> batch) {
+        DuplicateCandidates duplicateCandidates = s_librisXl.getDuplicateCandidates(batch);
         String lastKnownBibDocId = null;
         int recordNo = 0;
         for (MarcRecord marcRecord : batch) {
@@ -237,6 +219,7 @@ public class Main {
                     String resultingId = s_librisXl.importISO2709(
                             marcRecord,
                             lastKnownBibDocId,
+                            duplicateCandidates,
                             importedBibRecords,
                             importedHoldRecords,
                             encounteredMulBibs);
@@ -255,6 +238,7 @@ public class Main {
                     String resultingId = s_librisXl.importISO2709(
                             marcRecord,
                             lastKnownBibDocId,
+                            duplicateCandidates,
                             importedBibRecords,
                             importedHoldRecords,
                             encounteredMulBibs);
@@ -286,54 +270,80 @@ public class Main {
         System.out.println();
     }
 
-    private static File getTemporaryFile()
+    /**
+     * Open a reader of the MARC records in inputStream, regardless of the original format, with any
+     * transforms specified on the command line applied.
+     */
+    private static MarcRecordReader openReader(InputStream inputStream, Parameters parameters)
             throws IOException {
-        File tempFile = File.createTempFile("xlimport", ".tmp");
-        tempfiles.add(tempFile);
-        return tempFile;
+        List<Templates> templates = parameters.getTemplates();
+        if (parameters.getFormat() == Parameters.INPUT_FORMAT.FORMAT_ISO2709) {
+            MarcRecordReader isoReader = new Iso2709MarcRecordReader(inputStream, parameters.getInputEncoding());
+            // ISO2709 records are known to be separate, they can be transformed one at a time
+            return templates.isEmpty() ? isoReader : new TransformingRecordReader(isoReader, templates);
+        }
+
+        if (!templates.isEmpty()) {
+            // The xml input can be anything until it has been transformed, so the whole document is transformed.
+            // The result is read as it is produced.
+            inputStream = transformInBackground(templates, inputStream);
+        }
+        return new MarcXmlRecordReader(inputStream, "/collection/record", null);
     }
 
     /**
-     * Convert inputStream into a new InputStream which consists of XML records, regardless of the
-     * original format.
+     * Apply the transformation XSLT stylesheets in order on everything available in inputStream on
+     * a separate thread, and return a stream of the transformed data.
      */
-    private static InputStream streamAsXml(InputStream inputStream, Parameters parameters)
+    private static InputStream transformInBackground(List<Templates> templates, InputStream inputStream)
             throws IOException {
-        if (parameters.getFormat() == Parameters.INPUT_FORMAT.FORMAT_ISO2709) {
-            File tmpFile = getTemporaryFile();
+        PipedOutputStream pipeOut = new PipedOutputStream();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        InputStream pipeIn = new FilterInputStream(new PipedInputStream(pipeOut, TRANSFORM_PIPE_SIZE)) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1)
+                    checkFailure();
+                return b;
+            }
 
-            try (OutputStream tmpOut = new FileOutputStream(tmpFile)) {
-                Iso2709MarcRecordReader isoReader;
-                isoReader = new Iso2709MarcRecordReader(inputStream, parameters.getInputEncoding());
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n == -1)
+                    checkFailure();
+                return n;
+            }
 
-                MarcXmlRecordWriter writer = new MarcXmlRecordWriter(tmpOut);
+            private void checkFailure() throws IOException {
+                if (failure.get() != null)
+                    throw new IOException("XSLT transform failed: " + failure.get().getMessage(), failure.get());
+            }
+        };
 
-                MarcRecord marcRecord;
-                while ((marcRecord = isoReader.readRecord()) != null) {
-                    writer.writeRecord(marcRecord);
+        Thread transformThread = new Thread(() -> {
+            try (inputStream; pipeOut) {
+                // Record a failure before the pipe is closed, so the reader doesn't take it for the end of input
+                try {
+                    SAXTransformerFactory factory = (SAXTransformerFactory) TransformerFactory.newInstance();
+                    Result result = new StreamResult(pipeOut);
+                    for (int i = templates.size() - 1; i > 0; i--) {
+                        TransformerHandler handler = factory.newTransformerHandler(templates.get(i));
+                        handler.setResult(result);
+                        result = new SAXResult(handler);
+                    }
+                    templates.get(0).newTransformer().transform(new StreamSource(inputStream), result);
+                } catch (Exception e) {
+                    failure.set(e);
                 }
-                isoReader.close();
-                writer.close();
-                inputStream.close();
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
             }
+        }, "xslt-transform");
+        transformThread.setDaemon(true);
+        transformThread.start();
 
-            return new FileInputStream(tmpFile);
-        } else // Already xml
-            return inputStream;
-    }
-
-    /**
-     * Apply a transformation XSLT stylesheet on everything available in inputStream
-     * and generate a new InputStream of the transformed data.
-     */
-    private static InputStream transform(Transformer transformer, InputStream inputStream)
-            throws TransformerException, IOException {
-        File tmpFile = getTemporaryFile();
-        try (OutputStream tmpOut = new FileOutputStream(tmpFile)) {
-            StreamResult result = new StreamResult(tmpOut);
-            transformer.transform(new StreamSource(inputStream), result);
-            inputStream.close();
-        }
-        return new FileInputStream(tmpFile);
+        return pipeIn;
     }
 }
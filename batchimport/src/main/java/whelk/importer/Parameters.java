@@ -125,8 +125,9 @@ class Parameters
         System.err.println("--transformer The path to an XSLT stylesheet that should be used to transform the input");
         System.err.println("              before importing. This parameter may be used even if the input format is");
         System.err.println("              \"iso2709\", in which case the stream will be translated to MARCXML before");
-        System.err.println("              transformation. If more than one transformer is specified these will be");
-        System.err.println("              applied in the same order they are specified on the command line.");
+        System.err.println("              transformation, one record at a time. If more than one transformer is");
+        System.err.println("              specified these will be applied in the same order they are specified on");
+        System.err.println("              the command line.");
         System.err.println("              XSLT transformation is optional.");
         System.err.println();
         System.err.println("--inEncoding  The character encoding of the incoming data. Only relevant if the format");
@@ -0,0 +1,105 @@
+package whelk.importer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import se.kb.libris.util.marc.MarcRecord;
+import se.kb.libris.util.marc.io.DomSerializer;
+import se.kb.libris.util.marc.io.MarcRecordReader;
+import se.kb.libris.util.marc.io.MarcXmlRecordReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Applies the XSLT transforms to one record at a time, as the records are read.
+ *
+ * Each incoming record is wrapped in a MARCXML collection of its own (the same structure the
+ * stylesheets used to get for the whole file) and passed through the transforms in memory.
+ * A transform may produce any number of records from one incoming record.
+ */
+class TransformingRecordReader implements MarcRecordReader {
+    private static final String MARCXML_NS = "http://www.loc.gov/MARC21/slim";
+
+    private final MarcRecordReader source;
+    private final List<Transformer> transformers = new ArrayList<>();
+    private final DocumentBuilder documentBuilder;
+    private final Deque<MarcRecord> transformed = new ArrayDeque<>();
+
+    TransformingRecordReader(MarcRecordReader source, List<Templates> templates) throws IOException {
+        this.source = source;
+        try {
+            for (Templates template : templates) {
+                transformers.add(template.newTransformer());
+            }
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            documentBuilder = factory.newDocumentBuilder();
+        } catch (TransformerConfigurationException | ParserConfigurationException e) {
+            throw new IOException("Could not set up transforms: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public MarcRecord readRecord() throws IOException {
+        while (transformed.isEmpty()) {
+            MarcRecord marcRecord = source.readRecord();
+            if (marcRecord == null) {
+                return null;
+            }
+            transform(marcRecord);
+        }
+        return transformed.poll();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+
+    private void transform(MarcRecord marcRecord) throws IOException {
+        Document collection = documentBuilder.newDocument();
+        Element root = collection.createElementNS(MARCXML_NS, "collection");
+        root.appendChild(DomSerializer.serialize(marcRecord, collection));
+        collection.appendChild(root);
+
+        try {
+            Source input = new DOMSource(collection);
+            for (Transformer transformer : transformers.subList(0, transformers.size() - 1)) {
+                DOMResult result = new DOMResult();
+                transformer.transform(input, result);
+                input = new DOMSource(result.getNode());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            transformers.get(transformers.size() - 1).transform(input, new StreamResult(out));
+
+            MarcXmlRecordReader reader = new MarcXmlRecordReader(new ByteArrayInputStream(out.toByteArray()), "/collection/record", null);
+            MarcRecord result;
+            while ((result = reader.readRecord()) != null) {
+                transformed.add(result);
+            }
+            reader.close();
+        } catch (TransformerException e) {
+            throw new IOException("Failed to transform the following MARC record:\n" + marcRecord, e);
+        } finally {
+            for (Transformer transformer : transformers) {
+                transformer.reset();
+            }
+        }
+    }
+}
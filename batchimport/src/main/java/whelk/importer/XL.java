@@ -1,6 +1,7 @@
 package whelk.importer;
 
 import groovy.lang.Tuple;
+import groovy.lang.Tuple2;
 import io.prometheus.client.Counter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,7 +12,6 @@ import se.kb.libris.util.marc.Subfield;
 import se.kb.libris.util.marc.impl.MarcRecordImpl;
 import se.kb.libris.utils.isbn.ConvertException;
 import se.kb.libris.utils.isbn.Isbn;
-import se.kb.libris.utils.isbn.IsbnException;
 import se.kb.libris.utils.isbn.IsbnParser;
 import whelk.Document;
 import whelk.IdGenerator;
@@ -34,13 +34,13 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
 import static whelk.util.Jackson.mapper;
@@ -103,18 +103,17 @@ class XL
      * Write a ISO2709 MarcRecord to LibrisXL. returns a resource ID if the resulting document (merged or new) was in "bib".
      * This ID should then be passed (as 'relatedWithBibResourceId') when importing any subsequent related holdings post.
      * Returns null when supplied a hold post.
+     * 'duplicateCandidates' are the identifier lookups done for the batch of the record, or null.
      */
     String importISO2709(MarcRecord incomingMarcRecord,
                          String relatedWithBibResourceId,
+                         DuplicateCandidates duplicateCandidates,
                          Counter importedBibRecords,
                          Counter importedHoldRecords,
                          Counter encounteredMulBibs)
             throws Exception
     {
-        String collection = "bib"; // assumption
-        if (incomingMarcRecord.getLeader(6) == 'u' || incomingMarcRecord.getLeader(6) == 'v' ||
-                incomingMarcRecord.getLeader(6) == 'x' || incomingMarcRecord.getLeader(6) == 'y')
-            collection = "hold";
+        String collection = getCollection(incomingMarcRecord);
 
         if (collection.equals("hold") && relatedWithBibResourceId.equals(DISCARD_ATTACHED_HOLDINGS_MARKER))
         {
@@ -122,7 +121,9 @@ class XL
             return null;
         }
 
-        Set<String> duplicateIDs = getDuplicates(incomingMarcRecord, collection, relatedWithBibResourceId);
+        Set<String> duplicateIDs = getDuplicates(incomingMarcRecord, collection, relatedWithBibResourceId, duplicateCandidates);
+        if (collection.equals("bib") && duplicateCandidates != null)
+            duplicateCandidates.invalidate(incomingMarcRecord, duplicateIDs);
 
         String resultingResourceId = null;
 
@@ -450,13 +451,45 @@ class XL
         return clone;
     }
 
-    private Set<String> getDuplicates(MarcRecord marcRecord, String collection, String relatedWithBibResourceId)
-            throws SQLException, IsbnException
+    /**
+     * Look up the identifier values of all bib records in a batch at once, so that finding their duplicates
+     * doesn't take a query per record and identifier.
+     */
+    DuplicateCandidates getDuplicateCandidates(List<MarcRecord> batch)
+    {
+        DuplicateCandidates candidates = new DuplicateCandidates();
+        for (MarcRecord marcRecord : batch)
+        {
+            if (!getCollection(marcRecord).equals("bib"))
+                continue;
+            try
+            {
+                candidates.add(marcRecord, getBibIdentifiers(marcRecord));
+            } catch (RuntimeException e)
+            {
+                // Left for the import of the record to fail on, with the record logged
+            }
+        }
+        candidates.setFound(getIdsByIdentifierValues(candidates.allValues()));
+        return candidates;
+    }
+
+    private static String getCollection(MarcRecord marcRecord)
+    {
+        if (marcRecord.getLeader(6) == 'u' || marcRecord.getLeader(6) == 'v' ||
+                marcRecord.getLeader(6) == 'x' || marcRecord.getLeader(6) == 'y')
+            return "hold";
+        return "bib";
+    }
+
+    private Set<String> getDuplicates(MarcRecord marcRecord, String collection, String relatedWithBibResourceId,
+                                      DuplicateCandidates duplicateCandidates)
+            throws SQLException
     {
         switch (collection)
         {
             case "bib":
-                return getBibDuplicates(marcRecord);
+                return getBibDuplicates(marcRecord, duplicateCandidates);
             case "hold":
                 return getHoldDuplicates(marcRecord, relatedWithBibResourceId);
             default:
@@ -476,64 +509,27 @@ class XL
         return duplicateIDs;
     }
 
-    private Set<String> getBibDuplicates(MarcRecord marcRecord)
-            throws SQLException, IsbnException
+    private Set<String> getBibDuplicates(MarcRecord marcRecord, DuplicateCandidates duplicateCandidates)
+            throws SQLException
     {
         Set<String> duplicateIDs = new HashSet<>();
 
-        // Perform a temporary conversion to use for duplicate checking. This conversion will
-        // then be discarded. The real conversion cannot take place until any duplicates are
-        // found (because the correct ID needs to be known when converting). Chicken and egg problem.
-        Document rdfDoc = convertToRDF(marcRecord, IdGenerator.generate());
+        DuplicateCandidates.BibIdentifiers bibIdentifiers = duplicateCandidates != null
+                ? duplicateCandidates.identifiersFor(marcRecord)
+                : null;
+        if (bibIdentifiers == null)
+            bibIdentifiers = getBibIdentifiers(marcRecord);
 
         for (Parameters.DUPLICATION_TYPE dupType : m_parameters.getDuplicationTypes())
         {
-            switch (dupType)
+            if (dupType == Parameters.DUPLICATION_TYPE.DUPTYPE_LIBRISID)
             {
-                case DUPTYPE_ISBNA: // International Standard Book Number (only from subfield A)
-                    for (String isbn : rdfDoc.getIsbnValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIsbn( isbn.toUpperCase(), this::getOnIsbn_ps ));
-                    }
-                    break;
-                case DUPTYPE_ISBNZ: // International Standard Book Number (only from subfield Z)
-                    for (String isbn : rdfDoc.getIsbnHiddenValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIsbn( isbn.toUpperCase(), this::getOnIsbnHidden_ps ));
-                    }
-                    break;
-                case DUPTYPE_ISSNA: // International Standard Serial Number (only from marc 022_A)
-                    for (String issn : rdfDoc.getIssnValues())
-                    {
-                            duplicateIDs.addAll(getDuplicatesOnIssn( issn.toUpperCase() ));
-                    }
-                    break;
-                case DUPTYPE_ISSNZ: // International Standard Serial Number (only from marc 022_Z)
-                    for (String issn : rdfDoc.getIssnHiddenValues())
-                    {
-                        duplicateIDs.addAll(getDuplicatesOnIssnHidden( issn.toUpperCase() ));
-                    }
-                    break;
-                case DUPTYPE_035A:
-                    // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOn035a(marcRecord));
-                    break;
-                case DUPTYPE_LIBRISID:
-                    // Assumes the post being imported carries a valid libris id in 001, and "SE-LIBR" or "LIBRIS" in 003
-                    duplicateIDs.addAll(getDuplicatesOnLibrisID(marcRecord, "bib"));
-                    break;
-                case DUPTYPE_EAN:
-                    // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnEAN(marcRecord));
-                    break;
-                case DUPTYPE_URI:
-                    // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnURI(marcRecord));
-                    break;
-                case DUPTYPE_URN:
-                    // Unique id number in another system.
-                    duplicateIDs.addAll(getDuplicatesOnURN(marcRecord));
-                    break;
+                // Assumes the post being imported carries a valid libris id in 001, and "SE-LIBR" or "LIBRIS" in 003
+                duplicateIDs.addAll(getDuplicatesOnLibrisID(marcRecord, "bib"));
+            }
+            else
+            {
+                duplicateIDs.addAll(getDuplicatesOnIdentifierValues(bibIdentifiers.get(dupType), duplicateCandidates));
             }
 
             // If duplicates have already been found, do not try any more duplicate types.
@@ -548,7 +544,7 @@ class XL
             String candidateID = it.next();
             Document candidate = m_whelk.getStorage().load(candidateID);
 
-            String incomingInstanceType = rdfDoc.getThingType();
+            String incomingInstanceType = bibIdentifiers.thingType();
             String existingInstanceType = candidate.getThingType();
 
             if (!existingInstanceType.equals(incomingInstanceType)
@@ -566,219 +562,180 @@ class XL
         return duplicateIDs;
     }
 
-    private List<String> getDuplicatesOnLibrisID(MarcRecord marcRecord, String collection)
-            throws SQLException
+    /**
+     * The identifier values of a bib record to look for duplicates with, for each configured duplication type,
+     * as they are indexed by PostgreSQLComponent.saveIdentifiers.
+     */
+    private DuplicateCandidates.BibIdentifiers getBibIdentifiers(MarcRecord marcRecord)
     {
-        String librisId = DigId.grepLibrisId(marcRecord);
-
-        if (librisId == null)
-            return new ArrayList<>();
-
-        // completely numeric? = classic voyager id.
-        // In theory an xl id could (though insanely unlikely) also be numeric :(
-        if (librisId.matches("[0-9]+"))
-        {
-            librisId = "http://libris.kb.se/"+collection+"/"+librisId;
-        }
-        else if ( ! librisId.startsWith(Document.getBASE_URI().toString()))
-        {
-            librisId = Document.getBASE_URI().toString() + librisId;
-        }
-
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getOnId_ps(m_whelk.getStorage().getMyConnection(), librisId);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            return collectIDs(resultSet);
-        }
-    }
+        // Perform a temporary conversion to use for duplicate checking. This conversion will
+        // then be discarded. The real conversion cannot take place until any duplicates are
+        // found (because the correct ID needs to be known when converting). Chicken and egg problem.
+        Document rdfDoc = convertToRDF(marcRecord, IdGenerator.generate());
 
-    private List<String> getDuplicatesOn035a(MarcRecord marcRecord)
-            throws SQLException
-    {
-        List<String> results = new ArrayList<>();
-        for (Field field : marcRecord.getFields("035"))
+        Map<Parameters.DUPLICATION_TYPE, Set<Tuple2<String, String>>> values = new HashMap<>();
+        for (Parameters.DUPLICATION_TYPE dupType : m_parameters.getDuplicationTypes())
         {
-            String systemNumber = DigId.grep035a( (Datafield) field );
-
-            try(PostgreSQLComponent.ConnectionContext ignored =
-                        new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                PreparedStatement statement = getOnSystemNumber_ps(m_whelk.getStorage().getMyConnection(), systemNumber);
-                ResultSet resultSet = statement.executeQuery())
+            Set<Tuple2<String, String>> typedValues = new HashSet<>();
+            switch (dupType)
             {
-                results.addAll( collectIDs(resultSet) );
+                case DUPTYPE_ISBNA: // International Standard Book Number (only from subfield A)
+                    for (String isbn : rdfDoc.getIsbnValues())
+                        addIsbnValues(typedValues, "ISBN", isbn);
+                    break;
+                case DUPTYPE_ISBNZ: // International Standard Book Number (only from subfield Z)
+                    for (String isbn : rdfDoc.getIsbnHiddenValues())
+                        addIsbnValues(typedValues, PostgreSQLComponent.INDIRECT_ISBN, isbn);
+                    break;
+                case DUPTYPE_ISSNA: // International Standard Serial Number (only from marc 022_A)
+                    for (String issn : rdfDoc.getIssnValues())
+                        addIdentifierValue(typedValues, "ISSN", issn);
+                    break;
+                case DUPTYPE_ISSNZ: // International Standard Serial Number (only from marc 022_Z)
+                    for (String issn : rdfDoc.getIssnHiddenValues())
+                        addIdentifierValue(typedValues, PostgreSQLComponent.CANCELED_ISSN, issn);
+                    break;
+                case DUPTYPE_035A:
+                    // Unique id number in another system. "System number" is our ld equivalent of marc's 035a
+                    for (Field field : marcRecord.getFields("035"))
+                        addIdentifierValue(typedValues, "SystemNumber", DigId.grep035a( (Datafield) field ));
+                    break;
+                case DUPTYPE_EAN:
+                    // Unique id number in another system.
+                    for (String ean : get024a(marcRecord, '3', null))
+                        addIdentifierValue(typedValues, "EAN", ean);
+                    break;
+                case DUPTYPE_URI:
+                    // Unique id number in another system.
+                    for (String uri : get024a(marcRecord, '7', "uri"))
+                        addIdentifierValue(typedValues, "URI", uri);
+                    break;
+                case DUPTYPE_URN:
+                    // Unique id number in another system.
+                    for (String urn : get024a(marcRecord, '7', "urn"))
+                        addIdentifierValue(typedValues, "URN", urn);
+                    break;
             }
+            values.put(dupType, typedValues);
         }
-        return results;
-    }
 
-    private List<String> getDuplicatesOnEAN(MarcRecord marcRecord)
-            throws SQLException
-    {
-        List<String> results = new ArrayList<>();
-        for (Datafield field : marcRecord.getDatafields("024"))
-        {
-            if (field.getIndicator(0) == '3')
-            {
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingEan = subfield.getData();
-
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnEAN_ps(m_whelk.getStorage().getMyConnection(), incomingEan);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
-            }
-        }
-        return results;
+        return new DuplicateCandidates.BibIdentifiers(rdfDoc.getThingType(), values);
     }
 
-    private List<String> getDuplicatesOnURI(MarcRecord marcRecord)
-            throws SQLException
+    private static void addIdentifierValue(Set<Tuple2<String, String>> typedValues, String type, String value)
     {
-        List<String> results = new ArrayList<>();
-        for (Datafield field : marcRecord.getDatafields("024"))
-        {
-            if (field.getIndicator(0) == '7')
-            {
-                List<Subfield> sf2uri = field.getSubfields("2").stream().filter(sf -> sf.getData().equalsIgnoreCase("uri")).collect(Collectors.toList());
-		if ( sf2uri.size() == 0 ) continue;
-
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingUri = subfield.getData();
-
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnURI_ps(m_whelk.getStorage().getMyConnection(), incomingUri);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
-            }
-        }
-        return results;
-    }
-
-    private List<String> getDuplicatesOnURN(MarcRecord marcRecord)
-            throws SQLException
-    {
-        List<String> results = new ArrayList<>();
-        for (Datafield field : marcRecord.getDatafields("024"))
-        {
-            if (field.getIndicator(0) == '7')
-            {
-                List<Subfield> sf2urn = field.getSubfields("2").stream().filter(sf -> sf.getData().equalsIgnoreCase("urn")).collect(Collectors.toList());
-		if ( sf2urn.size() == 0 ) continue;
-
-                List<Subfield> subfields = field.getSubfields("a");
-                for (Subfield subfield : subfields)
-                {
-                    String incomingUrn = subfield.getData();
-
-                    try (PostgreSQLComponent.ConnectionContext ignored =
-                                 new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-                         PreparedStatement statement = getOnURN_ps(m_whelk.getStorage().getMyConnection(), incomingUrn);
-                         ResultSet resultSet = statement.executeQuery())
-                    {
-                        results.addAll(collectIDs(resultSet));
-                    }
-                }
-            }
-        }
-        return results;
+        if (value != null && !value.isEmpty())
+            typedValues.add(new Tuple2<>(type, PostgreSQLComponent.normalizeIdentifierValue(type, value)));
     }
 
-    private List<String> getDuplicatesOnIsbn(String isbn, BiFunction<Connection, String, PreparedStatement> getPreparedStatement)
-            throws SQLException, IsbnException
+    /**
+     * Adds the ISBN as given, without hyphens and in the other ISBN form (if conversion is possible).
+     */
+    private static void addIsbnValues(Set<Tuple2<String, String>> typedValues, String type, String isbn)
     {
         boolean hyphens = false;
         if (isbn == null || isbn.length() == 0)
-            return new ArrayList<>();
+            return;
 
-        List<String> duplicateIDs = new ArrayList<>();
-
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), isbn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            duplicateIDs.addAll( collectIDs(resultSet) );
-        }
+        addIdentifierValue(typedValues, type, isbn);
 
         Isbn typedIsbn;
         try {
             typedIsbn = IsbnParser.parse(isbn);
         } catch (Exception e) {
             // Bad ISBN values can occur, we should ignore them, but not crash.
-            return duplicateIDs;
+            return;
         }
         if (typedIsbn == null)
-            return duplicateIDs;
+            return;
 
         int otherType = typedIsbn.getType() == Isbn.ISBN10 ? Isbn.ISBN13 : Isbn.ISBN10;
 
-        String numericIsbn = typedIsbn.toString(hyphens);
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), numericIsbn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            duplicateIDs.addAll( collectIDs(resultSet) );
-        }
+        addIdentifierValue(typedValues, type, typedIsbn.toString(hyphens));
 
-        // Collect additional duplicates with the other ISBN form (if conversion is possible)
         try
         {
             typedIsbn = typedIsbn.convert(otherType);
         } catch (ConvertException ce)
         {
-            return duplicateIDs;
+            return;
         }
-        numericIsbn = typedIsbn.toString(hyphens);
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getPreparedStatement.apply(m_whelk.getStorage().getMyConnection(), numericIsbn);
-            ResultSet resultSet = statement.executeQuery())
+        addIdentifierValue(typedValues, type, typedIsbn.toString(hyphens));
+    }
+
+    /**
+     * 024 $a values with the given first indicator, and $2 source if not null.
+     */
+    private static List<String> get024a(MarcRecord marcRecord, char indicator, String source)
+    {
+        List<String> values = new ArrayList<>();
+        for (Datafield field : marcRecord.getDatafields("024"))
         {
-            duplicateIDs.addAll( collectIDs(resultSet) );
+            if (field.getIndicator(0) != indicator)
+                continue;
+            if (source != null && field.getSubfields("2").stream().noneMatch(sf -> sf.getData().equalsIgnoreCase(source)))
+                continue;
+
+            for (Subfield subfield : field.getSubfields("a"))
+                values.add(subfield.getData());
         }
+        return values;
+    }
 
+    private Set<String> getDuplicatesOnIdentifierValues(Set<Tuple2<String, String>> typedValues,
+                                                        DuplicateCandidates duplicateCandidates)
+    {
+        Set<String> duplicateIDs = new HashSet<>();
+        Set<Tuple2<String, String>> toLookUp = new HashSet<>();
+        for (Tuple2<String, String> typedValue : typedValues)
+        {
+            Set<String> known = duplicateCandidates != null ? duplicateCandidates.get(typedValue) : null;
+            if (known != null)
+                duplicateIDs.addAll(known);
+            else
+                toLookUp.add(typedValue);
+        }
+        for (Set<String> ids : getIdsByIdentifierValues(toLookUp).values())
+            duplicateIDs.addAll(ids);
         return duplicateIDs;
     }
 
-    private List<String> getDuplicatesOnIssn(String issn)
-            throws SQLException
+    /**
+     * System numbers are matched in all collections, other identifiers only in bib.
+     */
+    private Map<Tuple2<String, String>, Set<String>> getIdsByIdentifierValues(Set<Tuple2<String, String>> typedValues)
     {
-        if (issn == null)
-            return new ArrayList<>();
+        Map<Boolean, List<Tuple2<String, String>>> bySystemNumber = typedValues.stream()
+                .collect(Collectors.partitioningBy(v -> v.getV1().equals("SystemNumber")));
 
-        try(PostgreSQLComponent.ConnectionContext ignored =
-                    new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getOnIssn_ps(m_whelk.getStorage().getMyConnection(), issn);
-            ResultSet resultSet = statement.executeQuery())
-        {
-            return collectIDs(resultSet);
-        }
+        Map<Tuple2<String, String>, Set<String>> result = new HashMap<>();
+        result.putAll(m_whelk.getStorage().getIdsByIdentifierValues(bySystemNumber.get(false), List.of("bib")));
+        result.putAll(m_whelk.getStorage().getIdsByIdentifierValues(bySystemNumber.get(true), List.of()));
+        return result;
     }
 
-    private List<String> getDuplicatesOnIssnHidden(String issn)
+    private List<String> getDuplicatesOnLibrisID(MarcRecord marcRecord, String collection)
             throws SQLException
     {
-        if (issn == null)
+        String librisId = DigId.grepLibrisId(marcRecord);
+
+        if (librisId == null)
             return new ArrayList<>();
 
+        // completely numeric? = classic voyager id.
+        // In theory an xl id could (though insanely unlikely) also be numeric :(
+        if (librisId.matches("[0-9]+"))
+        {
+            librisId = "http://libris.kb.se/"+collection+"/"+librisId;
+        }
+        else if ( ! librisId.startsWith(Document.getBASE_URI().toString()))
+        {
+            librisId = Document.getBASE_URI().toString() + librisId;
+        }
+
         try(PostgreSQLComponent.ConnectionContext ignored =
                     new PostgreSQLComponent.ConnectionContext(m_whelk.getStorage().connectionContextTL);
-            PreparedStatement statement = getOnIssnHidden_ps(m_whelk.getStorage().getMyConnection(), issn);
+            PreparedStatement statement = getOnId_ps(m_whelk.getStorage().getMyConnection(), librisId);
             ResultSet resultSet = statement.executeQuery())
         {
             return collectIDs(resultSet);
@@ -814,116 +771,6 @@ class XL
         return statement;
     }
 
-    /**
-     * "System number" is our ld equivalent of marc's 035a
-     */
-    private PreparedStatement getOnSystemNumber_ps(Connection connection, String systemNumber)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE deleted = false AND data#>'{@graph,0,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"SystemNumber\", \"value\": " + escapeJsonStr(systemNumber) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnIsbn_ps(Connection connection, String isbn)
-    {
-        try
-        {
-            String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-            PreparedStatement statement = connection.prepareStatement(query);
-
-            statement.setObject(1, "[{\"@type\": \"ISBN\", \"value\": " + escapeJsonStr(isbn) + "}]", java.sql.Types.OTHER);
-
-            return statement;
-        } catch (SQLException se)
-        {
-            throw new RuntimeException(se);
-        }
-    }
-
-    private PreparedStatement getOnIssn_ps(Connection connection, String issn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"ISSN\", \"value\": " + escapeJsonStr(issn) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnIsbnHidden_ps(Connection connection, String isbn)
-    {
-        try
-        {
-            String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,indirectlyIdentifiedBy}' @> ?";
-            PreparedStatement statement = connection.prepareStatement(query);
-
-            statement.setObject(1, "[{\"@type\": \"ISBN\", \"value\": " + escapeJsonStr(isbn) + "}]", java.sql.Types.OTHER);
-
-            return statement;
-        } catch (SQLException se)
-        {
-            throw new RuntimeException(se);
-        }
-    }
-
-    private PreparedStatement getOnIssnHidden_ps(Connection connection, String issn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND ( data#>'{@graph,1,identifiedBy}' @> ? OR data#>'{@graph,1,identifiedBy}' @> ?)";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"ISSN\", \"marc:canceledIssn\": [" + escapeJsonStr(issn) + "]}]", java.sql.Types.OTHER);
-        statement.setObject(2, "[{\"@type\": \"ISSN\", \"marc:canceledIssn\": " + escapeJsonStr(issn) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnEAN_ps(Connection connection, String ean)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"EAN\", \"value\": " + escapeJsonStr(ean) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnURI_ps(Connection connection, String uri)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"URI\", \"value\": " + escapeJsonStr(uri) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private PreparedStatement getOnURN_ps(Connection connection, String urn)
-            throws SQLException
-    {
-        String query = "SELECT id FROM lddb WHERE collection = 'bib' AND deleted = false AND data#>'{@graph,1,identifiedBy}' @> ?";
-        PreparedStatement statement =  connection.prepareStatement(query);
-
-        statement.setObject(1, "[{\"@type\": \"URN\", \"value\": " + escapeJsonStr(urn) + "}]", java.sql.Types.OTHER);
-
-        return statement;
-    }
-
-    private static String escapeJsonStr(String s) {
-        try {
-            return mapper.writeValueAsString(s);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private PreparedStatement getOnHeldByHoldingFor_ps(Connection connection, String heldBy, String holdingForId)
             throws SQLException
     {
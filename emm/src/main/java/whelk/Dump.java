@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -18,10 +19,14 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -31,13 +36,18 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import static whelk.EmmServlet.AS2_CONTENT_TYPE;
@@ -64,6 +74,9 @@ public class Dump {
      *
      * The last line of a finished dump holds a (also 17 bytes) marker, to separate the finished
      * dump from one that is still being generated but just haven't gotten any further yet.
+     *
+     * The default format (no profile or computed labels) of the "all" and "type:X" selections is
+     * instead served from fully formatted dumps kept up to date in the background, see PrecomputedDump.
      */
     private static final Logger logger = LogManager.getLogger(Dump.class);
     private static final String DUMP_END_MARKER_NO_NEWLINE = "_DUMP_END_MARKER";
@@ -72,7 +85,16 @@ public class Dump {
     private static final int GZIP_BUF_SIZE = 64 * 1024;
     private static final String ND_JSON_LD_GZ_EXT = ".ndjsonld.gz";
 
-    public static void sendDumpResponse(Whelk whelk, TargetVocabMapper targetVocabMapper, String apiBaseUrl, HttpServletRequest req, HttpServletResponse res) throws IOException {
+    private static final int FORMAT_THREADS = Runtime.getRuntime().availableProcessors();
+    // Max number of batches being formatted or waiting to be written, per download
+    private static final int DOWNLOAD_READ_AHEAD = 2 * FORMAT_THREADS;
+    private static final ExecutorService formatPool = Executors.newFixedThreadPool(FORMAT_THREADS, r -> {
+        Thread t = new Thread(r, "emm-dump-format");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void sendDumpResponse(Whelk whelk, TargetVocabMapper targetVocabMapper, PrecomputedDumps precomputedDumps, String apiBaseUrl, HttpServletRequest req, HttpServletResponse res) throws IOException {
         String selection = req.getParameter("selection");
 
         if (selection == null) {
@@ -104,6 +126,40 @@ public class Dump {
             return;
         }
 
+        // The default format is served from a precomputed dump when there is one.
+        // Clients already paging through an on-demand dump continue doing so, the order of records differ.
+        String generation = req.getParameter("generation");
+        boolean startsFromPrecomputed = isDownload || generation != null || "0".equals(offset);
+        if (profile == null && computedLabelLocale == null && precomputedDumps != null && startsFromPrecomputed) {
+            PrecomputedDump precomputed = precomputedDumps.get(selection);
+            if (generation != null) {
+                try {
+                    PrecomputedDump.Generation g = precomputed != null ? precomputed.generation(Long.parseLong(generation)) : null;
+                    if (g == null) {
+                        HttpTools.sendError(res, HttpServletResponse.SC_GONE,
+                                "The dump has been updated since this generation, start over from the first page.");
+                        return;
+                    }
+                    if (isDownload) {
+                        sendPrecomputedDownloadResponse(g, selection, req, res);
+                    } else {
+                        sendPrecomputedPageResponse(g, apiBaseUrl, selection, offset != null ? Long.parseLong(offset) : 0, res);
+                    }
+                } catch (NumberFormatException e) {
+                    HttpTools.sendError(res, HttpServletResponse.SC_BAD_REQUEST, "Bad value for generation or offset");
+                }
+                return;
+            }
+            if (precomputed != null) {
+                if (isDownload) {
+                    sendPrecomputedDownloadResponse(precomputed.current(), selection, req, res);
+                } else {
+                    sendPrecomputedPageResponse(precomputed.current(), apiBaseUrl, selection, Long.parseLong(offset), res);
+                }
+                return;
+            }
+        }
+
         String tmpDir = System.getProperty("java.io.tmpdir");
         Path dumpsPath = Paths.get(tmpDir, "dumps");
         Files.createDirectories(dumpsPath);
@@ -243,6 +299,113 @@ public class Dump {
         sendFormattedResponse(whelk, targetVocabMapper, profile, profileDoc, apiBaseUrl, selection, computedLabelLocale, res, offsetLines, totalEntityCount, dumpCreationTime, recordIdsOnPage);
     }
 
+    private static void sendPrecomputedPageResponse(
+            PrecomputedDump.Generation generation,
+            String apiBaseUrl,
+            String selection,
+            long offset,
+            HttpServletResponse res
+    ) throws IOException {
+        var responseObject = new LinkedHashMap<>();
+        String params = "&generation=" + generation.number;
+
+        responseObject.put(JsonLd.CONTEXT_KEY, "https://www.w3.org/ns/activitystreams");
+        responseObject.put(JsonLd.ID_KEY, apiBaseUrl + "?selection=" + selection + "&offset=" + offset + params);
+        responseObject.put("type", "CollectionPage");
+        responseObject.put("startTime", ZonedDateTime.ofInstant(generation.startTime(), ZoneOffset.UTC).toString());
+        responseObject.put("_status", "done");
+        responseObject.put("totalItems", generation.totalRecords);
+
+        var partOf = new LinkedHashMap<>();
+        partOf.put("type", "Collection");
+        partOf.put("id", apiBaseUrl + "?selection=" + selection);
+        responseObject.put("partOf", partOf);
+
+        var items = new ArrayList<>(EmmChangeSet.TARGET_HITS_PER_PAGE);
+        responseObject.put("items", items);
+
+        if (offset == 0) {
+            items.add(mapper.readValue(generation.readContext(), Map.class));
+        }
+
+        // Pages follow the chunks of the dump, a page ends where the chunk holding the offset ends
+        int chunk = generation.chunkForOffset(offset);
+        if (chunk >= 0) {
+            List<String> records = generation.readRecords(chunk);
+            int skip = (int) (offset - generation.firstRecords[chunk]);
+            for (String record : records.subList(Math.min(skip, records.size()), records.size())) {
+                items.add(mapper.readValue(record, Map.class));
+            }
+
+            long nextOffset = generation.firstRecords[chunk] + generation.counts[chunk];
+            if (nextOffset < generation.totalRecords) {
+                responseObject.put("next", apiBaseUrl + "?selection=" + selection + "&offset=" + nextOffset + params);
+            }
+        }
+
+        HttpTools.sendResponse(res, responseObject, JSON_CONTENT_TYPE);
+    }
+
+    /**
+     * Send the dump file as it is. A single byte range can be requested, to resume an interrupted download.
+     */
+    private static void sendPrecomputedDownloadResponse(
+            PrecomputedDump.Generation generation,
+            String selection,
+            HttpServletRequest req,
+            HttpServletResponse res
+    ) throws IOException {
+        // Opened before anything is sent, the file stays readable even if the generation is deleted meanwhile
+        try (FileChannel file = FileChannel.open(generation.dataFile, StandardOpenOption.READ)) {
+            long length = generation.dataFileLength();
+            long start = 0;
+            long end = length - 1;
+
+            String range = req.getHeader("Range");
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                try {
+                    String[] startEnd = range.substring(6).trim().split("-", 2);
+                    if (startEnd[0].isEmpty()) {
+                        start = Math.max(0, length - Long.parseLong(startEnd[1]));
+                    } else {
+                        start = Long.parseLong(startEnd[0]);
+                        if (!startEnd[1].isEmpty()) {
+                            end = Math.min(end, Long.parseLong(startEnd[1]));
+                        }
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    start = 0;
+                    end = length - 1;
+                    range = null;
+                }
+                if (range != null && (start > end || start >= length)) {
+                    res.setHeader("Content-Range", "bytes */" + length);
+                    HttpTools.sendError(res, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "");
+                    return;
+                }
+                if (range != null) {
+                    res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    res.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+
+            res.setHeader("Content-Disposition", "attachment; filename=" + selection + ND_JSON_LD_GZ_EXT);
+            res.setHeader("Content-Type", "application/octet-stream");
+            res.setHeader("Accept-Ranges", "bytes");
+            res.setHeader("ETag", "\"" + generation.number + "\"");
+            res.setContentLengthLong(end - start + 1);
+
+            WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                position += file.transferTo(position, end - position + 1, out);
+            }
+            res.flushBuffer();
+        } catch (IOException e) {
+            logger.info("Error sending dump download: {}", e.getMessage());
+        }
+    }
+
     private static void sendFormattedResponse(
             Whelk whelk,
             TargetVocabMapper targetVocabMapper,
@@ -326,17 +489,20 @@ public class Dump {
         res.setHeader("Content-Disposition", "attachment; filename=" + filename);
         res.setHeader("Content-Type", "application/octet-stream");
 
+        // Batches are loaded, formatted and compressed on the format pool, ahead of this thread writing them out
+        // in order. Each batch is a gzip member of its own, concatenated they make up a valid gzip stream.
         int batchSize = EmmChangeSet.TARGET_HITS_PER_PAGE;
-        try (GZIPOutputStream os = new GZIPOutputStream(new BufferedOutputStream(res.getOutputStream()), GZIP_BUF_SIZE)) {
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        try (OutputStream os = new BufferedOutputStream(res.getOutputStream(), GZIP_BUF_SIZE)) {
             res.flushBuffer();
-            
+
             Document contextDoc = null;
             if (profileDoc != null)
                 contextDoc = profileDoc;
             else {
                 contextDoc = contextDoc(whelk);
             }
-            writeJsonLdLine(wrapContextDoc(contextDoc), os);
+            os.write(gzipJsonLdLines(List.of(wrapContextDoc(contextDoc))));
 
             // Has the dump not begun being written yet ?
             var t = new Timeout(60 * 1000);
@@ -351,6 +517,12 @@ public class Dump {
 
                     // Caught up with the writer
                     if (line == null) {
+                        // Send what is done meanwhile
+                        while (!pending.isEmpty() && pending.peek().isDone()) {
+                            os.write(pending.remove().get());
+                        }
+                        os.flush();
+
                         t = new Timeout(60 * 1000);
                         do {
                             t.sleep();
@@ -367,11 +539,20 @@ public class Dump {
                     batch.add(line.trim());
 
                     if (batch.size() >= batchSize) {
-                        writeJsonLdLines(whelk, targetVocabMapper, profile, profileDoc, selection, computedLabelLocale, contextDoc, os, batch);
+                        pending.add(submitBatch(whelk, targetVocabMapper, profile, profileDoc, selection, computedLabelLocale, contextDoc, batch));
                         batch = new ArrayList<>(batchSize);
+                        if (pending.size() >= DOWNLOAD_READ_AHEAD) {
+                            os.write(pending.remove().get());
+                        }
                     }
                 }
-                writeJsonLdLines(whelk, targetVocabMapper, profile, profileDoc, selection, computedLabelLocale, contextDoc, os, batch);
+                if (!batch.isEmpty()) {
+                    pending.add(submitBatch(whelk, targetVocabMapper, profile, profileDoc, selection, computedLabelLocale, contextDoc, batch));
+                }
+                while (!pending.isEmpty()) {
+                    os.write(pending.remove().get());
+                }
+                os.flush();
                 res.flushBuffer();
             }
         } catch (Exception e) {
@@ -380,10 +561,13 @@ public class Dump {
             } else {
                 logger.info("Error sending dump download:", e);
             }
+        } finally {
+            // The client may have gone away, don't format for nobody
+            pending.forEach(f -> f.cancel(true));
         }
     }
 
-    private static void writeJsonLdLines(
+    private static Future<byte[]> submitBatch(
             Whelk whelk,
             TargetVocabMapper targetVocabMapper,
             String profile,
@@ -391,20 +575,35 @@ public class Dump {
             String selection,
             String computedLabelLocale,
             Document contextDoc,
-            OutputStream os,
             Collection<String> ids
-    ) throws IOException {
-        var docs = whelk.bulkLoad(ids).values();
-        docs.removeIf(Document::getDeleted);
+    ) {
+        return formatPool.submit(() -> {
+            var docs = whelk.bulkLoad(ids).values();
+            docs.removeIf(Document::getDeleted);
 
-        if (selection.startsWith("itemAndInstance:")) {
-            embellishWithInstances(docs, whelk);
-        }
+            if (selection.startsWith("itemAndInstance:")) {
+                embellishWithInstances(docs, whelk);
+            }
 
-        for (Document doc : docs) {
-            writeJsonLdLine(formatDoc(doc, contextDoc, targetVocabMapper, whelk.getFresnelUtil(), computedLabelLocale, profileDoc, profile), os);
+            var formatted = new ArrayList<>(docs.size());
+            for (Document doc : docs) {
+                formatted.add(formatDoc(doc, contextDoc, targetVocabMapper, whelk.getFresnelUtil(), computedLabelLocale, profileDoc, profile));
+            }
+            return gzipJsonLdLines(formatted);
+        });
+    }
+
+    /**
+     * @return the objects as JSON lines, in a complete gzip member
+     */
+    static byte[] gzipJsonLdLines(Collection<?> objects) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var os = new GZIPOutputStream(bytes, GZIP_BUF_SIZE)) {
+            for (Object object : objects) {
+                writeJsonLdLine(object, os);
+            }
         }
-        os.flush();
+        return bytes.toByteArray();
     }
 
     // Here is a bit of SPECIALIZED treatment only for the itemAndInstance:categories. These should
@@ -445,13 +644,13 @@ public class Dump {
 
     // TODO jackson2 can do json lines natively - upgrade?
     // https://fasterxml.github.io/jackson-databind/javadoc/2.6/com/fasterxml/jackson/databind/SequenceWriter.html
-    private static void writeJsonLdLine(Object object, OutputStream os) throws IOException {
+    static void writeJsonLdLine(Object object, OutputStream os) throws IOException {
         String json = mapper.writeValueAsString(object).replaceAll("\n", "");
         os.write(json.getBytes(StandardCharsets.UTF_8));
         os.write("\n".getBytes(StandardCharsets.UTF_8));
     }
 
-    private static Object formatDoc(
+    static Object formatDoc(
             Document doc,
             Document contextDoc,
             TargetVocabMapper targetVocabMapper,
@@ -482,14 +681,14 @@ public class Dump {
         return data;
     }
 
-    private static Object wrapContextDoc(Document contextDoc) {
+    static Object wrapContextDoc(Document contextDoc) {
         return Map.of(
                 JsonLd.ID_KEY, contextDoc.getRecordIdentifiers().getFirst(),
                 JsonLd.CONTEXT_KEY, contextDoc.data.get(JsonLd.CONTEXT_KEY)
         );
     }
 
-    private static Document contextDoc(Whelk whelk) {
+    static Document contextDoc(Whelk whelk) {
         // FIXME whelk load by IRI
         var docs = whelk.bulkLoad(List.of(whelk.getSystemContextUri()));
         assert docs.size() == 1;
@@ -14,6 +14,7 @@ import java.util.LinkedHashMap;
 public class EmmServlet extends CoreWhelkHttpServlet {
     private final Logger logger = LogManager.getLogger(this.getClass());
     private TargetVocabMapper targetVocabMapper;
+    private PrecomputedDumps precomputedDumps;
 
     public static final String AS2_CONTENT_TYPE = "application/activity+json";
 
@@ -21,9 +22,14 @@ public class EmmServlet extends CoreWhelkHttpServlet {
     public void init(Whelk whelk) {
         Document contextDocument = whelk.getStorage().getDocumentByIri(whelk.getSystemContextUri());
         targetVocabMapper = new TargetVocabMapper(whelk.getJsonld(), contextDocument.data);
+        precomputedDumps = new PrecomputedDumps(whelk);
+        precomputedDumps.start();
     }
 
     public void destroy() {
+        if (precomputedDumps != null) {
+            precomputedDumps.shutdown();
+        }
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res) {
@@ -31,7 +37,7 @@ public class EmmServlet extends CoreWhelkHttpServlet {
             String apiBaseUrl = req.getRequestURL().toString();
 
             if (req.getServletPath() != null && req.getServletPath().endsWith("/full")) {
-                Dump.sendDumpResponse(whelk, targetVocabMapper, apiBaseUrl, req, res);
+                Dump.sendDumpResponse(whelk, targetVocabMapper, precomputedDumps, apiBaseUrl, req, res);
                 return;
             }
             String until = req.getParameter("until");
@@ -0,0 +1,704 @@
+package whelk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static whelk.util.Jackson.mapper;
+
+/**
+ * A dump of a selection kept on disk fully formatted, in the download format (gzipped ndjson-ld), so that
+ * downloads and pages can be served without loading or formatting any records.
+ *
+ * Records are kept in chunks of about one page each, ordered by id. Every chunk is a separate gzip member,
+ * which means that the data file as a whole is a valid gzip file that can be sent as is, and that a single chunk
+ * can be read without decompressing anything else. The data file starts with a member holding the context document.
+ *
+ * Each generation of the dump consists of three files:
+ *   NNNNNNNN.ndjsonld.gz  the data
+ *   NNNNNNNN.ids          the ids of the records in each chunk, one per line
+ *   NNNNNNNN.index        per chunk: first id, position and length in the data and ids files and number of records
+ * and state.json points out the current one.
+ *
+ * refresh() reads the records with EMM activity since the last refresh and reformats only the chunks they belong to.
+ * Other chunks are copied as they are. The previous generation is kept for a while so that clients paging
+ * through it can finish.
+ *
+ * Only the default format (no profile, no computed labels) of the "all" and "type:X" selections is supported.
+ */
+class PrecomputedDump {
+    private static final Logger logger = LogManager.getLogger(PrecomputedDump.class);
+
+    private static final int TARGET_CHUNK_RECORDS = EmmChangeSet.TARGET_HITS_PER_PAGE;
+    private static final int MAX_CHUNK_RECORDS = 2 * TARGET_CHUNK_RECORDS;
+
+    // Changes are read with some overlap, to not miss changes committed after a refresh but with an earlier timestamp
+    static final Duration CHANGE_OVERLAP = Duration.ofMinutes(10);
+    private static final Duration KEEP_SUPERSEDED = Duration.ofDays(1);
+
+    private static final String STATE_FILE = "state.json";
+    private static final String DATA_SUFFIX = ".ndjsonld.gz";
+    private static final String IDS_SUFFIX = ".ids";
+    private static final String INDEX_SUFFIX = ".index";
+
+    // Records with EMM activity (see EmmChangeSet) since the given time, in their current state
+    private static final String GET_CHANGED = """
+            SELECT id, deleted, data#>>'{@graph,1,@type}'
+            FROM lddb
+            WHERE id IN (
+                SELECT id
+                FROM lddb__versions
+                WHERE GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) > ?
+            )
+            """;
+
+    private static final String GET_LATEST_ACTIVITY = """
+            SELECT GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}'))
+            FROM lddb__versions
+            ORDER BY GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) DESC
+            LIMIT 1
+            """;
+
+    final String selection;
+    private final Path dir;
+    private volatile Generation current;
+    private final Map<Long, Instant> supersededAt = new ConcurrentHashMap<>();
+    private final Map<Long, Generation> superseded = new ConcurrentHashMap<>();
+
+    PrecomputedDump(String selection, Path dir) {
+        this.selection = selection;
+        this.dir = dir;
+    }
+
+    /**
+     * @return true for "all" and "type:X" where X is a class in the vocabulary
+     */
+    static boolean isSupported(String selection, JsonLd jsonLd) {
+        if (selection.equals("all")) {
+            return true;
+        }
+        if (!selection.startsWith("type:")) {
+            return false;
+        }
+        Map<String, Object> term = jsonLd.vocabIndex.get(selection.substring(5));
+        return term != null && jsonLd.isInstanceOf(term, "Class");
+    }
+
+    /**
+     * @return the time of the latest EMM activity, or null if there is none
+     */
+    static Instant latestActivity(Whelk whelk) throws SQLException {
+        try (Connection connection = whelk.getStorage().getOuterConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_LATEST_ACTIVITY);
+             ResultSet rs = statement.executeQuery()) {
+            return rs.next() && rs.getTimestamp(1) != null ? rs.getTimestamp(1).toInstant() : null;
+        }
+    }
+
+    /**
+     * @return the current generation, or null if the dump hasn't been built yet
+     */
+    Generation current() {
+        return current;
+    }
+
+    /**
+     * @return the given generation if it's still available, otherwise null
+     */
+    Generation generation(long number) {
+        Generation generation = current;
+        if (generation != null && generation.number == number) {
+            return generation;
+        }
+        return superseded.get(number);
+    }
+
+    /**
+     * Load the current generation from disk, if there is one, and remove any other files.
+     */
+    void load() {
+        try {
+            Files.createDirectories(dir);
+            Path stateFile = dir.resolve(STATE_FILE);
+            if (Files.exists(stateFile)) {
+                Map<?, ?> state = mapper.readValue(stateFile.toFile(), Map.class);
+                long number = ((Number) state.get("generation")).longValue();
+                current = Generation.read(dir, number, Instant.parse((String) state.get("refreshedAt")));
+                logger.info("Loaded dump {} generation {}, {} records", selection, number, current.totalRecords);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not load dump {}, will rebuild it: {}", selection, e, e);
+            current = null;
+        }
+        deleteUnusedFiles();
+    }
+
+    void build(Whelk whelk) throws IOException, SQLException {
+        Instant startedAt = Instant.now();
+        logger.info("Building dump {}", selection);
+
+        // Read the ids first, so that no transaction is held open while formatting
+        Path idsFile = dir.resolve("build" + IDS_SUFFIX);
+        try (Connection connection = whelk.getStorage().getOuterConnection();
+             BufferedWriter writer = Files.newBufferedWriter(idsFile, StandardCharsets.UTF_8)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = selectionStatement(connection, whelk)) {
+                statement.setFetchSize(10_000);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        writer.write(rs.getString(1));
+                        writer.write('\n');
+                    }
+                }
+            }
+            connection.commit();
+        }
+
+        long number = current != null ? current.number + 1 : 1;
+        Generation generation;
+        try (GenerationWriter writer = new GenerationWriter(whelk, number, null);
+             BufferedReader reader = Files.newBufferedReader(idsFile, StandardCharsets.UTF_8)) {
+            List<String> ids = new ArrayList<>(TARGET_CHUNK_RECORDS);
+            String id;
+            while ((id = reader.readLine()) != null) {
+                ids.add(id);
+                if (ids.size() == TARGET_CHUNK_RECORDS) {
+                    writer.writeChunks(ids, writer.chunkCount() == 0 ? "" : ids.getFirst());
+                    ids = new ArrayList<>(TARGET_CHUNK_RECORDS);
+                }
+            }
+            if (!ids.isEmpty() || writer.chunkCount() == 0) {
+                writer.writeChunks(ids, writer.chunkCount() == 0 ? "" : ids.getFirst());
+            }
+            generation = writer.finish(startedAt);
+        } finally {
+            Files.deleteIfExists(idsFile);
+        }
+
+        install(generation);
+        logger.info("Built dump {} generation {}, {} records in {} seconds", selection, generation.number,
+                generation.totalRecords, Duration.between(startedAt, Instant.now()).toSeconds());
+    }
+
+    void refresh(Whelk whelk) throws IOException, SQLException {
+        Generation old = current;
+        Instant startedAt = Instant.now();
+
+        Map<String, Boolean> membershipChanges = changedMembership(whelk, old.refreshedAt.minus(CHANGE_OVERLAP));
+        if (membershipChanges.isEmpty()) {
+            install(old.withRefreshedAt(startedAt));
+            return;
+        }
+
+        Map<Integer, Map<String, Boolean>> changesByChunk = new HashMap<>();
+        membershipChanges.forEach((id, isMember) ->
+                changesByChunk.computeIfAbsent(old.chunkFor(id), c -> new HashMap<>()).put(id, isMember));
+
+        Generation generation;
+        try (GenerationWriter writer = new GenerationWriter(whelk, old.number + 1, old)) {
+            for (int chunk = 0; chunk < old.chunkCount(); chunk++) {
+                Map<String, Boolean> changes = changesByChunk.get(chunk);
+                if (changes == null) {
+                    writer.copyChunk(chunk);
+                    continue;
+                }
+                // Reformat the whole chunk, changed records that were already in it included
+                TreeSet<String> ids = new TreeSet<>(old.readIds(chunk));
+                changes.forEach((id, isMember) -> {
+                    if (isMember) {
+                        ids.add(id);
+                    } else {
+                        ids.remove(id);
+                    }
+                });
+                writer.writeChunks(new ArrayList<>(ids), old.startIds[chunk]);
+            }
+            if (writer.chunkCount() == 0) {
+                writer.writeChunks(List.of(), "");
+            }
+            generation = writer.finish(startedAt);
+        }
+
+        install(generation);
+        logger.info("Refreshed dump {} to generation {}: {} changed records in {} of {} chunks, {} records in total",
+                selection, generation.number, membershipChanges.size(), changesByChunk.size(), old.chunkCount(),
+                generation.totalRecords);
+    }
+
+    /**
+     * @return id -> whether the record (now) belongs to the selection, for records changed since the given time
+     */
+    private Map<String, Boolean> changedMembership(Whelk whelk, Instant since) throws SQLException {
+        Set<String> types = selection.startsWith("type:") ? types(whelk) : null;
+        Map<String, Boolean> result = new HashMap<>();
+        try (Connection connection = whelk.getStorage().getOuterConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_CHANGED)) {
+            connection.setAutoCommit(false);
+            statement.setFetchSize(10_000);
+            statement.setTimestamp(1, Timestamp.from(since));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    boolean deleted = rs.getBoolean(2);
+                    String type = rs.getString(3);
+                    result.put(rs.getString(1), !deleted && (types == null || types.contains(type)));
+                }
+            }
+            connection.commit();
+        }
+        return result;
+    }
+
+    private PreparedStatement selectionStatement(Connection connection, Whelk whelk) throws SQLException {
+        // COLLATE "C" to get the same order as String.compareTo()
+        if (selection.equals("all")) {
+            return connection.prepareStatement("""
+                    SELECT id
+                    FROM lddb
+                    WHERE deleted = false
+                    ORDER BY id COLLATE "C"
+                    """);
+        }
+        PreparedStatement statement = connection.prepareStatement("""
+                SELECT id
+                FROM lddb
+                WHERE data#>>'{@graph,1,@type}' = ANY( ? )
+                  AND deleted = false
+                ORDER BY id COLLATE "C"
+                """);
+        Array types = connection.createArrayOf("TEXT", types(whelk).toArray());
+        statement.setArray(1, types);
+        return statement;
+    }
+
+    private Set<String> types(Whelk whelk) {
+        String type = selection.substring(5);
+        Set<String> types = whelk.getJsonld().getSubClasses(type);
+        types.add(type);
+        return types;
+    }
+
+    private synchronized void install(Generation generation) throws IOException {
+        Map<String, Object> state = Map.of(
+                "generation", generation.number,
+                "refreshedAt", generation.refreshedAt.toString());
+        Path tmp = dir.resolve(STATE_FILE + ".tmp");
+        mapper.writeValue(tmp.toFile(), state);
+        Files.move(tmp, dir.resolve(STATE_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        Generation old = current;
+        current = generation;
+        if (old != null && old.number != generation.number) {
+            superseded.put(old.number, old);
+            supersededAt.put(old.number, Instant.now());
+        }
+        deleteUnusedFiles();
+    }
+
+    private synchronized void deleteUnusedFiles() {
+        Instant threshold = Instant.now().minus(KEEP_SUPERSEDED);
+        supersededAt.entrySet().removeIf(e -> {
+            if (e.getValue().isBefore(threshold)) {
+                superseded.remove(e.getKey());
+                return true;
+            }
+            return false;
+        });
+
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.equals(STATE_FILE) || name.startsWith("build")) {
+                    continue;
+                }
+                long number = generationNumber(name);
+                boolean inUse = (current != null && current.number == number) || superseded.containsKey(number);
+                if (!inUse) {
+                    // Readers that already have the file open can keep reading it
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete old files of dump {}: {}", selection, e);
+        }
+    }
+
+    void delete() {
+        current = null;
+        superseded.clear();
+        supersededAt.clear();
+        try (var files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.warn("Failed to delete dump {}: {}", selection, e);
+        }
+    }
+
+    private static long generationNumber(String fileName) {
+        int dot = fileName.indexOf('.');
+        try {
+            return Long.parseLong(dot > 0 ? fileName.substring(0, dot) : fileName);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String fileName(long number, String suffix) {
+        return String.format("%08d%s", number, suffix);
+    }
+
+    /**
+     * An immutable generation of the dump.
+     */
+    static class Generation {
+        final long number;
+        final Instant refreshedAt;
+        final Path dataFile;
+        final Path idsFile;
+        private final Path dir;
+
+        final long contextLength;
+        final String[] startIds;
+        final long[] dataOffsets;
+        final int[] dataLengths;
+        final int[] counts;
+        final long[] idsOffsets;
+        final int[] idsLengths;
+
+        // Number of records before each chunk
+        final long[] firstRecords;
+        final long totalRecords;
+
+        private Generation(Path dir, long number, Instant refreshedAt, long contextLength, String[] startIds,
+                           long[] dataOffsets, int[] dataLengths, int[] counts, long[] idsOffsets, int[] idsLengths) {
+            this.dir = dir;
+            this.number = number;
+            this.refreshedAt = refreshedAt;
+            this.dataFile = dir.resolve(fileName(number, DATA_SUFFIX));
+            this.idsFile = dir.resolve(fileName(number, IDS_SUFFIX));
+            this.contextLength = contextLength;
+            this.startIds = startIds;
+            this.dataOffsets = dataOffsets;
+            this.dataLengths = dataLengths;
+            this.counts = counts;
+            this.idsOffsets = idsOffsets;
+            this.idsLengths = idsLengths;
+
+            firstRecords = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                firstRecords[i] = total;
+                total += counts[i];
+            }
+            totalRecords = total;
+        }
+
+        Generation withRefreshedAt(Instant refreshedAt) {
+            return new Generation(dir, number, refreshedAt, contextLength, startIds, dataOffsets, dataLengths, counts,
+                    idsOffsets, idsLengths);
+        }
+
+        /**
+         * The time from which EMM activities should be followed by consumers of this generation.
+         */
+        Instant startTime() {
+            return refreshedAt.minus(CHANGE_OVERLAP);
+        }
+
+        int chunkCount() {
+            return startIds.length;
+        }
+
+        /**
+         * @return the chunk that the record with the given id belongs (or would belong) to
+         */
+        int chunkFor(String id) {
+            int i = Arrays.binarySearch(startIds, id);
+            return Math.max(0, i >= 0 ? i : -i - 2);
+        }
+
+        /**
+         * @return the chunk holding the record at the given offset, or -1 if offset is past the end
+         */
+        int chunkForOffset(long offset) {
+            if (offset >= totalRecords || offset < 0) {
+                return -1;
+            }
+            int i = Arrays.binarySearch(firstRecords, offset);
+            if (i < 0) {
+                return -i - 2;
+            }
+            // Skip empty chunks starting at the same offset
+            while (counts[i] == 0) {
+                i++;
+            }
+            return i;
+        }
+
+        List<String> readIds(int chunk) throws IOException {
+            byte[] bytes = read(idsFile, idsOffsets[chunk], idsLengths[chunk]);
+            String ids = new String(bytes, StandardCharsets.UTF_8);
+            return ids.isEmpty() ? List.of() : List.of(ids.split("\n"));
+        }
+
+        /**
+         * @return the formatted records in the chunk, as JSON, one per line
+         */
+        List<String> readRecords(int chunk) throws IOException {
+            return gunzipLines(read(dataFile, dataOffsets[chunk], dataLengths[chunk]));
+        }
+
+        String readContext() throws IOException {
+            return gunzipLines(read(dataFile, 0, (int) contextLength)).getFirst();
+        }
+
+        long dataFileLength() {
+            int last = chunkCount() - 1;
+            return last >= 0 ? dataOffsets[last] + dataLengths[last] : contextLength;
+        }
+
+        private static byte[] read(Path file, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                }
+            }
+            return buffer.array();
+        }
+
+        private static List<String> gunzipLines(byte[] bytes) throws IOException {
+            List<String> lines = new ArrayList<>();
+            try (var reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(bytes)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            return lines;
+        }
+
+        void writeIndex() throws IOException {
+            Path tmp = dir.resolve(fileName(number, INDEX_SUFFIX) + ".tmp");
+            try (var out = new DataOutputStream(new java.io.BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeLong(contextLength);
+                out.writeInt(chunkCount());
+                for (int i = 0; i < chunkCount(); i++) {
+                    out.writeUTF(startIds[i]);
+                    out.writeLong(dataOffsets[i]);
+                    out.writeInt(dataLengths[i]);
+                    out.writeInt(counts[i]);
+                    out.writeLong(idsOffsets[i]);
+                    out.writeInt(idsLengths[i]);
+                }
+            }
+            Files.move(tmp, dir.resolve(fileName(number, INDEX_SUFFIX)), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static Generation read(Path dir, long number, Instant refreshedAt) throws IOException {
+            try (var in = new DataInputStream(new java.io.BufferedInputStream(
+                    Files.newInputStream(dir.resolve(fileName(number, INDEX_SUFFIX)))))) {
+                long contextLength = in.readLong();
+                int n = in.readInt();
+                String[] startIds = new String[n];
+                long[] dataOffsets = new long[n];
+                int[] dataLengths = new int[n];
+                int[] counts = new int[n];
+                long[] idsOffsets = new long[n];
+                int[] idsLengths = new int[n];
+                for (int i = 0; i < n; i++) {
+                    startIds[i] = in.readUTF();
+                    dataOffsets[i] = in.readLong();
+                    dataLengths[i] = in.readInt();
+                    counts[i] = in.readInt();
+                    idsOffsets[i] = in.readLong();
+                    idsLengths[i] = in.readInt();
+                }
+                return new Generation(dir, number, refreshedAt, contextLength, startIds, dataOffsets, dataLengths,
+                        counts, idsOffsets, idsLengths);
+            }
+        }
+    }
+
+    /**
+     * Writes a new generation, chunk by chunk in id order.
+     */
+    private class GenerationWriter implements AutoCloseable {
+        private final Whelk whelk;
+        private final long number;
+        private final Generation from;
+        private final Document contextDoc;
+        private final FileChannel data;
+        private final FileChannel ids;
+        private final FileChannel fromData;
+        private final FileChannel fromIds;
+
+        private final long contextLength;
+        private final List<String> startIds = new ArrayList<>();
+        private final List<Long> dataOffsets = new ArrayList<>();
+        private final List<Integer> dataLengths = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private final List<Long> idsOffsets = new ArrayList<>();
+        private final List<Integer> idsLengths = new ArrayList<>();
+
+        GenerationWriter(Whelk whelk, long number, Generation from) throws IOException {
+            this.whelk = whelk;
+            this.number = number;
+            this.from = from;
+            Files.createDirectories(dir);
+            this.data = FileChannel.open(dir.resolve(fileName(number, DATA_SUFFIX)),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.ids = FileChannel.open(dir.resolve(fileName(number, IDS_SUFFIX)),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.fromData = from != null ? FileChannel.open(from.dataFile, StandardOpenOption.READ) : null;
+            this.fromIds = from != null ? FileChannel.open(from.idsFile, StandardOpenOption.READ) : null;
+
+            contextDoc = Dump.contextDoc(whelk);
+            var out = new ByteArrayOutputStream();
+            try (var gzip = new GZIPOutputStream(out)) {
+                Dump.writeJsonLdLine(Dump.wrapContextDoc(contextDoc), gzip);
+            }
+            contextLength = write(data, out.toByteArray());
+        }
+
+        int chunkCount() {
+            return startIds.size();
+        }
+
+        void copyChunk(int chunk) throws IOException {
+            startIds.add(from.startIds[chunk]);
+            counts.add(from.counts[chunk]);
+            dataOffsets.add(data.position());
+            dataLengths.add(from.dataLengths[chunk]);
+            transfer(fromData, from.dataOffsets[chunk], from.dataLengths[chunk], data);
+            idsOffsets.add(ids.position());
+            idsLengths.add(from.idsLengths[chunk]);
+            transfer(fromIds, from.idsOffsets[chunk], from.idsLengths[chunk], ids);
+        }
+
+        /**
+         * Format and write the records, as one chunk, or several if there are too many.
+         * @param startId the first id covered by the first chunk
+         */
+        void writeChunks(List<String> recordIds, String startId) throws IOException {
+            if (recordIds.isEmpty()) {
+                if (chunkCount() == 0) {
+                    writeChunk(List.of(), startId);
+                }
+                return;
+            }
+            if (recordIds.size() <= MAX_CHUNK_RECORDS) {
+                writeChunk(recordIds, startId);
+                return;
+            }
+            for (int i = 0; i < recordIds.size(); i += TARGET_CHUNK_RECORDS) {
+                List<String> part = recordIds.subList(i, Math.min(recordIds.size(), i + TARGET_CHUNK_RECORDS));
+                writeChunk(part, i == 0 ? startId : part.getFirst());
+            }
+        }
+
+        private void writeChunk(List<String> recordIds, String startId) throws IOException {
+            Map<String, Document> docs = whelk.bulkLoad(recordIds);
+            var out = new ByteArrayOutputStream();
+            var written = new StringBuilder();
+            int count = 0;
+            try (var gzip = new GZIPOutputStream(out)) {
+                for (String id : recordIds) {
+                    Document doc = docs.get(id);
+                    if (doc == null || doc.getDeleted()) {
+                        continue;
+                    }
+                    Dump.writeJsonLdLine(Dump.formatDoc(doc, contextDoc, null, null, null, null, null), gzip);
+                    written.append(id).append('\n');
+                    count++;
+                }
+            }
+
+            startIds.add(startId);
+            counts.add(count);
+            dataOffsets.add(data.position());
+            dataLengths.add(write(data, out.toByteArray()));
+            idsOffsets.add(ids.position());
+            idsLengths.add(write(ids, written.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        Generation finish(Instant refreshedAt) throws IOException {
+            data.force(false);
+            ids.force(false);
+            Generation generation = new Generation(dir, number, refreshedAt, contextLength,
+                    startIds.toArray(new String[0]),
+                    dataOffsets.stream().mapToLong(Long::longValue).toArray(),
+                    dataLengths.stream().mapToInt(Integer::intValue).toArray(),
+                    counts.stream().mapToInt(Integer::intValue).toArray(),
+                    idsOffsets.stream().mapToLong(Long::longValue).toArray(),
+                    idsLengths.stream().mapToInt(Integer::intValue).toArray());
+            generation.writeIndex();
+            return generation;
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+            ids.close();
+            if (fromData != null) {
+                fromData.close();
+            }
+            if (fromIds != null) {
+                fromIds.close();
+            }
+        }
+
+        private static int write(FileChannel channel, byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return bytes.length;
+        }
+
+        private static void transfer(FileChannel source, long position, long length, FileChannel target) throws IOException {
+            long done = 0;
+            while (done < length) {
+                done += source.transferTo(position + done, length - done, target);
+            }
+        }
+    }
+}
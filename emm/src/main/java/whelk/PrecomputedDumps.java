@@ -0,0 +1,146 @@
+package whelk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the precomputed dumps, builds them and refreshes them in the background.
+ *
+ * The "all" dump is always kept. Dumps of types are registered on first request, up to MAX_DUMPS in total,
+ * and dropped when they haven't been requested for a while.
+ *
+ * Building a dump reads the whole selection and is only done off-peak. Until then the on-demand dump is used.
+ * Built dumps are refreshed when there has been EMM activity since the last refresh, but at most every
+ * MIN_REFRESH_INTERVAL to not churn out generations.
+ */
+class PrecomputedDumps {
+    private static final Logger logger = LogManager.getLogger(PrecomputedDumps.class);
+
+    private static final Duration MIN_REFRESH_INTERVAL = Duration.ofHours(6);
+    private static final Duration DROP_UNUSED_AFTER = Duration.ofDays(30);
+    private static final long CHECK_INTERVAL_MINUTES = 10;
+    private static final int MAX_DUMPS = 20;
+    // Local hours [start, end) when dumps may be built
+    private static final int OFF_PEAK_START_HOUR = 1;
+    private static final int OFF_PEAK_END_HOUR = 5;
+
+    private final Whelk whelk;
+    private final Path root;
+    private final Map<String, PrecomputedDump> dumps = new ConcurrentHashMap<>();
+    private final Map<String, Instant> lastRequested = new ConcurrentHashMap<>();
+    // Builds and refreshes are run one at a time, they're heavy on the database
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "precomputed-dumps");
+        t.setDaemon(true);
+        return t;
+    });
+
+    PrecomputedDumps(Whelk whelk) {
+        this.whelk = whelk;
+        this.root = Paths.get(System.getProperty("java.io.tmpdir"), "dumps", "precomputed");
+    }
+
+    void start() {
+        try {
+            Files.createDirectories(root);
+            try (var dirs = Files.list(root)) {
+                for (Path dir : dirs.toList()) {
+                    String selection = URLDecoder.decode(dir.getFileName().toString(), StandardCharsets.UTF_8);
+                    if (PrecomputedDump.isSupported(selection, whelk.getJsonld()) && dumps.size() < MAX_DUMPS) {
+                        register(selection).load();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not load precomputed dumps: {}", e, e);
+        }
+        register("all");
+        executor.scheduleWithFixedDelay(this::maintain, CHECK_INTERVAL_MINUTES, CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the dump for the selection, or null if it isn't supported or not built yet
+     */
+    PrecomputedDump get(String selection) {
+        if (!PrecomputedDump.isSupported(selection, whelk.getJsonld())) {
+            return null;
+        }
+        PrecomputedDump dump = dumps.get(selection);
+        if (dump == null) {
+            if (dumps.size() >= MAX_DUMPS) {
+                return null;
+            }
+            dump = register(selection);
+        }
+        lastRequested.put(selection, Instant.now());
+        return dump.current() != null ? dump : null;
+    }
+
+    private PrecomputedDump register(String selection) {
+        return dumps.computeIfAbsent(selection, s ->
+                new PrecomputedDump(s, root.resolve(URLEncoder.encode(s, StandardCharsets.UTF_8))));
+    }
+
+    private void maintain() {
+        Instant now = Instant.now();
+        Instant latestActivity;
+        try {
+            latestActivity = PrecomputedDump.latestActivity(whelk);
+        } catch (Exception e) {
+            logger.error("Failed to read latest EMM activity: {}", e, e);
+            return;
+        }
+
+        for (PrecomputedDump dump : dumps.values()) {
+            try {
+                Instant requested = lastRequested.getOrDefault(dump.selection, now);
+                lastRequested.putIfAbsent(dump.selection, requested);
+                if (!dump.selection.equals("all") && requested.isBefore(now.minus(DROP_UNUSED_AFTER))) {
+                    logger.info("Dropping unused dump {}", dump.selection);
+                    dumps.remove(dump.selection);
+                    lastRequested.remove(dump.selection);
+                    dump.delete();
+                    continue;
+                }
+
+                var current = dump.current();
+                if (current == null) {
+                    if (isOffPeak()) {
+                        dump.build(whelk);
+                    }
+                } else if (latestActivity != null
+                        && latestActivity.isAfter(current.refreshedAt.minus(PrecomputedDump.CHANGE_OVERLAP))
+                        && current.refreshedAt.isBefore(now.minus(MIN_REFRESH_INTERVAL))) {
+                    dump.refresh(whelk);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to update dump {}: {}", dump.selection, e, e);
+            }
+        }
+    }
+
+    private static boolean isOffPeak() {
+        int hour = ZonedDateTime.now().getHour();
+        return hour >= OFF_PEAK_START_HOUR && hour < OFF_PEAK_END_HOUR;
+    }
+}
@@ -1,25 +1,53 @@
 package whelk.housekeeping;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import whelk.Whelk;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.Timestamp;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Warns about large exports, from the counts of changed documents by type that the storage keeps per day
+ * (lddb__daily_changes). The counts are also exported as gauges, read from the table on every scrape.
+ *
+ * Deletions are counted like other changes. Documents are never removed from lddb, PostgreSQLComponent.remove()
+ * marks them as deleted with a regular update.
+ */
 public class ExportSizePredictor extends HouseKeeper {
 
+    // Base type -> number of documents changed during a day that makes a potentially too large export
+    private static final Map<String, Long> LIMITS = new LinkedHashMap<>();
+    static {
+        LIMITS.put("Item", 350000L);
+        LIMITS.put("Instance", 50000L);
+        LIMITS.put("Work", 5000L);
+        LIMITS.put("Topic", 250L);
+        LIMITS.put("Agent", 300L);
+    }
+
+    private static final Logger logger = LogManager.getLogger(ExportSizePredictor.class);
+
+    // Collectors can only be registered once, the collector reads through the latest instance
+    private static volatile ExportSizePredictor collected;
+    static {
+        new ChangedTodayCollector().register();
+    }
+
     private String status = "OK";
     private final Whelk whelk;
-    private final Logger logger = LogManager.getLogger(this.getClass());
 
     public ExportSizePredictor(Whelk whelk) {
         this.whelk = whelk;
+        collected = this;
     }
 
     public String getName() {
@@ -35,41 +63,72 @@ public class ExportSizePredictor extends HouseKeeper {
     }
 
     public void trigger() {
+        Map<String, Long> changed;
+        try {
+            changed = countChangedToday();
+        } catch (Throwable e) {
+            status = "Failed with:\n" + e + "\nat:\n" + e.getStackTrace().toString();
+            throw new RuntimeException(e);
+        }
+        status = "OK";
 
-        int items = countChanged("Item");
-        int instances = countChanged("Instance");
-        int works = countChanged("Work");
-        int topics = countChanged("Topic");
-        int agents = countChanged("Agent");
-
-        if (items > 350000 || instances > 50000 || works > 5000 || topics > 250 || agents > 300) {
+        boolean tooLarge = LIMITS.entrySet().stream().anyMatch(limit -> changed.get(limit.getKey()) > limit.getValue());
+        if (tooLarge) {
             logger.warn("Potentially too large export going tonight, changed so far today: "
-                    + items + " items, " + instances + " instances, " + works + " works, "
-                    + topics + " topics, " + agents + " agents." );
+                    + changed.get("Item") + " items, " + changed.get("Instance") + " instances, " + changed.get("Work") + " works, "
+                    + changed.get("Topic") + " topics, " + changed.get("Agent") + " agents." );
+        }
+    }
+
+    /**
+     * @return the number of documents changed since midnight (UTC) per base type
+     */
+    private Map<String, Long> countChangedToday() {
+        Map<String, Long> byType = whelk.getStorage().getDailyChanges(LocalDate.now(ZoneOffset.UTC));
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (String baseType : LIMITS.keySet()) {
+            Set<String> types = whelk.getJsonld().getSubClasses(baseType);
+            types.add(baseType);
+            long count = 0;
+            for (String type : types) {
+                count += byType.getOrDefault(type, 0L);
+            }
+            result.put(baseType, count);
         }
+        return result;
     }
 
-    private int countChanged(String baseType) {
-        Timestamp from = Timestamp.from(Instant.now().truncatedTo(ChronoUnit.DAYS));
-        String sql = "SELECT count(id) FROM lddb WHERE modified > ? AND data#>>'{@graph,1,@type}' IN (€);";
-
-        Set<String> types = whelk.getJsonld().getSubClasses(baseType);
-        types.add(baseType);
-        String replacement = "'" + String.join("', '",  types) + "'";
-        String concreteQuery = sql.replace("€", replacement);
-
-        try (Connection connection = whelk.getStorage().getOuterConnection();
-             PreparedStatement statement = connection.prepareStatement(concreteQuery)) {
-            statement.setTimestamp(1, from);
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    return resultSet.getInt(1);
-                }
+    private static class ChangedTodayCollector extends Collector {
+        @Override
+        public List<MetricFamilySamples> collect() {
+            ExportSizePredictor predictor = collected;
+            if (predictor == null) {
+                return Collections.emptyList();
             }
-        } catch (Throwable e) {
-            status = "Failed with:\n" + e + "\nat:\n" + e.getStackTrace().toString();
-            throw new RuntimeException(e);
+            Map<String, Long> changed;
+            try {
+                changed = predictor.countChangedToday();
+            } catch (Exception e) {
+                logger.warn("Could not count today's changes: " + e);
+                return Collections.emptyList();
+            }
+
+            GaugeMetricFamily gauge = new GaugeMetricFamily("lddb_changed_today",
+                    "Documents changed since midnight (UTC), by base type of the main entity",
+                    List.of("base_type"));
+            GaugeMetricFamily limits = new GaugeMetricFamily("lddb_changed_today_export_limit",
+                    "Number of changed documents that makes a potentially too large export, by base type",
+                    List.of("base_type"));
+            for (Map.Entry<String, Long> limit : LIMITS.entrySet()) {
+                gauge.addMetric(List.of(limit.getKey()), changed.get(limit.getKey()));
+                limits.addMetric(List.of(limit.getKey()), limit.getValue());
+            }
+
+            List<MetricFamilySamples> samples = new ArrayList<>();
+            samples.add(gauge);
+            samples.add(limits);
+            return samples;
         }
-        return 0;
     }
 }
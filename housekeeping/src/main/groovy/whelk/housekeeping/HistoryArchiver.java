@@ -7,19 +7,29 @@ import whelk.Whelk;
 import whelk.diff.Diff;
 import whelk.diff.Patch;
 
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.sql.*;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import static whelk.util.Jackson.mapper;
@@ -27,7 +37,18 @@ import static whelk.util.Jackson.mapper;
 public class HistoryArchiver extends HouseKeeper {
 
     private final Logger logger = LogManager.getLogger(this.getClass());
-    private final Path prelimPath;
+
+    // Diffing and verifying the history of a record is CPU bound, and independent of other records
+    private static final int ARCHIVE_THREADS = Runtime.getRuntime().availableProcessors();
+    // Max number of record histories being generated or waiting to be written
+    private static final int ARCHIVE_READ_AHEAD = 2 * ARCHIVE_THREADS;
+    private static final int WAL_BUF_SIZE = 64 * 1024;
+    private static final ExecutorService archivePool = Executors.newFixedThreadPool(ARCHIVE_THREADS, r -> {
+        Thread t = new Thread(r, "history-archiver");
+        t.setDaemon(true);
+        return t;
+    });
+
     private final Path walPath;
     private final String permanentLocationPattern;
 
@@ -38,7 +59,7 @@ public class HistoryArchiver extends HouseKeeper {
 
         String archiveRoot = whelk.getHistoryArchiveRoot();
         if (archiveRoot == null) {
-            prelimPath = walPath = null;
+            walPath = null;
             permanentLocationPattern = null;
             logger.info("No history archive root configured. Not doing any archiving.");
             return;
@@ -47,12 +68,11 @@ public class HistoryArchiver extends HouseKeeper {
         try {
             Files.createDirectories(archiveRootPath);
         } catch (IOException ioe) {
-            prelimPath = walPath = null;
+            walPath = null;
             permanentLocationPattern = null;
             logger.error("Could not createDirectories: " + archiveRoot);
             return;
         }
-        prelimPath = archiveRootPath.resolve("libris-history.json.lines.tmp");
         walPath = archiveRootPath.resolve("libris-history.json.lines.wal");
         permanentLocationPattern = archiveRootPath.resolve("libris-history-£.json.lines.gz").toString();
         logger.info("History archiver is active. Archive root set to: " + archiveRoot);
@@ -101,88 +121,169 @@ public class HistoryArchiver extends HouseKeeper {
     }
 
 
-    private String generateArchiveLogFor(List<String> ids) throws Exception {
+    /**
+     * Append the history of the records to the WAL, one line per record.
+     *
+     * The histories are generated in parallel and written in order as they become ready, so only a few of them
+     * are held in memory at a time.
+     *
+     * @return the size of the WAL before appending, for undoing the append with rollbackArchiveLog
+     */
+    private long writeArchiveLog(List<String> ids) throws Exception {
         // The archive log is gzipped json.lines, one line per record. So that it can be
         // easily appended to an existing archive log file, and 'grep':ed in for finding
         // individual records and their history.
-        // Each record (line) is a json document with an original version of the record
-        // and diffs for every change since.
 
-        StringBuilder sb = new StringBuilder();
-        for (String id : ids) {
+        try (FileChannel wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            long start = truncateIncompleteLine(wal);
+            wal.position(start);
+            try {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(wal), WAL_BUF_SIZE);
+                writeRecordHistories(ids, out);
+                out.flush();
 
-            List<Document> versions = whelk.getStorage().loadAllVersions(id);
-            if (versions.isEmpty()) { // Should be impossible
-                logger.error("History archiving: Broken data detected: No versions for " + id);
-                continue;
+                // Disk write durability is notoriously hard to guarantee, but perform an fsync() here and we've done about all we can.
+                wal.force(true);
+            } catch (Exception e) {
+                wal.truncate(start);
+                throw e;
             }
+            return start;
+        }
+    }
 
-            List<List> diffs = new ArrayList<>();
-            for (int i = 0; i < versions.size()-1; ++i) {
-                diffs.add( Diff.diff(versions.get(i).data, versions.get(i+1).data) );
-            }
+    /**
+     * Remove what was appended to the WAL by writeArchiveLog, when the records couldn't be removed after all.
+     */
+    private void rollbackArchiveLog(long size) throws IOException {
+        try (FileChannel wal = FileChannel.open(walPath, StandardOpenOption.WRITE)) {
+            wal.truncate(size);
+            wal.force(true);
+        }
+    }
 
-            // Do a final sanity check: That the diff-history we've produced CAN in fact recreate
-            // the full original history.
-            List<Map<?,?>> versionsData = new ArrayList<>();
-            for (Document doc : versions) {
-                versionsData.add(doc.data);
-            }
-            List<Map<?,?>> recreatedVersionsData = new ArrayList<>();
-            recreatedVersionsData.add(versions.getFirst().data);
-            for (int i = 0; i < diffs.size(); ++i) {
-                recreatedVersionsData.add( Patch.patch( versions.get(i).data, mapper.writeValueAsString(diffs.get(i))) );
+    /**
+     * An append interrupted by a crash can leave half a line at the end of the WAL. Cut it off, the records
+     * it belonged to were never removed from the database and will be archived again.
+     *
+     * @return the size of the WAL
+     */
+    private long truncateIncompleteLine(FileChannel wal) throws IOException {
+        long size = wal.size();
+        ByteBuffer buf = ByteBuffer.allocate(WAL_BUF_SIZE);
+        long end = size;
+        while (end > 0) {
+            long chunkStart = Math.max(0, end - buf.capacity());
+            buf.clear().limit((int) (end - chunkStart));
+            while (buf.hasRemaining()) {
+                if (wal.read(buf, chunkStart + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of " + walPath);
+                }
             }
-            if (!recreatedVersionsData.equals(versionsData)) {
-                logger.error("CRITIAL: SANITY TEST FAILED! WAS ABOUT TO ARCHIVE HISTORY WHICH FAILED TO REPRODUCE FROM ORIGINAL + DIFFS! DEVELOPER ACTION REQUIRED! record: " + id);
-                throw new Exception("CRITIAL: Cannot archive history, because there is a bug in the diff/patch-code!");
+            for (int i = buf.limit() - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    long complete = chunkStart + i + 1;
+                    if (complete != size) {
+                        logger.warn("Removing incomplete line at the end of " + walPath + " (" + (size - complete) + " bytes)");
+                        wal.truncate(complete);
+                    }
+                    return complete;
+                }
             }
-
-            Map recordHistory = Map.of(
-                    "original", versions.get(0).data,
-                    "diffs", diffs
-            );
-            sb.append(mapper.writeValueAsString(recordHistory));
-            sb.append("\n");
+            end = chunkStart;
         }
-        return sb.toString();
+        if (size > 0) {
+            logger.warn("Removing incomplete line at the end of " + walPath + " (" + size + " bytes)");
+            wal.truncate(0);
+        }
+        return 0;
     }
 
-    private List<String> getAllUrisFor(List<String> ids) {
-        List<String> uris = new ArrayList<>(ids.size() * 4);
-        for (String id : ids) {
-            Document doc = whelk.getDocument(id);
-            uris.addAll(doc.getThingIdentifiers());
-            uris.addAll(doc.getRecordIdentifiers());
+    private void writeRecordHistories(List<String> ids, OutputStream out) throws Exception {
+        Deque<Future<byte[]>> pending = new ArrayDeque<>(ARCHIVE_READ_AHEAD);
+        Iterator<String> it = ids.iterator();
+        try {
+            while (it.hasNext() || !pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < ARCHIVE_READ_AHEAD) {
+                    String id = it.next();
+                    pending.add(archivePool.submit(() -> generateRecordHistory(id)));
+                }
+                byte[] line = await(pending.poll());
+                if (line != null) {
+                    out.write(line);
+                }
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
         }
-        return Collections.unmodifiableList(uris);
     }
 
-    private void writeArchiveLog(String archiveLog) throws IOException {
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
 
-        // Create the wal-file if it does not exist. Ignore the return, either true or false is fine.
-        walPath.toFile().createNewFile();
+    /**
+     * @return a json line with an original version of the record and diffs for every change since,
+     * or null if there are no versions
+     */
+    private byte[] generateRecordHistory(String id) throws Exception {
+        List<Document> versions = whelk.getStorage().loadAllVersions(id);
+        if (versions.isEmpty()) { // Should be impossible
+            logger.error("History archiving: Broken data detected: No versions for " + id);
+            return null;
+        }
 
-        // Copy the existing WAL to the preliminary location (potentially overwriting a previous failed attempt)
-        Files.copy(walPath, prelimPath, StandardCopyOption.REPLACE_EXISTING);
+        List<List> diffs = new ArrayList<>();
+        for (int i = 0; i < versions.size()-1; ++i) {
+            diffs.add( Diff.diff(versions.get(i).data, versions.get(i+1).data) );
+        }
 
-        // Append our new data to the end of the file at the preliminary location
-        Files.write(prelimPath, archiveLog.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        // Do a final sanity check: That the diff-history we've produced CAN in fact recreate
+        // the full original history.
+        List<Map<?,?>> versionsData = new ArrayList<>();
+        for (Document doc : versions) {
+            versionsData.add(doc.data);
+        }
+        List<Map<?,?>> recreatedVersionsData = new ArrayList<>();
+        recreatedVersionsData.add(versions.getFirst().data);
+        for (int i = 0; i < diffs.size(); ++i) {
+            recreatedVersionsData.add( Patch.patch( versions.get(i).data, mapper.writeValueAsString(diffs.get(i))) );
+        }
+        if (!recreatedVersionsData.equals(versionsData)) {
+            logger.error("CRITIAL: SANITY TEST FAILED! WAS ABOUT TO ARCHIVE HISTORY WHICH FAILED TO REPRODUCE FROM ORIGINAL + DIFFS! DEVELOPER ACTION REQUIRED! record: " + id);
+            throw new Exception("CRITIAL: Cannot archive history, because there is a bug in the diff/patch-code!");
+        }
 
-        // Move the preliminary file over the WAL file, replacing it.
-        Files.move(prelimPath, walPath, StandardCopyOption.REPLACE_EXISTING);
+        Map recordHistory = Map.of(
+                "original", versions.get(0).data,
+                "diffs", diffs
+        );
+        byte[] json = mapper.writeValueAsBytes(recordHistory);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
 
-        // Disk write durability is notoriously hard to guarantee, but perform an fsync() here and we've done about all we can.
-        try (FileChannel channel = (FileChannel) Files.newByteChannel(walPath, StandardOpenOption.READ)) {
-            channel.force(true);
+    private List<String> getAllUrisFor(List<String> ids) {
+        List<String> uris = new ArrayList<>(ids.size() * 4);
+        for (Document doc : whelk.getStorage().bulkLoad(ids).values()) {
+            uris.addAll(doc.getThingIdentifiers());
+            uris.addAll(doc.getRecordIdentifiers());
         }
+        return Collections.unmodifiableList(uris);
     }
 
     private void writeToGraveyard(List<String> uris, Connection connection) throws SQLException {
-        for (String uri : uris) {
-            String sql = "INSERT INTO lddb__graveyard (iri) VALUES (?) ON CONFLICT DO NOTHING";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, uri);
+        String sql = "INSERT INTO lddb__graveyard (iri) SELECT unnest(?) ON CONFLICT DO NOTHING";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setArray(1, connection.createArrayOf("TEXT", uris.toArray()));
             statement.execute();
         }
     }
@@ -257,6 +358,7 @@ public class HistoryArchiver extends HouseKeeper {
 
         // The double-try is so that we can do an explicit rollback() on failures.
         try (Connection connection = whelk.getStorage().getOuterConnection()) {
+            long walSizeBeforeBatch = -1;
             try {
 
                 // Work for up to ~15 minutes a day archiving history
@@ -268,10 +370,10 @@ public class HistoryArchiver extends HouseKeeper {
                     lockRows(ids, connection);
                     List<String> uris = getAllUrisFor(ids);
                     writeToGraveyard(uris, connection);
-                    String archiveLog = generateArchiveLogFor(ids);
-                    writeArchiveLog(archiveLog);
+                    walSizeBeforeBatch = writeArchiveLog(ids);
                     removeHistory(ids, connection);
                     connection.commit();
+                    walSizeBeforeBatch = -1;
 
                     if (!ids.isEmpty()) {
                         logger.info("Archived history for " + ids.size() + " deleted records.");
@@ -288,8 +390,12 @@ public class HistoryArchiver extends HouseKeeper {
                 status = e.getMessage();
                 try {
                     connection.rollback();
-                } catch (SQLException sqle) {
-                    throw new RuntimeException(sqle);
+                    // The records are still in the database and will be archived again
+                    if (walSizeBeforeBatch >= 0) {
+                        rollbackArchiveLog(walSizeBeforeBatch);
+                    }
+                } catch (SQLException | IOException re) {
+                    throw new RuntimeException(re);
                 }
                 throw new RuntimeException(e);
             }
@@ -1,6 +1,8 @@
 package whelk.housekeeping
 
 import com.fasterxml.jackson.databind.JsonMappingException
+import io.prometheus.client.Counter
+import io.prometheus.client.Summary
 import whelk.Document
 import whelk.IdGenerator
 import whelk.JsonLd
@@ -17,6 +19,12 @@ import java.time.Instant
 import java.time.ZoneOffset
 import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
 
 import static whelk.util.Jackson.mapper
 
@@ -26,6 +34,51 @@ class NotificationGenerator extends HouseKeeper {
 
     public static final String STATE_KEY = "CXZ notification generator"
     private static final int MAX_OBSERVATIONS_PER_CHANGE = 20
+
+    // Changed records are handled in batches, for which all needed historic versions are loaded together
+    private static final int CHANGE_BATCH_SIZE = 200
+
+    // Comparing the versions of an instance is CPU bound, and independent of other instances
+    private static final int GENERATOR_THREADS = Runtime.getRuntime().availableProcessors()
+    private static final ExecutorService generatorPool = Executors.newFixedThreadPool(GENERATOR_THREADS, { Runnable r ->
+        Thread t = new Thread(r, "notification-generator")
+        t.setDaemon(true)
+        return t
+    } as ThreadFactory)
+
+    private static final Summary runTime = Summary.build()
+            .name("notification_generator_run_seconds")
+            .help("Time taken to generate notifications for the changes of an interval.").register()
+    private static final Counter changesChecked = Counter.build()
+            .name("notification_generator_changes_total")
+            .help("Changed records checked for effects on instances.").register()
+
+    private static final List<String> INSTANCE_PROPERTIES_TO_EMBELLISH = [
+            "mainEntity",
+            "instanceOf",
+            "contribution",
+            "hasTitle",
+            "intendedAudience",
+            "classification",
+            "precededBy",
+            "succeededBy",
+            "contribution",
+            "agent",
+            "isPartOf",
+            "subject",
+            "continuedBy",
+            "continues",
+    ]
+
+    /**
+     * A changed record, and the instances that may be affected by the change (itself, if it is an instance).
+     */
+    private static class Change {
+        String id
+        List changeNotes
+        List<String> instanceIds = []
+    }
+
     private String status = "OK"
     private final Whelk whelk
 
@@ -58,6 +111,7 @@ class NotificationGenerator extends HouseKeeper {
         PreparedStatement statement
         ResultSet resultSet
 
+        Summary.Timer timer = runTime.startTimer()
         connection = whelk.getStorage().getOuterConnection()
         connection.setAutoCommit(false)
         try {
@@ -69,86 +123,127 @@ class NotificationGenerator extends HouseKeeper {
             statement.setTimestamp(2, until)
             statement.setFetchSize(512)
             resultSet = statement.executeQuery()
+            List<Change> batch = []
             while (resultSet.next()) {
-                String id = resultSet.getString("id")
-
-                List<Document> resultingChangeObservations = []
-
                 Array changeNotesArray = resultSet.getArray("changeNotes")
                 List changeNotes = []
                 for (Object o : changeNotesArray.getArray()) {
                     if (o != null)
                         changeNotes.add(o)
                 }
+                batch.add(new Change(id: resultSet.getString("id"), changeNotes: changeNotes))
 
-                Map<String, List<String>> changedInstanceIDsWithComments = [:]
+                if (batch.size() >= CHANGE_BATCH_SIZE) {
+                    generateObservations(batch, from.toInstant(), until.toInstant())
+                    batch = []
+                }
+            }
+            if (batch) {
+                generateObservations(batch, from.toInstant(), until.toInstant())
+            }
 
-                List<Tuple2<String, String>> dependers = whelk.getStorage().followDependers(id, ["itemOf"])
-                dependers.add(new Tuple2(id, null)) // This ID too, not _only_ the dependers!
-                dependers.each {
-                    String dependerID =  it[0]
-                    Document dependerDocument = whelk.getStorage().load(dependerID)
+        } catch (Throwable e) {
+            status = "Failed with:\n" + e + "\nat:\n" + e.getStackTrace().toString()
+            throw e
+        } finally {
+            connection.close()
+            timer.observeDuration()
+            Map newState = new HashMap()
+            newState.lastGenerationTime = until.toInstant().atOffset(ZoneOffset.UTC).toString()
+            whelk.getStorage().putState(STATE_KEY, newState)
+        }
+    }
 
-                    // Filter out certain groups of instances, which we do not want observations for
-                    boolean filtered = false
-                    String dependerMainEntityType = dependerDocument.getThingType()
-                    if (dependerMainEntityType == null)
-                        filtered = true
-                    else if (dependerMainEntityType.equals("Electronic"))
-                        filtered = true
-                    String encodingLevel = dependerDocument.getEncodingLevel()
-                    if (encodingLevel == null)
+    private void generateObservations(List<Change> batch, Instant before, Instant after) {
+        // The changed records and their dependers (but not holdings), as they are now
+        Map<String, List<String>> dependerIdsByChange = [:]
+        Set<String> idsToLoad = []
+        Map<String, List<Tuple2<String, String>>> dependers = whelk.getStorage().bulkFollowDependersByRoot(batch*.id, ["itemOf"])
+        for (Change change : batch) {
+            List<String> dependerIds = dependers.getOrDefault(change.id, []).collect { it.v1 }
+            dependerIds.add(change.id) // This ID too, not _only_ the dependers!
+            dependerIdsByChange[change.id] = dependerIds
+            idsToLoad.addAll(dependerIds)
+        }
+        Map<String, Document> current = whelk.getStorage().bulkLoad(idsToLoad)
+
+        Set<String> instanceIds = []
+        for (Change change : batch) {
+            for (String dependerID : dependerIdsByChange[change.id].unique()) {
+                Document dependerDocument = current[dependerID]
+                if (dependerDocument == null)
+                    continue
+
+                // Filter out certain groups of instances, which we do not want observations for
+                boolean filtered = false
+                String dependerMainEntityType = dependerDocument.getThingType()
+                if (dependerMainEntityType == null)
+                    filtered = true
+                else if (dependerMainEntityType.equals("Electronic"))
+                    filtered = true
+                String encodingLevel = dependerDocument.getEncodingLevel()
+                if (encodingLevel == null)
+                    filtered = true
+                else{
+                    if ( encodingLevel.equals("marc:PartialPreliminaryLevel") || encodingLevel.equals("marc:PrepublicationLevel") ) {
                         filtered = true
-                    else{
-                        if ( encodingLevel.equals("marc:PartialPreliminaryLevel") || encodingLevel.equals("marc:PrepublicationLevel") ) {
-                            filtered = true
-                        }
                     }
+                }
 
-                    if (dependerMainEntityType != null && whelk.getJsonld().isSubClassOf(dependerMainEntityType, "Instance") && !filtered) {
-                        ((List) changedInstanceIDsWithComments.computeIfAbsent(dependerID, f -> []))
-                                .addAll(changeNotes)
-                    }
+                if (dependerMainEntityType != null && whelk.getJsonld().isSubClassOf(dependerMainEntityType, "Instance") && !filtered) {
+                    change.instanceIds.add(dependerID)
+                    instanceIds.add(dependerID)
                 }
+            }
+        }
 
-                for (String instanceId : changedInstanceIDsWithComments.keySet()) {
-                    try {
-                        resultingChangeObservations.addAll(generateObservationsForAffectedInstance(
-                                instanceId, changedInstanceIDsWithComments[instanceId], from.toInstant(), until.toInstant()))
-                    } catch (Throwable e) {
-                        log.error("Failed to check an embellished instance ($instanceId) for effects caused changes to $id.", e)
-                    }
+        // Every affected instance before and after, with the linked data that is compared
+        Map<String, Document> instancesAfter = whelk.getStorage().bulkLoad(instanceIds, after)
+        Map<String, Document> instancesBefore = whelk.getStorage().bulkLoad(instancesAfter.keySet(), before)
+        addHistoricLinks(instancesAfter.values(), INSTANCE_PROPERTIES_TO_EMBELLISH, after)
+        addHistoricLinks(instancesBefore.values(), INSTANCE_PROPERTIES_TO_EMBELLISH, before)
+
+        Map<String, List<Future<List<Document>>>> observationsByChange = [:]
+        for (Change change : batch) {
+            List changeNotes = change.changeNotes
+            observationsByChange[change.id] = change.instanceIds.collect { String instanceId ->
+                generatorPool.submit({
+                    generateObservationsForAffectedInstance(instanceId, changeNotes,
+                            instancesBefore[instanceId], instancesAfter[instanceId])
+                } as Callable<List<Document>>)
+            }
+        }
+
+        for (Change change : batch) {
+            List<Document> resultingChangeObservations = []
+            List<Future<List<Document>>> observations = observationsByChange[change.id]
+            for (int i = 0; i < observations.size(); ++i) {
+                try {
+                    resultingChangeObservations.addAll(observations[i].get())
+                } catch (ExecutionException e) {
+                    log.error("Failed to check an embellished instance (${change.instanceIds[i]}) for effects caused changes to ${change.id}.", e.getCause())
                 }
+            }
 
-                String changedMainEntityType = whelk.getStorage().getMainEntityTypeBySystemID(id)
-                if (resultingChangeObservations.size() <= MAX_OBSERVATIONS_PER_CHANGE || whelk.getJsonld().isSubClassOf(changedMainEntityType, "Work")) {
-                    for (Document observation : resultingChangeObservations) {
-                        if (!whelk.createDocument(observation, "NotificationGenerator", "SEK", "none", false)) {
-                            log.error("Failed to create ChangeObservation:\n${observation.getDataAsString()}")
-                        }
+            String changedMainEntityType = current[change.id]?.getThingType()
+            if (resultingChangeObservations.size() <= MAX_OBSERVATIONS_PER_CHANGE || whelk.getJsonld().isSubClassOf(changedMainEntityType, "Work")) {
+                for (Document observation : resultingChangeObservations) {
+                    if (!whelk.createDocument(observation, "NotificationGenerator", "SEK", "none", false)) {
+                        log.error("Failed to create ChangeObservation:\n${observation.getDataAsString()}")
                     }
-                } else {
-                    if (whelk.getJsonld().isSubClassOf(changedMainEntityType, "Agent")) {
-                        log.info("Changes to " + id + " would result in too many Instance-ChangeObservations, making an Agent-ChangeObservation instead.")
-                        Document observation = generateObservationForChangedAgent(id, changeNotes, from.toInstant(), until.toInstant())
-                        if (!whelk.createDocument(observation, "NotificationGenerator", "SEK", "none", false)) {
-                            log.error("Failed to create ChangeObservation:\n${observation.getDataAsString()}")
-                        }
-                    } else {
-                        log.info("Changes to " + id + " would result in too many ChangeObservations, skipping instead.")
+                }
+            } else {
+                if (whelk.getJsonld().isSubClassOf(changedMainEntityType, "Agent")) {
+                    log.info("Changes to " + change.id + " would result in too many Instance-ChangeObservations, making an Agent-ChangeObservation instead.")
+                    Document observation = generateObservationForChangedAgent(change.id, change.changeNotes, before, after)
+                    if (!whelk.createDocument(observation, "NotificationGenerator", "SEK", "none", false)) {
+                        log.error("Failed to create ChangeObservation:\n${observation.getDataAsString()}")
                     }
+                } else {
+                    log.info("Changes to " + change.id + " would result in too many ChangeObservations, skipping instead.")
                 }
-
             }
-
-        } catch (Throwable e) {
-            status = "Failed with:\n" + e + "\nat:\n" + e.getStackTrace().toString()
-            throw e
-        } finally {
-            connection.close()
-            Map newState = new HashMap()
-            newState.lastGenerationTime = until.toInstant().atOffset(ZoneOffset.UTC).toString()
-            whelk.getStorage().putState(STATE_KEY, newState)
+            changesChecked.inc()
         }
     }
 
@@ -172,31 +267,21 @@ class NotificationGenerator extends HouseKeeper {
         return null
     }
 
-    private List<Document> generateObservationsForAffectedInstance(String instanceId, List changeNotes, Instant before, Instant after) {
+    /**
+     * @param before the instance with its historic links added (see addHistoricLinks), or null if it is new
+     * @param after the instance with its historic links added
+     */
+    private List<Document> generateObservationsForAffectedInstance(String instanceId, List changeNotes, Document before, Document after) {
         List<Document> generatedObservations = []
-        List<String> propertiesToEmbellish = [
-                "mainEntity",
-                "instanceOf",
-                "contribution",
-                "hasTitle",
-                "intendedAudience",
-                "classification",
-                "precededBy",
-                "succeededBy",
-                "contribution",
-                "agent",
-                "isPartOf",
-                "subject",
-                "continuedBy",
-                "continues",
-        ]
-        Document instanceAfterChange = whelk.getStorage().loadAsOf(instanceId, Timestamp.from(after))
-        historicEmbellish(instanceAfterChange, propertiesToEmbellish, after)
-        Document instanceBeforeChange = whelk.getStorage().loadAsOf(instanceId, Timestamp.from(before))
-        if (instanceBeforeChange == null) { // This instance is new, and did not exist at 'before'.
+        if (after == null) {
+            throw new IllegalStateException("No version of $instanceId at the end of the interval")
+        }
+        if (before == null) { // This instance is new, and did not exist at 'before'.
             return generatedObservations
         }
-        historicEmbellish(instanceBeforeChange, propertiesToEmbellish, before)
+        // The same instance may be affected by several changes, each frames its own copy
+        Document instanceAfterChange = framedCopy(after)
+        Document instanceBeforeChange = framedCopy(before)
         String agentId = instanceAfterChange.data?['descriptionLastModifier']?['@id'] // TODO? not necessarily the correct agent if multiple versions
         Tuple comparisonResult
 
@@ -356,25 +441,63 @@ class NotificationGenerator extends HouseKeeper {
      * This function mutates docToEmbellish
      */
     private void historicEmbellish(Document docToEmbellish, List<String> properties, Instant asOf) {
-        List graphListToEmbellish = (List) docToEmbellish.data["@graph"]
-        Set alreadyLoadedURIs = []
-
-        for (int i = 0; i < properties.size(); ++i) {
-            Set uris = findLinkedURIs(graphListToEmbellish, properties)
-            uris.removeAll(alreadyLoadedURIs)
-            if (uris.isEmpty())
-                break
-
-            Map<String, Document> linkedDocumentsByUri = whelk.bulkLoad(uris, asOf)
-            linkedDocumentsByUri.each {
-                List linkedGraphList = (List) it.value.data["@graph"]
-                if (linkedGraphList.size() > 1)
-                    graphListToEmbellish.add(linkedGraphList[1])
-            }
-            alreadyLoadedURIs.addAll(uris)
+        addHistoricLinks([docToEmbellish], properties, asOf)
+        docToEmbellish.data = JsonLd.frame(docToEmbellish.getCompleteId(), docToEmbellish.data)
+    }
+
+    private static Document framedCopy(Document doc) {
+        Document copy = new Document(Document.deepCopy(doc.data))
+        copy.data = JsonLd.frame(copy.getCompleteId(), copy.data)
+        return copy
+    }
+
+    /**
+     * The first step of historicEmbellish, for many documents at once: add the things linked with the properties
+     * (recursively), as they were at 'asOf', to the graph of each document. Every level of links is loaded with
+     * one query for all the documents.
+     *
+     * This function mutates the documents
+     */
+    private void addHistoricLinks(Collection<Document> docs, List<String> properties, Instant asOf) {
+        Map<Document, Set<String>> alreadyLoadedURIs = new IdentityHashMap<>()
+        for (Document doc : docs) {
+            alreadyLoadedURIs[doc] = new HashSet<String>()
         }
+        Map<String, Document> linkedDocumentsByUri = [:]
+        Set<String> loadedURIs = []
+
+        Collection<Document> remaining = docs
+        for (int i = 0; i < properties.size() && remaining; ++i) {
+            Map<Document, Set<String>> urisByDoc = new IdentityHashMap<>()
+            for (Document doc : remaining) {
+                Set<String> uris = findLinkedURIs(doc.data["@graph"], properties)
+                uris.removeAll(alreadyLoadedURIs[doc])
+                if (uris) {
+                    urisByDoc[doc] = uris
+                }
+            }
 
-        docToEmbellish.data = JsonLd.frame(docToEmbellish.getCompleteId(), docToEmbellish.data)
+            Set<String> toLoad = []
+            for (Set<String> uris : urisByDoc.values()) {
+                toLoad.addAll(uris)
+            }
+            toLoad.removeAll(loadedURIs)
+            if (toLoad) {
+                linkedDocumentsByUri.putAll(whelk.bulkLoad(toLoad, asOf))
+                loadedURIs.addAll(toLoad)
+            }
+
+            for (Map.Entry<Document, Set<String>> entry : urisByDoc.entrySet()) {
+                List graphListToEmbellish = (List) entry.key.data["@graph"]
+                for (String uri : entry.value) {
+                    List linkedGraphList = (List) linkedDocumentsByUri[uri]?.data?["@graph"]
+                    if (linkedGraphList && linkedGraphList.size() > 1)
+                        graphListToEmbellish.add(Document.deepCopy(linkedGraphList[1]))
+                }
+                alreadyLoadedURIs[entry.key].addAll(entry.value)
+            }
+            remaining = urisByDoc.keySet()
+        }
     }
 
     private Set<String> findLinkedURIs(Object node, List<String> properties) {
@@ -10,11 +10,13 @@ import org.apache.commons.io.FilenameUtils
 
 import whelk.Document
 import whelk.Whelk
+import whelk.component.PartitionedScan
 import whelk.component.PostgreSQLComponent
 import whelk.converter.JsonLdToTrigSerializer
 import whelk.filter.LinkFinder
 import whelk.reindexer.CardRefresher
 import whelk.reindexer.ElasticReindexer
+import whelk.reindexer.ReindexPipeline
 import whelk.util.PropertyLoader
 
 @Log
@@ -67,16 +69,19 @@ class ImporterMain {
         }
     }
 
-    @Command(args='[COLLECTION] [-t NUMBEROFTHREADS]')
+    @Command(args='[COLLECTION] [-t NUMBEROFTHREADS] [-s NUMBEROFSHIPTHREADS] [-p NUMBEROFPARTITIONS] [--resume]')
     void reindex(String... args) {
         def cli = new CliBuilder(
-                usage: 'reindex [collection] -[ht]',
+                usage: 'reindex [collection] -[htspr]',
                 header: '\n[collection] = auth|bib|hold|none|@type:<type>\n'
         )
         // Create the list of options.
         cli.with {
             h longOpt: 'help', 'Show usage information'
-            t longOpt: 'threads', type: int,  'Number of threads in parallel'
+            t longOpt: 'threads', type: int,  'Number of threads shaping documents in parallel'
+            s longOpt: 'ship-threads', type: int,  'Number of threads sending bulk requests to ES in parallel'
+            p longOpt: 'partitions', type: int,  'Number of partitions of each collection read from the database in parallel'
+            r longOpt: 'resume', 'Continue from the checkpoint of a previously failed reindex'
         }
          
         def options = cli.parse(args)
@@ -93,15 +98,25 @@ class ImporterMain {
             collection = options.arguments()[0]
         }
         
-        int numberOfThreads = Runtime.getRuntime().availableProcessors() * 2;
+        int numberOfThreads = ReindexPipeline.defaultShapeThreads()
         if (options.t) {
             numberOfThreads = options.t
         }
-        
+
+        int numberOfShipThreads = ElasticReindexer.DEFAULT_SHIP_THREADS
+        if (options.s) {
+            numberOfShipThreads = options.s
+        }
+
+        int numberOfPartitions = ElasticReindexer.DEFAULT_SCAN_PARTITIONS
+        if (options.p) {
+            numberOfPartitions = options.p
+        }
+
         boolean useCache = true
         Whelk whelk = Whelk.createLoadedSearchWhelk(props, useCache)
         def reindex = new ElasticReindexer(whelk)
-        reindex.reindex(collection, numberOfThreads)
+        reindex.reindex(collection, numberOfThreads, numberOfShipThreads, (boolean) options.r, numberOfPartitions)
     }
 
     @Command(args='[COLLECTION]')
@@ -172,6 +187,9 @@ class ImporterMain {
         copier.run()
     }
 
+    // Number of partitions lddbToTrig reads concurrently. Graphs are written in no particular order.
+    static final int TRIG_SCAN_PARTITIONS = 4
+
     // Records that do not cleanly translate to trig/turtle (bad data).
     // This obviously needs to be cleaned up!
     def trigExcludeList = [] as Set
@@ -213,40 +231,46 @@ class ImporterMain {
 
         serializer.prelude()
         int i = 0
-        for (Document doc : whelk.storage.loadAll(collection)) {
-            if (doc.getShortId() in trigExcludeList) {
-                System.err.println("Excluding: ${doc.getShortId()}")
-                continue
-            }
-
-            def id = doc.completeId
-            if (i % 500 == 0) {
-                System.err.println("$i records dumped.")
-            }
-            ++i
-            filterProblematicData(id, doc.data)
-            try {
-                serializer.writeGraph(id, doc.data['@graph'])
-            } catch (Throwable e) {
-                // Part of the record may still have been written to the stream, which is now corrupt.
-                System.err.println("${doc.getShortId()} conversion failed with ${e.toString()}")
-            }
+        PartitionedScan.ScanIterator scan = whelk.storage.loadAllPartitioned(collection, TRIG_SCAN_PARTITIONS).iterator()
+        try {
+            while (scan.hasNext()) {
+                Document doc = scan.next()
+                if (doc.getShortId() in trigExcludeList) {
+                    System.err.println("Excluding: ${doc.getShortId()}")
+                    continue
+                }
 
-            if (writingToFile && maxChunkSizeInBytes > 0 && cos.getByteCount() > maxChunkSizeInBytes) {
-                ++partNumber
-                cos.close()
-                System.err.println("Writing ${String.format(chunkedFormatString, partNumber)}")
-                def fos = new FileOutputStream(String.format(chunkedFormatString, partNumber))
-                if (shouldGzip) {
-                    cos = new CountingOutputStream(new GZIPOutputStream(fos))
-                } else {
-                    cos = new CountingOutputStream(fos)
+                def id = doc.completeId
+                if (i % 500 == 0) {
+                    System.err.println("$i records dumped.")
+                }
+                ++i
+                filterProblematicData(id, doc.data)
+                try {
+                    serializer.writeGraph(id, doc.data['@graph'])
+                } catch (Throwable e) {
+                    // Part of the record may still have been written to the stream, which is now corrupt.
+                    System.err.println("${doc.getShortId()} conversion failed with ${e.toString()}")
                 }
 
-                serializer.setOutputStream(cos)
-                // Make sure each chunk gets the prefixes
-                serializer.prelude()
+                if (writingToFile && maxChunkSizeInBytes > 0 && cos.getByteCount() > maxChunkSizeInBytes) {
+                    ++partNumber
+                    cos.close()
+                    System.err.println("Writing ${String.format(chunkedFormatString, partNumber)}")
+                    def fos = new FileOutputStream(String.format(chunkedFormatString, partNumber))
+                    if (shouldGzip) {
+                        cos = new CountingOutputStream(new GZIPOutputStream(fos))
+                    } else {
+                        cos = new CountingOutputStream(fos)
+                    }
+
+                    serializer.setOutputStream(cos)
+                    // Make sure each chunk gets the prefixes
+                    serializer.prelude()
+                }
             }
+        } finally {
+            scan.close()
         }
         cos.close()
     }
@@ -3,6 +3,7 @@ package whelk.reindexer
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.Whelk
+import whelk.component.PartitionedScan
 import whelk.util.BlockingThreadPool
 
 import java.time.Instant
@@ -10,6 +11,7 @@ import java.time.Instant
 @Log
 class CardRefresher {
     static final int BATCH_SIZE = 1000
+    static final int SCAN_PARTITIONS = 4
 
     Whelk whelk
     Instant timestamp = Instant.now()
@@ -26,15 +28,21 @@ class CardRefresher {
             BlockingThreadPool.SimplePool threadPool = BlockingThreadPool.simplePool(whelk.storage.getPoolSize())
 
             List<Document> documents = new ArrayList<>(BATCH_SIZE)
-            for (document in whelk.storage.loadAll(collection)) {
-                documents.add(document)
-                counter++
-                if (counter % BATCH_SIZE == 0) {
-                    int docsPerSec = (int) ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                    log.info("Processing $docsPerSec docs per second (running average since process start). Total count: $counter.")
-                    threadPool.submit(documents, this::refreshCards)
-                    documents = new ArrayList<>(BATCH_SIZE)
+            // Order doesn't matter, read concurrently
+            PartitionedScan.ScanIterator scan = whelk.storage.loadAllPartitioned(collection, SCAN_PARTITIONS).iterator()
+            try {
+                while (scan.hasNext()) {
+                    documents.add(scan.next())
+                    counter++
+                    if (counter % BATCH_SIZE == 0) {
+                        int docsPerSec = (int) ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
+                        log.info("Processing $docsPerSec docs per second (running average since process start). Total count: $counter.")
+                        threadPool.submit(documents, this::refreshCards)
+                        documents = new ArrayList<>(BATCH_SIZE)
+                    }
                 }
+            } finally {
+                scan.close()
             }
             refreshCards(documents)
             threadPool.awaitAllAndShutdown()
@@ -4,15 +4,17 @@ import groovy.util.logging.Log4j2 as Log
 import whelk.Document
 import whelk.JsonLd
 import whelk.Whelk
-import whelk.util.BlockingThreadPool
+import whelk.component.PartitionedScan
 import whelk.util.Unicode
 
+import java.time.Instant
+
 @Log
 class ElasticReindexer {
-    static final int BATCH_SIZE = 300
-    static final int MAX_RETRIES = 5
-    static final int INITIAL_RETRY_WAIT_MS = 3000
-    static final int MAX_RETRY_WAIT_MS = 60000
+    static final int DEFAULT_SHIP_THREADS = 4
+    static final int DEFAULT_SCAN_PARTITIONS = 4
+    static final long CHECKPOINT_INTERVAL_MS = 60 * 1000
+    static final int CHECKPOINT_POSITION_EVERY = 100
 
     Whelk whelk
 
@@ -41,74 +43,71 @@ class ElasticReindexer {
      * Reindex all changes since a point in time
      */
     void reindexFrom(long fromUnixTime) {
+        ReindexPipeline pipeline = new ReindexPipeline(whelk, ReindexPipeline.defaultShapeThreads(), DEFAULT_SHIP_THREADS)
         try {
-            int counter = 0
+            startTime = System.currentTimeMillis()
+            pipeline.start()
             for (collection in whelk.storage.loadCollections()) {
                 boolean includeDeleted = true
-                List<Document> documents = []
                 for (document in whelk.storage.loadAll(collection, includeDeleted, new Date(fromUnixTime*1000))) {
-
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            log.info("Indexing ${String.format("%.1f", docsPerSec)} documents per second (running average since process start). Total count: $counter.")
-                            bulkIndexWithRetries(documents, whelk)
-                            documents = []
-                        }
-                }
-                if (documents.size() > 0) {
-                    bulkIndexWithRetries(documents, whelk)
+                    pipeline.submit(document)
                 }
             }
+            pipeline.finish()
         } catch (Throwable e) {
             log.error("Reindex failed with: ${e}", e)
+        } finally {
+            pipeline.shutdown()
         }
     }
 
-    void reindex(String suppliedCollection, int numberOfThreads) {
-        BlockingThreadPool.SimplePool threadPool
-        int counter = 0
+    /**
+     * Reindex a collection, or all collections if none is given.
+     *
+     * Collections are read in numberOfScanPartitions partitions concurrently (see PostgreSQLComponent.loadAllPartitioned).
+     * Progress is checkpointed per partition in lddb__state so that a failed run can be continued with resume = true.
+     * When all collections have been scanned, documents modified since the (original) start of the run
+     * are indexed again, to catch changes made during the run.
+     */
+    void reindex(String suppliedCollection, int numberOfShapeThreads, int numberOfShipThreads = DEFAULT_SHIP_THREADS,
+                 boolean resume = false, int numberOfScanPartitions = DEFAULT_SCAN_PARTITIONS) {
+        ReindexPipeline pipeline = new ReindexPipeline(whelk, numberOfShapeThreads, numberOfShipThreads)
         try {
             startTime = System.currentTimeMillis()
-            List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
-            log.info("Collection(s) to be indexed: ${collections}")
-            threadPool = BlockingThreadPool.simplePool(numberOfThreads)
-            collections.each { collection ->
-                List<Document> documents = []
-                Iterable<Document> iterable;
-                if (collection.startsWith(JsonLd.TYPE_KEY+":")) {
-                    var type = Unicode.stripPrefix(collection, JsonLd.TYPE_KEY + ":")
-                    iterable = whelk.loadAllByType(type)
-                    log.info("Indexing type ${type}")
-                } else if (collection.startsWith("file://")) {
-                    String fileName = Unicode.stripPrefix(collection, "file://");
-                    var ids = new File(fileName).readLines().collect { it.strip() }
-                    iterable = whelk.storage.bulkLoad(ids).values()
-                    log.info("Indexing ${iterable.size()} docs from ${ids.size()} ids from file ${fileName}")
-                } else {
-                    iterable = whelk.storage.loadAll(collection)
-                    log.info("Indexing collection ${collection}")
-                }
-                for (document in iterable) {
-                    if ( ! document.getDeleted() ) {
-                        documents.add(document)
-                        counter++
-                        if (counter % BATCH_SIZE == 0) {
-                            double docsPerSec = ((double) counter) / ((double) ((System.currentTimeMillis() - startTime) / 1000))
-                            log.info("Indexing ${String.format("%.1f", docsPerSec)} documents per second (running average since process start). Total count: $counter.")
-                            def batch = documents
-                            threadPool.submit({ bulkIndexWithRetries(batch, whelk) })
-                            documents = []
-                        }
-                    }
-                }
-                if (documents.size() > 0) {
-                    bulkIndexWithRetries(documents, whelk)
+
+            ReindexCheckpoint checkpoint = resume ? ReindexCheckpoint.load(whelk.storage, suppliedCollection) : null
+            if (checkpoint == null || checkpoint.completed) {
+                if (resume) {
+                    log.info("No unfinished reindex of ${suppliedCollection ?: 'all collections'} to resume, starting from the beginning")
                 }
+                List<String> collections = suppliedCollection ? [suppliedCollection] : whelk.storage.loadCollections()
+                checkpoint = new ReindexCheckpoint(suppliedCollection, collections, Instant.now())
+                checkpoint.save(whelk.storage)
+            } else {
+                log.info("Resuming reindex from checkpoint: ${checkpoint}")
+            }
+            log.info("Collection(s) to be indexed: ${checkpoint.collections}")
+
+            long counter = 0
+            if (!checkpoint.scanCompleted) {
+                pipeline.start()
+                scan(checkpoint, pipeline, numberOfScanPartitions)
+                pipeline.finish()
+                counter += pipeline.shipStage.count.get()
+
+                checkpoint.scanCompleted = true
+                checkpoint.save(whelk.storage)
             }
 
-            threadPool.awaitAllAndShutdown()
+            pipeline = new ReindexPipeline(whelk, numberOfShapeThreads, numberOfShipThreads)
+            pipeline.start()
+            reindexModifiedSince(checkpoint, pipeline)
+            pipeline.finish()
+            counter += pipeline.shipStage.count.get()
+
+            checkpoint.completed = true
+            checkpoint.save(whelk.storage)
+
             long elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000
             String elapsed = String.format("%02dh%02dm%02ds", (int) (elapsedSeconds / 3600), (int) ((elapsedSeconds % 3600) / 60), (int) (elapsedSeconds % 60))
             log.info("Done! $counter documents reindexed in ${elapsed}")
@@ -119,50 +118,112 @@ class ElasticReindexer {
         } catch (Throwable e) {
             log.error("Reindex failed with: ${e}", e)
         } finally {
-            threadPool.awaitAllAndShutdown()
+            pipeline.shutdown()
         }
     }
 
-    private void bulkIndexWithRetries(List<Document> docs, Whelk whelk) {
-        int retriesLeft = MAX_RETRIES
-        int retryCount = 0
+    private void scan(ReindexCheckpoint checkpoint, ReindexPipeline pipeline, int numberOfScanPartitions) {
+        // Checkpoint updates by pipeline sequence number, in order. Everything up to and including the sequence
+        // number must have been shipped before an update can be applied.
+        Deque<Tuple2<Long, Closure>> updates = new ArrayDeque<>()
+        long lastCheckpoint = System.currentTimeMillis()
 
-        Exception error
-        while(error = tryBulkIndex(docs, whelk)) {
-            if (retriesLeft-- > 0) {
-                int waitMs = calculateBackoffMs(retryCount++)
-                log.warn("Failed to index batch: [${error}], retrying after ${waitMs} ms")
-                sleep(waitMs)
+        int startIndex = Math.max(0, checkpoint.collections.indexOf(checkpoint.collection))
+        for (String collection : checkpoint.collections.drop(startIndex)) {
+            // A checkpoint without positions yet might as well start over, with partitions computed now
+            boolean isResumed = collection == checkpoint.collection && checkpoint.positions.any { it.id }
+
+            Iterable<Document> iterable;
+            boolean checkpointable = false
+            List<Instant> bounds = []
+            if (collection.startsWith(JsonLd.TYPE_KEY+":")) {
+                var type = Unicode.stripPrefix(collection, JsonLd.TYPE_KEY + ":")
+                iterable = whelk.loadAllByType(type)
+                log.info("Indexing type ${type}")
+            } else if (collection.startsWith("file://")) {
+                String fileName = Unicode.stripPrefix(collection, "file://");
+                var ids = new File(fileName).readLines().collect { it.strip() }
+                iterable = whelk.storage.bulkLoad(ids).values()
+                log.info("Indexing ${iterable.size()} docs from ${ids.size()} ids from file ${fileName}")
             } else {
-                log.warn("Failed to index batch: [${error}], max retries exceeded")
-                throw error
+                List<ReindexCheckpoint.Position> after
+                if (isResumed) {
+                    bounds = checkpoint.partitionBounds
+                    after = checkpoint.positions
+                    log.info("Indexing collection ${collection} in ${bounds.size() + 1} partition(s) after " +
+                            after.collect { "(${it.modified}, ${it.id})" }.join(', '))
+                } else {
+                    bounds = numberOfScanPartitions > 1 ? whelk.storage.partitionBounds(collection, numberOfScanPartitions) : []
+                    after = (0..bounds.size()).collect { new ReindexCheckpoint.Position() }
+                    log.info("Indexing collection ${collection} in ${bounds.size() + 1} partition(s)")
+                }
+                iterable = bounds
+                        ? whelk.storage.loadAllPartitionedAfter(collection, bounds, after.collect { new Tuple2<Instant, String>(it.modified, it.id) })
+                        : whelk.storage.loadAllAfter(collection, after[0].modified, after[0].id)
+                checkpointable = true
             }
-        }
-    }
 
-    private Exception tryBulkIndex(List<Document> docs, Whelk whelk) {
-        try {
-            whelk.elastic.bulkIndex(docs, whelk)
-            return null
-        }
-        catch (Exception e) {
-            return e
-        }
-    }
+            if (!isResumed) {
+                String collectionName = collection
+                List<Instant> collectionBounds = bounds
+                updates.add(new Tuple2<Long, Closure>(pipeline.lastSubmitted(), { checkpoint.startCollection(collectionName, collectionBounds) }))
+            }
 
-    private int calculateBackoffMs(int retryCount) {
-        int backoffMs = (int) (Math.pow(2, retryCount) * INITIAL_RETRY_WAIT_MS)
-        int cappedBackoffMs = Math.min(backoffMs, MAX_RETRY_WAIT_MS)
-        int jitter = (int) (Math.random() * cappedBackoffMs * 0.2)
-        return cappedBackoffMs + jitter
-    }
+            int[] sinceLastPosition = new int[bounds.size() + 1]
+            // A partitioned scan must be closed if we stop early
+            Iterator<Document> documents = iterable.iterator()
+            try {
+                while (documents.hasNext()) {
+                    Document document = documents.next()
+                    if ( ! document.getDeleted() ) {
+                        long seq = pipeline.submit(document)
+                        if (checkpointable) {
+                            int partition = PartitionedScan.partitionOf(bounds, document.getModifiedTimestamp())
+                            if (++sinceLastPosition[partition] >= CHECKPOINT_POSITION_EVERY) {
+                                sinceLastPosition[partition] = 0
+                                var position = new ReindexCheckpoint.Position(document.getModifiedTimestamp(), document.getShortId())
+                                updates.add(new Tuple2<Long, Closure>(seq, { checkpoint.moveTo(partition, position) }))
+                            }
+                        }
+                    }
 
-    private void sleep(int ms) {
-        try {
-            Thread.sleep(ms)
+                    if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_INTERVAL_MS) {
+                        long watermark = pipeline.completedWatermark()
+                        boolean moved = false
+                        while (!updates.isEmpty() && updates.peekFirst().v1 <= watermark) {
+                            updates.pollFirst().v2.call()
+                            moved = true
+                        }
+                        if (moved) {
+                            checkpoint.save(whelk.storage)
+                            log.info("Saved reindex checkpoint: ${checkpoint}")
+                        }
+                        lastCheckpoint = System.currentTimeMillis()
+                    }
+                }
+            } finally {
+                if (documents instanceof Closeable) {
+                    ((Closeable) documents).close()
+                }
+            }
         }
-        catch (InterruptedException e) {
-            log.warn("Woke up early", e)
+    }
+
+    private void reindexModifiedSince(ReindexCheckpoint checkpoint, ReindexPipeline pipeline) {
+        log.info("Indexing documents modified since reindex was started at ${checkpoint.startedAt}")
+        Date since = Date.from(checkpoint.startedAt)
+        for (String collection : checkpoint.collections) {
+            if (collection.startsWith(JsonLd.TYPE_KEY+":") || collection.startsWith("file://")) {
+                continue
+            }
+            boolean includeDeleted = true
+            for (document in whelk.storage.loadAll(collection, includeDeleted, since)) {
+                if (document.getDeleted()) {
+                    whelk.elastic.remove(document.getShortId())
+                } else {
+                    pipeline.submit(document)
+                }
+            }
         }
     }
 }
@@ -0,0 +1,99 @@
+package whelk.reindexer
+
+import whelk.component.PostgreSQLComponent
+
+import java.time.Instant
+
+/**
+ * Position of a (possibly interrupted) full reindex, persisted in lddb__state.
+ *
+ * The position is the collection currently being indexed and, for each partition of it that is scanned
+ * concurrently, the (modified, id) of the last document in that partition for which it and everything before
+ * it has been shipped to ES. A collection that isn't partitioned has a single partition.
+ */
+class ReindexCheckpoint {
+    private static final String STATE_KEY_PREFIX = 'reindex-checkpoint-'
+
+    final String key
+    final List<String> collections
+    final Instant startedAt
+
+    String collection
+    // Values of modified splitting the collection into partitions, see PostgreSQLComponent.partitionBounds()
+    List<Instant> partitionBounds = []
+    // By partition
+    List<Position> positions = [new Position()]
+    boolean scanCompleted = false
+    boolean completed = false
+
+    ReindexCheckpoint(String suppliedCollection, List<String> collections, Instant startedAt) {
+        this.key = stateKey(suppliedCollection)
+        this.collections = collections
+        this.startedAt = startedAt
+        this.collection = collections ? collections.first() : null
+    }
+
+    static ReindexCheckpoint load(PostgreSQLComponent storage, String suppliedCollection) {
+        Map state = storage.getState(stateKey(suppliedCollection))
+        if (state == null) {
+            return null
+        }
+
+        def checkpoint = new ReindexCheckpoint(suppliedCollection, (List<String>) state.collections, Instant.parse((String) state.startedAt))
+        checkpoint.collection = state.collection
+        if (state.partitions) {
+            checkpoint.partitionBounds = ((List<String>) state.partitionBounds).collect { Instant.parse(it) }
+            checkpoint.positions = ((List<Map>) state.partitions).collect { Map p ->
+                new Position(Instant.parse((String) p.modified), (String) p.id)
+            }
+        } else {
+            // Checkpoint from before partitioned scans
+            checkpoint.positions = [new Position(state.modified ? Instant.parse((String) state.modified) : Instant.EPOCH, state.id ?: '')]
+        }
+        checkpoint.scanCompleted = state.scanCompleted ?: false
+        checkpoint.completed = state.completed ?: false
+        return checkpoint
+    }
+
+    void save(PostgreSQLComponent storage) {
+        storage.putState(key, [
+                'collections'    : collections,
+                'startedAt'      : startedAt.toString(),
+                'collection'     : collection,
+                'partitionBounds': partitionBounds.collect { it.toString() },
+                'partitions'     : positions.collect { ['modified': it.modified.toString(), 'id': it.id] },
+                'scanCompleted'  : scanCompleted,
+                'completed'      : completed,
+                'updatedAt'      : Instant.now().toString(),
+        ])
+    }
+
+    void startCollection(String collection, List<Instant> partitionBounds) {
+        this.collection = collection
+        this.partitionBounds = partitionBounds
+        this.positions = (0..partitionBounds.size()).collect { new Position() }
+    }
+
+    void moveTo(int partition, Position position) {
+        positions[partition] = position
+    }
+
+    @Override
+    String toString() {
+        return "collection ${collection} after ${positions.collect { "(${it.modified}, ${it.id})" }.join(', ')}, started at ${startedAt}"
+    }
+
+    private static String stateKey(String suppliedCollection) {
+        return STATE_KEY_PREFIX + (suppliedCollection ?: 'all')
+    }
+
+    static class Position {
+        final Instant modified
+        final String id
+
+        Position(Instant modified = Instant.EPOCH, String id = '') {
+            this.modified = modified
+            this.id = id
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package whelk.reindexer
+
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+import whelk.Whelk
+import whelk.component.ElasticSearch
+import whelk.meta.WhelkConstants
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Staged reindexing pipeline:
+ *
+ *   load (caller thread) -> [shape queue] -> shape (CPU bound) -> [ship queue] -> ship (I/O bound) -> ES
+ *
+ * Loading is done by whoever calls submit(), typically iterating over a DB cursor.
+ * Shaping (embellish + lensing) runs on a pool sized to the number of cores.
+ * Shipping accumulates shaped documents into _bulk requests limited by byte size and sends them
+ * with its own, separate concurrency. The queues between the stages are bounded, so a slow stage
+ * will block the ones before it instead of filling the heap.
+ *
+ * Throughput per stage and queue depths are logged periodically to make it easy to see which stage
+ * is the bottleneck.
+ *
+ * Every submitted document gets a sequence number. Since shipping happens out of order,
+ * completedWatermark() can be used to find out up to which sequence number everything has been
+ * shipped, e.g. for checkpointing.
+ */
+@Log
+class ReindexPipeline {
+    static final int LOAD_BATCH_SIZE = 50
+    static final int QUEUE_SIZE_PER_WORKER = 4
+    static final long MAX_BULK_BYTES = 10 * 1024 * 1024
+    static final int MAX_BULK_DOCS = 1000
+    static final long SHIP_LINGER_MS = 2000
+    static final long REPORT_INTERVAL_SECONDS = 30
+
+    static final int MAX_RETRIES = 5
+    static final int INITIAL_RETRY_WAIT_MS = 3000
+    static final int MAX_RETRY_WAIT_MS = 60000
+
+    // Sentinels signalling end of input to the shape and ship workers
+    private static final List<Submitted> END_OF_DOCUMENTS = Collections.unmodifiableList([])
+    private static final Shaped END_OF_SHAPED = new Shaped(null, 0, 0, [])
+
+    private final Whelk whelk
+    private final int numShapers
+    private final int numShippers
+
+    private final BlockingQueue<List<Submitted>> shapeQueue
+    private final BlockingQueue<Shaped> shipQueue
+
+    private ExecutorService shapePool
+    private ExecutorService shipPool
+    private ScheduledExecutorService reporter
+    private final List<Future<?>> shapers = []
+    private final List<Future<?>> shippers = []
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>()
+
+    private List<Submitted> currentBatch = new ArrayList<>(LOAD_BATCH_SIZE)
+
+    private long lastSeq = 0
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>()
+
+    final Stage loadStage = new Stage('load')
+    final Stage shapeStage = new Stage('shape')
+    final Stage shipStage = new Stage('ship')
+
+    long startTime
+
+    ReindexPipeline(Whelk whelk, int numShapers, int numShippers) {
+        this.whelk = whelk
+        this.numShapers = Math.max(1, numShapers)
+        this.numShippers = Math.max(1, numShippers)
+        this.shapeQueue = new ArrayBlockingQueue<>(this.numShapers * QUEUE_SIZE_PER_WORKER)
+        this.shipQueue = new ArrayBlockingQueue<>(this.numShippers * MAX_BULK_DOCS)
+    }
+
+    static int defaultShapeThreads() {
+        return Runtime.getRuntime().availableProcessors()
+    }
+
+    void start() {
+        startTime = System.currentTimeMillis()
+        log.info("Starting reindex pipeline with ${numShapers} shape threads and ${numShippers} ship threads")
+
+        shapePool = Executors.newFixedThreadPool(numShapers, threadFactory('reindex-shape'))
+        shipPool = Executors.newFixedThreadPool(numShippers, threadFactory('reindex-ship'))
+        numShapers.times { shapers.add(shapePool.submit({ runShaper() } as Runnable)) }
+        numShippers.times { shippers.add(shipPool.submit({ runShipper() } as Runnable)) }
+
+        reporter = Executors.newSingleThreadScheduledExecutor(threadFactory('reindex-report'))
+        reporter.scheduleAtFixedRate({ report() } as Runnable, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS)
+    }
+
+    /**
+     * Hand a document to the pipeline. Blocks if the shape stage is saturated.
+     * Throws if any stage has failed.
+     * Not thread safe, there should only be one producer.
+     *
+     * @return the sequence number of the document
+     */
+    long submit(Document document) {
+        checkFailure()
+        long seq = ++lastSeq
+        inFlight.add(seq)
+        currentBatch.add(new Submitted(seq, document))
+        loadStage.add(1)
+        if (currentBatch.size() >= LOAD_BATCH_SIZE) {
+            flushBatch()
+        }
+        return seq
+    }
+
+    /**
+     * @return the sequence number of the last submitted document, 0 if none
+     */
+    long lastSubmitted() {
+        return lastSeq
+    }
+
+    /**
+     * @return the highest sequence number for which it and all lower ones have been shipped (or skipped)
+     */
+    long completedWatermark() {
+        Long first = inFlight.isEmpty() ? null : inFlight.first()
+        return first != null ? first - 1 : lastSeq
+    }
+
+    /**
+     * Drain all stages and wait for everything submitted to be shipped.
+     * Rethrows the first failure from any stage.
+     */
+    void finish() {
+        try {
+            if (!currentBatch.isEmpty()) {
+                flushBatch()
+            }
+            numShapers.times { put(shapeQueue, END_OF_DOCUMENTS) }
+            await(shapers)
+            numShippers.times { put(shipQueue, END_OF_SHAPED) }
+            await(shippers)
+            checkFailure()
+        } finally {
+            shutdown()
+            report()
+        }
+    }
+
+    void shutdown() {
+        shapePool?.shutdownNow()
+        shipPool?.shutdownNow()
+        reporter?.shutdownNow()
+    }
+
+    private void flushBatch() {
+        put(shapeQueue, currentBatch)
+        currentBatch = new ArrayList<>(LOAD_BATCH_SIZE)
+    }
+
+    private void runShaper() {
+        try {
+            while (true) {
+                List<Submitted> batch = shapeQueue.take()
+                if (batch.is(END_OF_DOCUMENTS)) {
+                    return
+                }
+                List<ElasticSearch.BulkEntries> shaped = whelk.elastic.createBulkEntries(batch*.document, whelk)
+                batch.eachWithIndex { Submitted submitted, int i ->
+                    ElasticSearch.BulkEntries entries = shaped[i]
+                    if (entries != null) {
+                        put(shipQueue, new Shaped(entries.lines, entries.lines.getBytes(StandardCharsets.UTF_8).length,
+                                entries.actionCount, [submitted.seq]))
+                    } else {
+                        inFlight.remove(submitted.seq)
+                    }
+                    shapeStage.add(1)
+                }
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt()
+        } catch (Throwable t) {
+            fail(t)
+        }
+    }
+
+    private void runShipper() {
+        StringBuilder bulk = new StringBuilder()
+        long bytesInBulk = 0
+        int actionsInBulk = 0
+        List<Long> seqsInBulk = []
+        try {
+            while (true) {
+                Shaped shaped = shipQueue.poll(SHIP_LINGER_MS, TimeUnit.MILLISECONDS)
+                if (shaped == null || shaped.is(END_OF_SHAPED)) {
+                    if (seqsInBulk) {
+                        ship(bulk.toString(), bytesInBulk, actionsInBulk, seqsInBulk)
+                        bulk = new StringBuilder()
+                        bytesInBulk = 0
+                        actionsInBulk = 0
+                        seqsInBulk = []
+                    }
+                    if (shaped == null) {
+                        continue
+                    }
+                    return
+                }
+
+                bulk.append(shaped.entries)
+                bytesInBulk += shaped.bytes
+                actionsInBulk += shaped.actionCount
+                seqsInBulk.addAll(shaped.seqs)
+                if (bytesInBulk >= MAX_BULK_BYTES || seqsInBulk.size() >= MAX_BULK_DOCS) {
+                    ship(bulk.toString(), bytesInBulk, actionsInBulk, seqsInBulk)
+                    bulk = new StringBuilder()
+                    bytesInBulk = 0
+                    actionsInBulk = 0
+                    seqsInBulk = []
+                }
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt()
+        } catch (Throwable t) {
+            fail(t)
+        }
+    }
+
+    private void ship(String bulkString, long bytes, int actionCount, List<Long> seqs) {
+        int retriesLeft = MAX_RETRIES
+        int retryCount = 0
+        while (true) {
+            checkFailure()
+            try {
+                whelk.elastic.bulkIndexShaped(bulkString, actionCount)
+                shipStage.add(actionCount)
+                shipStage.addBytes(bytes)
+                inFlight.removeAll(seqs)
+                return
+            } catch (Exception e) {
+                if (retriesLeft-- > 0) {
+                    int waitMs = calculateBackoffMs(retryCount++)
+                    log.warn("Failed to index batch: [${e}], retrying after ${waitMs} ms")
+                    Thread.sleep(waitMs)
+                } else {
+                    log.warn("Failed to index batch: [${e}], max retries exceeded")
+                    throw e
+                }
+            }
+        }
+    }
+
+    private void report() {
+        double elapsedSeconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0
+        log.info(String.format("Reindex pipeline: %s | shape queue: %d/%d | %s | ship queue: %d/%d | %s (%.1f MB/s)",
+                loadStage.report(elapsedSeconds),
+                shapeQueue.size(), shapeQueue.size() + shapeQueue.remainingCapacity(),
+                shapeStage.report(elapsedSeconds),
+                shipQueue.size(), shipQueue.size() + shipQueue.remainingCapacity(),
+                shipStage.report(elapsedSeconds),
+                shipStage.bytes.get() / elapsedSeconds / (1024 * 1024)))
+    }
+
+    private void fail(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            log.error("Reindex pipeline failed: $t", t)
+            // Unblock the producer and any workers waiting on full queues
+            shapeQueue.clear()
+            shipQueue.clear()
+        }
+    }
+
+    private void checkFailure() {
+        Throwable t = failure.get()
+        if (t != null) {
+            throw new RuntimeException("Reindex pipeline failed: $t", t)
+        }
+    }
+
+    private <T> void put(BlockingQueue<T> queue, T item) {
+        while (!queue.offer(item, 1, TimeUnit.SECONDS)) {
+            checkFailure()
+        }
+    }
+
+    private void await(List<Future<?>> futures) {
+        futures.each { it.get() }
+    }
+
+    private static int calculateBackoffMs(int retryCount) {
+        int backoffMs = (int) (Math.pow(2, retryCount) * INITIAL_RETRY_WAIT_MS)
+        int cappedBackoffMs = Math.min(backoffMs, MAX_RETRY_WAIT_MS)
+        int jitter = (int) (Math.random() * cappedBackoffMs * 0.2)
+        return cappedBackoffMs + jitter
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        // Run in the batch thread group so that Whelk treats the workers as batch job threads
+        ThreadGroup group = new ThreadGroup(WhelkConstants.BATCH_THREAD_GROUP)
+        AtomicInteger count = new AtomicInteger()
+        return { Runnable r -> new Thread(group, r, "${name}-${count.getAndIncrement()}") } as ThreadFactory
+    }
+
+    private static class Submitted {
+        final long seq
+        final Document document
+
+        Submitted(long seq, Document document) {
+            this.seq = seq
+            this.document = document
+        }
+    }
+
+    private static class Shaped {
+        final String entries
+        // UTF-8 encoded size of entries
+        final long bytes
+        // number of documents in ES, including virtual records
+        final int actionCount
+        final List<Long> seqs
+
+        Shaped(String entries, long bytes, int actionCount, List<Long> seqs) {
+            this.entries = entries
+            this.bytes = bytes
+            this.actionCount = actionCount
+            this.seqs = seqs
+        }
+    }
+
+    static class Stage {
+        final String name
+        final AtomicLong count = new AtomicLong()
+        final AtomicLong bytes = new AtomicLong()
+        private long lastCount = 0
+        private long lastReport = System.currentTimeMillis()
+
+        Stage(String name) {
+            this.name = name
+        }
+
+        void add(long n) {
+            count.addAndGet(n)
+        }
+
+        void addBytes(long n) {
+            bytes.addAndGet(n)
+        }
+
+        synchronized String report(double elapsedSeconds) {
+            long now = System.currentTimeMillis()
+            long c = count.get()
+            double sinceLast = Math.max(1, now - lastReport) / 1000.0
+            String s = String.format("%s: %d docs, %.1f docs/s (%.1f docs/s average)",
+                    name, c, (c - lastCount) / sinceLast, c / elapsedSeconds)
+            lastCount = c
+            lastReport = now
+            return s
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package whelk.export.marc;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.prometheus.client.Counter;
+import whelk.util.MarcExport;
+
+import java.sql.Timestamp;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converted MARC records, before being shaped by an export profile, shared by all exports of the same interval.
+ *
+ * All profiles export the same night's changes, the records only need to be embellished and converted once.
+ * An entry is keyed by the interval, the checksum of the bib record and whether it is exported as deleted
+ * (which is profile dependent with virtual deletions). Linked records may change later on, but
+ * such changes are exported in the next interval anyway.
+ */
+class ConversionCache {
+    private static final long MAX_SIZE_BYTES = 512L * 1024 * 1024;
+    private static final long EXPIRE_AFTER_WRITE_HOURS = 12;
+
+    private static final Counter requests = Counter.build().name("marc_export_conversion_cache_requests_total")
+            .help("Lookups in the shared MARC conversion cache").labelNames("result").register();
+
+    private record Key(String systemId, String checksum, boolean deleted, Timestamp from, Timestamp until) {}
+
+    // Empty for records that failed to convert
+    private final Cache<Key, Optional<MarcExport.ConvertedRecord>> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_SIZE_BYTES)
+            .weigher((Key key, Optional<MarcExport.ConvertedRecord> value) ->
+                    value.map(MarcExport.ConvertedRecord::approximateSize).orElse(0))
+            .expireAfterWrite(EXPIRE_AFTER_WRITE_HOURS, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * Concurrent requests for the same record wait for one conversion.
+     * @return the converted record or null if the record can't be converted
+     */
+    MarcExport.ConvertedRecord get(String systemId, String checksum, boolean deleted, Timestamp from, Timestamp until,
+                                   Callable<MarcExport.ConvertedRecord> convert) {
+        Key key = new Key(systemId, checksum, deleted, from, until);
+        boolean[] loaded = {false};
+        try {
+            var result = cache.get(key, () -> {
+                loaded[0] = true;
+                return Optional.ofNullable(convert.call());
+            });
+            requests.labels(loaded[0] ? "miss" : "hit").inc();
+            return result.orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            requests.labels("miss").inc();
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+}
@@ -18,22 +18,42 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.UUID;
 
 /**
  * Call like so:
  * curl -v -XPOST "http://localhost:8080/marc_export/?from=2018-09-10T00:00:00Z&until=2018-12-01T00:00:00Z" --data-binary @./etc/export.properties
+ *
+ * Large exports can be streamed with stream=true. The response then has an X-Export-Id header, and trailers with the
+ * cursor reached and whether the export completed. A failed export can be resumed, with the same from, until and
+ * profile, either with after=<cursor> or with exportId=<X-Export-Id>&resume=true which continues from the progress
+ * saved on the server. Records around the point of failure may be exported twice.
+ *
+ * Export ids are generated by the server. Saved progress is removed when the export completes, or after
+ * PROGRESS_TTL without progress.
  */
 public class MarcHttpExport extends CoreWhelkHttpServlet
 {
+    private static final String PROGRESS_STATE_PREFIX = "marc-export-progress-";
+    private static final Duration PROGRESS_TTL = Duration.ofDays(7);
+
     private ProfileExport profileExport = null;
+    private Whelk whelk = null;
     private final Logger logger = LogManager.getLogger(this.getClass());
 
     static final Counter requests = Counter.build()
@@ -56,6 +76,7 @@ public class MarcHttpExport extends CoreWhelkHttpServlet
     @Override
     protected void init(Whelk whelk)
     {
+        this.whelk = whelk;
         profileExport = new ProfileExport(whelk, whelk.getStorage().createAdditionalConnectionPool("ProfileExport"));
     }
 
@@ -186,11 +207,31 @@ public class MarcHttpExport extends CoreWhelkHttpServlet
             output = new Iso2709MarcRecordWriter(outStream, encoding);
 
         Map<String, ProfileExport.DELETE_REASON> deleteInfo = null;
+        var p = new ProfileExport.Parameters(profile, parameterMap.get("from"), parameterMap.get("until"), deleteMode, doVirtualDeletions);
+        StreamProgress progress = null;
+        if ("true".equalsIgnoreCase(parameterMap.get("stream")))
+        {
+            try
+            {
+                String profileHash = profileHash(props, deleteMode, doVirtualDeletions);
+                progress = new StreamProgress(parameterMap, requestId, profileHash, res);
+            }
+            catch (IllegalArgumentException e)
+            {
+                failedRequests.labels("Invalid resume", Integer.toString(HttpServletResponse.SC_BAD_REQUEST)).inc();
+                res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+            p.after = progress.after;
+            p.progress = progress::chunkWritten;
+            logger.info("Streaming export request {} as {}, after {}", requestId, progress.exportId, p.after);
+        }
 
         try
         {
-            var p = new ProfileExport.Parameters(profile, parameterMap.get("from"), parameterMap.get("until"), deleteMode, doVirtualDeletions);
             deleteInfo = profileExport.exportInto(output, p);
+            if (progress != null)
+                progress.completed();
         }
         catch (SQLException | WhelkRuntimeException e)
         {
@@ -227,6 +268,131 @@ public class MarcHttpExport extends CoreWhelkHttpServlet
         logger.info("Finished handling export request {}", requestId);
     }
 
+    /**
+     * Progress of a streamed export, saved on the server and sent to the client in trailers.
+     */
+    private class StreamProgress
+    {
+        final String exportId;
+        final String stateKey;
+        final String from;
+        final String until;
+        final String profileHash;
+        final ProfileExport.Cursor after;
+        final HttpServletResponse res;
+
+        volatile ProfileExport.Cursor written;
+        volatile boolean complete = false;
+
+        /**
+         * @throws IllegalArgumentException if the cursor is invalid, or if the saved progress to resume from
+         *                                  doesn't exist or belongs to another export
+         */
+        StreamProgress(Map<String, String> parameters, String requestId, String profileHash, HttpServletResponse res)
+        {
+            boolean resume = "true".equalsIgnoreCase(parameters.get("resume"));
+            if (resume && parameters.get("exportId") == null)
+                throw new IllegalArgumentException("\"exportId\" is required with \"resume\"");
+            this.exportId = resume ? parameters.get("exportId") : requestId;
+            this.stateKey = PROGRESS_STATE_PREFIX + exportId;
+            this.from = parameters.get("from");
+            this.until = parameters.get("until");
+            this.profileHash = profileHash;
+            this.res = res;
+
+            whelk.getStorage().removeStatesUpdatedBefore(PROGRESS_STATE_PREFIX, Instant.now().minus(PROGRESS_TTL));
+
+            ProfileExport.Cursor after = null;
+            if (resume)
+            {
+                Map<?, ?> state = whelk.getStorage().getState(stateKey);
+                if (state == null)
+                    throw new IllegalArgumentException("No saved progress for export " + exportId + ", it has completed or expired");
+                if (!from.equals(state.get("from")) || !until.equals(state.get("until")) || !profileHash.equals(state.get("profileHash")))
+                    throw new IllegalArgumentException("Export " + exportId + " was started with another profile, \"from\" or \"until\"");
+                if (state.get("cursor") != null)
+                    after = ProfileExport.Cursor.parse((String) state.get("cursor"));
+            }
+            if (parameters.get("after") != null)
+            {
+                try
+                {
+                    after = ProfileExport.Cursor.parse(URLDecoder.decode(parameters.get("after"), StandardCharsets.UTF_8));
+                }
+                catch (DateTimeParseException e)
+                {
+                    throw new IllegalArgumentException("Invalid value for \"after\": " + e.getMessage());
+                }
+            }
+            this.after = after;
+            this.written = after;
+            if (!resume)
+                saveState(after);
+
+            res.setHeader("X-Export-Id", exportId);
+            if (after != null)
+                res.setHeader("X-Export-Resumed-After", after.toString());
+            res.setTrailerFields(() -> {
+                Map<String, String> trailers = new HashMap<>();
+                trailers.put("X-Export-Complete", Boolean.toString(complete));
+                if (written != null)
+                    trailers.put("X-Export-Cursor", written.toString());
+                return trailers;
+            });
+        }
+
+        void chunkWritten(ProfileExport.Cursor cursor)
+        {
+            try
+            {
+                res.flushBuffer();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            // The client can't be assumed to have received this chunk yet, only the ones before it
+            ProfileExport.Cursor previous = written;
+            written = cursor;
+            if (previous != null)
+                saveState(previous);
+        }
+
+        void completed()
+        {
+            complete = true;
+            whelk.getStorage().removeState(stateKey);
+        }
+
+        private void saveState(ProfileExport.Cursor cursor)
+        {
+            Map<String, Object> state = new HashMap<>();
+            state.put("from", from);
+            state.put("until", until);
+            state.put("profileHash", profileHash);
+            state.put("cursor", cursor != null ? cursor.toString() : null);
+            state.put("updatedAt", Instant.now().toString());
+            whelk.getStorage().putState(stateKey, state);
+        }
+    }
+
+    /**
+     * @return a hash of everything in the request, except from and until, that affects what is exported
+     */
+    private static String profileHash(Properties props, ProfileExport.DELETE_MODE deleteMode, boolean doVirtualDeletions)
+    {
+        String settings = new TreeMap<>(props) + " " + deleteMode + " " + doVirtualDeletions;
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     private boolean isValidZonedDateTime(String candidate)
     {
         try
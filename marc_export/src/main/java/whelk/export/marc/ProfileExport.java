@@ -1,7 +1,6 @@
 package whelk.export.marc;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import groovy.lang.Tuple2;
 import io.prometheus.client.Summary;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -28,24 +27,34 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class ProfileExport
 {
     private final Logger logger = LogManager.getLogger(this.getClass());
     private HashSet<String> workDerivativeTypes = null;
+
+    private static final int BATCH_SIZE = 5000;
+    private static final int DEPENDERS_BATCH_SIZE = 500;
+    private static final int STREAM_CHUNK_SIZE = 1000;
         
     public enum DELETE_REASON
     {
@@ -71,6 +80,7 @@ public class ProfileExport
     private final Whelk m_whelk;
     private final DataSource m_connectionPool;
     private final BlockingThreadPool m_threadPool;
+    private final ConversionCache m_conversionCache = new ConversionCache();
     
     public ProfileExport(Whelk whelk, DataSource connectionPool)
     {
@@ -101,6 +111,11 @@ public class ProfileExport
 
         Timestamp fromTimeStamp;
         Timestamp untilTimeStamp;
+
+        // Streaming mode: changes up to and including 'after' have already been exported
+        Cursor after;
+        // Streaming mode: called when all changes up to and including the cursor have been written
+        Consumer<Cursor> progress;
         
         public Parameters(ExportProfile profile, String from,
                           String until, DELETE_MODE deleteMode, boolean doVirtualDeletions) {
@@ -122,10 +137,34 @@ public class ProfileExport
         }
     }
     
+    /**
+     * A position in the (modified, id) ordered changes of an interval.
+     */
+    public record Cursor(Instant modified, String id) {
+        public static Cursor parse(String cursor) {
+            int comma = cursor.indexOf(',');
+            if (comma < 0)
+                throw new IllegalArgumentException("Expected <modified>,<id>: " + cursor);
+            return new Cursor(Instant.parse(cursor.substring(0, comma)), cursor.substring(comma + 1));
+        }
+
+        @Override
+        public String toString() {
+            return modified + "," + id;
+        }
+    }
+
     /**
      * Export MARC data affected in between 'from' and 'until' shaped by 'profile' into 'output'.
      * Return a set of IDs that should be deleted separately and the reason why. If deleteMode is not 'SEPARATE', the
      * returned collection will be empty.
+     *
+     * Changes are read, analyzed and exported in (modified, id) order one chunk at a time, so memory is bounded by a
+     * chunk rather than by the interval (apart from the set of exported IDs).
+     *
+     * In streaming mode (parameters.progress set) each chunk is completely written before the next is read. Progress is
+     * reported after every chunk, so that an export can be resumed after the last reported cursor. A resumed export
+     * starts reading at the cursor. Records affected by changes in the last chunk may be exported again.
      */
     public Map<String, DELETE_REASON> exportInto(MarcRecordWriter output, Parameters parameters)
             throws IOException, SQLException
@@ -134,17 +173,20 @@ public class ProfileExport
             return Collections.EMPTY_MAP;
         
         ParallelExporter exporter = new ParallelExporter(output, parameters, m_threadPool);
+        int chunkSize = parameters.progress == null ? BATCH_SIZE : STREAM_CHUNK_SIZE;
         
         try {
-            try (Connection connection = m_connectionPool.getConnection()) {
-                connection.setAutoCommit(false);
-                try (PreparedStatement preparedStatement = getAllChangedIDsStatement(parameters.fromTimeStamp, parameters.untilTimeStamp, connection);
-                     ResultSet resultSet = preparedStatement.executeQuery()) {
-                    while (resultSet.next()) {
-                        exporter.submit(resultSet);
-                    }
+            // Each chunk is read with its own keyset query, starting after the last change of the previous one
+            Cursor after = parameters.after;
+            List<ChangedRecord> chunk;
+            do {
+                chunk = getChangedRecords(parameters, after, chunkSize);
+                if (!chunk.isEmpty()) {
+                    exportChunk(chunk, parameters, exporter);
+                    ChangedRecord last = chunk.getLast();
+                    after = new Cursor(last.modified(), last.id());
                 }
-            }
+            } while (chunk.size() == chunkSize);
             exporter.awaitCompletion();
         }
         finally {
@@ -153,7 +195,43 @@ public class ProfileExport
 
         return exporter.deletedNotifications;
     }
+
+    /**
+     * Analyze and submit a chunk of changes. In streaming mode, also wait until it has been written and report progress.
+     */
+    private void exportChunk(List<ChangedRecord> chunk, Parameters parameters, ParallelExporter exporter)
+            throws IOException, SQLException
+    {
+        ChangeAnalysis changes = analyzeChanges(chunk, parameters);
+        exportChanges(changes, parameters, exporter);
+        if (parameters.progress != null) {
+            exporter.awaitWritten();
+            ChangedRecord last = chunk.getLast();
+            parameters.progress.accept(new Cursor(last.modified(), last.id()));
+        }
+    }
     
+    private void exportChanges(ChangeAnalysis changes, Parameters parameters, ParallelExporter exporter)
+            throws IOException
+    {
+        // Changed auth records are resolved to the affected bib records all at once
+        Set<String> exportedAuthIds = new HashSet<>();
+        for (ChangedRecord change : changes.records) {
+            if (change.collection().equals("auth")) {
+                if (updateShouldBeExported(change.id(), change.collection(), change.mainEntityType(),
+                        parameters.profile, parameters.fromTimeStamp, parameters.untilTimeStamp,
+                        change.created(), change.deleted(), changes)) {
+                    exportedAuthIds.add(change.id());
+                }
+            } else {
+                exporter.submit(change, changes);
+            }
+        }
+        for (String bibId : getAffectedBibIdsForAuths(exportedAuthIds, parameters.profile)) {
+            exporter.submitAffectedBib(bibId);
+        }
+    }
+
     /**
      * Export (into output) all documents that are affected by 'id' having been updated.
      * 'created' == true means 'id' was created in the chosen interval, false means merely updated.
@@ -162,14 +240,14 @@ public class ProfileExport
                                          Timestamp until, ExportProfile profile, MarcRecordWriter output,
                                          DELETE_MODE deleteMode, boolean doVirtualDeletions,
                                          Set<String> exportedIDs, Map<String, DELETE_REASON> deletedNotifications,
-                                         String mainEntityType, Connection connection)
+                                         String mainEntityType, ChangeAnalysis changes)
             throws IOException, SQLException
     {
         Summary.Timer requestTimer = singleExportLatency.labels(collection).startTimer();
         try
         {
             exportAffectedDocuments2(id, collection, created, deleted, from, until, profile, 
-                    output, deleteMode, doVirtualDeletions, exportedIDs, deletedNotifications, mainEntityType, connection);
+                    output, deleteMode, doVirtualDeletions, exportedIDs, deletedNotifications, mainEntityType, changes);
         }
         finally
         {
@@ -181,22 +259,16 @@ public class ProfileExport
                                           Timestamp until, ExportProfile profile, MarcRecordWriter output,
                                           DELETE_MODE deleteMode, boolean doVirtualDeletions,
                                           Set<String> exportedIDs, Map<String, DELETE_REASON> deletedNotifications,
-                                          String mainEntityType, Connection connection)
+                                          String mainEntityType, ChangeAnalysis changes)
             throws IOException, SQLException
     {
-        if (collection.equals("bib") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
+        // Changed auth records are handled per chunk, see exportChanges()
+        if (collection.equals("bib") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, changes))
         {
-            exportDocument(m_whelk.loadEmbellished(id), profile,
+            exportDocument(id, profile, from, until,
                     output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
         }
-        else if (collection.equals("auth") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
-        {
-            for (String bibId : getAffectedBibIdsForAuth(id, profile))
-            {
-                exportDocument(m_whelk.loadEmbellished(bibId), profile, output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
-            }
-        }
-        else if (collection.equals("hold") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, connection))
+        else if (collection.equals("hold") && updateShouldBeExported(id, collection, mainEntityType, profile, from, until, created, deleted, changes))
         {
             List<Document> versions = m_whelk.getStorage().loadAllVersions(id);
 
@@ -219,9 +291,8 @@ public class ProfileExport
                 String itemOfSystemId = m_whelk.getStorage().getSystemIdByIri(itemOf);
                 // itemOfSystemId _can_ be null, if the bib linked record is deleted (no thing-uri left in the id table)
                 if (itemOfSystemId != null) {
-                    exportDocument(
-                            m_whelk.loadEmbellished(itemOfSystemId)
-                            , profile, output, exportedIDs, deleteMode, doVirtualDeletions, deletedNotifications);
+                    exportDocument(itemOfSystemId, profile, from, until, output, exportedIDs, deleteMode,
+                            doVirtualDeletions, deletedNotifications);
                 } else {
                     logger.info("Not exporting {} ({}) for {} because of missing itemOf systemID", id,
                             collection, profile.getProperty("name", "unknown"));
@@ -238,8 +309,7 @@ public class ProfileExport
      * Should an update of 'id' affect the collection of bibs being exported? 'id' may be any collection!
      */
     private boolean updateShouldBeExported(String id, String collection, String mainEntityType, ExportProfile profile, Timestamp from,
-                                           Timestamp until, boolean created, Boolean deleted, Connection connection)
-            throws SQLException
+                                           Timestamp until, boolean created, Boolean deleted, ChangeAnalysis changes)
     {
         String profileName = profile.getProperty("name", "unknown");
 
@@ -261,7 +331,7 @@ public class ProfileExport
             usingCollectionRules = "bib";
         }
         
-        if (usingCollectionRules.equals("auth") && !hasChipChanged(id, from, until)) {
+        if (usingCollectionRules.equals("auth") && !changes.chipChanged.contains(id)) {
             return false;
         }
 
@@ -280,7 +350,7 @@ public class ProfileExport
         Set<String> operators = profile.getSet(usingCollectionRules+"operators");
         if ( !operators.isEmpty() )
         {
-            Set<String> operatorsInInterval = getAllChangedBy(id, from, until, connection);
+            Set<String> operatorsInInterval = new HashSet<>(changes.changedBy.getOrDefault(id, Collections.emptySet()));
             if ( !operatorsInInterval.isEmpty() ) // Ignore setting if there are no changedBy names
             {
                 operatorsInInterval.retainAll(operators);
@@ -315,56 +385,60 @@ public class ProfileExport
         return true;
     }
 
-    private boolean hasChipChanged(String id, Timestamp from, Timestamp until) {
-        Document currentVersion = m_whelk.getStorage().loadAsOf(id, until);
-        Document previousVersion = m_whelk.getStorage().loadAsOf(id, from);
-        if (previousVersion == null) {
-            return true;
+    private List<String> getAffectedBibIdsForAuths(Set<String> authIds, ExportProfile profile) {
+        var storage = m_whelk.getStorage();
+        Set<String> allIds = new HashSet<>();
+        for (List<String> batch : batches(new ArrayList<>(authIds), DEPENDERS_BATCH_SIZE)) {
+            storage.bulkFollowDependers(batch, JsonLd.NON_DEPENDANT_RELATIONS).forEach(d -> allIds.add(d.getV1()));
         }
 
-        var jsonLd = m_whelk.getJsonld();
-        var oldChip = jsonLd.toChip(previousVersion.data);
-        var newChip = jsonLd.toChip(currentVersion.data);
-        return !oldChip.equals(newChip);
-    }
-
-    private List<String> getAffectedBibIdsForAuth(String authId, ExportProfile profile) {
-        List<String> allIds = m_whelk.getStorage()
-                .followDependers(authId, JsonLd.NON_DEPENDANT_RELATIONS)
-                .stream().map(Tuple2::getFirst).toList();
-
         if (allIds.size() > 50000) {
-            logger.warn("Unusually large amount of affected IDs ({}) caused by {}", allIds.size(), authId);
+            logger.warn("Unusually large amount of affected IDs ({}) caused by {} auth records", allIds.size(), authIds.size());
         }
 
+        List<String> result = new ArrayList<>();
         if (profile.shouldExportAllLocations()) {
-            return allIds.stream()
-                    .filter(id -> "bib".equals(m_whelk.getStorage().getCollectionBySystemID(id)))
-                    .collect(Collectors.toList());
+            for (List<String> batch : batches(new ArrayList<>(allIds), BATCH_SIZE)) {
+                storage.getCollectionsBySystemIDs(batch).forEach((id, collection) -> {
+                    if ("bib".equals(collection))
+                        result.add(id);
+                });
+            }
         }
         else {
             List<String> locationLibraryUris = locationLibraryUris(profile);
-            int batchSize = 5000;
-            List<String> result = new java.util.ArrayList<>();
-            int numBatches = (allIds.size() + batchSize - 1) / batchSize;
-
-            for (int i = 0; i < numBatches; i++) {
-                List<String> batch = allIds.subList(i * batchSize, Math.min((i + 1) * batchSize, allIds.size()));
-                result.addAll(m_whelk.getStorage().filterBibIdsByHeldBy(batch, locationLibraryUris));
+            for (List<String> batch : batches(new ArrayList<>(allIds), BATCH_SIZE)) {
+                result.addAll(storage.filterBibIdsByHeldBy(batch, locationLibraryUris));
             }
+        }
+        Collections.sort(result);
+        return result;
+    }
 
-            return result;
+    private static <T> List<List<T>> batches(List<T> list, int batchSize) {
+        List<List<T>> batches = new ArrayList<>();
+        for (int i = 0; i < list.size(); i += batchSize) {
+            batches.add(list.subList(i, Math.min(i + batchSize, list.size())));
         }
+        return batches;
     }
 
     /**
      * Export bib document (into output)
      */
-    private void exportDocument(Document document, ExportProfile profile, MarcRecordWriter output,
-                                Set<String> exportedIDs, DELETE_MODE deleteMode, boolean doVirtualDeletions,
-                                Map<String, DELETE_REASON> deletedNotifications)
+    private void exportDocument(String systemId, ExportProfile profile, Timestamp from, Timestamp until,
+                                MarcRecordWriter output, Set<String> exportedIDs, DELETE_MODE deleteMode,
+                                boolean doVirtualDeletions, Map<String, DELETE_REASON> deletedNotifications)
             throws IOException
     {
+        // Only the stored record, the embellished one is only needed for conversion
+        Document document = m_whelk.getStorage().load(systemId);
+        if (document == null)
+        {
+            logger.warn("Not exporting {}, could not be loaded", systemId);
+            return;
+        }
+
         String collection = LegacyIntegrationTools.determineLegacyCollection(document, m_whelk.getJsonld());
         if (!collection.equals("bib"))
         {
@@ -373,7 +447,6 @@ public class ProfileExport
         }
 
         String profileName = profile.getProperty("name", "unknown");
-        String systemId = document.getShortId();
         synchronized (exportedIDs) {
             if (exportedIDs.contains(systemId))
                 return;
@@ -381,6 +454,7 @@ public class ProfileExport
         }
         affectedCount.observe(1);
 
+        String checksum = document.getChecksum(m_whelk.getJsonld());
         DELETE_REASON deleteReason = DELETE_REASON.DELETED; // Default
         if (doVirtualDeletions && !profile.shouldExportAllLocations())
         {
@@ -392,7 +466,8 @@ public class ProfileExport
             }
         }
 
-        if (document.getDeleted())
+        boolean deleted = document.getDeleted();
+        if (deleted)
         {
             switch (deleteMode)
             {
@@ -406,7 +481,13 @@ public class ProfileExport
             }
         }
 
-        Vector<MarcRecord> result = MarcExport.compileVirtualMarcRecord(profile, document, m_whelk, m_toMarcXmlConverter);
+        MarcExport.ConvertedRecord converted = m_conversionCache.get(systemId, checksum, deleted, from, until, () -> {
+            Document embellished = m_whelk.loadEmbellished(systemId);
+            if (deleted)
+                embellished.setDeleted(true);
+            return MarcExport.convert(embellished, m_whelk, m_toMarcXmlConverter);
+        });
+        Vector<MarcRecord> result = converted != null ? MarcExport.compileVirtualMarcRecord(profile, converted) : null;
         // A conversion error will already have been logged. Anything else, and we want to fail fast.
         if (result == null) {
             logger.info("Not exporting {} for {} because of conversion error", systemId, profileName);
@@ -447,52 +528,120 @@ public class ProfileExport
     }
 
     /**
-     * Get all records that changed in the interval
+     * A version of a record saved in the interval
      */
-    private PreparedStatement getAllChangedIDsStatement(Timestamp from, Timestamp until, Connection connection)
-            throws SQLException
+    private record ChangedRecord(String id, Instant modified, String collection, String mainEntityType,
+                                 boolean created, Boolean deleted) {}
+
+    /**
+     * What's needed to decide what to export, for a chunk of the changes in the interval. Read with a few bulk queries
+     * per chunk instead of several queries per changed record.
+     */
+    private static class ChangeAnalysis {
+        final List<ChangedRecord> records;
+        // The changedBy names of all versions saved strictly inside the interval, not only those in the chunk
+        final Map<String, Set<String>> changedBy = new HashMap<>();
+        // Auth records with a different chip at the end of the interval than at the start
+        final Set<String> chipChanged = new HashSet<>();
+
+        ChangeAnalysis(List<ChangedRecord> records) {
+            this.records = records;
+        }
+    }
+
+    private ChangedRecord changedRecord(ResultSet resultSet, Parameters parameters) throws SQLException
     {
-        String sql = "SELECT id, collection, created, deleted, data#>>'{@graph,1,@type}' AS mainEntityType FROM lddb__versions WHERE modified >= ? AND modified <= ? AND collection in ('bib', 'auth', 'hold')";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setTimestamp(1, from);
-        preparedStatement.setTimestamp(2, until);
-        preparedStatement.setFetchSize(10_000); // average size is less than 2kb, default 16 DB connections ~ 320MB
-        return preparedStatement;
+        Timestamp createdTime = resultSet.getTimestamp("created");
+        boolean created = parameters.zonedFrom.toInstant().isBefore(createdTime.toInstant()) &&
+                parameters.zonedUntil.toInstant().isAfter(createdTime.toInstant());
+        return new ChangedRecord(resultSet.getString("id"), resultSet.getTimestamp("modified").toInstant(),
+                resultSet.getString("collection"), resultSet.getString("mainEntityType"), created,
+                resultSet.getBoolean("deleted"));
+    }
+
+    private ChangeAnalysis analyzeChanges(List<ChangedRecord> records, Parameters parameters) throws SQLException
+    {
+        Timestamp from = parameters.fromTimeStamp;
+        Timestamp until = parameters.untilTimeStamp;
+        ChangeAnalysis changes = new ChangeAnalysis(records);
+        Set<String> ids = new HashSet<>();
+        Set<String> authIds = new HashSet<>();
+        for (ChangedRecord change : records) {
+            ids.add(change.id());
+            if (change.collection().equals("auth"))
+                authIds.add(change.id());
+        }
+
+        try (Connection connection = m_connectionPool.getConnection();
+             PreparedStatement preparedStatement = getChangedByStatement(ids, from, until, connection);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                changes.changedBy.computeIfAbsent(resultSet.getString("id"), k -> new HashSet<>())
+                        .add(resultSet.getString("changedBy"));
+            }
+        }
+
+        if (!authIds.isEmpty()) {
+            var jsonLd = m_whelk.getJsonld();
+            Map<String, Document> currentVersions = m_whelk.getStorage().bulkLoad(authIds, until.toInstant());
+            Map<String, Document> previousVersions = m_whelk.getStorage().bulkLoad(authIds, from.toInstant());
+            for (String id : authIds) {
+                Document currentVersion = currentVersions.get(id);
+                Document previousVersion = previousVersions.get(id);
+                if (previousVersion == null || currentVersion == null ||
+                        !jsonLd.toChip(previousVersion.data).equals(jsonLd.toChip(currentVersion.data))) {
+                    changes.chipChanged.add(id);
+                }
+            }
+        }
+
+        return changes;
     }
 
     /**
-     * Get all changedBy names for the given id and interval
+     * Get the first 'limit' record versions saved in the interval, in (modified, id) order, after 'after' if not null
      */
-    private Set<String> getAllChangedBy(String id, Timestamp from, Timestamp until, Connection connection)
-            throws SQLException
+    private List<ChangedRecord> getChangedRecords(Parameters parameters, Cursor after, int limit) throws SQLException
     {
-        HashSet<String> result = new HashSet<>();
-        connection.setAutoCommit(false);
-        try(PreparedStatement preparedStatement = getAllChangedByStatement(id, from, until, connection);
-            ResultSet resultSet = preparedStatement.executeQuery())
-        {
-            while (resultSet.next())
-            {
-                Timestamp modified = resultSet.getTimestamp("modified");
-                String changedBy = resultSet.getString("changedBy");
-
-                if (from.toInstant().isBefore(modified.toInstant()) &&
-                        until.toInstant().isAfter(modified.toInstant()))
-                    result.add(changedBy);
+        // The plain modified lower bound lets the modified index start at the cursor
+        String sql = "SELECT id, collection, created, modified, deleted, data#>>'{@graph,1,@type}' AS mainEntityType FROM lddb__versions WHERE modified >= ? AND modified <= ? AND collection in ('bib', 'auth', 'hold')" +
+                (after != null ? " AND (modified, id) > (?, ?)" : "") +
+                " ORDER BY modified, id LIMIT ?";
+        List<ChangedRecord> result = new ArrayList<>(limit);
+        try (Connection connection = m_connectionPool.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            int i = 1;
+            if (after != null && after.modified().isAfter(parameters.fromTimeStamp.toInstant())) {
+                preparedStatement.setTimestamp(i++, Timestamp.from(after.modified()));
+            } else {
+                preparedStatement.setTimestamp(i++, parameters.fromTimeStamp);
+            }
+            preparedStatement.setTimestamp(i++, parameters.untilTimeStamp);
+            if (after != null) {
+                preparedStatement.setTimestamp(i++, Timestamp.from(after.modified()));
+                preparedStatement.setString(i++, after.id());
+            }
+            preparedStatement.setInt(i, limit);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    result.add(changedRecord(resultSet, parameters));
+                }
             }
         }
         return result;
     }
 
-    private PreparedStatement getAllChangedByStatement(String id, Timestamp from, Timestamp until, Connection connection)
-            throws SQLException
+    /**
+     * Get the changedBy names of all versions of 'ids' saved strictly inside the interval
+     */
+    private PreparedStatement getChangedByStatement(Set<String> ids, Timestamp from, Timestamp until,
+                                                    Connection connection) throws SQLException
     {
-        String sql = "SELECT modified, changedBy FROM lddb__versions WHERE modified >= ? AND modified <= ? AND id = ?";
+        String sql = "SELECT id, changedBy FROM lddb__versions WHERE id = ANY(?) AND modified > ? AND modified < ?";
         PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setFetchSize(100);
-        preparedStatement.setTimestamp(1, from);
-        preparedStatement.setTimestamp(2, until);
-        preparedStatement.setString(3, id);
+        preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids.toArray()));
+        preparedStatement.setTimestamp(2, from);
+        preparedStatement.setTimestamp(3, until);
         return preparedStatement;
     }
 
@@ -528,13 +677,41 @@ public class ProfileExport
             this.workQueue = pool.getQueue();
         }
         
-        public void submit(ResultSet resultSet) throws SQLException, IOException {
+        public void submit(ChangedRecord change, ChangeAnalysis changes) throws IOException {
+            submit(new Task(change, changes));
+        }
+
+        public void submitAffectedBib(String bibId) throws IOException {
+            submit(() -> {
+                Summary.Timer requestTimer = singleExportLatency.labels("auth").startTimer();
+                try {
+                    exportDocument(bibId, parameters.profile, parameters.fromTimeStamp, parameters.untilTimeStamp,
+                            out, exportedIDs, parameters.deleteMode, parameters.doVirtualDeletions, deletedNotifications);
+                } catch (PreviousErrorException ignored) {
+                    // Already handled elsewhere
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    requestTimer.observeDuration();
+                }
+            });
+        }
+
+        private void submit(Runnable task) throws IOException {
             if (out.hasErrored()) {
                 workQueue.cancelAll();
                 out.throwIfError();
             }
 
-            workQueue.submit(new Task(resultSet));
+            workQueue.submit(task);
+        }
+
+        /**
+         * Wait until everything submitted so far has been converted and written
+         */
+        public void awaitWritten() throws IOException {
+            workQueue.awaitAll();
+            out.awaitWritten();
         }
 
         public void awaitCompletion() throws IOException {
@@ -547,29 +724,21 @@ public class ProfileExport
         }
         
         private class Task implements Runnable {
-            String id;
-            String collection;
-            String mainEntityType;
-            Timestamp createdTime;
-            Boolean deleted;
-            boolean created;
-
-            public Task(ResultSet resultSet) throws SQLException {
-                id = resultSet.getString("id");
-                collection = resultSet.getString("collection");
-                mainEntityType = resultSet.getString("mainEntityType");
-                createdTime = resultSet.getTimestamp("created");
-                deleted = resultSet.getBoolean("deleted");
-                created = parameters.zonedFrom.toInstant().isBefore(createdTime.toInstant()) &&
-                        parameters.zonedUntil.toInstant().isAfter(createdTime.toInstant());
+            ChangedRecord change;
+            ChangeAnalysis changes;
+
+            public Task(ChangedRecord change, ChangeAnalysis changes) {
+                this.change = change;
+                this.changes = changes;
             }
 
             @Override
             public void run() {
-                try (Connection connection = m_whelk.getStorage().getOuterConnection()) {
-                    exportAffectedDocuments(id, collection, created, deleted, parameters.fromTimeStamp, 
-                            parameters.untilTimeStamp, parameters.profile, out, parameters.deleteMode,
-                            parameters.doVirtualDeletions, exportedIDs, deletedNotifications, mainEntityType, connection);
+                try {
+                    exportAffectedDocuments(change.id(), change.collection(), change.created(), change.deleted(),
+                            parameters.fromTimeStamp, parameters.untilTimeStamp, parameters.profile, out,
+                            parameters.deleteMode, parameters.doVirtualDeletions, exportedIDs, deletedNotifications,
+                            change.mainEntityType(), changes);
                 } catch (PreviousErrorException ignored) {
                     // Already handled elsewhere
                 } catch (Exception e) {
@@ -621,7 +790,9 @@ public class ProfileExport
                 }
             };
 
+            // Give up only if the client stops reading altogether, a slow client just slows the export down
             int maxTimeouts = 100;
+            long written = thread.getCompletedTaskCount();
             while (maxTimeouts-- > 0) {
                 try {
                     thread.execute(task);
@@ -632,14 +803,43 @@ public class ProfileExport
                     }
                     // We're producing records faster than can be written (read by client), back off
                     try {
-                        logger.info("Slow client, slowing down");
+                        logger.debug("Slow client, slowing down");
                         Thread.sleep(250);
                     } catch (InterruptedException ignored) {}
+                    if (thread.getCompletedTaskCount() > written) {
+                        written = thread.getCompletedTaskCount();
+                        maxTimeouts = 100;
+                    }
                 }
             }
             throw new IOException("Reached max timeouts while write queue was full");
         }
 
+        public void awaitWritten() throws IOException {
+            Future<?> marker = null;
+            while (marker == null) {
+                if (thread.isShutdown()) {
+                    throwIfError();
+                    return;
+                }
+                try {
+                    marker = thread.submit(() -> {});
+                } catch (RejectedExecutionException e) {
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException ie) {
+                        throw new IOException(ie);
+                    }
+                }
+            }
+            try {
+                marker.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                // Shut down because of a write error
+            }
+            throwIfError();
+        }
+
         @Override
         public void close() throws IOException {
             thread.shutdown();
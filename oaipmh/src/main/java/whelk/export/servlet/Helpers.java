@@ -13,20 +13,31 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringJoiner;
 
 import static whelk.util.Jackson.mapper;
 
 public class Helpers
 {
+    /**
+     * Reads source rows in chunks. Holdings, dependers and previous versions needed to decide what a chunk
+     * emits are looked up with one bulk query each per chunk, and remembered for the rest of the page.
+     */
     public static class ResultIterator implements Iterator<Document>, AutoCloseable {
+        private static final int CHUNK_SIZE = 100;
 
         private final PreparedStatement statement;
         private final ResultSet resultSet;
@@ -35,8 +46,12 @@ public class Helpers
         private final String explicitSet;
         private final boolean includeDependenciesInTimeInterval;
         private final int pageSize;
-        private final Stack<Document> resultingDocuments = new Stack<>();
-        private boolean firstAccess = true;
+        private final Deque<Document> resultingDocuments = new ArrayDeque<>();
+        private boolean resultSetExhausted = false;
+
+        // Looked up so far on this page
+        private final Map<String, Boolean> heldBibs = new HashMap<>();
+        private final Set<String> emittedDependers = new HashSet<>();
 
         // For resumption tokens, to keep track of the last source row consumed. A source row is simply a
         // row read from lddb. One source row might or might not emit a record (or several), depending on
@@ -63,139 +78,173 @@ public class Helpers
 
         public boolean isExhausted() { return sourceRowsRead < pageSize; }
 
-        private boolean isHeld(Document doc, String bySigel)
-        {
-            if (bySigel == null)
-                return false;
-            
-            List<Document> holdings = OaiPmh.s_whelk.getAttachedHoldings(doc.getThingIdentifiers());
-
-            for (Document holding : holdings)
-            {
-                String sigel = holding.getHeldBySigel();
-                if (bySigel.equals(sigel))
-                {
-                    return true;
-                }
-            }
-            return false;
-        }
-
         private void queueDocument(Document doc)
         {
             if (explicitSet == null)
             {
-                resultingDocuments.push(doc);
+                resultingDocuments.add(doc);
             }
             // Beware: This <marc:..>-stuff is not future proof!
             else if (explicitSet.equals("nb") &&
                     doc.getEncodingLevel() != null &&
                     doc.getEncodingLevel().equals("marc:FullLevel"))
             {
-                resultingDocuments.push(doc);
+                resultingDocuments.add(doc);
             }
             else if (explicitSet.equals("sao") &&
                     doc.getThingInScheme() != null &&
                     doc.getThingInScheme().equals("https://id.kb.se/term/sao"))
             {
-                resultingDocuments.push(doc);
+                resultingDocuments.add(doc);
             }
         }
 
-        private void emitAffected(Document updated)
+        private void emitAffected(List<Document> chunk)
         {
-            String updatedCollection = LegacyIntegrationTools.determineLegacyCollection(updated, OaiPmh.s_whelk.getJsonld());
+            var jsonLd = OaiPmh.s_whelk.getJsonld();
+            var storage = OaiPmh.s_whelk.getStorage();
 
-            if (requestedCollection == null)
+            List<String> collections = new ArrayList<>(chunk.size());
+            for (Document updated : chunk)
+                collections.add(LegacyIntegrationTools.determineLegacyCollection(updated, jsonLd));
+
+            // Dependers of updated auth records whose cards have changed
+            List<Document> dependers = new ArrayList<>();
+            boolean followDependers = includeDependenciesInTimeInterval && requestedCollection != null &&
+                    (requestedCollection.equals("bib") || requestedCollection.equals("hold"));
+            if (followDependers)
             {
-                // If no collection is requested, all records matching the prepared statement are welcome.
-                queueDocument(updated);
+                List<Document> auths = new ArrayList<>();
+                for (int i = 0; i < chunk.size(); i++)
+                    if (collections.get(i).equals("auth"))
+                        auths.add(chunk.get(i));
+                List<String> changedAuthIds = cardChanged(auths);
+
+                Set<String> dependerIds = new LinkedHashSet<>();
+                for (Tuple2<String, String> depender : storage.bulkFollowDependers(changedAuthIds, JsonLd.NON_DEPENDANT_RELATIONS))
+                {
+                    if (emittedDependers.add(depender.getV1()))
+                        dependerIds.add(depender.getV1());
+                }
+                Map<String, Document> dependerDocuments = storage.bulkLoad(dependerIds);
+                for (String dependerId : dependerIds)
+                {
+                    Document dependerDocument = dependerDocuments.get(dependerId);
+                    if (dependerDocument == null)
+                        continue;
+                    if (OaiPmh.s_whelk.getBaseUri() != null)
+                        dependerDocument.setBaseUri(OaiPmh.s_whelk.getBaseUri());
+                    dependers.add(dependerDocument);
+                }
             }
-            else if (updatedCollection.equals("auth"))
+
+            // Which of the bib records that could be emitted are held by the requested library
+            if (mustBeHeldBy != null && "bib".equals(requestedCollection))
             {
-                String type = updated.getThingType();
+                List<Document> bibs = new ArrayList<>();
+                for (int i = 0; i < chunk.size(); i++)
+                    if (collections.get(i).equals("bib"))
+                        bibs.add(chunk.get(i));
+                for (Document depender : dependers)
+                    if (LegacyIntegrationTools.determineLegacyCollection(depender, jsonLd).equals("bib"))
+                        bibs.add(depender);
+                lookUpHeld(bibs);
+            }
 
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                Document updated = chunk.get(i);
+                String updatedCollection = collections.get(i);
 
-                if (requestedCollection.equals("auth") &&
-                        (type == null || !OaiPmh.workDerivativeTypes.contains(type)))
+                if (requestedCollection == null)
+                {
+                    // If no collection is requested, all records matching the prepared statement are welcome.
                     queueDocument(updated);
-                if (includeDependenciesInTimeInterval && (requestedCollection.equals("bib") || requestedCollection.equals("hold")) && hasCardChanged(updated))
+                }
+                else if (updatedCollection.equals("auth"))
                 {
-                    List<Tuple2<String, String>> dependers = OaiPmh.s_whelk.getStorage().followDependers(updated.getShortId(), JsonLd.NON_DEPENDANT_RELATIONS);
-                    for (Tuple2<String, String> depender : dependers)
-                    {
-                        String dependerId = depender.getV1();
-                        Document dependerDocument = OaiPmh.s_whelk.getDocument(dependerId);
-                        String dependerCollection = LegacyIntegrationTools.determineLegacyCollection(dependerDocument, OaiPmh.s_whelk.getJsonld());
-                        if (dependerCollection.equals("bib") && requestedCollection.equals("bib"))
-                        {
-                            if (mustBeHeldBy == null || isHeld(dependerDocument, mustBeHeldBy))
-                                queueDocument(dependerDocument);
-                        }
-                        else if (dependerCollection.equals("hold") && requestedCollection.equals("hold"))
-                        {
-                            String sigel = dependerDocument.getHeldBySigel();
-                            if (mustBeHeldBy == null || mustBeHeldBy.equals(sigel))
-                            {
-                                queueDocument(dependerDocument);
-                            }
-                        }
-                    }
+                    String type = updated.getThingType();
+                    if (requestedCollection.equals("auth") &&
+                            (type == null || !OaiPmh.workDerivativeTypes.contains(type)))
+                        queueDocument(updated);
+                }
+                else
+                {
+                    emitIfRequested(updated, updatedCollection);
                 }
             }
-            else if (updatedCollection.equals("bib"))
+
+            for (Document depender : dependers)
+            {
+                emitIfRequested(depender, LegacyIntegrationTools.determineLegacyCollection(depender, jsonLd));
+            }
+        }
+
+        private void emitIfRequested(Document doc, String collection)
+        {
+            if (collection.equals("bib") && requestedCollection.equals("bib"))
             {
-                if (requestedCollection.equals("bib"))
+                if (mustBeHeldBy == null || heldBibs.getOrDefault(doc.getShortId(), false))
                 {
-                    if (mustBeHeldBy == null || isHeld(updated, mustBeHeldBy))
-                    {
-                        queueDocument(updated);
-                    }
+                    queueDocument(doc);
                 }
             }
-            else if (updatedCollection.equals("hold"))
+            else if (collection.equals("hold") && requestedCollection.equals("hold"))
             {
-                if (requestedCollection.equals("hold"))
+                String sigel = doc.getHeldBySigel();
+                if (mustBeHeldBy == null || mustBeHeldBy.equals(sigel))
                 {
-                    String sigel = updated.getHeldBySigel();
-                    if (mustBeHeldBy == null || mustBeHeldBy.equals(sigel))
-                    {
-                        queueDocument(updated);
-                    }
+                    queueDocument(doc);
                 }
             }
+        }
 
+        private void lookUpHeld(List<Document> bibs)
+        {
+            Set<String> unknown = new HashSet<>();
+            for (Document bib : bibs)
+                if (!heldBibs.containsKey(bib.getShortId()))
+                    unknown.add(bib.getShortId());
+            if (unknown.isEmpty())
+                return;
+
+            Set<String> held = OaiPmh.s_whelk.getStorage().filterBibIdsByHeldBy(unknown,
+                    List.of(LegacyIntegrationTools.legacySigelToUri(mustBeHeldBy)));
+            for (String id : unknown)
+                heldBibs.put(id, held.contains(id));
         }
 
-        private boolean hasCardChanged(Document updated) {
-            Document previousVersion = OaiPmh.s_whelk.getStorage().load(updated.getShortId(), "-1");
-            if (previousVersion == null) {
-                return true;
-            }
-            
+        private List<String> cardChanged(List<Document> updated) {
+            List<String> ids = new ArrayList<>(updated.size());
+            for (Document doc : updated)
+                ids.add(doc.getShortId());
+            Map<String, Document> previousVersions = OaiPmh.s_whelk.getStorage().bulkLoadLatestVersions(ids);
+
             var jsonLd = OaiPmh.s_whelk.getJsonld();
-            var oldCard = jsonLd.toCard(previousVersion.data);
-            var newCard = jsonLd.toCard(updated.data);
-            return !oldCard.equals(newCard);
+            List<String> changed = new ArrayList<>();
+            for (Document doc : updated) {
+                Document previousVersion = previousVersions.get(doc.getShortId());
+                if (previousVersion == null || !jsonLd.toCard(previousVersion.data).equals(jsonLd.toCard(doc.data))) {
+                    changed.add(doc.getShortId());
+                }
+            }
+            return changed;
         }
 
         public boolean hasNext()
         {
             try
             {
-                if ( firstAccess && (!resultSet.isBeforeFirst()) ) // Empty initial resultset?
-                {
-                    return false;
-                }
-                else if (!resultingDocuments.isEmpty()) // Stuff already in the queue?
-                {
-                    return true;
-                }
-                else // More to fetch from db?
+                while (resultingDocuments.isEmpty() && !resultSetExhausted)
                 {
-                    firstAccess = false;
-                    while (resultSet.next())
+                    List<Document> chunk = new ArrayList<>(CHUNK_SIZE);
+                    while (chunk.size() < CHUNK_SIZE)
                     {
+                        if (!resultSet.next())
+                        {
+                            resultSetExhausted = true;
+                            break;
+                        }
                         sourceRowsRead++;
                         String data = resultSet.getString("data");
 
@@ -206,17 +255,12 @@ public class Helpers
                         lastSourceModified = modified != null
                                 ? modified.toInstant().toString() : null;
 
-                        Document updated = new Document(mapper.readValue(data, HashMap.class));
-                        emitAffected(updated);
-
-                        // Did reading this record from the DB result in anything new in the export flow?
-                        if (!resultingDocuments.isEmpty())
-                            return true;
+                        chunk.add(new Document(mapper.readValue(data, HashMap.class)));
                     }
-
-                    // We've gone over everything that's changed and there is nothing more to export.
-                    return false;
+                    if (!chunk.isEmpty())
+                        emitAffected(chunk);
                 }
+                return !resultingDocuments.isEmpty();
             } catch (SQLException | IOException e)
             {
                 try
@@ -232,7 +276,9 @@ public class Helpers
 
         public Document next()
         {
-            return resultingDocuments.pop();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return resultingDocuments.poll();
         }
 
         public void close() throws SQLException {
@@ -0,0 +1,142 @@
+package whelk.sru.servlet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import se.kb.libris.util.marc.MarcRecord;
+import se.kb.libris.util.marc.io.MarcXmlRecordReader;
+import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares the cost per record of producing each xsearch format, by serializing records to MARCXML text and
+ * transforming it with a new Transformer (as xsearch used to), and by SAX events into a pooled Transformer.
+ * <p>
+ * Every benchmark method handles one record, cycling through all MARCXML collections in the records directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlTransformBenchmark {
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    @Param({"../batchimport/integtest"})
+    public String records;
+
+    @Param({"marcxml", "mods", "refworks"})
+    public String format;
+
+    private List<MarcRecord> marcRecords;
+    private Templates templates;
+    private XmlTransform transform;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TransformerException {
+        marcRecords = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Path.of(records))) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".xml")).sorted().toList()) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    MarcXmlRecordReader reader = new MarcXmlRecordReader(in, "/collection/record", null);
+                    MarcRecord marcRecord;
+                    while ((marcRecord = reader.readRecord()) != null) {
+                        marcRecords.add(marcRecord);
+                    }
+                }
+            }
+        }
+        if (marcRecords.isEmpty()) {
+            throw new IllegalStateException("No records in " + records);
+        }
+
+        String stylesheet = switch (format) {
+            case "marcxml" -> null;
+            case "mods" -> "transformers/MARC21slim2MODS3.xsl";
+            case "refworks" -> "transformers/refworks.xsl";
+            default -> throw new IllegalArgumentException(format);
+        };
+        if (stylesheet != null) {
+            URL url = Thread.currentThread().getContextClassLoader().getResource(stylesheet);
+            templates = TransformerFactory.newInstance().newTemplates(new StreamSource(url.openStream(), url.toExternalForm()));
+            transform = XmlTransform.load(stylesheet);
+        }
+    }
+
+    private MarcRecord nextRecord() {
+        MarcRecord marcRecord = marcRecords.get(next);
+        next = (next + 1) % marcRecords.size();
+        return marcRecord;
+    }
+
+    @Benchmark
+    public byte[] viaText() throws IOException, TransformerException {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        MarcXmlRecordWriter writer = new MarcXmlRecordWriter(xml);
+        writer.writeRecord(nextRecord());
+        writer.close();
+        if (templates == null) {
+            return xml.toByteArray();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        templates.newTransformer().transform(new StreamSource(new ByteArrayInputStream(xml.toByteArray())), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] viaSaxEvents() throws XMLStreamException, SAXException, TransformerException {
+        MarcRecord marcRecord = nextRecord();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (transform == null) {
+            XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+            writeCollection(marcRecord, new StaxContentHandler(writer, true));
+            writer.close();
+        } else {
+            transform.transform(handler -> writeCollection(marcRecord, handler), new StreamResult(out));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeCollection(MarcRecord marcRecord, ContentHandler handler) throws SAXException {
+        handler.startDocument();
+        handler.startPrefixMapping("", MarcSaxWriter.MARC_NS);
+        handler.startElement(MarcSaxWriter.MARC_NS, "collection", "collection", new AttributesImpl());
+        MarcSaxWriter.writeRecord(marcRecord, handler);
+        handler.endElement(MarcSaxWriter.MARC_NS, "collection", "collection");
+        handler.endPrefixMapping("");
+        handler.endDocument();
+    }
+}
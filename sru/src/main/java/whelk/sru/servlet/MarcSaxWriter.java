@@ -0,0 +1,105 @@
+package whelk.sru.servlet;
+
+import se.kb.libris.util.marc.Controlfield;
+import se.kb.libris.util.marc.Datafield;
+import se.kb.libris.util.marc.Field;
+import se.kb.libris.util.marc.MarcRecord;
+import se.kb.libris.util.marc.Subfield;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Writes MarcRecords as MARCXML SAX events, the same XML as MarcXmlRecordWriter produces but without
+ * serializing it to text and parsing it again.
+ */
+final class MarcSaxWriter {
+    static final String MARC_NS = "http://www.loc.gov/MARC21/slim";
+
+    private static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+
+    private MarcSaxWriter() {
+    }
+
+    /**
+     * Write a record inside a collection element, where the MARC namespace is already the default namespace.
+     */
+    static void writeRecord(MarcRecord marcRecord, ContentHandler handler) throws SAXException {
+        handler.startElement(MARC_NS, "record", "record", NO_ATTRIBUTES);
+        writeFields(marcRecord, handler);
+        handler.endElement(MARC_NS, "record", "record");
+    }
+
+    /**
+     * Write a record declaring the MARC namespace and with a type attribute, like MarcXmlRecordWriter.
+     */
+    static void writeStandaloneRecord(MarcRecord marcRecord, ContentHandler handler) throws SAXException {
+        AttributesImpl attributes = new AttributesImpl();
+        String type = recordType(marcRecord.getLeader(6));
+        if (type != null) {
+            attributes.addAttribute("", "type", "type", "CDATA", type);
+        }
+        handler.startPrefixMapping("", MARC_NS);
+        handler.startElement(MARC_NS, "record", "record", attributes);
+        writeFields(marcRecord, handler);
+        handler.endElement(MARC_NS, "record", "record");
+        handler.endPrefixMapping("");
+    }
+
+    private static void writeFields(MarcRecord marcRecord, ContentHandler handler) throws SAXException {
+        writeElement(handler, "leader", NO_ATTRIBUTES, marcRecord.getLeader());
+
+        for (Field field : marcRecord.getFields()) {
+            if (field instanceof Controlfield controlfield) {
+                AttributesImpl attributes = new AttributesImpl();
+                attributes.addAttribute("", "tag", "tag", "CDATA", controlfield.getTag());
+                writeElement(handler, "controlfield", attributes, controlfield.getData());
+            } else if (field instanceof Datafield datafield) {
+                AttributesImpl attributes = new AttributesImpl();
+                // Same attribute order as the DOM serialization of MarcXmlRecordWriter
+                attributes.addAttribute("", "ind1", "ind1", "CDATA", String.valueOf(datafield.getIndicator(0)));
+                attributes.addAttribute("", "ind2", "ind2", "CDATA", String.valueOf(datafield.getIndicator(1)));
+                attributes.addAttribute("", "tag", "tag", "CDATA", datafield.getTag());
+                handler.startElement(MARC_NS, "datafield", "datafield", attributes);
+                for (Subfield subfield : datafield.getSubfields()) {
+                    AttributesImpl code = new AttributesImpl();
+                    code.addAttribute("", "code", "code", "CDATA", String.valueOf(subfield.getCode()));
+                    writeElement(handler, "subfield", code, sanitize(subfield.getData()));
+                }
+                handler.endElement(MARC_NS, "datafield", "datafield");
+            }
+        }
+    }
+
+    private static void writeElement(ContentHandler handler, String name, Attributes attributes, String text)
+            throws SAXException {
+        handler.startElement(MARC_NS, name, name, attributes);
+        if (text != null) {
+            handler.characters(text.toCharArray(), 0, text.length());
+        }
+        handler.endElement(MARC_NS, name, name);
+    }
+
+    // Control characters can't be represented in XML, MarcXmlRecordWriter replaces them in subfields
+    private static String sanitize(String data) {
+        char[] chars = data.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] < ' ') {
+                chars[i] = '?';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String recordType(char typeOfRecord) {
+        return switch (typeOfRecord) {
+            case 'z' -> "Authority";
+            case 'u', 'v', 'x', 'y' -> "Holdings";
+            case 'a', 'c', 'd', 'e', 'f', 'g', 'i', 'j', 'k', 'm', 'o', 'p', 'r', 't' -> "Bibliographic";
+            case 'w' -> "Classification";
+            case 'q' -> "Community";
+            default -> null;
+        };
+    }
+}
@@ -2,12 +2,11 @@ package whelk.sru.servlet;
 
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.apache.commons.io.IOUtils;
-import org.apache.cxf.staxutils.StaxUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.xml.sax.SAXException;
 import se.kb.libris.export.ExportProfile;
 import se.kb.libris.util.marc.MarcRecord;
-import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
 import whelk.Document;
 import whelk.Whelk;
 import whelk.converter.marc.JsonLD2MarcXMLConverter;
@@ -23,7 +22,6 @@ import whelk.util.http.WhelkHttpServlet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -41,7 +39,6 @@ public class SruServlet extends WhelkHttpServlet {
     private static final String appId = "https://libris.kb.se/sru/libris";
 
     JsonLD2MarcXMLConverter converter;
-    XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
     ResourceLookup resourceLookup;
     ESSettings esSettings;
     AppParams appParams;
@@ -186,13 +183,10 @@ public class SruServlet extends WhelkHttpServlet {
 
                 writer.writeStartElement("recordData");
                 Vector<MarcRecord> marcRecords = MarcExport.compileVirtualMarcRecord(marcExportProfile, embellished, whelk, converter);
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                MarcXmlRecordWriter stringOutput = new MarcXmlRecordWriter(baos, "UTF-8", false);
+                StaxContentHandler recordData = new StaxContentHandler(writer, false);
                 for (MarcRecord mr : marcRecords) {
-                    stringOutput.writeRecord(mr);
+                    MarcSaxWriter.writeStandaloneRecord(mr, recordData);
                 }
-                stringOutput.close();
-                StaxUtils.copy(xmlInputFactory.createXMLStreamReader(new StringReader(baos.toString())), writer);
                 writer.writeEndElement(); // recordData
 
                 writer.writeEndElement(); // record
@@ -205,7 +199,7 @@ public class SruServlet extends WhelkHttpServlet {
             writer.close();
             out.flush();
             out.close();
-        } catch (XMLStreamException e) {
+        } catch (XMLStreamException | SAXException e) {
             logger.error("Couldn't build SRU response.", e);
         }
     }
@@ -0,0 +1,94 @@
+package whelk.sru.servlet;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes SAX events to an XMLStreamWriter, for embedding SAX produced XML in a response written with StAX.
+ *
+ * Elements are written with their qualified names and namespace mappings as xmlns attributes on the element
+ * they were started for, in the same way the responses have always been written. Document events are only
+ * passed on if the handler writes the whole document.
+ */
+class StaxContentHandler extends DefaultHandler {
+    private final XMLStreamWriter writer;
+    private final boolean writeDocument;
+    private final List<String[]> pendingMappings = new ArrayList<>();
+
+    StaxContentHandler(XMLStreamWriter writer, boolean writeDocument) {
+        this.writer = writer;
+        this.writeDocument = writeDocument;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        if (writeDocument) {
+            try {
+                writer.writeStartDocument("UTF-8", "1.0");
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (writeDocument) {
+            try {
+                writer.writeEndDocument();
+                writer.flush();
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        pendingMappings.add(new String[]{prefix, uri});
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        try {
+            writer.writeStartElement(qName);
+            for (String[] mapping : pendingMappings) {
+                if (mapping[0].isEmpty()) {
+                    writer.writeDefaultNamespace(mapping[1]);
+                } else {
+                    writer.writeNamespace(mapping[0], mapping[1]);
+                }
+            }
+            pendingMappings.clear();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                writer.writeAttribute(attributes.getQName(i), attributes.getValue(i));
+            }
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        try {
+            writer.writeEndElement();
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        try {
+            writer.writeCharacters(ch, start, length);
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        }
+    }
+}
@@ -4,13 +4,15 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import groovy.lang.Tuple2;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 import se.kb.libris.util.marc.Datafield;
 import se.kb.libris.util.marc.Field;
 import se.kb.libris.util.marc.MarcFieldComparator;
 import se.kb.libris.util.marc.MarcRecord;
 import se.kb.libris.util.marc.Subfield;
 import se.kb.libris.util.marc.io.MarcXmlRecordReader;
-import se.kb.libris.util.marc.io.MarcXmlRecordWriter;
 import se.kb.libris.utils.isbn.ConvertException;
 import se.kb.libris.utils.isbn.Isbn;
 import se.kb.libris.utils.isbn.IsbnException;
@@ -32,24 +34,13 @@ import whelk.util.http.WhelkHttpServlet;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
-import javax.xml.transform.Templates;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -62,15 +53,16 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
-import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
-import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
 import static se.kb.libris.export.ExportProfile.addSabTitles;
 import static se.kb.libris.export.ExportProfile.mergeBibMfhd;
 import static whelk.JsonLd.ID_KEY;
@@ -95,10 +87,17 @@ import static whelk.util.Jackson.mapper;
 public class XSearchServlet extends WhelkHttpServlet {
     private final Logger logger = LogManager.getLogger(this.getClass());
     private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-    private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
 
     private static final String appId = "https://libris.kb.se/xsearch";
 
+    // Converting the hits of a page is CPU bound, keep it off the common pool
+    private static final int CONVERSION_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService conversionPool = Executors.newFixedThreadPool(CONVERSION_THREADS, r -> {
+        Thread t = new Thread(r, "xsearch-marc-conversion");
+        t.setDaemon(true);
+        return t;
+    });
+
     private static final int DEFAULT_N = 10;
     private static final int MAX_N = 200;
     private static final int DEFAULT_START = 1;
@@ -160,12 +159,11 @@ public class XSearchServlet extends WhelkHttpServlet {
         public static final String PARSE = "parse";
     }
 
-    private record Xslt(Templates templates, String contentType) {
+    private record Xslt(XmlTransform transform, String contentType) {
 
     }
 
     JsonLD2MarcXMLConverter converter;
-    XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
     ResourceLookup resourceLookup;
     ESSettings esSettings;
     AppParams appParams;
@@ -178,14 +176,10 @@ public class XSearchServlet extends WhelkHttpServlet {
         esSettings = new ESSettings(whelk);
         appParams = new AppParams(appId, whelk);
 
-        try {
-            transformers = Map.of(
-                    Format.MODS, loadXslt("transformers/MARC21slim2MODS3.xsl", "text/xml"),
-                    Format.REF_WORKS, loadXslt("transformers/refworks.xsl", "text/plain")
-            );
-        } catch (IOException | TransformerConfigurationException e) {
-            throw new IllegalStateException(e);
-        }
+        transformers = Map.of(
+                Format.MODS, new Xslt(XmlTransform.load("transformers/MARC21slim2MODS3.xsl"), "text/xml"),
+                Format.REF_WORKS, new Xslt(XmlTransform.load("transformers/refworks.xsl"), "text/plain")
+        );
     }
 
     public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
@@ -273,7 +267,7 @@ public class XSearchServlet extends WhelkHttpServlet {
         } catch (InvalidQueryException e) {
             logger.error("Bad query: " + query);
             throw new InvalidQueryException(Errors.PARSE);
-        } catch (XMLStreamException | TransformerException e) {
+        } catch (XMLStreamException | SAXException | TransformerException e) {
             logger.error("Couldn't build xsearch response.", e);
             throw new RuntimeException(e);
         }
@@ -285,66 +279,105 @@ public class XSearchServlet extends WhelkHttpServlet {
                              int to,
                              int totalItems,
                              boolean includeHoldings,
-                             boolean formatLevelFull) throws IOException, XMLStreamException {
+                             boolean formatLevelFull) throws IOException, XMLStreamException, SAXException {
         res.setCharacterEncoding("UTF-8");
         res.setContentType("text/xml");
+        List<Future<MarcRecord>> records = convertRecords(items, includeHoldings, formatLevelFull);
         OutputStream out = res.getOutputStream();
-        writeMarcXml(out, items, from, to, totalItems, includeHoldings, formatLevelFull);
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out);
+        writeMarcXml(new StaxContentHandler(writer, true), records, from, to, totalItems);
+        writer.close();
         out.flush();
         out.close();
     }
 
-    private void writeMarcXml(OutputStream o,
-                              List<Map<?,?>> items,
-                              int from,
-                              int to,
-                              int totalItems,
-                              boolean includeHoldings,
-                              boolean formatLevelFull) throws XMLStreamException {
+    // old API : <xsearch xmlns:marc="..." to="" from="" records=""><collection xmlns="..."><record>
+    // i.e. no attributes on record, unlike the XL marc converter
+    private static void writeMarcXml(ContentHandler handler,
+                                     List<Future<MarcRecord>> records,
+                                     int from,
+                                     int to,
+                                     int totalItems) throws SAXException {
+        handler.startDocument();
+
+        AttributesImpl attributes = new AttributesImpl();
+        attributes.addAttribute("", "to", "to", "CDATA", "" + to);
+        attributes.addAttribute("", "from", "from", "CDATA", "" + from);
+        attributes.addAttribute("", "records", "records", "CDATA", "" + totalItems);
+        handler.startPrefixMapping("marc", MarcSaxWriter.MARC_NS);
+        handler.startElement("", "xsearch", "xsearch", attributes);
+
+        handler.startPrefixMapping("", MarcSaxWriter.MARC_NS);
+        handler.startElement(MarcSaxWriter.MARC_NS, "collection", "collection", new AttributesImpl());
 
-        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(o);
-
-        writer.writeStartDocument("UTF-8", "1.0");
-
-        writer.writeStartElement("xsearch");
-        writer.writeAttribute("xmlns:marc", "http://www.loc.gov/MARC21/slim");
-        writer.writeAttribute("to", "" + to);
-        writer.writeAttribute("from", "" + from);
-        writer.writeAttribute("records", "" + totalItems);
+        // skip "category" element
 
-        writer.writeStartElement("collection");
-        writer.writeAttribute("xmlns", "http://www.loc.gov/MARC21/slim");
+        for (Future<MarcRecord> marcRecord : records) {
+            MarcSaxWriter.writeRecord(await(marcRecord), handler);
+        }
 
-        // skip "category" element
+        handler.endElement(MarcSaxWriter.MARC_NS, "collection", "collection");
+        handler.endPrefixMapping("");
 
-        items.parallelStream()
-                .map(i -> {
-                    String systemID = whelk.getStorage().getSystemIdByIri( (String) i.get("@id"));
-                    if (systemID == null)
-                        return null;
-                    Document embellished = whelk.loadEmbellished(systemID);
-                    var bibXml = (String) converter.convert(embellished.data, embellished.getShortId())
-                            .get(JsonLd.NON_JSON_CONTENT_KEY);
-
-                    bibXml = expandRecord(bibXml, embellished, includeHoldings, formatLevelFull);
-
-                    return bibXml;
-                }).forEachOrdered( convertedText -> {
-                    if (convertedText != null) {
-                        try {
-                            copyRecord(xmlInputFactory.createXMLStreamReader(new StringReader(convertedText)), writer);
-                        } catch (XMLStreamException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                });
+        handler.endElement("", "xsearch", "xsearch");
+        handler.endPrefixMapping("marc");
+        handler.endDocument();
+    }
 
-        writer.writeEndElement(); // collection
+    /**
+     * Resolve all hits and their holdings with a few bulk queries, and convert them on the conversion pool.
+     * Hits that don't exist (anymore) are left out.
+     */
+    private List<Future<MarcRecord>> convertRecords(List<Map<?,?>> items, boolean includeHoldings, boolean formatLevelFull) {
+        List<String> iris = items.stream().map(i -> (String) i.get("@id")).toList();
+        Map<String, String> systemIds = whelk.getStorage().getSystemIdsByIris(iris);
+        Map<String, Document> bibs = whelk.bulkLoadEmbellished(systemIds.values());
+
+        Map<String, String> bibIdByThingIri = new HashMap<>();
+        for (Document bib : bibs.values()) {
+            for (String thingIri : bib.getThingIdentifiers()) {
+                bibIdByThingIri.put(thingIri, bib.getShortId());
+            }
+        }
+        Map<String, List<String>> holdingIdsByThingIri = whelk.getStorage().bulkGetAttachedHoldings(bibIdByThingIri.keySet());
+        Map<String, Document> holdingsById = whelk.bulkLoadEmbellished(
+                holdingIdsByThingIri.values().stream().flatMap(List::stream).toList());
+        Map<String, List<Document>> holdingsByBibId = new HashMap<>();
+        holdingIdsByThingIri.forEach((thingIri, holdingIds) -> {
+            for (String holdingId : holdingIds) {
+                Document holding = holdingsById.get(holdingId);
+                if (holding != null) {
+                    holdingsByBibId.computeIfAbsent(bibIdByThingIri.get(thingIri), k -> new ArrayList<>()).add(holding);
+                }
+            }
+        });
 
-        writer.writeEndElement(); // xsearch
-        writer.writeEndDocument();
+        List<Future<MarcRecord>> converted = new ArrayList<>();
+        for (String iri : iris) {
+            String systemId = systemIds.get(iri);
+            Document bib = systemId != null ? bibs.get(systemId) : null;
+            if (bib == null) {
+                continue;
+            }
+            List<Document> holdings = holdingsByBibId.getOrDefault(systemId, Collections.emptyList());
+            converted.add(conversionPool.submit(() -> {
+                var bibXml = (String) converter.convert(bib.data, bib.getShortId())
+                        .get(JsonLd.NON_JSON_CONTENT_KEY);
+                return expandRecord(bibXml, holdings, includeHoldings, formatLevelFull);
+            }));
+        }
+        return converted;
+    }
 
-        writer.close();
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException r ? r : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
     }
 
     private void sendErrorXml(HttpServletResponse res, String errorMsg) throws IOException {
@@ -365,29 +398,6 @@ public class XSearchServlet extends WhelkHttpServlet {
         }
     }
 
-    // copy without record tag attributes
-    // old API           : <record>
-    // XL marc converter : <record xmlns="http://www.loc.gov/MARC21/slim" type="Bibliographic">
-    private static void copyRecord(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
-        while (reader.hasNext()) {
-            switch (reader.next()) {
-                case START_ELEMENT -> {
-                    writer.writeStartElement(reader.getLocalName());
-                    if (!reader.getLocalName().equals("record")) {
-                        for (int i = 0; i < reader.getAttributeCount(); i++) {
-                            String name = reader.getAttributeLocalName(i);
-                            String value = reader.getAttributeValue(i);
-                            writer.writeAttribute(name, value);
-                        }
-                    }
-                }
-
-                case END_ELEMENT -> writer.writeEndElement();
-                case CHARACTERS -> writer.writeCharacters(reader.getText());
-            }
-        }
-    }
-
     private void sendTransformedMarc(HttpServletResponse res,
                              Xslt xslt,
                              List<Map<?,?>> items,
@@ -395,31 +405,19 @@ public class XSearchServlet extends WhelkHttpServlet {
                              int to,
                              int totalItems,
                              boolean includeHoldings,
-                             boolean formatLevelFull) throws IOException, XMLStreamException, TransformerException {
+                             boolean formatLevelFull) throws IOException, TransformerException {
 
         res.setCharacterEncoding("UTF-8");
         res.setContentType(xslt.contentType);
 
-        ByteArrayOutputStream o = new ByteArrayOutputStream();
-        writeMarcXml(o, items, from, to, totalItems, includeHoldings, formatLevelFull);
-        ByteArrayInputStream i = new ByteArrayInputStream(o.toByteArray());
-
-        Transformer transformer = xslt.templates.newTransformer();
-
+        List<Future<MarcRecord>> records = convertRecords(items, includeHoldings, formatLevelFull);
         OutputStream out = res.getOutputStream();
-        transformer.transform(new StreamSource(i), new StreamResult(res.getOutputStream()));
+        xslt.transform.transform(handler -> writeMarcXml(handler, records, from, to, totalItems), new StreamResult(out));
         out.flush();
         out.close();
     }
 
-    private Xslt loadXslt(String name, String contentType) throws IOException, TransformerConfigurationException {
-        var url = Thread.currentThread().getContextClassLoader().getResource(name);
-        assert url != null;
-        var xsltSource = new StreamSource(url.openStream(), url.toExternalForm());
-        return new Xslt(transformerFactory.newTemplates(xsltSource), contentType);
-    }
-
-    private String expandRecord(String bibXml, Document bib, boolean includeHoldings, boolean formatLevelFull) {
+    private MarcRecord expandRecord(String bibXml, List<Document> holdings, boolean includeHoldings, boolean formatLevelFull) {
         try {
             MarcRecord bibRecord = MarcXmlRecordReader.fromXml(bibXml);
 
@@ -433,7 +431,7 @@ public class XSearchServlet extends WhelkHttpServlet {
                 bibRecord.addField(bibRecord.createControlfield("003", "SE-LIBR"), MarcFieldComparator.strictSorted);
             }
 
-            for (Document holding : whelk.getAttachedHoldings(bib.getThingIdentifiers())) {
+            for (Document holding : holdings) {
                 var holdXml = (String) converter.convert(holding.data, holding.getShortId())
                         .get(JsonLd.NON_JSON_CONTENT_KEY);
                 MarcRecord holdRecord = MarcXmlRecordReader.fromXml(holdXml);
@@ -450,11 +448,7 @@ public class XSearchServlet extends WhelkHttpServlet {
                 addSabTitles(bibRecord);
             }
 
-            ByteArrayOutputStream o = new ByteArrayOutputStream();
-            var w = new MarcXmlRecordWriter(o, false);
-            w.writeRecord(bibRecord);
-            w.close();
-            return o.toString(StandardCharsets.UTF_8);
+            return bibRecord;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
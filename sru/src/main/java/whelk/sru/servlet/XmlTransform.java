@@ -0,0 +1,185 @@
+package whelk.sru.servlet;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An XSLT stylesheet compiled once per JVM, applied to XML produced as SAX events.
+ *
+ * Templates are thread safe but creating a Transformer from them is not free, and a Transformer can't be
+ * shared between threads. Each thread keeps its own Transformer per stylesheet and resets it between uses.
+ */
+final class XmlTransform {
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    private static final Map<String, XmlTransform> loaded = new ConcurrentHashMap<>();
+
+    /**
+     * Produces a complete XML document, from startDocument to endDocument.
+     */
+    @FunctionalInterface
+    interface Producer {
+        void write(ContentHandler handler) throws SAXException;
+    }
+
+    private final Templates templates;
+    private final ThreadLocal<Transformer> transformer;
+
+    private XmlTransform(Templates templates) {
+        this.templates = templates;
+        this.transformer = ThreadLocal.withInitial(this::newTransformer);
+    }
+
+    /**
+     * @param name stylesheet resource on the classpath
+     */
+    static XmlTransform load(String name) {
+        return loaded.computeIfAbsent(name, XmlTransform::compile);
+    }
+
+    private static XmlTransform compile(String name) {
+        URL url = Thread.currentThread().getContextClassLoader().getResource(name);
+        if (url == null) {
+            throw new IllegalStateException("Stylesheet not found: " + name);
+        }
+        try (InputStream stream = url.openStream()) {
+            return new XmlTransform(transformerFactory.newTemplates(new StreamSource(stream, url.toExternalForm())));
+        } catch (IOException | TransformerConfigurationException e) {
+            throw new IllegalStateException("Could not compile " + name, e);
+        }
+    }
+
+    void transform(Producer producer, Result result) throws TransformerException {
+        Transformer t = transformer.get();
+        try {
+            t.transform(new SAXSource(new ProducerReader(producer), new InputSource()), result);
+            t.reset();
+        } catch (TransformerException | RuntimeException e) {
+            // Don't reuse a transformer left in an unknown state
+            transformer.remove();
+            throw e;
+        }
+    }
+
+    private Transformer newTransformer() {
+        try {
+            return templates.newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Lets a Producer act as the parser of a SAXSource.
+     */
+    private static class ProducerReader implements XMLReader {
+        private static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+        private static final String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+        private final Producer producer;
+        private ContentHandler contentHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+
+        ProducerReader(Producer producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException {
+            producer.write(contentHandler);
+        }
+
+        @Override
+        public void parse(String systemId) throws SAXException {
+            producer.write(contentHandler);
+        }
+
+        // The events are always namespace aware and never contain xmlns attributes
+        @Override
+        public boolean getFeature(String name) throws SAXNotRecognizedException {
+            return switch (name) {
+                case NAMESPACES -> true;
+                case NAMESPACE_PREFIXES -> false;
+                default -> throw new SAXNotRecognizedException(name);
+            };
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+            if (getFeature(name) != value) {
+                throw new SAXNotRecognizedException(name + " = " + value);
+            }
+        }
+
+        // No lexical events (comments, CDATA) are produced, handlers for them are accepted and never called
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public void setProperty(String name, Object value) {
+        }
+
+        @Override
+        public void setEntityResolver(EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package whelk.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compares decoding and encoding of a set of records with DocumentCodec and with
+ * Jackson.mapper on JSON text. The latter is what loading from lddb costs; DocumentCodec
+ * only replaces it for data read from the caches and lddb__embellished.
+ * <p>
+ * Every benchmark method processes all records, the score is time per full set.
+ * The encoded sizes of the set are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentCodecBenchmark {
+    @Param({"src/test/resources/describedflatfiles"})
+    public String records;
+
+    private List<String> jsonText;
+    private List<Map> data;
+    private List<byte[]> jsonBytes;
+    private List<byte[]> smileBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        jsonText = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Path.of(records))) {
+            for (Path file : files.sorted().toList()) {
+                jsonText.add(Files.readString(file, StandardCharsets.UTF_8));
+            }
+        }
+        if (jsonText.isEmpty()) {
+            throw new IllegalStateException("No records in " + records);
+        }
+
+        data = new ArrayList<>();
+        jsonBytes = new ArrayList<>();
+        smileBytes = new ArrayList<>();
+        for (String json : jsonText) {
+            Map map = Jackson.mapper.readValue(json, Map.class);
+            data.add(map);
+            jsonBytes.add(DocumentCodec.JSON.encode(map));
+            smileBytes.add(DocumentCodec.SMILE.encode(map));
+        }
+
+        System.out.printf("%n%d records, JSON: %d bytes, SMILE: %d bytes%n", jsonText.size(),
+                jsonBytes.stream().mapToLong(b -> b.length).sum(),
+                smileBytes.stream().mapToLong(b -> b.length).sum());
+    }
+
+    @Benchmark
+    public void decodeJsonText(Blackhole blackhole) throws IOException {
+        for (String json : jsonText) {
+            blackhole.consume(Jackson.mapper.readValue(json, Map.class));
+        }
+    }
+
+    @Benchmark
+    public void decodeJson(Blackhole blackhole) {
+        for (byte[] bytes : jsonBytes) {
+            blackhole.consume(DocumentCodec.JSON.decode(bytes));
+        }
+    }
+
+    @Benchmark
+    public void decodeSmile(Blackhole blackhole) {
+        for (byte[] bytes : smileBytes) {
+            blackhole.consume(DocumentCodec.SMILE.decode(bytes));
+        }
+    }
+
+    @Benchmark
+    public void encodeJson(Blackhole blackhole) {
+        for (Map map : data) {
+            blackhole.consume(DocumentCodec.JSON.encode(map));
+        }
+    }
+
+    @Benchmark
+    public void encodeSmile(Blackhole blackhole) {
+        for (Map map : data) {
+            blackhole.consume(DocumentCodec.SMILE.encode(map));
+        }
+    }
+}
@@ -7,6 +7,8 @@ import se.kb.libris.Normalizers
 import whelk.component.CachingPostgreSQLComponent
 import whelk.component.DocumentNormalizer
 import whelk.component.ElasticSearch
+import whelk.component.FanOutScheduler
+import whelk.component.IndexUpdater
 import whelk.component.PostgreSQLComponent
 import whelk.component.PostgreSQLComponent.UpdateAgent
 import whelk.component.SparqlQueryClient
@@ -30,6 +32,7 @@ import whelk.util.Unicode
 
 import java.time.Instant
 import java.time.ZoneId
+import java.util.function.Function
 
 import static whelk.FeatureFlags.Flag.EXPERIMENTAL_CATEGORY_COLLECTION
 import static whelk.FeatureFlags.Flag.INDEX_BLANK_WORKS
@@ -40,9 +43,10 @@ import static whelk.FeatureFlags.Flag.INDEX_BLANK_WORKS
 @Log
 @CompileStatic
 class Whelk {
-    ThreadGroup indexers = new ThreadGroup("dep-reindex")
     PostgreSQLComponent storage
     public ElasticSearch elastic
+    IndexUpdater indexUpdater
+    FanOutScheduler fanOutScheduler
     SparqlUpdater sparqlUpdater
     SparqlQueryClient sparqlQueryClient
 
@@ -162,6 +166,9 @@ class Whelk {
         if (this.esMode == EsMode.ELASTIC_ENABLED) {
             this.elastic = new ElasticSearch(configuration, jsonld)
             elasticFind = new ElasticFind(new ESQuery(this))
+            indexUpdater = IndexUpdater.build(this, configuration)
+            fanOutScheduler = FanOutScheduler.build(this, indexUpdater, configuration)
+            storage.indexQueueEnabled = !skipIndex
         }
 
         initDocumentNormalizers()
@@ -289,47 +296,61 @@ class Whelk {
     }
 
     Map<String, Document> bulkLoad(Collection<String> ids, Instant asOf = null) {
-        def idMap = [:]
-        def otherIris = []
-        List<String> systemIds = []
+        // system id -> requested id. When several requested ids are for the same document, only one of them is kept.
+        Map<String, String> idMap = resolveSystemIds(ids).collectEntries { id, systemId -> [(systemId): id] }
+
+        return bulkLoadBySystemIds(idMap.keySet(), asOf)
+                .collectEntries { id, doc -> [(idMap.getOrDefault(id, id)): doc] }
+    }
+
+    /**
+     * Map ids, record and thing IRIs to system ids. Libris IRIs and system ids are mapped without checking that
+     * the document exists. Other IRIs that aren't found are left out.
+     *
+     * @return requested id -> system id
+     */
+    Map<String, String> resolveSystemIds(Collection<String> ids) {
+        Map<String, String> systemIds = [:]
+        List<String> otherIris = []
         ids.each { id ->
             if (id.startsWith(Document.BASE_URI.toString()) && !Unicode.stripPrefix(id, Document.BASE_URI.toString()).contains("/")) {
-                def systemId = Document.BASE_URI.resolve(id).getPath().substring(1)
-                idMap[systemId] = id
-                systemIds << systemId
+                systemIds[id] = Document.BASE_URI.resolve(id).getPath().substring(1)
             } else if (JsonLd.looksLikeIri(id)) {
                 otherIris << id
             } else {
-                systemIds << id
+                systemIds[id] = id
             }
         }
         if (otherIris) {
-            Map<String, String> idToIri = storage.getSystemIdsByIris(otherIris)
-                    .collectEntries { k, v -> [(v): k] }
-
-            systemIds.addAll(idToIri.keySet())
-            idMap.putAll(idToIri)
+            systemIds.putAll(storage.getSystemIdsByIris(otherIris))
         }
+        return systemIds
+    }
 
+    /**
+     * @return system id -> document, for documents that exist and aren't deleted
+     */
+    Map<String, Document> bulkLoadBySystemIds(Collection<String> systemIds, Instant asOf = null) {
         Map<String, Document> loaded = (asOf == null && storage instanceof CachingPostgreSQLComponent)
                 ? ((CachingPostgreSQLComponent) storage).cachedBulkLoad(systemIds)
                 : storage.bulkLoad(systemIds, asOf)
 
-        return loaded
-                .findAll { id, doc -> !doc.deleted }
-                .collectEntries { id, doc -> [(idMap.getOrDefault(id, id)): doc] }
+        return loaded.findAll { id, doc -> !doc.deleted }
     }
 
     Iterable<Document> loadAllByType(String type) {
         return storage.loadAllByType(type)
     }
 
+    void setSkipIndex(boolean skipIndex) {
+        this.skipIndex = skipIndex
+        storage.indexQueueEnabled = indexUpdater != null && !skipIndex
+    }
+
     private void reindexUpdated(Document updated, Document preUpdateDoc) {
-        indexAsyncOrSync {
-            elastic.index(updated, this)
+        indexAsyncOrSync({ indexDocAndVirtual(updated) }) {
             if (features.isEnabled(INDEX_BLANK_WORKS)) {
                 (preUpdateDoc.getVirtualRecordIds() - updated.getVirtualRecordIds()).each { elastic.remove(it) }
-                updated.getVirtualRecordIds().each {elastic.index(updated.getVirtualRecord(it), this) }
             }
             if (!skipIndexDependers) {
                 if (hasChangedMainEntityId(updated, preUpdateDoc)) {
@@ -341,7 +362,11 @@ class Whelk {
         }
     }
 
-    private void indexAsyncOrSync(Runnable runnable) {
+    /**
+     * @param index index the stored document itself
+     * @param propagate update other documents affected by the change
+     */
+    private void indexAsyncOrSync(Runnable index, Runnable propagate) {
         if (skipIndex) {
             return
         }
@@ -351,56 +376,64 @@ class Whelk {
             return
         }
 
-        Runnable reindex = {
-            try {
-                runnable.run()
-            }
-            catch (Exception e) {
-                log.error("Error reindexing: $e", e)
-            }
-        }
-
         if (isBatchJobThread()) {
             // Update them synchronously
-            reindex.run()
+            logIndexErrors(index)
+            logIndexErrors(propagate)
         } else {
-            // else use a fire-and-forget thread
-            new Thread(indexers, reindex).start()
+            // The document was put in the index queue in the same transaction as it was stored
+            indexUpdater.pollSoon()
+            indexUpdater.propagate { logIndexErrors(propagate) }
+        }
+    }
+
+    private static void logIndexErrors(Runnable runnable) {
+        try {
+            runnable.run()
+        }
+        catch (Exception e) {
+            log.error("Error reindexing: $e", e)
         }
     }
 
     private void reindexAllLinks(String id) {
         SortedSet<String> links = storage.getDependencies(id)
         links.addAll(storage.getDependers(id))
-        bulkIndex(links)
+        reindexAffectedIds(id, links, FanOutScheduler.Priority.PROPAGATED)
     }
 
     private void reindexAffected(Document document, Set<Link> preUpdateLinks, Set<Link> postUpdateLinks) {
         Set<Link> addedLinks = (postUpdateLinks - preUpdateLinks)
         Set<Link> removedLinks = (preUpdateLinks - postUpdateLinks)
 
+        // Look up all linked documents at once
+        Map<String, String> idsByIri = [:]
+        Map<String, Document> docsById = [:]
+        if (addedLinks || removedLinks) {
+            idsByIri = storage.getSystemIdsByIris((addedLinks + removedLinks).collect { it.iri })
+            docsById = storage.bulkLoad(idsByIri.values().toSet())
+        }
+
         removedLinks.each { link ->
-            String id = storage.getSystemIdByIri(link.iri)
-            if (id) {
-                Document doc = storage.load(id)
+            Document doc = docsById[idsByIri[link.iri]]
+            if (doc) {
                 elastic.decrementReverseLinks(doc, link.relation)
             }
         }
 
         addedLinks.each { link ->
-            String id = storage.getSystemIdByIri(link.iri)
-            if (id) {
-                Document doc = storage.load(id)
+            Document doc = docsById[idsByIri[link.iri]]
+            if (doc) {
                 def lenses = ['chips', 'cards', 'full']
                 def reverseRelations = lenses.collect { jsonld.getInverseProperties(doc.data, it) }.flatten()
                 if (reverseRelations.contains(link.relation)) {
                     // we added a link to a document that includes us in its @reverse relations, reindex it
-                    indexDocAndVirtual(doc)
+                    reindexAffectedIds(document.shortId, [doc.shortId], FanOutScheduler.Priority.DIRECT)
                     // that document may in turn have documents that include it, and by extension us in their
                     // @reverse relations. Reindex them. (For example item -> instance -> work)
                     // TODO this should be calculated in a more general fashion. We depend on the fact that indexed
                     // TODO docs are embellished one level (cards, chips) -> everything else must be integral relations
-                    reindexAffectedReverseIntegral(doc)
+                    reindexAffectedReverseIntegral(document.shortId, doc)
                 } else {
                     // just update link counter
                     elastic.incrementReverseLinks(doc, link.relation)
@@ -411,11 +444,14 @@ class Whelk {
         // FIXME don't hardcode Item...
         // TODO isCardChangedOrNonexistent is no longer sufficient to know if other records are affected
         if ("Item" == document.getThingType() || storage.isCardChangedOrNonexistent(document.getShortId())) {
-            bulkIndex(elastic.getAffectedIds(document.getThingIdentifiers() + document.getRecordIdentifiers()))
+            fresnelUtil.invalidateLensedCards(document.getThingIdentifiers())
+            reindexAffectedIds(document.shortId,
+                    elastic.getAffectedIds(document.getThingIdentifiers() + document.getRecordIdentifiers()),
+                    FanOutScheduler.Priority.PROPAGATED)
         }
     }
 
-    private void reindexAffectedReverseIntegral(Document reIndexedDoc) {
+    private void reindexAffectedReverseIntegral(String origin, Document reIndexedDoc) {
         JsonLd.getExternalReferences(reIndexedDoc.data).forEach { link ->
             String p = link.property()
             if (jsonld.isIntegral(jsonld.getInverseProperty(p))) {
@@ -426,12 +462,24 @@ class Whelk {
                         .collect { jsonld.getInverseProperties(doc.data, it) }
                         .flatten()
                 if (reverseRelations.contains(p)) {
-                    indexDocAndVirtual(doc)
+                    reindexAffectedIds(origin, [doc.shortId], FanOutScheduler.Priority.DIRECT)
                 }
             }
         }
     }
 
+    /**
+     * Reindex documents affected by a change to the document <origin>.
+     * Batch jobs do it synchronously, otherwise it is left to the fan-out scheduler.
+     */
+    private void reindexAffectedIds(String origin, Iterable<String> ids, FanOutScheduler.Priority priority) {
+        if (isBatchJobThread() || !fanOutScheduler) {
+            bulkIndex(ids)
+        } else {
+            fanOutScheduler.schedule(origin, ids, priority)
+        }
+    }
+
     private void bulkIndex(Iterable<String> ids) {
         Iterables.partition(ids, 100).each {
             elastic.bulkIndexWithRetry(it, this)
@@ -511,8 +559,7 @@ class Whelk {
 
         boolean success = storage.createDocument(document, changedIn, changedBy, collection, deleted, handleExceptions, skipSparql)
         if (success) {
-            indexAsyncOrSync {
-                indexDocAndVirtual(document)
+            indexAsyncOrSync({ indexDocAndVirtual(document) }) {
                 if (!skipIndexDependers) {
                     reindexAffected(document, new TreeSet<>(), document.getExternalRefs())
                 }
@@ -594,11 +641,12 @@ class Whelk {
                 assertNoDependers(doc)
             }
             storage.remove(id, changedIn, changedBy, skipSparql)
-            indexAsyncOrSync {
+            indexAsyncOrSync({
                 elastic.remove(id)
                 if (features.isEnabled(INDEX_BLANK_WORKS)) {
                     doc.getVirtualRecordIds().each { elastic.remove(it) }
                 }
+            }) {
                 if (!skipIndexDependers) {
                     reindexAffected(doc, doc.getExternalRefs(), Collections.emptySet())
                 }
@@ -628,6 +676,13 @@ class Whelk {
 
     void embellish(Document document, List<String> levels = null) {
         def docsByIris = { List<String> iris -> bulkLoad(iris).values().collect { it.data } }
+        embellish(document, levels, docsByIris)
+    }
+
+    /**
+     * @param docsByIris loads the data of the documents to embellish with, e.g. from documents prefetched for a batch
+     */
+    void embellish(Document document, List<String> levels, Function<Iterable<String>, Iterable<Map>> docsByIris) {
         Embellisher e = new Embellisher(jsonld, docsByIris, storage.&getCards, relations.&getByReverse)
 
         if (levels) {
@@ -747,6 +802,10 @@ class Whelk {
         return storage.loadEmbellished(systemId, this.&embellish)
     }
 
+    Map<String, Document> bulkLoadEmbellished(Collection<String> systemIds) {
+        return storage.bulkLoadEmbellished(systemIds, this.&embellish)
+    }
+
     List<Document> getAttachedHoldings(List<String> thingIdentifiers) {
         return storage.getAttachedHoldings(thingIdentifiers).collect(this.&loadEmbellished)
     }
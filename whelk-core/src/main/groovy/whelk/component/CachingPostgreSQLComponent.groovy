@@ -3,34 +3,55 @@ package whelk.component
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.CacheLoader
 import com.google.common.cache.LoadingCache
+import com.google.common.cache.RemovalListener
+import com.google.common.cache.RemovalNotification
+import com.google.common.cache.Weigher
 import groovy.util.logging.Log4j2 as Log
 import whelk.Document
+import whelk.util.Metrics
+import whelk.util.OffHeapStore
+import whelk.util.OffHeapStore.Slot
 
 import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
 
-import static whelk.util.Jackson.mapper
-
+/**
+ * Cards and documents are cached serialized (see DocumentCodec) in off-heap stores, bounded by size in bytes.
+ * The values are deserialized on every get, so callers never share instances.
+ */
 @Log
 class CachingPostgreSQLComponent extends PostgreSQLComponent {
-    private static final int CARD_CACHE_MAX_SIZE = 250_000
-    private static final int DOC_CACHE_MAX_SIZE = 250_000
-    private static final int IRI_CACHE_MAX_SIZE = 500_000
-    private LoadingCache<String, Map> cardCache
-    private LoadingCache<String, byte[]> docCache
+    public static final String PROPERTY_CARD_CACHE_MAX_SIZE = "cardCacheMaxSizeBytes"
+    public static final String PROPERTY_DOC_CACHE_MAX_SIZE = "docCacheMaxSizeBytes"
+    public static final String PROPERTY_IRI_CACHE_MAX_SIZE = "iriCacheMaxSizeBytes"
+
+    private static final long DEFAULT_CARD_CACHE_MAX_SIZE = 512L * 1024L * 1024L
+    private static final long DEFAULT_DOC_CACHE_MAX_SIZE = 1024L * 1024L * 1024L
+    private static final long DEFAULT_IRI_CACHE_MAX_SIZE = 128L * 1024L * 1024L
+
+    // Rough size of key, cache entry and slot on the heap
+    private static final int ENTRY_OVERHEAD_BYTES = 128
+
+    private OffHeapStore cardStore
+    private OffHeapStore docStore
+    private LoadingCache<String, Slot> cardCache
+    private LoadingCache<String, Slot> docCache
     private LoadingCache<String, String> iriToSystemIdCache
 
     CachingPostgreSQLComponent(Properties properties) {
         super(properties)
-        initCaches()
+        initCaches(
+                sizeProperty(properties, PROPERTY_CARD_CACHE_MAX_SIZE, DEFAULT_CARD_CACHE_MAX_SIZE),
+                sizeProperty(properties, PROPERTY_DOC_CACHE_MAX_SIZE, DEFAULT_DOC_CACHE_MAX_SIZE),
+                sizeProperty(properties, PROPERTY_IRI_CACHE_MAX_SIZE, DEFAULT_IRI_CACHE_MAX_SIZE))
     }
 
     @Override
     void logStats() {
         super.logStats()
-        log.info("Card cache: ${cardCache.stats()}")
-        log.info("Doc cache: ${docCache.stats()}")
+        log.info("Card cache: ${cardCache.stats()}, off-heap bytes used: ${cardStore.bytesUsed()}/${cardStore.capacity()}, on heap: ${cardStore.bytesOnHeap()}, slabs reclaimed: ${cardStore.slabsReclaimed()}")
+        log.info("Doc cache: ${docCache.stats()}, off-heap bytes used: ${docStore.bytesUsed()}/${docStore.capacity()}, on heap: ${docStore.bytesOnHeap()}, slabs reclaimed: ${docStore.slabsReclaimed()}")
         log.info("IRI->ID cache: ${iriToSystemIdCache.stats()}")
     }
 
@@ -42,20 +63,26 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
 
     @Override
     <T extends String> Iterable<Map> getCards(Iterable<T> iris) {
-        cardCache.getAll(iris).values().findAll{ !it.isEmpty() }
+        List<Map> cards = []
+        getAll(cardCache, cardStore, iris).each { iri, bytes ->
+            if (bytes.length > 0) {
+                cards.add(documentCodec.decode(bytes))
+            }
+        }
+        return cards
     }
 
     @Override
     Map getCard(String iri) {
-        return cardCache.get(iri)
+        byte[] bytes = get(cardCache, cardStore, iri)
+        return bytes.length > 0 ? documentCodec.decode(bytes) : null
     }
 
     Map<String, Document> cachedBulkLoad(Iterable<String> systemIds) {
-        Map<String, byte[]> cached = docCache.getAll(systemIds)
         Map<String, Document> result = new TreeMap<>()
-        cached.each { id, bytes ->
+        getAll(docCache, docStore, systemIds).each { id, bytes ->
             if (bytes.length > 0) {
-                result[id] = new Document(mapper.readValue(bytes, Map))
+                result[id] = new Document(documentCodec.decode(bytes))
             }
         }
         return result
@@ -65,8 +92,9 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
     protected boolean storeCard(CardEntry cardEntry, Connection connection) {
         boolean change = super.storeCard(cardEntry, connection)
         Document card = cardEntry.getCard()
+        byte[] bytes = documentCodec.encode(card.data)
         card.getThingIdentifiers().each { id ->
-            cardCache.put(id, card.data)
+            cardCache.put(id, cardStore.put(bytes))
         }
 
         return change
@@ -84,6 +112,71 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
         return super.getCard(iri)
     }
 
+    /**
+     * A slot can be freed by eviction between getting it from the cache and reading it, or be dropped by the
+     * store when its slab is reclaimed for another size class while still in the cache.
+     * In both cases the value is loaded again.
+     */
+    private static byte[] get(LoadingCache<String, Slot> cache, OffHeapStore store, String key) {
+        while (true) {
+            Slot slot = cache.get(key)
+            byte[] bytes = store.get(slot)
+            if (bytes != null) {
+                return bytes
+            }
+            cache.asMap().remove(key, slot)
+        }
+    }
+
+    private static Map<String, byte[]> getAll(LoadingCache<String, Slot> cache, OffHeapStore store, Iterable<String> keys) {
+        Map<String, byte[]> result = new LinkedHashMap<>()
+        cache.getAll(keys).each { key, slot ->
+            byte[] bytes = store.get(slot)
+            result[key] = bytes != null ? bytes : get(cache, store, key)
+        }
+        return result
+    }
+
+    private static long sizeProperty(Properties properties, String name, long defaultValue) {
+        long size = properties.getProperty(name) ? Long.parseLong(properties.getProperty(name)) : defaultValue
+        log.info("$name: $size")
+        return size
+    }
+
+    private static LoadingCache<String, Slot> offHeapCache(String name, OffHeapStore store, CacheLoader<String, byte[]> loader) {
+        LoadingCache<String, Slot> cache = CacheBuilder.newBuilder()
+                .maximumWeight(store.capacity())
+                .weigher(new Weigher<String, Slot>() {
+                    @Override
+                    int weigh(String key, Slot slot) {
+                        return store.chunkSize(slot.length())
+                    }
+                })
+                .removalListener(new RemovalListener<String, Slot>() {
+                    @Override
+                    void onRemoval(RemovalNotification<String, Slot> notification) {
+                        store.free(notification.getValue())
+                    }
+                })
+                .recordStats()
+                .build(new CacheLoader<String, Slot>() {
+                    @Override
+                    Slot load(String key) throws Exception {
+                        return store.put(loader.load(key))
+                    }
+
+                    @Override
+                    Map<String, Slot> loadAll(Iterable<? extends String> keys) throws Exception {
+                        Map<String, Slot> result = [:]
+                        loader.loadAll(keys).each { key, bytes -> result[key] = store.put(bytes) }
+                        return result
+                    }
+                })
+
+        Metrics.cacheMetrics.addCache(name, cache)
+        return cache
+    }
+
     private Map<String, String> loadIriMappingsFromDb(Iterable iris) {
         Map<String, String> ids = new HashMap<>()
         withDbConnection {
@@ -128,27 +221,33 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
         }
     }
 
-    void initCaches() {
-        cardCache = CacheBuilder.newBuilder()
-                .maximumSize(CARD_CACHE_MAX_SIZE)
-                .recordStats()
-                .build(new CacheLoader<String, Map>() {
-                    @Override
-                    Map load(String iri) throws Exception {
-                        return superGetCard(iri)
-                    }
+    void initCaches(long cardCacheMaxSize, long docCacheMaxSize, long iriCacheMaxSize) {
+        cardStore = new OffHeapStore('cardCache', cardCacheMaxSize)
+        cardCache = offHeapCache('cardCache', cardStore, new CacheLoader<String, byte[]>() {
+            @Override
+            byte[] load(String iri) throws Exception {
+                Map card = superGetCard(iri)
+                return card != null ? documentCodec.encode(card) : EMPTY_BYTES
+            }
 
+            @Override
+            Map<String, byte[]> loadAll(Iterable<? extends String> iris) throws Exception {
+                def irisToIds = getSystemIdsByIris(iris)
+                def cards = createAndAddMissingCards(bulkLoadCards(irisToIds.values()))
+                Map<String, byte[]> serialized = [:]
+                cards.each { id, card -> serialized[id] = documentCodec.encode(card) }
+                return iris.collectEntries { [it, serialized.get(irisToIds.get(it)) ?: EMPTY_BYTES] }
+            }
+        })
+
+        iriToSystemIdCache = CacheBuilder.newBuilder()
+                .maximumWeight(iriCacheMaxSize)
+                .weigher(new Weigher<String, String>() {
                     @Override
-                    Map<String, Map> loadAll(Iterable<? extends String> iris) throws Exception {
-                        def irisToIds = getSystemIdsByIris(iris)
-                        def cards = createAndAddMissingCards(bulkLoadCards(irisToIds.values()))
-                        cards.put('NON-EXISTING', Collections.emptyMap())
-                        return iris.collectEntries { [it, cards.get(irisToIds.get(it) ?: "NON-EXISTING")] }
+                    int weigh(String iri, String id) {
+                        return 2 * (iri.length() + id.length()) + ENTRY_OVERHEAD_BYTES
                     }
                 })
-
-        iriToSystemIdCache = CacheBuilder.newBuilder()
-                .maximumSize(IRI_CACHE_MAX_SIZE)
                 .recordStats()
                 .build(new CacheLoader<String, String>() {
                     @Override
@@ -167,35 +266,34 @@ class CachingPostgreSQLComponent extends PostgreSQLComponent {
                         return all
                     }
                 })
+        Metrics.cacheMetrics.addCache('iriToSystemIdCache', iriToSystemIdCache)
 
-        docCache = CacheBuilder.newBuilder()
-                .maximumSize(DOC_CACHE_MAX_SIZE)
-                .recordStats()
-                .build(new CacheLoader<String, byte[]>() {
-                    @Override
-                    byte[] load(String systemId) throws Exception {
-                        Map<String, Document> loaded = loadFromDb([systemId])
-                        Document doc = loaded[systemId]
-                        if (doc == null || doc.deleted) {
-                            return EMPTY_BYTES
-                        }
-                        return mapper.writeValueAsBytes(doc.data)
-                    }
+        docStore = new OffHeapStore('docCache', docCacheMaxSize)
+        docCache = offHeapCache('docCache', docStore, new CacheLoader<String, byte[]>() {
+            @Override
+            byte[] load(String systemId) throws Exception {
+                Map<String, Document> loaded = loadFromDb([systemId])
+                Document doc = loaded[systemId]
+                if (doc == null || doc.deleted) {
+                    return EMPTY_BYTES
+                }
+                return documentCodec.encode(doc.data)
+            }
 
-                    @Override
-                    Map<String, byte[]> loadAll(Iterable<? extends String> systemIds) throws Exception {
-                        Map<String, Document> loaded = loadFromDb(systemIds.collect())
-                        Map<String, byte[]> result = [:]
-                        for (String id : systemIds) {
-                            Document doc = loaded[id]
-                            if (doc == null || doc.deleted) {
-                                result[id] = EMPTY_BYTES
-                            } else {
-                                result[id] = mapper.writeValueAsBytes(doc.data)
-                            }
-                        }
-                        return result
+            @Override
+            Map<String, byte[]> loadAll(Iterable<? extends String> systemIds) throws Exception {
+                Map<String, Document> loaded = loadFromDb(systemIds.collect())
+                Map<String, byte[]> result = [:]
+                for (String id : systemIds) {
+                    Document doc = loaded[id]
+                    if (doc == null || doc.deleted) {
+                        result[id] = EMPTY_BYTES
+                    } else {
+                        result[id] = documentCodec.encode(doc.data)
                     }
-                })
+                }
+                return result
+            }
+        })
     }
 }
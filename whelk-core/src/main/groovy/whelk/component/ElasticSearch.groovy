@@ -83,6 +83,20 @@ class ElasticSearch {
     ] as Set
 
     static final String BULK_CONTENT_TYPE = "application/x-ndjson"
+
+    /**
+     * _bulk API lines for a document and its virtual records
+     */
+    static class BulkEntries {
+        final String lines
+        // number of index actions in lines, i.e. the number of documents in ES
+        final int actionCount
+
+        BulkEntries(String lines, int actionCount) {
+            this.lines = lines
+            this.actionCount = actionCount
+        }
+    }
     static final String SEARCH_TYPE = "dfs_query_then_fetch"
 
     public int maxResultWindow = 10000 // Elasticsearch default (fallback value)
@@ -101,6 +115,7 @@ class ElasticSearch {
     private static final String SUB_IX_SEPARATOR = '-'
 
     private final Queue<Runnable> indexingRetryQueue = new LinkedBlockingQueue<>()
+    private ReverseLinkCounter reverseLinkCounter
 
     private final JsonLd jsonLd
 
@@ -161,6 +176,14 @@ class ElasticSearch {
         
         initSettings()
 
+        reverseLinkCounter = new ReverseLinkCounter(bulkClient)
+        try {
+            reverseLinkCounter.putScript()
+        } catch (Exception e) {
+            log.warn("Could not store reverse link counter script: $e", e)
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread({ close() }, "${ElasticSearch.class.getSimpleName()}-shutdown"))
+
         // initSettings() waits for ES available. Do this after
         for (var type : elasticSubIndexTypes) {
             // is this a physical index with a numerical suffix? it is the case when indexing to a new index
@@ -349,76 +372,125 @@ class ElasticSearch {
         return mainIndex
     }
 
-    void bulkIndex(Collection<Document> docs, Whelk whelk) {
-        if (docs) {
-            String bulkString = docs.findResults{ doc ->
-                try {
-                    String shapedData = getShapeForIndex(doc, whelk)
-                    String action = createActionRow(doc)
-                    return "${action}\n${shapedData}\n"
-                } catch (Exception e) {
-                    if (doc.getShortId() == null) {
-                        log.error("Document has null shortId, something is wrong. Some details: " + doc.toVerboseString(), e);
-                    } else {
-                        log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
-                    }
-                    return null
-                }
-            }.join('')
-
-            if (whelk.features.isEnabled(INDEX_BLANK_WORKS)) {
-                String bulkString2 = docs
-                        .collect { doc -> doc.getVirtualRecordIds().collect {doc.getVirtualRecord(it) } }
-                        .flatten()
-                        .findResults{ Document doc ->
-                            try {
-                                String shapedData = getShapeForIndex(doc, whelk)
-                                String action = createActionRow(doc)
-                                return "${action}\n${shapedData}\n"
-                            } catch (Exception e) {
-                                if (doc.getShortId() == null) {
-                                    log.error("Document has null shortId, something is wrong. Some details: " + doc.toVerboseString(), e);
-                                } else {
-                                    log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
-                                }
-                                return null
-                            }
-                        }.join('')
-
-                bulkString += bulkString2
-            }
+    /**
+     * Index docs and delete removeIds from the index in a single _bulk request.
+     * Throws if any action failed due to an ES error, see bulkIndexShaped.
+     *
+     * @param removeIds system ids of deleted documents (and virtual records) to remove from all indexes
+     */
+    void bulkIndex(Collection<Document> docs, Whelk whelk, Collection<String> removeIds = []) {
+        if (docs || removeIds) {
+            List<BulkEntries> entries = docs
+                    ? createBulkEntries(docs as List<Document>, whelk).grep() as List<BulkEntries>
+                    : []
+            String bulkString = entries*.lines.join('') + removeIds.collect { createDeleteRows(it) }.join('')
 
             if (bulkString) {
-                Map responseMap = bulkClient.performRequest('POST', '/_bulk', bulkString, BULK_CONTENT_TYPE)
-                int numFailedDueToDocError = 0
-                int numFailedDueToESError = 0
-                if (responseMap.errors) {
-                    responseMap.items?.each { item ->
-                        if (item.index?.error) {
-                            log.error("Failed indexing document: ${item.index}")
-                            if (item.index.status >= 500) {
-                                numFailedDueToESError++
-                            } else {
-                                numFailedDueToDocError++
-                            }
-                        }
-                    }
+                int actionCount = (int) entries.sum(0) { BulkEntries e -> e.actionCount }
+                bulkIndexShaped(bulkString, actionCount + removeIds.size() * allIndexNames().size())
+            } else {
+                log.warn("Refused bulk indexing ${docs.count{it}} docs because body was empty")
+            }
+        }
+    }
+
+    /**
+     * Shape a document and its virtual records (if enabled) into _bulk API lines,
+     * i.e. one action row followed by the shaped document for each of them.
+     *
+     * @return the bulk lines, or null if the main document could not be shaped
+     */
+    BulkEntries createBulkEntries(Document doc, Whelk whelk) {
+        return createBulkEntries([doc], whelk).first()
+    }
+
+    /**
+     * Batch variant of createBulkEntries(Document, Whelk). Everything the shaping needs from storage is
+     * prefetched for the whole batch, see ShapingBatch.
+     *
+     * @return the bulk lines for each document, in the same order, or null for those that could not be shaped
+     */
+    List<BulkEntries> createBulkEntries(List<Document> docs, Whelk whelk) {
+        List<List<Document>> virtualRecords = docs.collect { doc ->
+            whelk.features.isEnabled(INDEX_BLANK_WORKS)
+                    ? doc.getVirtualRecordIds().collect { doc.getVirtualRecord(it) }
+                    : []
+        }
+
+        List<Document> allDocs = docs + (virtualRecords.flatten() as List<Document>)
+        List<String> systemIds = allDocs.findResults { it.getShortId() ? stripHash(it.getShortId()) : null }
+        ShapingBatch batch = new ShapingBatch(whelk, allDocs, systemIds)
+
+        List<BulkEntries> entries = []
+        docs.eachWithIndex { Document doc, int i ->
+            String entry = createBulkEntry(doc, whelk, batch)
+            if (entry == null) {
+                entries.add(null)
+                return
+            }
+
+            StringBuilder sb = new StringBuilder(entry)
+            int actionCount = 1
+            virtualRecords[i].each { Document virtualRecord ->
+                String virtualEntry = createBulkEntry(virtualRecord, whelk, batch)
+                if (virtualEntry != null) {
+                    sb.append(virtualEntry)
+                    actionCount++
                 }
-                int docsCount = docs.count{it}
-                int numFailed = numFailedDueToDocError + numFailedDueToESError
-                if (numFailed) {
-                    log.warn("Tried bulk indexing ${docsCount} docs: ${docsCount - numFailed} succeeded, ${numFailed} failed " +
-                            "(${numFailedDueToDocError} due to document error, ${numFailedDueToESError} due to ES error). Took ${responseMap.took} ms")
-                    if (numFailedDueToESError) {
-                        throw new UnexpectedHttpStatusException("Failed indexing documents due to ES error", 500)
+            }
+            entries.add(new BulkEntries(sb.toString(), actionCount))
+        }
+        return entries
+    }
+
+    private String createBulkEntry(Document doc, Whelk whelk, ShapingBatch batch) {
+        try {
+            String shapedData = getShapeForIndex(doc, whelk, batch)
+            String action = createActionRow(doc)
+            return "${action}\n${shapedData}\n"
+        } catch (Exception e) {
+            if (doc.getShortId() == null) {
+                log.error("Document has null shortId, something is wrong. Some details: " + doc.toVerboseString(), e);
+            } else {
+                log.error("Failed to index ${doc.getShortId()} in elastic: $e", e)
+            }
+            return null
+        }
+    }
+
+    /**
+     * Send already shaped _bulk API lines (see createBulkEntries and createDeleteRows) to ES.
+     * Throws if any document failed due to an ES error, so that the caller can retry.
+     *
+     * @param docsCount the number of index and delete actions in bulkString
+     */
+    void bulkIndexShaped(String bulkString, int docsCount) {
+        Map responseMap = bulkClient.performRequest('POST', '/_bulk', bulkString, BULK_CONTENT_TYPE)
+        int numFailedDueToDocError = 0
+        int numFailedDueToESError = 0
+        if (responseMap.errors) {
+            responseMap.items?.each { item ->
+                Map result = item.index ?: item.delete
+                if (result?.error) {
+                    log.error("Failed indexing document: ${result}")
+                    if (result.status >= 500) {
+                        numFailedDueToESError++
+                    } else {
+                        numFailedDueToDocError++
                     }
-                } else {
-                    log.info("Bulk indexed ${docsCount} docs in ${responseMap.took} ms")
                 }
-            } else {
-                log.warn("Refused bulk indexing ${docs.count{it}} docs because body was empty")
             }
         }
+        int numFailed = numFailedDueToDocError + numFailedDueToESError
+        if (numFailed) {
+            log.warn("Tried bulk indexing ${docsCount} docs: ${docsCount - numFailed} succeeded, ${numFailed} failed " +
+                    "(${numFailedDueToDocError} due to document error, ${numFailedDueToESError} due to ES error). Took ${responseMap.took} ms")
+            if (numFailedDueToESError) {
+                throw new UnexpectedHttpStatusException("Failed indexing documents due to ES error", 500)
+            }
+        } else {
+            log.info("Bulk indexed ${docsCount} docs in ${responseMap.took} ms")
+        }
     }
 
     void bulkIndexWithRetry(Collection<String> ids, Whelk whelk) {
@@ -442,6 +514,16 @@ class ElasticSearch {
         return mapper.writeValueAsString(action)
     }
 
+    /**
+     * _bulk API delete actions for a document in every index, since its type and thereby its index may have changed.
+     * Deleting a document that isn't there is not an error.
+     */
+    String createDeleteRows(String identifier) {
+        return allIndexNames().collect { String index ->
+            mapper.writeValueAsString(["delete" : [ "_index" : index, "_id" : toElasticId(identifier) ]]) + '\n'
+        }.join('')
+    }
+
     void index(Document doc, Whelk whelk) {
         // The justification for this uncomfortable catch-all, is that an index-failure must raise an alert (log entry)
         // _internally_ but be otherwise invisible to clients (If postgres writing was ok, the save is considered ok).
@@ -464,51 +546,24 @@ class ElasticSearch {
         }
     }
 
+    /**
+     * Reverse link counters are updated in batches, shortly after this call.
+     */
     void incrementReverseLinks(Document doc, String relation) {
-        updateReverseLinkCounter(doc.shortId, relation, 1, getIndexForDoc(doc))
+        reverseLinkCounter.add(getIndexForDoc(doc), toElasticId(doc.shortId), relation, 1)
     }
 
     void decrementReverseLinks(Document doc, String relation) {
-        updateReverseLinkCounter(doc.shortId, relation, -1, getIndexForDoc(doc))
-    }
-
-    private void updateReverseLinkCounter(String shortId, String relation, int deltaCount, String index) {
-        // An indexed document will always have reverseLinks.totalItems set to an integer,
-        // and reverseLinks.totalItemsByRelation set to a map, but reverseLinks.totalItemsByRelation['foo']
-        // doesn't necessarily exist at this time; hence the null check before trying to update the link counter.
-        // The outer "if (ctx._source.reverseLinks.totalItemsByRelation) {}" can be removed once we've
-        // reindexed once; it's just there so as to not break things too much before that.
-        String body = """
-        {
-            "script" : {
-                "source": "ctx._source.reverseLinks.totalItems += $deltaCount; if (ctx._source.reverseLinks.totalItemsByRelation != null) { if (ctx._source.reverseLinks.totalItemsByRelation['$relation'] == null) { if ($deltaCount > 0) { ctx._source.reverseLinks.totalItemsByRelation['$relation'] = $deltaCount; } } else { ctx._source.reverseLinks.totalItemsByRelation['$relation'] += $deltaCount; } }",
-                "lang": "painless"
-            }
-        }
-        """.stripIndent()
+        reverseLinkCounter.add(getIndexForDoc(doc), toElasticId(doc.shortId), relation, -1)
+    }
 
-        try {
-            client.performRequest(
-                    'POST',
-                    "/${index}/_update/${toElasticId(shortId)}",
-                    body)
-        }
-        catch (Exception e) {
-            if (isBadRequest(e)) {
-                log.warn("Failed to update reverse link counter ($deltaCount) for $shortId: $e", e)
-            }
-            else if (isNotFound(e)) {
-                // OK. All dependers must be removed before the dependee in lddb. But the index update can happen
-                // in any order, so the dependee might already be gone when trying to decrement the counter.
-                log.info("Could not update reverse link counter ($deltaCount) for $shortId: $e, it does not exist", e)
-            }
-            else {
-                log.warn("Failed to update reverse link counter ($deltaCount) for $shortId: $e, placing in retry queue.", e)
-                indexingRetryQueue.add({ -> updateReverseLinkCounter(shortId, relation, deltaCount, index) })
-            }
-        }
+    /**
+     * Send pending reverse link counter updates. Called on JVM shutdown.
+     */
+    void close() {
+        reverseLinkCounter?.close()
     }
-    
+
     void remove(String identifier) {
         if (log.isDebugEnabled()) {
             log.debug("Deleting object with identifier ${toElasticId(identifier)}.")
@@ -542,9 +597,21 @@ class ElasticSearch {
 
     @CompileStatic
     static String getShapeForIndex(Document document, Whelk whelk) {
+        return getShapeForIndex(document, whelk, null)
+    }
+
+    /**
+     * @param batch what has been prefetched for the batch the document is part of, or null to load it here
+     */
+    @CompileStatic
+    static String getShapeForIndex(Document document, Whelk whelk, ShapingBatch batch) {
         Document copy = document.clone()
 
-        whelk.embellish(copy, ['full'])
+        if (batch != null) {
+            whelk.embellish(copy, ['full'], batch::loadDocs)
+        } else {
+            whelk.embellish(copy, ['full'])
+        }
 
         if (log.isDebugEnabled()) {
             log.debug("Framing ${document.getShortId()}")
@@ -590,7 +657,9 @@ class ElasticSearch {
         searchCard[LINKS] = links
         searchCard[OUTER_EMBELLISHMENTS] = copy.getEmbellishments() - links
 
-        Map<String, Long> incomingLinkCountByRelation = whelk.getStorage().getIncomingLinkCountByIdAndRelation(stripHash(copy.getShortId()))
+        Map<String, Long> incomingLinkCountByRelation = batch != null
+                ? batch.getIncomingLinkCountByIdAndRelation(stripHash(copy.getShortId()))
+                : whelk.getStorage().getIncomingLinkCountByIdAndRelation(stripHash(copy.getShortId()))
         var totalItems = incomingLinkCountByRelation.values().sum(0)
 
         // These indirect relations shouldn't count towards the total
@@ -0,0 +1,148 @@
+package whelk.component
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.RemovalListener
+import com.google.common.cache.RemovalNotification
+import com.google.common.cache.Weigher
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+import whelk.util.DocumentCodec
+import whelk.util.Metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-process tier in front of the lddb__embellished table.
+ *
+ * Holds serialized embellished documents, bounded by total size in bytes. Documents are kept as they were
+ * serialized, by whatever codec (see DocumentCodec), so that rows read from lddb__embellished can be cached
+ * without converting them. They are decoded with DocumentCodec.decodeAny().
+ * Entries are evicted when the document itself or any document it was embellished with changes,
+ * see evictDependers(). Changes made by other processes arrive as EMBELLISHED_CACHE_INVALIDATE notifications.
+ */
+@Log
+@CompileStatic
+class EmbellishedCache {
+    private static final int ENTRY_OVERHEAD_BYTES = 64
+
+    private final Cache<String, Entry> cache
+
+    // system id -> system ids of cached documents embellished with it
+    private final ConcurrentMap<String, Set<String>> dependers = new ConcurrentHashMap<>()
+
+    // Incremented on every eviction, used to detect evictions that happen while a document is being loaded
+    private final AtomicLong generation = new AtomicLong()
+
+    EmbellishedCache(long maxSizeBytes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    int weigh(String id, Entry entry) {
+                        return entry.weight()
+                    }
+                })
+                .removalListener(new RemovalListener<String, Entry>() {
+                    @Override
+                    void onRemoval(RemovalNotification<String, Entry> notification) {
+                        unregisterDependencies(notification.getKey(), notification.getValue())
+                    }
+                })
+                .recordStats()
+                .build()
+
+        Metrics.cacheMetrics.addCache('embellishedCache', cache)
+    }
+
+    Document get(String id) {
+        Entry entry = cache.getIfPresent(id)
+        return entry != null ? new Document(DocumentCodec.decodeAny(entry.data)) : null
+    }
+
+    /**
+     * To be called before loading a document that is to be put in the cache.
+     * @return the current generation, to be passed to put()
+     */
+    long generation() {
+        return generation.get()
+    }
+
+    /**
+     * @param id system id of the embellished document
+     * @param data the embellished document serialized with any DocumentCodec
+     * @param embellishmentIds system ids of the documents it was embellished with
+     * @param generation from generation() before the document was loaded.
+     *        If anything has been evicted since then, the document might be stale and is not cached.
+     */
+    void put(String id, byte[] data, Collection<String> embellishmentIds, long generation) {
+        Entry entry = new Entry(data, new HashSet<>(embellishmentIds))
+        for (String dependency : entry.embellishmentIds) {
+            dependers.computeIfAbsent(dependency, { k -> ConcurrentHashMap.<String>newKeySet() }).add(id)
+        }
+
+        if (this.generation.get() == generation) {
+            cache.put(id, entry)
+        } else {
+            unregisterDependencies(id, entry)
+        }
+    }
+
+    void evictDependers(String id) {
+        generation.incrementAndGet()
+        cache.invalidate(id)
+        Set<String> ids = dependers.remove(id)
+        if (ids) {
+            cache.invalidateAll(ids)
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet()
+        cache.invalidateAll()
+        dependers.clear()
+    }
+
+    void handleInvalidateNotification(List<String> payload) {
+        for (String id : payload) {
+            log.debug("Evicting {} and dependers from embellished cache", id)
+            evictDependers(id)
+        }
+    }
+
+    void logStats() {
+        log.info("Embellished cache: ${cache.stats()}, size: ${cache.size()}")
+    }
+
+    private void unregisterDependencies(String id, Entry entry) {
+        if (id == null || entry == null) {
+            return
+        }
+        Entry current = cache.getIfPresent(id)
+        for (String dependency : entry.embellishmentIds) {
+            if (current == null || !current.embellishmentIds.contains(dependency)) {
+                dependers.computeIfPresent(dependency, { String k, Set<String> ids ->
+                    ids.remove(id)
+                    return ids.isEmpty() ? null : ids
+                })
+            }
+        }
+    }
+
+    private static class Entry {
+        final byte[] data
+        final Set<String> embellishmentIds
+
+        Entry(byte[] data, Set<String> embellishmentIds) {
+            this.data = data
+            this.embellishmentIds = embellishmentIds
+        }
+
+        int weight() {
+            return data.length + ENTRY_OVERHEAD_BYTES * (1 + embellishmentIds.size())
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package whelk.component
+
+import com.google.common.util.concurrent.RateLimiter
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import whelk.Whelk
+
+import java.util.concurrent.ThreadFactory
+
+/**
+ * Reindexes documents affected by changes to other documents, e.g. documents embedding the card of a changed
+ * document.
+ *
+ * A change to a popular document can affect hundreds of thousands of others. Instead of reindexing them in the
+ * thread handling the change, they are queued here:
+ * - A document is only queued once, however many changes affect it before it is reindexed.
+ * - DIRECT documents (those that show the changed document in their own @reverse relations) are reindexed before
+ *   any PROPAGATED ones (those found by searching the index for links to the changed document).
+ * - PROPAGATED documents are reindexed at a limited rate, and wait while IndexUpdater is indexing stored documents,
+ *   so that they don't delay changes made by users.
+ *
+ * The backlog is kept per originating document, see getBacklog().
+ */
+@Log
+@CompileStatic
+class FanOutScheduler {
+    enum Priority { DIRECT, PROPAGATED }
+
+    private static final int DEFAULT_NUM_WORKERS = 2
+    private static final double DEFAULT_RATE = 500 // documents per second
+    private static final int BATCH_SIZE = 100
+    private static final long YIELD_SLEEP_MS = 50
+    private static final long MAX_YIELD_MS = 5000
+    private static final long REPORT_INTERVAL_MS = 60 * 1000
+    private static final int REPORT_MAX_ORIGINS = 10
+
+    private static final Gauge backlogGauge = Gauge.build()
+            .labelNames("priority")
+            .name("index_fanout_backlog")
+            .help("Number of affected documents waiting to be reindexed.")
+            .register()
+
+    private static final Gauge originsGauge = Gauge.build()
+            .name("index_fanout_origins")
+            .help("Number of changed documents with affected documents waiting to be reindexed.")
+            .register()
+
+    private static final Counter dedupCounter = Counter.build()
+            .name("index_fanout_deduplicated_total")
+            .help("Number of affected documents that were already waiting to be reindexed.")
+            .register()
+
+    private final Whelk whelk
+    private final IndexUpdater indexUpdater
+    private final RateLimiter rateLimiter
+
+    // id -> originating id, in the order they were queued
+    private final Map<Priority, LinkedHashMap<String, String>> pending = new EnumMap<>(Priority)
+    // originating id -> number of queued ids
+    private final Map<String, Integer> backlog = new HashMap<>()
+
+    static FanOutScheduler build(Whelk whelk, IndexUpdater indexUpdater, Properties configuration) {
+        int numWorkers = configuration.getProperty("indexFanOutNumWorkers")
+                ? Integer.parseInt(configuration.getProperty("indexFanOutNumWorkers"))
+                : DEFAULT_NUM_WORKERS
+        double rate = configuration.getProperty("indexFanOutRate")
+                ? Double.parseDouble(configuration.getProperty("indexFanOutRate"))
+                : DEFAULT_RATE
+
+        return new FanOutScheduler(whelk, indexUpdater, numWorkers, rate)
+    }
+
+    private FanOutScheduler(Whelk whelk, IndexUpdater indexUpdater, int numWorkers, double rate) {
+        this.whelk = whelk
+        this.indexUpdater = indexUpdater
+        this.rateLimiter = RateLimiter.create(rate)
+        Priority.values().each { pending.put(it, new LinkedHashMap<String, String>()) }
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("${FanOutScheduler.class.getSimpleName()}-%d")
+                .setDaemon(true)
+                .build()
+        numWorkers.times {
+            threadFactory.newThread({ work() }).start()
+        }
+
+        new Timer("${FanOutScheduler.class.getSimpleName()}-report", true)
+                .scheduleAtFixedRate({ report() }, REPORT_INTERVAL_MS, REPORT_INTERVAL_MS)
+    }
+
+    /**
+     * Queue documents for reindexing
+     *
+     * @param origin system id of the changed document
+     * @param ids system ids of the affected documents
+     */
+    void schedule(String origin, Iterable<String> ids, Priority priority) {
+        int added = 0
+        int duplicates = 0
+        synchronized (this) {
+            for (String id : ids) {
+                if (pending[Priority.DIRECT].containsKey(id)) {
+                    duplicates++
+                } else if (pending[Priority.PROPAGATED].containsKey(id)) {
+                    duplicates++
+                    if (priority == Priority.DIRECT) {
+                        // Move it ahead, but keep counting it for the change that first caused it
+                        pending[Priority.DIRECT].put(id, pending[Priority.PROPAGATED].remove(id))
+                    }
+                } else {
+                    pending[priority].put(id, origin)
+                    added++
+                }
+            }
+            if (added) {
+                backlog.merge(origin, added, Integer::sum)
+                notifyAll()
+            }
+            updateGauges()
+        }
+        dedupCounter.inc(duplicates)
+        if (added > BATCH_SIZE) {
+            log.info("Queued $added documents affected by $origin for reindexing ($duplicates already queued)")
+        }
+    }
+
+    /**
+     * @return the number of documents waiting to be reindexed, by the id of the changed document that caused it
+     */
+    synchronized Map<String, Integer> getBacklog() {
+        return new HashMap<>(backlog)
+    }
+
+    private void work() {
+        while (true) {
+            try {
+                Tuple2<Priority, List<String>> batch = take()
+                if (batch.v1 == Priority.PROPAGATED) {
+                    rateLimiter.acquire(batch.v2.size())
+                    yieldToIndexUpdater()
+                }
+                whelk.elastic.bulkIndexWithRetry(batch.v2, whelk)
+            }
+            catch (InterruptedException e) {
+                return
+            }
+            catch (Exception e) {
+                log.warn("Error reindexing affected documents: $e", e)
+            }
+        }
+    }
+
+    private synchronized Tuple2<Priority, List<String>> take() throws InterruptedException {
+        while (true) {
+            for (Priority priority : Priority.values()) {
+                LinkedHashMap<String, String> queue = pending[priority]
+                if (!queue.isEmpty()) {
+                    List<String> ids = new ArrayList<>(BATCH_SIZE)
+                    Iterator<Map.Entry<String, String>> it = queue.entrySet().iterator()
+                    while (it.hasNext() && ids.size() < BATCH_SIZE) {
+                        Map.Entry<String, String> entry = it.next()
+                        it.remove()
+                        ids.add(entry.key)
+                        backlog.computeIfPresent(entry.value, { String origin, Integer n -> n > 1 ? n - 1 : null })
+                    }
+                    updateGauges()
+                    return new Tuple2<Priority, List<String>>(priority, ids)
+                }
+            }
+            wait()
+        }
+    }
+
+    private void yieldToIndexUpdater() throws InterruptedException {
+        long waited = 0
+        while (indexUpdater.isIndexing() && waited < MAX_YIELD_MS) {
+            Thread.sleep(YIELD_SLEEP_MS)
+            waited += YIELD_SLEEP_MS
+        }
+    }
+
+    private void updateGauges() {
+        Priority.values().each { backlogGauge.labels(it.name().toLowerCase()).set(pending[it].size()) }
+        originsGauge.set(backlog.size())
+    }
+
+    private void report() {
+        Map<String, Integer> current = getBacklog()
+        if (current) {
+            List<Map.Entry<String, Integer>> largest = current.entrySet()
+                    .sort { -it.value }
+                    .take(REPORT_MAX_ORIGINS)
+            log.info("Reindex backlog by changed document (${current.size()} in total): " +
+                    largest.collect { "${it.key}: ${it.value}" }.join(', '))
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package whelk.component
+
+import com.google.common.util.concurrent.MoreExecutors
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import whelk.Document
+import whelk.Whelk
+
+import javax.sql.DataSource
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingDeque
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import static whelk.FeatureFlags.Flag.INDEX_BLANK_WORKS
+import static whelk.component.PostgreSQLComponent.QueueHandler.Result.FAIL_RETRY
+import static whelk.component.PostgreSQLComponent.QueueHandler.Result.HANDLED
+import static whelk.exception.UnexpectedHttpStatusException.isBadRequest
+
+/**
+ * Indexes documents from the index queue (lddb__index_q) in Elasticsearch.
+ *
+ * Documents are queued by PostgreSQLComponent in the same transaction as they are stored, so nothing is lost if
+ * the process stops before they have been indexed. Any process with Elasticsearch configured takes part in
+ * emptying the queue. Entries are taken when they are older than a short coalescing window, so a document saved
+ * several times in a row is only indexed once, and sent to Elasticsearch in _bulk requests.
+ *
+ * Updating other documents affected by a change (propagate) is done by a bounded number of threads here too.
+ */
+@Log
+@CompileStatic
+class IndexUpdater {
+    private static final long PERIODIC_CHECK_MS = 10 * 1000
+    private static final long STATUS_INTERVAL_MS = 15 * 1000
+    private static final int DEFAULT_NUM_WORKERS = 2
+    private static final int DEFAULT_BATCH_SIZE = 200
+    private static final long DEFAULT_COALESCE_MS = 500
+    private static final int PROPAGATE_QUEUE_SIZE = 1000
+
+    private static final Gauge queueDepth = Gauge.build()
+            .name("index_queue_depth")
+            .help("Number of entries in the index queue.")
+            .register()
+
+    private static final Gauge queueLag = Gauge.build()
+            .name("index_queue_lag_seconds")
+            .help("Age of the oldest entry in the index queue.")
+            .register()
+
+    private static final Counter indexedCounter = Counter.build()
+            .name("index_queue_indexed_total")
+            .help("Number of documents indexed from the index queue.")
+            .register()
+
+    private final Whelk whelk
+    private final int batchSize
+    private final long coalesceMillis
+    private final ExecutorService executorService
+    private final ThreadPoolExecutor propagateExecutor
+    private final Runnable task
+    private final Timer timer = new Timer("${IndexUpdater.class.getName()}-timer", true)
+    private final AtomicBoolean pollScheduled = new AtomicBoolean(false)
+    private final AtomicLong lastQueuedAt = new AtomicLong()
+    private final AtomicInteger indexing = new AtomicInteger()
+
+    static IndexUpdater build(Whelk whelk, Properties configuration) {
+        int numWorkers = configuration.getProperty("indexNumWorkers")
+                ? Integer.parseInt(configuration.getProperty("indexNumWorkers"))
+                : DEFAULT_NUM_WORKERS
+        int batchSize = configuration.getProperty("indexBatchSize")
+                ? Integer.parseInt(configuration.getProperty("indexBatchSize"))
+                : DEFAULT_BATCH_SIZE
+        long coalesceMillis = configuration.getProperty("indexCoalesceMs")
+                ? Long.parseLong(configuration.getProperty("indexCoalesceMs"))
+                : DEFAULT_COALESCE_MS
+
+        return new IndexUpdater(whelk, numWorkers, batchSize, coalesceMillis)
+    }
+
+    private IndexUpdater(Whelk whelk, int numWorkers, int batchSize, long coalesceMillis) {
+        this.whelk = whelk
+        this.batchSize = batchSize
+        this.coalesceMillis = coalesceMillis
+        this.executorService = buildExecutorService(numWorkers)
+        this.propagateExecutor = buildPropagateExecutor(numWorkers)
+
+        PostgreSQLComponent.BatchQueueHandler handler = { List<Document> docs ->
+            indexing.incrementAndGet()
+            try {
+                index(docs)
+                indexedCounter.inc(docs.size())
+                return HANDLED
+            }
+            catch (Exception e) {
+                if (isBadRequest(e)) {
+                    log.error("Failed to index ${docs*.getShortId()}, dropping them: $e", e)
+                    return HANDLED
+                }
+                log.info("Failed to index ${docs.size()} documents, will retry: $e")
+                return FAIL_RETRY
+            }
+            finally {
+                indexing.decrementAndGet()
+            }
+        }
+
+        DataSource connectionPool = whelk.storage.createAdditionalConnectionPool(this.getClass().getSimpleName(), numWorkers)
+        this.task = {
+            try {
+                // Run as long as there still might be docs in the queue and we haven't failed
+                if (whelk.storage.indexQueueTake(handler, batchSize, coalesceMillis, connectionPool)) {
+                    pollNow()
+                }
+            }
+            catch (Exception e) {
+                log.warn("Error executing task: $e", e)
+            }
+        }
+
+        timer.scheduleAtFixedRate({ pollNow() }, PERIODIC_CHECK_MS, PERIODIC_CHECK_MS)
+        timer.scheduleAtFixedRate({ updateStatus() }, STATUS_INTERVAL_MS, STATUS_INTERVAL_MS)
+    }
+
+    /**
+     * Poll the index queue when anything queued now is old enough to be taken
+     */
+    void pollSoon() {
+        lastQueuedAt.set(System.currentTimeMillis())
+        if (pollScheduled.compareAndSet(false, true)) {
+            schedulePoll(coalesceMillis)
+        }
+    }
+
+    private void schedulePoll(long delayMillis) {
+        timer.schedule({
+            pollNow()
+            // Poll again for anything queued while waiting, it wasn't old enough to be taken yet
+            long sinceLastQueued = System.currentTimeMillis() - lastQueuedAt.get()
+            if (sinceLastQueued < coalesceMillis) {
+                schedulePoll(coalesceMillis - sinceLastQueued)
+                return
+            }
+            pollScheduled.set(false)
+            // pollSoon() might have been called just before pollScheduled was cleared
+            sinceLastQueued = System.currentTimeMillis() - lastQueuedAt.get()
+            if (sinceLastQueued < coalesceMillis && pollScheduled.compareAndSet(false, true)) {
+                schedulePoll(coalesceMillis - sinceLastQueued)
+            }
+        }, delayMillis)
+    }
+
+    /**
+     * Force polling the index queue now
+     */
+    void pollNow() {
+        try {
+            executorService.submit(task)
+        }
+        catch (Exception e) {
+            // this should never happen...
+            log.warn("Error calling executorService.submit: $e", e)
+        }
+    }
+
+    /**
+     * @return true if documents from the index queue are being indexed right now
+     */
+    boolean isIndexing() {
+        return indexing.get() > 0
+    }
+
+    /**
+     * Run an update of the documents affected by a change. If too many are waiting, it is run by the caller.
+     */
+    void propagate(Runnable runnable) {
+        propagateExecutor.execute(runnable)
+    }
+
+    /**
+     * Deleted documents are removed in the same _bulk request, so that a failure to remove them is retried too
+     */
+    private void index(List<Document> docs) {
+        List<String> removeIds = []
+        for (Document doc : docs.findAll { it.deleted }) {
+            removeIds.add(doc.getShortId())
+            if (whelk.features.isEnabled(INDEX_BLANK_WORKS)) {
+                removeIds.addAll(doc.getVirtualRecordIds())
+            }
+        }
+        whelk.elastic.bulkIndex(docs.findAll { !it.deleted }, whelk, removeIds)
+    }
+
+    private void updateStatus() {
+        try {
+            Tuple2<Long, Instant> status = whelk.storage.getIndexQueueStatus()
+            queueDepth.set(status.v1)
+            queueLag.set(status.v2 ? Duration.between(status.v2, Instant.now()).toMillis() / 1000.0d : 0.0d)
+        }
+        catch (Exception e) {
+            log.warn("Could not get index queue status: $e")
+        }
+    }
+
+    private static ExecutorService buildExecutorService(final int poolSize) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("${IndexUpdater.class.getSimpleName()}-%d")
+                .build()
+
+        // A fixed-sized pool which allows queuing the same number of tasks as the pool size and drops additional tasks.
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<>(poolSize), threadFactory, new ThreadPoolExecutor.DiscardPolicy())
+        return MoreExecutors.getExitingExecutorService(executor, 5, TimeUnit.SECONDS)
+    }
+
+    private static ThreadPoolExecutor buildPropagateExecutor(final int poolSize) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("${IndexUpdater.class.getSimpleName()}-propagate-%d")
+                .setDaemon(true)
+                .build()
+
+        // Callers run the task themselves when the queue is full, which slows down whoever is causing the burst
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingDeque<>(PROPAGATE_QUEUE_SIZE), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy())
+    }
+}
@@ -0,0 +1,111 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import whelk.Document
+
+import java.time.Instant
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Iterates over documents in (modified, id) order, one page at a time. A query may be ordered by another
+ * timestamp than modified, e.g. GREATEST(modified, generationDate), see PostgreSQLComponent.loadAllKeyset().
+ *
+ * Every page is read with a separate query, in its own short transaction, continuing after the
+ * (modified, id) of the last row of the previous page. Unlike a single cursor this doesn't pin a
+ * connection or hold back vacuum for the duration of a long scan.
+ * The next page is loaded in the background while the current one is being consumed.
+ *
+ * There is no snapshot. A document changed during the scan normally gets a later modified and is
+ * returned when the scan gets there, possibly for a second time.
+ */
+@CompileStatic
+class KeysetDocumentIterator implements Iterator<Document> {
+    static final int DEFAULT_PAGE_SIZE = 200
+
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger()
+
+        @Override
+        Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "keyset-prefetch-${count.getAndIncrement()}")
+            t.setDaemon(true)
+            return t
+        }
+    })
+
+    interface PageLoader {
+        Page load(Instant afterModified, String afterId, int limit)
+    }
+
+    static class Page {
+        final List<Document> documents
+        // Exact key of the last row. Document modified timestamps are truncated to milliseconds.
+        final Instant lastModified
+        final String lastId
+
+        Page(List<Document> documents, Instant lastModified, String lastId) {
+            this.documents = documents
+            this.lastModified = lastModified
+            this.lastId = lastId
+        }
+    }
+
+    private final PageLoader loader
+    private final int pageSize
+
+    private Iterator<Document> current = Collections.emptyIterator()
+    private Future<Page> next
+    private boolean lastPage = false
+
+    KeysetDocumentIterator(PageLoader loader, Instant afterModified = Instant.EPOCH, String afterId = '',
+                           int pageSize = DEFAULT_PAGE_SIZE) {
+        this.loader = loader
+        this.pageSize = pageSize
+        this.next = prefetch(afterModified, afterId)
+    }
+
+    @Override
+    boolean hasNext() {
+        while (!current.hasNext()) {
+            if (lastPage) {
+                return false
+            }
+            Page page = await(next)
+            current = page.documents.iterator()
+            if (page.documents.size() < pageSize) {
+                lastPage = true
+                next = null
+            } else {
+                next = prefetch(page.lastModified, page.lastId)
+            }
+        }
+        return true
+    }
+
+    @Override
+    Document next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException()
+        }
+        return current.next()
+    }
+
+    private Future<Page> prefetch(Instant afterModified, String afterId) {
+        return prefetcher.submit({ -> loader.load(afterModified, afterId, pageSize) } as Callable<Page>)
+    }
+
+    private static Page await(Future<Page> future) {
+        try {
+            return future.get()
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause()
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause)
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+import whelk.Document
+
+import javax.sql.DataSource
+import java.time.Instant
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+
+/**
+ * A scan split into partitions that are read concurrently, each on its own connection
+ * from a connection pool created for the scan.
+ *
+ * Use parallelForEach() to process documents on the scanning threads, or iterate to get all documents
+ * merged into one stream. In both cases documents come in no particular order.
+ * The connection pool is closed when the scan is done. An iteration that isn't run to the end must be closed.
+ */
+@Log
+@CompileStatic
+class PartitionedScan implements Iterable<Document> {
+    private static final int MERGE_QUEUE_SIZE = 1000
+    private static final Object END = new Object()
+    private static final long CANCEL_TIMEOUT_SECONDS = 20
+    private static final long CLOSE_TIMEOUT_MS = 30_000
+
+    interface Partitioner {
+        List<Iterable<Document>> partitions(DataSource connectionPool)
+    }
+
+    private final PostgreSQLComponent storage
+    private final int numPartitions
+    private final Partitioner partitioner
+
+    PartitionedScan(PostgreSQLComponent storage, int numPartitions, Partitioner partitioner) {
+        this.storage = storage
+        this.numPartitions = numPartitions
+        this.partitioner = partitioner
+    }
+
+    /**
+     * Process all documents, concurrently. Blocks until all partitions are done.
+     * The consumer must be thread safe.
+     */
+    void parallelForEach(Consumer<Document> consumer) {
+        DataSource pool = storage.createAdditionalConnectionPool(PartitionedScan.class.getSimpleName(), numPartitions)
+        ExecutorService executor = null
+        try {
+            List<Iterable<Document>> partitions = partitioner.partitions(pool)
+            log.info("Scanning ${partitions.size()} partitions")
+            executor = Executors.newFixedThreadPool(partitions.size(), threadFactory())
+
+            List<Future<?>> futures = []
+            for (Iterable<Document> partition : partitions) {
+                futures.add(executor.submit({ ->
+                    for (Document doc : partition) {
+                        consumer.accept(doc)
+                    }
+                } as Runnable))
+            }
+            for (Future<?> future : futures) {
+                future.get()
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause()
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause)
+        } finally {
+            executor?.shutdownNow()
+            // Don't close connections still in use by partitions that are being cancelled
+            try {
+                if (executor != null && !executor.awaitTermination(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Partitions did not stop within ${CANCEL_TIMEOUT_SECONDS} seconds")
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt()
+            }
+            if (pool instanceof Closeable) {
+                ((Closeable) pool).close()
+            }
+        }
+    }
+
+    /**
+     * Get all documents merged into one stream, read by a producer thread. The iterator must be closed if it is
+     * not run to the end, to stop the producer and close its connection pool.
+     */
+    @Override
+    ScanIterator iterator() {
+        return new ScanIterator()
+    }
+
+    class ScanIterator implements Iterator<Document>, Closeable {
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE)
+        private final Thread producer
+        private volatile boolean closed = false
+        private Object next = null
+
+        private ScanIterator() {
+            producer = new Thread({ ->
+                try {
+                    parallelForEach({ Document doc -> queue.put(doc) } as Consumer<Document>)
+                    queue.put(END)
+                } catch (Throwable t) {
+                    if (!closed) {
+                        queue.put(t)
+                    }
+                }
+            } as Runnable, 'partitioned-scan')
+            producer.setDaemon(true)
+            producer.start()
+        }
+
+        @Override
+        boolean hasNext() {
+            if (closed) {
+                return false
+            }
+            if (next == null) {
+                next = queue.take()
+            }
+            if (next instanceof Throwable) {
+                Throwable t = (Throwable) next
+                throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t)
+            }
+            return !next.is(END)
+        }
+
+        @Override
+        Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException()
+            }
+            Document doc = (Document) next
+            next = null
+            return doc
+        }
+
+        /**
+         * Stop the scan. Interrupting the producer cancels the partitions, see parallelForEach().
+         * Waits for the producer to close the connection pool.
+         */
+        @Override
+        void close() {
+            if (closed) {
+                return
+            }
+            closed = true
+            producer.interrupt()
+            // Unblock partitions waiting to put into a full queue
+            queue.clear()
+            producer.join(CLOSE_TIMEOUT_MS)
+            if (producer.isAlive()) {
+                log.warn("Partitioned scan did not stop within ${CLOSE_TIMEOUT_MS} ms")
+            }
+        }
+    }
+
+    /**
+     * For scans partitioned by ranges of modified (see PostgreSQLComponent.partitionBounds()).
+     *
+     * @return the index of the partition a document with the given modified is read in
+     */
+    static int partitionOf(List<Instant> bounds, Instant modified) {
+        int partition = 0
+        while (partition < bounds.size() && !modified.isBefore(bounds[partition])) {
+            partition++
+        }
+        return partition
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger()
+        return { Runnable r -> new Thread(r, "partitioned-scan-${count.getAndIncrement()}") } as ThreadFactory
+    }
+}
@@ -25,6 +25,8 @@ import whelk.exception.WhelkException
 import whelk.exception.WhelkRuntimeException
 import whelk.filter.LinkFinder
 import whelk.history.DocumentVersion
+import whelk.meta.WhelkConstants
+import whelk.util.DocumentCodec
 import whelk.util.DocumentUtil
 import whelk.util.LegacyIntegrationTools
 
@@ -38,6 +40,8 @@ import java.sql.SQLException
 import java.sql.Statement
 import java.sql.Timestamp
 import java.time.Instant
+import java.time.LocalDate
+import java.time.ZoneOffset
 import java.time.temporal.ChronoUnit
 import java.util.concurrent.atomic.AtomicLong
 
@@ -67,19 +71,36 @@ class PostgreSQLComponent {
         Result handle(Document doc)
     }
 
+    interface BatchQueueHandler {
+        QueueHandler.Result handle(List<Document> docs)
+    }
+
     public static final int STALE_UPDATE_RETRIES = 10
 
     public static final String PROPERTY_SQL_URL = "sqlUrl"
     public static final String PROPERTY_SQL_MAX_POOL_SIZE = "sqlMaxPoolSize"
     public static final String PROPERTY_EMBELLISH_CACHE_MAX_SIZE = "embellishCacheMaxSizeBytes"
+    public static final String PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE = "embellishLocalCacheMaxSizeBytes"
 
     private static final int DEFAULT_MAX_POOL_SIZE = 16
     private static final String driverClass = "org.postgresql.Driver"
     
     private static final int MAX_PG_NOTIFY_PAYLOAD_BYTES = 8000
     private static final String NOTIFICATION_DELIMITER = '¤'
+    private static final String EMBELLISHED_CACHE_INVALIDATE_ALL = '*'
 
     private long embellishCacheMaxSize = 10L * 1024L * 1024L * 1024L // default 10GB
+    private static final long DEFAULT_EMBELLISH_LOCAL_CACHE_MAX_SIZE = 256L * 1024L * 1024L
+    private static final double EMBELLISH_CACHE_EVICT_FRACTION = 0.1
+    private static final int EMBELLISH_CACHE_MAX_AGE_DAYS = 30
+
+    // Types in lddb__identifier_values that are not identifier @types
+    static final String CANCELED_ISSN = 'ISSN:canceled'
+    static final String INDIRECT_ISBN = 'ISBN:indirect'
+    private static final List<String> INDEXED_THING_IDENTIFIER_TYPES = ['ISBN', 'ISSN', 'EAN', 'URI', 'URN']
+
+    protected DocumentCodec documentCodec = DocumentCodec.DEFAULT
+    private EmbellishedCache embellishedCache = new EmbellishedCache(DEFAULT_EMBELLISH_LOCAL_CACHE_MAX_SIZE)
 
     private Random random = new Random(System.currentTimeMillis())
 
@@ -164,21 +185,50 @@ class PostgreSQLComponent {
             """.stripIndent()
 
     private static final String GET_EMBELLISHED_DOCUMENT =
-            "SELECT data from lddb__embellished where id = ?"
+            "SELECT data, ids from lddb__embellished where id = ?"
+
+    private static final String BULK_GET_EMBELLISHED_DOCUMENTS =
+            "SELECT id, data, ids from lddb__embellished where id = ANY(?)"
+
+    // Only touch rows not accessed recently, to keep the write load of reads down
+    private static final String TOUCH_EMBELLISHED_DOCUMENT =
+            "UPDATE lddb__embellished SET accessed = now() WHERE id = ? AND accessed < now() - interval '1 hour'"
+
+    private static final String BULK_TOUCH_EMBELLISHED_DOCUMENTS =
+            "UPDATE lddb__embellished SET accessed = now() WHERE id = ANY(?) AND accessed < now() - interval '1 hour'"
 
     private static final String UPSERT_EMBELLISHED_DOCUMENT = """
-            INSERT INTO lddb__embellished (id, data, ids) VALUES (?,?,?)
+            INSERT INTO lddb__embellished (id, data, ids, accessed) VALUES (?,?,?,now())
             ON CONFLICT (id) DO UPDATE
-            SET (data, ids) = (EXCLUDED.data, EXCLUDED.ids)
+            SET (data, ids, accessed) = (EXCLUDED.data, EXCLUDED.ids, EXCLUDED.accessed)
             WHERE lddb__embellished.id = EXCLUDED.id
             """.stripIndent()
 
     private static final String EVICT_EMBELLISHED_DEPENDERS =
             "DELETE FROM lddb__embellished WHERE id = ? OR ids @> ?"
 
+    private static final String EVICT_EXPIRED_EMBELLISHED =
+            "DELETE FROM lddb__embellished WHERE accessed < ?"
+
+    private static final String EVICT_LEAST_RECENTLY_USED_EMBELLISHED = """
+            DELETE FROM lddb__embellished
+            WHERE id IN (
+                SELECT id FROM lddb__embellished
+                ORDER BY accessed ASC
+                LIMIT (SELECT (reltuples * ?)::bigint FROM pg_class WHERE relname = 'lddb__embellished')
+            )
+            """.stripIndent()
+
     private static final String GET_TABLE_SIZE_BYTES =
             "SELECT pg_total_relation_size(?)"
 
+    // Size excluding dead tuples, which DELETE leaves behind until vacuum
+    private static final String GET_TABLE_LIVE_SIZE_BYTES = """
+            SELECT pg_total_relation_size(relid) * n_live_tup / GREATEST(n_live_tup + n_dead_tup, 1)
+            FROM pg_stat_user_tables
+            WHERE relname = ?
+            """.stripIndent()
+
     private static final String CLEAR_EMBELLISHED = "DELETE FROM lddb__embellished"
 
     private static final String GET_DOCUMENT_VERSION_BY_MAIN_ID = """
@@ -203,14 +253,16 @@ class PostgreSQLComponent {
             """.stripIndent()
     
     private static final String LOAD_ALL_DOCUMENTS = """
-            SELECT id, data, created, modified, deleted 
+            SELECT id, data, created, modified, deleted,
+                   GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) AS greatestModified
             FROM lddb 
             WHERE GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) >= ?
               AND GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) <= ?
             """.stripIndent()
 
     private static final String LOAD_ALL_DOCUMENTS_BY_COLLECTION = """
-            SELECT id, data, created, modified, deleted
+            SELECT id, data, created, modified, deleted,
+                   GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) AS greatestModified
             FROM lddb 
             WHERE GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) >= ?
               AND GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) <= ?
@@ -225,6 +277,44 @@ class PostgreSQLComponent {
               AND deleted = false
             """.stripIndent()
 
+    private static final String LOAD_ALL_ALIVE_DOCUMENTS_BY_COLLECTION = """
+            SELECT id, data, created, modified, deleted
+            FROM lddb
+            WHERE collection = ?
+              AND deleted = false
+            """.stripIndent()
+
+    // Appended to the LOAD_ALL_* queries by loadAllPartitioned()
+    private static final String MODIFIED_RANGE = """
+              AND modified >= ? AND modified < ?
+            """.stripIndent()
+
+    private static final String GET_PARTITION_BOUNDS = """
+            SELECT unnest(percentile_disc(?::float8[]) WITHIN GROUP (ORDER BY modified))
+            FROM lddb
+            """.stripIndent()
+
+    private static final String GET_PARTITION_BOUNDS_BY_COLLECTION = """
+            SELECT unnest(percentile_disc(?::float8[]) WITHIN GROUP (ORDER BY modified))
+            FROM lddb
+            WHERE collection = ?
+            """.stripIndent()
+
+    // Appended to the LOAD_ALL_* queries, see KeysetDocumentIterator
+    private static final String KEYSET_PAGE = """
+              AND (modified, id) > (?, ?)
+            ORDER BY modified, id
+            LIMIT ?
+            """.stripIndent()
+
+    // Appended instead of KEYSET_PAGE to the LOAD_ALL_* queries bounded by 'since'. Paging on the same expression as
+    // the bound lets the index on GREATEST(modified, generationDate) be used for both, see loadAllKeyset()
+    private static final String GREATEST_MODIFIED_KEYSET_PAGE = """
+              AND (GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')), id) > (?, ?)
+            ORDER BY GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')), id
+            LIMIT ?
+            """.stripIndent()
+
     private static final String STATUS_OF_DOCUMENT = """
             SELECT t1.id AS id, created, modified, deleted 
             FROM lddb t1 
@@ -257,6 +347,33 @@ class PostgreSQLComponent {
             ) SELECT * FROM deps
             """.stripIndent()
 
+    private static final String BULK_FOLLOW_DEPENDERS = """
+            WITH RECURSIVE deps(i) AS (
+                    SELECT unnest(?::text[]), null::text
+                UNION
+                    SELECT d.id, d.relation
+                    FROM lddb__dependencies d
+                    INNER JOIN deps deps1 ON d.dependsonid = i AND d.relation NOT IN (€)
+            ) SELECT * FROM deps
+            """.stripIndent()
+
+    private static final String BULK_FOLLOW_DEPENDERS_BY_ROOT = """
+            WITH RECURSIVE deps(root, i, relation) AS (
+                    SELECT r, r, null::text FROM unnest(?::text[]) AS r
+                UNION
+                    SELECT deps1.root, d.id, d.relation
+                    FROM lddb__dependencies d
+                    INNER JOIN deps deps1 ON d.dependsonid = deps1.i AND d.relation NOT IN (€)
+            ) SELECT root, i, relation FROM deps
+            """.stripIndent()
+
+    private static final String BULK_LOAD_LATEST_VERSIONS = """
+            SELECT DISTINCT ON (id) id, data, created, modified, deleted
+            FROM lddb__versions
+            WHERE id = ANY(?)
+            ORDER BY id, GREATEST(modified, (data#>>'{@graph,0,generationDate}')::timestamptz) DESC
+            """.stripIndent()
+
     private static final String FOLLOW_ALL_CONCERNED_LIBRARIES = """
             WITH RECURSIVE deps(i) AS (  
                     VALUES (?) 
@@ -276,6 +393,13 @@ class PostgreSQLComponent {
     private static final String GET_INCOMING_LINK_COUNT_BY_ID_AND_RELATION =
             "SELECT relation, count(id) FROM lddb__dependencies WHERE dependsOnId = ? GROUP BY relation"
 
+    private static final String GET_INCOMING_LINK_COUNTS_BY_ID_AND_RELATION = """
+            SELECT dependsOnId, relation, count(id)
+            FROM lddb__dependencies
+            WHERE dependsOnId = ANY(?)
+            GROUP BY dependsOnId, relation
+            """.stripIndent()
+
     private static final String GET_INCOMING_LINK_COUNT_BY_RELATION = """
             SELECT d.relation, count(d.id)
             FROM lddb__dependencies d, lddb__identifiers l
@@ -328,6 +452,28 @@ class PostgreSQLComponent {
     private static final String DELETE_IDENTIFIERS =
             "DELETE FROM lddb__identifiers WHERE id = ?"
 
+    private static final String INSERT_IDENTIFIER_VALUES =
+            "INSERT INTO lddb__identifier_values (id, type, value) VALUES (?, ?, ?)"
+
+    private static final String DELETE_IDENTIFIER_VALUES =
+            "DELETE FROM lddb__identifier_values WHERE id = ?"
+
+    private static final String UPSERT_DAILY_CHANGES = """
+            INSERT INTO lddb__daily_changes (day, type, shard, count) VALUES (?, ?, ?, ?)
+            ON CONFLICT (day, type, shard) DO UPDATE SET count = lddb__daily_changes.count + EXCLUDED.count
+            """.stripIndent()
+
+    private static final String GET_DAILY_CHANGES =
+            "SELECT type, sum(count) FROM lddb__daily_changes WHERE day = ? GROUP BY type"
+
+    private static final String GET_IDS_BY_IDENTIFIER_VALUES = """
+            SELECT v.type, v.value, v.id
+            FROM lddb__identifier_values v
+            JOIN unnest(?::text[], ?::text[]) AS probe(type, value) ON v.type = probe.type AND v.value = probe.value
+            JOIN lddb ON lddb.id = v.id
+            WHERE lddb.deleted = false AND (? OR lddb.collection = ANY(?))
+            """.stripIndent()
+
     private static final String GET_RECORD_ID_BY_THING_ID =
             "SELECT id FROM lddb__identifiers WHERE iri = ? AND graphIndex = 1"
 
@@ -363,6 +509,13 @@ class PostgreSQLComponent {
             AND lddb.id = lddb__identifiers.id
             """.stripIndent()
 
+    private static final String BULK_GET_ATTACHED_HOLDINGS = """
+            SELECT id, data#>>'{@graph,1,itemOf,@id}' AS itemOf
+            FROM lddb
+            WHERE collection = 'hold' AND deleted = false AND data#>>'{@graph,1,itemOf,@id}' = ANY(?)
+            ORDER BY id
+            """.stripIndent()
+
     private static final String GET_THING_MAIN_IRI_BY_SYSTEMID =
             "SELECT iri FROM lddb__identifiers WHERE graphindex = 1 and mainid is true and id = ?"
 
@@ -372,6 +525,9 @@ class PostgreSQLComponent {
     private static final String GET_COLLECTION_BY_SYSTEM_ID =
             "SELECT collection FROM lddb where id = ?"
 
+    private static final String BULK_GET_COLLECTION_BY_SYSTEM_ID =
+            "SELECT id, collection FROM lddb where id = ANY(?)"
+
     private static final String GET_MAINENTITY_TYPE_BY_SYSTEM_ID =
             "SELECT data#>>'{@graph,1,@type}' FROM lddb WHERE id = ?"
 
@@ -418,6 +574,36 @@ class PostgreSQLComponent {
             RETURNING id;
             """.stripIndent()
 
+    private static final String INDEX_QUEUE_ADD = "INSERT INTO lddb__index_q (id) VALUES (?)"
+
+    // Entries are only taken once they are older than the coalescing window, so that all entries for a document
+    // that is saved repeatedly in a short time are taken together.
+    // Entries for a document that another worker is indexing are left in the queue (see indexQueueTake).
+    private static final String INDEX_QUEUE_REMOVE = """
+            WITH candidates AS (
+              SELECT pk, id
+              FROM lddb__index_q
+              WHERE enqueued <= now() - ? * interval '1 millisecond'
+              ORDER BY pk ASC
+              FOR UPDATE SKIP LOCKED
+              LIMIT ?
+            )
+            DELETE FROM lddb__index_q q
+            USING candidates c
+            WHERE q.pk = c.pk
+              AND pg_try_advisory_xact_lock(hashtext('lddb__index_q'), hashtext(c.id))
+            RETURNING q.id;
+            """.stripIndent()
+
+    private static final String INDEX_QUEUE_LOAD = """
+            SELECT id, data, created, modified, deleted
+            FROM lddb
+            WHERE id = ANY(?)
+            """.stripIndent()
+
+    private static final String INDEX_QUEUE_STATUS =
+            "SELECT count(*), min(enqueued) FROM lddb__index_q"
+
     private static final String SPARQL_QUEUE_ADD_UPDATES_SINCE = """
             INSERT INTO lddb__sparql_q (id)
             SELECT l.id FROM lddb l
@@ -432,7 +618,8 @@ class PostgreSQLComponent {
         """.stripIndent()
 
     private static final String LOAD_ALL_DOCUMENTS_BY_DATASET = """
-            SELECT id, data, created, modified, deleted
+            SELECT id, data, created, modified, deleted,
+                   GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) AS greatestModified
             FROM lddb
             WHERE GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) >= ?
             AND GREATEST(modified, totstz(data#>>'{@graph,0,generationDate}')) <= ?
@@ -454,6 +641,15 @@ class PostgreSQLComponent {
             SET (key, value) = (EXCLUDED.key, EXCLUDED.value)
             """.stripIndent()
 
+    private static final String DELETE_STATE =
+            "DELETE FROM lddb__state WHERE key = ?"
+
+    private static final String DELETE_STATES_UPDATED_BEFORE = """
+            DELETE FROM lddb__state
+            WHERE starts_with(key, ?)
+              AND (value->>'updatedAt')::timestamptz < ?
+            """.stripIndent()
+
     private static final String GET_USER_DATA =
             "SELECT data FROM lddb__user_data WHERE id = ?"
 
@@ -481,6 +677,7 @@ class PostgreSQLComponent {
     boolean versioning = true
     boolean doVerifyDocumentIdRetention = true
     boolean sparqlQueueEnabled = false
+    boolean indexQueueEnabled = false
 
     LinkFinder linkFinder
     DependencyCache dependencyCache
@@ -505,6 +702,15 @@ class PostgreSQLComponent {
         }
         log.info("$PROPERTY_EMBELLISH_CACHE_MAX_SIZE: $embellishCacheMaxSize")
 
+        documentCodec = DocumentCodec.fromProperties(properties)
+        log.info("${DocumentCodec.PROPERTY_NAME}: $documentCodec")
+
+        long embellishLocalCacheMaxSize = properties.getProperty(PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE)
+                ? Long.parseLong(properties.getProperty(PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE))
+                : DEFAULT_EMBELLISH_LOCAL_CACHE_MAX_SIZE
+        embellishedCache = new EmbellishedCache(embellishLocalCacheMaxSize)
+        log.info("$PROPERTY_EMBELLISH_LOCAL_CACHE_MAX_SIZE: $embellishLocalCacheMaxSize")
+
         setup(properties.getProperty(PROPERTY_SQL_URL), maxPoolSize)
     }
 
@@ -548,18 +754,16 @@ class PostgreSQLComponent {
         new NotificationListener().start()
     }
 
-    private void cacheEmbellishedDocument(String id, Document embellishedDocument) {
+    private void cacheEmbellishedDocument(String id, byte[] data, List<String> embellishmentIds) {
         withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement preparedStatement = null
 
             try {
-                List<String> ids = embellishmentIds(embellishedDocument, connection)
-
                 preparedStatement = connection.prepareStatement(UPSERT_EMBELLISHED_DOCUMENT)
                 preparedStatement.setString(1, id)
-                preparedStatement.setObject(2, mapper.writeValueAsString(embellishedDocument.data), java.sql.Types.OTHER)
-                preparedStatement.setArray(3, connection.createArrayOf("TEXT", ids as String[]))
+                preparedStatement.setBytes(2, data)
+                preparedStatement.setArray(3, connection.createArrayOf("TEXT", embellishmentIds as String[]))
 
                 preparedStatement.execute()
             }
@@ -589,8 +793,16 @@ class PostgreSQLComponent {
      * Loads the embellished version of the stored document 'id'.
      * If there isn't an embellished version cached already, one will be created
      * (lazy caching).
+     *
+     * There are two cache tiers, an in-process one (see EmbellishedCache) and the lddb__embellished table.
      */
     Document loadEmbellished(String id, Closure embellish) {
+        Document cached = embellishedCache.get(id)
+        if (cached) {
+            return cached
+        }
+
+        long generation = embellishedCache.generation()
         return withDbConnection {
             Connection connection = getMyConnection()
             PreparedStatement selectStatement = null
@@ -602,7 +814,8 @@ class PostgreSQLComponent {
                 resultSet = selectStatement.executeQuery()
 
                 if (resultSet.next()) {
-                    return new Document(mapper.readValue(resultSet.getString("data"), Map))
+                    touchEmbellishedDocument(id, connection)
+                    return cacheEmbellishedRow(id, resultSet, generation)
                 }
             }
             finally {
@@ -612,12 +825,7 @@ class PostgreSQLComponent {
             // Cache-miss, embellish and store
             Document document = load(id)
             if (document) {
-                embellish(document) // will open a connection
-
-                // There is no point caching records changed long ago. The purpose of this cache is to not have to embellish
-                // the same record 100 times _just after it was changed_, when it needs to be exported to all client libraries.
-                if (document.getModifiedTimestamp().isAfter(Instant.now().minus(2, ChronoUnit.DAYS)))
-                    cacheEmbellishedDocument(id, document)
+                embellishAndCache(document, embellish, generation, connection)
             }
             else {
                 log.error("loadEmbellished. No document with $id")
@@ -627,6 +835,105 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Like loadEmbellished, for several documents at once. Cached documents are read with one query,
+     * the rest are loaded with one query and embellished one at a time.
+     * @return system id -> embellished document, for the documents that exist
+     */
+    Map<String, Document> bulkLoadEmbellished(Collection<String> ids, Closure embellish) {
+        Map<String, Document> result = [:]
+        List<String> missing = []
+        for (String id : ids) {
+            Document cached = embellishedCache.get(id)
+            if (cached) {
+                result[id] = cached
+            } else {
+                missing << id
+            }
+        }
+        if (missing.isEmpty()) {
+            return result
+        }
+
+        long generation = embellishedCache.generation()
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement selectStatement = null
+            ResultSet resultSet = null
+            try {
+                selectStatement = connection.prepareStatement(BULK_GET_EMBELLISHED_DOCUMENTS)
+                selectStatement.setArray(1, connection.createArrayOf("TEXT", missing as String[]))
+                resultSet = selectStatement.executeQuery()
+                while (resultSet.next()) {
+                    String id = resultSet.getString("id")
+                    result[id] = cacheEmbellishedRow(id, resultSet, generation)
+                }
+            }
+            finally {
+                close(resultSet, selectStatement)
+            }
+
+            List<String> found = missing.findAll { result.containsKey(it) }
+            if (found) {
+                PreparedStatement touchStatement = null
+                try {
+                    touchStatement = connection.prepareStatement(BULK_TOUCH_EMBELLISHED_DOCUMENTS)
+                    touchStatement.setArray(1, connection.createArrayOf("TEXT", found as String[]))
+                    touchStatement.executeUpdate()
+                } finally {
+                    close(touchStatement)
+                }
+            }
+
+            // Cache-misses, embellish and store
+            List<String> notCached = missing.findAll { !result.containsKey(it) }
+            if (notCached) {
+                for (Document document : bulkLoad(notCached).values()) {
+                    embellishAndCache(document, embellish, generation, connection)
+                    result[document.getShortId()] = document
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Put a row of lddb__embellished in the in-process cache as it is. The data can be in any codec,
+     * depending on what wrote it, see EmbellishedCache.
+     */
+    private Document cacheEmbellishedRow(String id, ResultSet resultSet, long generation) {
+        byte[] data = resultSet.getBytes("data")
+        Array ids = resultSet.getArray("ids")
+        List<String> embellishmentIds = ids != null ? (ids.getArray() as String[]).toList() : []
+        embellishedCache.put(id, data, embellishmentIds, generation)
+        return new Document(DocumentCodec.decodeAny(data))
+    }
+
+    private void embellishAndCache(Document document, Closure embellish, long generation, Connection connection) {
+        embellish(document) // will open a connection
+
+        String id = document.getShortId()
+        List<String> embellishmentIds = embellishmentIds(document, connection)
+        byte[] data = documentCodec.encode(document.data)
+        embellishedCache.put(id, data, embellishmentIds, generation)
+
+        // There is no point storing records changed long ago. The purpose of the table is to not have to embellish
+        // the same record 100 times _just after it was changed_, when it needs to be exported to all client libraries.
+        if (document.getModifiedTimestamp().isAfter(Instant.now().minus(2, ChronoUnit.DAYS)))
+            cacheEmbellishedDocument(id, data, embellishmentIds)
+    }
+
+    private static void touchEmbellishedDocument(String id, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(TOUCH_EMBELLISHED_DOCUMENT)
+            preparedStatement.setString(1, id)
+            preparedStatement.executeUpdate()
+        } finally {
+            close(preparedStatement)
+        }
+    }
+
     void clearEmbellishedCache(Connection connection) {
         log.debug("Clearing embellish cache")
         PreparedStatement preparedStatement = null
@@ -636,14 +943,49 @@ class PostgreSQLComponent {
         } finally {
             close(preparedStatement)
         }
+        embellishedCache.invalidateAll()
+        sendNotification(NotificationType.EMBELLISHED_CACHE_INVALIDATE, [EMBELLISHED_CACHE_INVALIDATE_ALL], connection)
+    }
+
+    /**
+     * Remove documents not accessed for a long time and, if the table is still too large,
+     * the least recently used fraction of it.
+     */
+    void trimEmbellishedCache(Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(EVICT_EXPIRED_EMBELLISHED)
+            preparedStatement.setTimestamp(1, Timestamp.from(Instant.now().minus(EMBELLISH_CACHE_MAX_AGE_DAYS, ChronoUnit.DAYS)))
+            int numExpired = preparedStatement.executeUpdate()
+            log.info("Evicted $numExpired expired documents from embellish cache")
+        } finally {
+            close(preparedStatement)
+        }
+
+        if (liveTableSizeBytes('lddb__embellished', connection) > embellishCacheMaxSize) {
+            try {
+                preparedStatement = connection.prepareStatement(EVICT_LEAST_RECENTLY_USED_EMBELLISHED)
+                preparedStatement.setDouble(1, EMBELLISH_CACHE_EVICT_FRACTION)
+                int numEvicted = preparedStatement.executeUpdate()
+                log.info("Embellish cache full, evicted $numEvicted least recently used documents")
+            } finally {
+                close(preparedStatement)
+            }
+        }
     }
 
+    /**
+     * Evicts everything embellished with 'id' from both cache tiers.
+     *
+     * When called in a transaction, the in-process tier must be evicted again after commit (see
+     * EmbellishedCache.evictDependers). Otherwise a concurrent load can read the old committed version
+     * and put it back in the cache, and this process doesn't act on its own invalidation notifications.
+     */
     void evictDependersFromEmbellishedCache(String id, Connection connection) {
         if (random.nextInt(1000) == 0) { // check every 1000 calls on average
-            boolean isFull = totalTableSizeBytes('lddb__embellished', connection) > embellishCacheMaxSize
+            boolean isFull = liveTableSizeBytes('lddb__embellished', connection) > embellishCacheMaxSize
             if(isFull) {
-                clearEmbellishedCache(connection)
-                return
+                trimEmbellishedCache(connection)
             }
         }
 
@@ -658,10 +1000,15 @@ class PostgreSQLComponent {
         finally {
             close(preparedStatement)
         }
+
+        embellishedCache.evictDependers(id)
+        // Delivered to other processes when the transaction commits
+        sendNotification(NotificationType.EMBELLISHED_CACHE_INVALIDATE, [id], connection)
     }
 
     void logStats() {
         dependencyCache.logStats()
+        embellishedCache.logStats()
         log.info("Cards created or changed: $cardsUpdated")
     }
 
@@ -715,6 +1062,23 @@ class PostgreSQLComponent {
         }
     }
 
+    long liveTableSizeBytes(String table, Connection connection) {
+        PreparedStatement preparedStatement = null
+        ResultSet resultSet = null
+        try {
+            preparedStatement = connection.prepareStatement(GET_TABLE_LIVE_SIZE_BYTES)
+            preparedStatement.setString(1, table)
+            resultSet = preparedStatement.executeQuery()
+            if (!resultSet.next()) {
+                throw new WhelkRuntimeException("No such table $table")
+            }
+            return resultSet.getLong(1)
+        }
+        finally {
+            close(resultSet, preparedStatement)
+        }
+    }
+
     long totalTableSizeBytes(String table, Connection connection) {
         PreparedStatement preparedStatement = null
         ResultSet resultSet = null
@@ -799,7 +1163,11 @@ class PostgreSQLComponent {
                 insert.executeUpdate()
 
                 saveVersion(doc, connection, now, now, changedIn, changedBy, collection, deleted)
+                countDailyChange(doc.getShortId(), null, null, doc.getThingType(), now, connection)
                 refreshDerivativeTables(doc, connection, deleted, skipSparql)
+                if (shouldQueueIndexUpdate()) {
+                    indexQueueAdd(doc.getShortId(), connection)
+                }
 
                 connection.commit()
                 connection.setAutoCommit(true)
@@ -810,6 +1178,7 @@ class PostgreSQLComponent {
                 }
 
                 dependencyCache.invalidate(doc)
+                embellishedCache.evictDependers(doc.getShortId())
 
                 log.debug("Saved document ${doc.getShortId()} with timestamps ${doc.created} / ${doc.modified}")
                 return true
@@ -867,9 +1236,11 @@ class PostgreSQLComponent {
                 insert.executeUpdate()
 
                 saveVersion(doc, connection, now, now, changedIn, changedBy, collection, false)
+                countDailyChange(doc.getShortId(), null, null, doc.getThingType(), now, connection)
                 refreshDerivativeTables(doc, connection, false, false)
 
                 connection.commit()
+                embellishedCache.evictDependers(doc.getShortId())
                 return true
             } catch (Exception e) {
                 log.debug("Failed to save document: ${e.message}. Rolling back.")
@@ -1054,9 +1425,8 @@ class PostgreSQLComponent {
             }
             
             Date createdTime = new Date(resultSet.getTimestamp("created").getTime())
-            Date modTime = minorUpdate
-                ? new Date(resultSet.getTimestamp("modified").getTime())
-                : new Date()
+            Date oldModTime = new Date(resultSet.getTimestamp("modified").getTime())
+            Date modTime = minorUpdate ? oldModTime : new Date()
             doc.setModified(modTime)
 
             if (!minorUpdate) {
@@ -1068,6 +1438,7 @@ class PostgreSQLComponent {
             updateStatement.execute()
 
             saveVersion(doc, connection, createdTime, modTime, changedIn, changedBy, collection, deleted)
+            countDailyChange(id, preUpdateDoc.getThingType(), oldModTime, doc.getThingType(), modTime, connection)
 
             // If the mainentity has changed URI (for example happens when new id.kb.se-uris are added to records)
             if ( preUpdateDoc.getThingIdentifiers()[0] &&
@@ -1085,8 +1456,12 @@ class PostgreSQLComponent {
             }
 
             refreshDerivativeTables(doc, connection, deleted, skipSparql)
+            if (shouldQueueIndexUpdate()) {
+                indexQueueAdd(id, connection)
+            }
 
             postCommitActions << { dependencyCache.invalidate(preUpdateDoc, doc) }
+            postCommitActions << { embellishedCache.evictDependers(id) }
 
             log.debug("Saved document ${doc.getShortId()} with timestamps ${doc.created} / ${doc.modified}")
         } catch (PSQLException psqle) {
@@ -1175,6 +1550,7 @@ class PostgreSQLComponent {
             Connection connection = getMyConnection()
             refreshDerivativeTables(doc, connection, doc.deleted, skipSparql)
         }
+        embellishedCache.evictDependers(doc.getShortId())
     }
 
     void refreshDerivativeTables(Document doc, Connection connection, boolean deleted, boolean skipSparql, boolean leaveCacheAlone = false) {
@@ -1580,6 +1956,8 @@ class PostgreSQLComponent {
             close(removeIdentifiers)
         }
 
+        saveIdentifierValues(doc, connection, deleted || removeOnly)
+
         if (removeOnly)
             return
 
@@ -1621,6 +1999,180 @@ class PostgreSQLComponent {
         }
     }
 
+    private static final int DAILY_CHANGES_SHARDS = 16
+
+    /**
+     * Keep lddb__daily_changes up to date: move the document from the day and type it was counted under
+     * to the ones it has now. Pass null for the old type and time of a new document.
+     */
+    private static void countDailyChange(String id, String oldType, Date oldModified, String newType, Date newModified,
+                                         Connection connection) {
+        LocalDate oldDay = oldModified ? LocalDate.ofInstant(oldModified.toInstant(), ZoneOffset.UTC) : null
+        LocalDate newDay = LocalDate.ofInstant(newModified.toInstant(), ZoneOffset.UTC)
+        if (oldDay == newDay && oldType == newType) {
+            return
+        }
+
+        int shard = Math.floorMod(id.hashCode(), DAILY_CHANGES_SHARDS)
+        PreparedStatement statement = connection.prepareStatement(UPSERT_DAILY_CHANGES)
+        try {
+            if (oldDay != null && oldType != null) {
+                rigDailyChange(statement, oldDay, oldType, shard, -1)
+            }
+            if (newType != null) {
+                rigDailyChange(statement, newDay, newType, shard, 1)
+            }
+            statement.executeBatch()
+        } finally {
+            close(statement)
+        }
+    }
+
+    private static void rigDailyChange(PreparedStatement statement, LocalDate day, String type, int shard, long delta) {
+        statement.setObject(1, day)
+        statement.setString(2, type)
+        statement.setShort(3, (short) shard)
+        statement.setLong(4, delta)
+        statement.addBatch()
+    }
+
+    /**
+     * @return the number of documents last modified on the (UTC) day, by the type of their main entity
+     */
+    Map<String, Long> getDailyChanges(LocalDate day) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            ResultSet rs = null
+            try {
+                statement = connection.prepareStatement(GET_DAILY_CHANGES)
+                statement.setObject(1, day)
+                rs = statement.executeQuery()
+                Map<String, Long> result = [:]
+                while (rs.next()) {
+                    result[rs.getString(1)] = rs.getLong(2)
+                }
+                return result
+            } finally {
+                close(rs, statement)
+            }
+        }
+    }
+
+    private static void saveIdentifierValues(Document doc, Connection connection, boolean removeOnly) {
+        PreparedStatement removeValues = connection.prepareStatement(DELETE_IDENTIFIER_VALUES)
+        try {
+            removeValues.setString(1, doc.getShortId())
+            removeValues.executeUpdate()
+        } finally {
+            close(removeValues)
+        }
+
+        if (removeOnly)
+            return
+
+        PreparedStatement insertValues = connection.prepareStatement(INSERT_IDENTIFIER_VALUES)
+        try {
+            for (Tuple2<String, String> typedValue : identifierValues(doc)) {
+                insertValues.setString(1, doc.getShortId())
+                insertValues.setString(2, typedValue.v1)
+                insertValues.setString(3, typedValue.v2)
+                insertValues.addBatch()
+            }
+            insertValues.executeBatch()
+        } catch (BatchUpdateException bue) {
+            log.error("Failed saving identifier values for ${doc.getShortId()}")
+            throw bue.getNextException()
+        } finally {
+            close(insertValues)
+        }
+    }
+
+    /**
+     * The typed identifier values of a document that are indexed in lddb__identifier_values,
+     * as (type, normalized value). Thing identifiers are typed by their @type, except for
+     * canceled ISSNs (ISSN:canceled) and indirect ISBNs (ISBN:indirect).
+     */
+    static Set<Tuple2<String, String>> identifierValues(Document doc) {
+        Set<Tuple2<String, String>> result = new LinkedHashSet<>()
+        for (Map identifier : typedIdentifiers(doc, Document.thingTypedIDsPath)) {
+            String type = identifier['@type'] as String
+            if (type in INDEXED_THING_IDENTIFIER_TYPES) {
+                addIdentifierValues(result, type, identifier['value'])
+            }
+            if (type == 'ISSN') {
+                addIdentifierValues(result, CANCELED_ISSN, identifier['marc:canceledIssn'])
+            }
+        }
+        for (Map identifier : typedIdentifiers(doc, Document.thingIndirectTypedIDsPath)) {
+            if (identifier['@type'] == 'ISBN') {
+                addIdentifierValues(result, INDIRECT_ISBN, identifier['value'])
+            }
+        }
+        for (Map identifier : typedIdentifiers(doc, Document.recordTypedIDsPath)) {
+            if (identifier['@type'] == 'SystemNumber') {
+                addIdentifierValues(result, 'SystemNumber', identifier['value'])
+            }
+        }
+        return result
+    }
+
+    /**
+     * Identifier values are compared case insensitively, except for URIs, URNs and system numbers.
+     */
+    static String normalizeIdentifierValue(String type, String value) {
+        return type in ['URI', 'URN', 'SystemNumber'] ? value : value.toUpperCase(Locale.ROOT)
+    }
+
+    private static List<Map> typedIdentifiers(Document doc, List path) {
+        Object identifiers = Document._get(path, doc.data)
+        return identifiers instanceof List ? ((List) identifiers).findAll { it instanceof Map } as List<Map> : []
+    }
+
+    private static void addIdentifierValues(Set<Tuple2<String, String>> result, String type, Object value) {
+        for (Object v : (value instanceof List ? (List) value : [value])) {
+            if (v instanceof String) {
+                result.add(new Tuple2<String, String>(type, normalizeIdentifierValue(type, (String) v)))
+            }
+        }
+    }
+
+    /**
+     * Find non-deleted documents by indexed identifier values, see identifierValues(). All values are looked up
+     * in one query.
+     * @param typedValues (type, value) pairs, normalized with normalizeIdentifierValue()
+     * @param collections only include documents in these collections, or in any collection if empty
+     * @return the ids of the matching documents for each (type, value) pair that was found
+     */
+    Map<Tuple2<String, String>, Set<String>> getIdsByIdentifierValues(Collection<Tuple2<String, String>> typedValues,
+                                                                       Collection<String> collections) {
+        if (typedValues.isEmpty()) {
+            return [:]
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_IDS_BY_IDENTIFIER_VALUES)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", typedValues.collect { it.v1 } as String[]))
+                preparedStatement.setArray(2, connection.createArrayOf("TEXT", typedValues.collect { it.v2 } as String[]))
+                preparedStatement.setBoolean(3, collections.isEmpty())
+                preparedStatement.setArray(4, connection.createArrayOf("TEXT", collections as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<Tuple2<String, String>, Set<String>> result = [:]
+                while (rs.next()) {
+                    result.computeIfAbsent(new Tuple2<String, String>(rs.getString(1), rs.getString(2)), { k -> new TreeSet<String>() })
+                            .add(rs.getString(3))
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     private PreparedStatement rigInsertStatement(PreparedStatement insert, Document doc, Date timestamp, String changedIn, String changedBy, String collection, boolean deleted) {
         insert.setString(1, doc.getShortId())
         insert.setObject(2, doc.dataAsString, OTHER)
@@ -1767,9 +2319,110 @@ class PostgreSQLComponent {
         }
     }
 
-    /**
-     * Load document using supplied identifier as main ID
-     *
+    // Batch jobs index their documents themselves, synchronously
+    private boolean shouldQueueIndexUpdate() {
+        return indexQueueEnabled &&
+                !Thread.currentThread().getThreadGroup().getName().contains(WhelkConstants.BATCH_THREAD_GROUP)
+    }
+
+    private void indexQueueAdd(String systemId, Connection connection) {
+        PreparedStatement preparedStatement = null
+        try {
+            preparedStatement = connection.prepareStatement(INDEX_QUEUE_ADD)
+            preparedStatement.setString(1, systemId)
+            preparedStatement.executeUpdate()
+        }
+        finally {
+            close(preparedStatement)
+        }
+    }
+
+    /**
+     * Take up to <num> documents that have been in the index queue for at least <coalesceMillis> and pass them
+     * to the handler in one batch. A document queued several times is only passed once.
+     * If the handler fails, all of them remain in the queue.
+     *
+     * @return true if there were any documents in the queue and the handler was successful
+     */
+    boolean indexQueueTake(BatchQueueHandler handler, int num, long coalesceMillis, DataSource connectionPool) {
+        Connection connection = null
+        PreparedStatement statement = null
+        ResultSet resultSet = null
+        try {
+            // Same principle as sparqlQueueTake.
+            // The documents themselves aren't locked, so writers never wait for indexing. Instead only one worker
+            // at a time handles each document: the transaction holds an advisory lock per taken id until the
+            // documents have been indexed, and other workers leave entries for those ids in the queue.
+            // A document changed meanwhile has a newer entry, enqueued when the change was committed, which is
+            // taken when this worker is done. So an older version never overwrites a newer one in the index.
+            connection = connectionPool.getConnection()
+            connection.setAutoCommit(false)
+
+            statement = connection.prepareStatement(INDEX_QUEUE_REMOVE)
+            statement.setLong(1, coalesceMillis)
+            statement.setInt(2, num)
+            resultSet = statement.executeQuery()
+            SortedSet<String> ids = new TreeSet<>()
+            while (resultSet.next()) {
+                ids.add(resultSet.getString(1))
+            }
+            close(resultSet, statement)
+            resultSet = null
+            statement = null
+
+            if (ids.isEmpty()) {
+                connection.commit()
+                return false
+            }
+
+            statement = connection.prepareStatement(INDEX_QUEUE_LOAD)
+            statement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+            resultSet = statement.executeQuery()
+            List<Document> docs = []
+            while (resultSet.next()) {
+                docs.add(assembleDocument(resultSet))
+            }
+            if (docs.size() < ids.size()) {
+                log.warn("indexQueueTake: documents with ids ${ids - docs*.getShortId()} do not exist")
+            }
+
+            if (handler.handle(docs) == QueueHandler.Result.FAIL_RETRY) {
+                connection.rollback()
+                return false
+            }
+
+            connection.commit()
+            return true
+        }
+        finally {
+            close(resultSet, statement, connection)
+        }
+    }
+
+    /**
+     * @return the number of entries in the index queue, and when the oldest of them was queued (null if none)
+     */
+    Tuple2<Long, Instant> getIndexQueueStatus() {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            ResultSet rs = null
+            try {
+                statement = connection.prepareStatement(INDEX_QUEUE_STATUS)
+                rs = statement.executeQuery()
+                rs.next()
+                Timestamp oldest = rs.getTimestamp(2)
+                return new Tuple2<Long, Instant>(rs.getLong(1), oldest?.toInstant())
+            }
+            finally {
+                close(rs, statement)
+            }
+        }
+    }
+
+    /**
+     * Load document using supplied identifier as main ID
+     *
      * Supplied identifier can be either record ID or thing ID.
      *
      */
@@ -1941,6 +2594,30 @@ class PostgreSQLComponent {
         }
     }
 
+    Map<String, String> getCollectionsBySystemIDs(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return [:]
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement selectStatement = null
+            ResultSet resultSet = null
+            try {
+                selectStatement = connection.prepareStatement(BULK_GET_COLLECTION_BY_SYSTEM_ID)
+                selectStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                resultSet = selectStatement.executeQuery()
+                Map<String, String> result = [:]
+                while (resultSet.next()) {
+                    result[resultSet.getString("id")] = resultSet.getString("collection")
+                }
+                return result
+            }
+            finally {
+                close(resultSet, selectStatement)
+            }
+        }
+    }
+
     String getMainEntityTypeBySystemID(String id) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -2166,6 +2843,74 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Like followDependers, for several ids at once. Returns the union of all dependers,
+     * each (depender, relation) pair once, sorted by depender id.
+     */
+    List<Tuple2<String, String>> bulkFollowDependers(Collection<String> ids, List<String> excludeRelations = []) {
+        if (ids.isEmpty()) {
+            return []
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                String query = BULK_FOLLOW_DEPENDERS.replace("€", "'" + excludeRelations.join("', '") + "'")
+                connection.setAutoCommit(false)
+                preparedStatement = connection.prepareStatement(query)
+                preparedStatement.setFetchSize(256)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                List<Tuple2<String, String>> dependers = []
+                while (rs.next()) {
+                    if (rs.getString(2) != null) // Skip the (root, null) tuples
+                        dependers.add(new Tuple2<String, String>(rs.getString(1), rs.getString(2)))
+                }
+                dependers.sort { it.v1 }
+                return dependers
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Like followDependers, for several ids at once, in a single query.
+     *
+     * @return id -> the dependers of that id, as followDependers() would return them. Ids without dependers are left out.
+     */
+    Map<String, List<Tuple2<String, String>>> bulkFollowDependersByRoot(Collection<String> ids, List<String> excludeRelations = []) {
+        if (ids.isEmpty()) {
+            return [:]
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                String query = BULK_FOLLOW_DEPENDERS_BY_ROOT.replace("€", "'" + excludeRelations.join("', '") + "'")
+                connection.setAutoCommit(false)
+                preparedStatement = connection.prepareStatement(query)
+                preparedStatement.setFetchSize(256)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<String, List<Tuple2<String, String>>> dependersByRoot = [:]
+                while (rs.next()) {
+                    if (rs.getString(3) != null) // Skip the (root, root, null) tuples
+                        dependersByRoot.computeIfAbsent(rs.getString(1), { [] })
+                                .add(new Tuple2<String, String>(rs.getString(2), rs.getString(3)))
+                }
+                dependersByRoot.values().each { it.sort { it.v1 } }
+                return dependersByRoot
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     /**
      * Follow links recursively to figure out which libraries are affected by a change to 'id'.
      *
@@ -2255,6 +3000,37 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Bulk variant of getIncomingLinkCountByIdAndRelation, in a single query.
+     *
+     * @return relation -> count, by id. Ids without incoming links map to an empty map.
+     */
+    Map<String, Map<String, Long>> getIncomingLinkCountsByIdAndRelation(Collection<String> ids) {
+        Map<String, Map<String, Long>> result = new HashMap<>()
+        ids.each { result[it] = new TreeMap<String, Long>() }
+        if (ids.isEmpty()) {
+            return result
+        }
+
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(GET_INCOMING_LINK_COUNTS_BY_ID_AND_RELATION)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                while (rs.next()) {
+                    result.computeIfAbsent(rs.getString(1), { new TreeMap<String, Long>() })
+                            .put(rs.getString(2), rs.getLong(3))
+                }
+                return result
+            } finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     Map<String, Long> getIncomingLinkCountByRelation(String iri) {
         return withDbConnection {
             Connection connection = getMyConnection()
@@ -2391,6 +3167,34 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * Like getAttachedHoldings, for many things at once.
+     * @return thing identifier -> ids of the holdings with that identifier as itemOf
+     */
+    Map<String, List<String>> bulkGetAttachedHoldings(Collection<String> thingIdentifiers) {
+        if (thingIdentifiers.isEmpty()) {
+            return [:]
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(BULK_GET_ATTACHED_HOLDINGS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", thingIdentifiers as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<String, List<String>> holdings = [:]
+                while (rs.next()) {
+                    holdings.computeIfAbsent(rs.getString("itemOf"), { k -> new ArrayList<String>() }).add(rs.getString("id"))
+                }
+                return holdings
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     /**
      * Returns a list of holdings document ids, for any of the passed thingIdentifiers
      */
@@ -2500,6 +3304,33 @@ class PostgreSQLComponent {
         }
     }
 
+    /**
+     * The last saved version of each document, the same version as load(id, "-1") gives.
+     */
+    Map<String, Document> bulkLoadLatestVersions(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return [:]
+        }
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            ResultSet rs = null
+            try {
+                preparedStatement = connection.prepareStatement(BULK_LOAD_LATEST_VERSIONS)
+                preparedStatement.setArray(1, connection.createArrayOf("TEXT", ids as String[]))
+                rs = preparedStatement.executeQuery()
+                Map<String, Document> result = [:]
+                while (rs.next()) {
+                    result[rs.getString("id")] = assembleDocument(rs)
+                }
+                return result
+            }
+            finally {
+                close(rs, preparedStatement)
+            }
+        }
+    }
+
     List<Document> loadAllVersions(String identifier) {
         return doLoadAllVersions(identifier, GET_ALL_DOCUMENT_VERSIONS)
     }
@@ -2601,127 +3432,231 @@ class PostgreSQLComponent {
         return doc
     }
 
-    @CompileStatic(SKIP)
+    /**
+     * Load all documents in a collection or dataset (or all documents if collection is null), in (modified, id) order.
+     * If since is given, in (GREATEST(modified, generationDate), id) order instead, see loadAllKeyset().
+     * Documents are read page by page, see KeysetDocumentIterator.
+     */
     Iterable<Document> loadAll(String collection, boolean includeDeleted = false, Date since = null, Date until = null) {
-        return new Iterable<Document>() {
-            Iterator<Document> iterator() {
-                Connection connection = getOuterConnection()
-                connection.setAutoCommit(false)
-                PreparedStatement loadAllStatement
-                long untilTS = until?.getTime() ?: PGStatement.DATE_POSITIVE_INFINITY
-                long sinceTS = since?.getTime() ?: 0L
-
-                String sql
-                String dataset = null
-
-                if (collection ==~ /^(https?):.+/) {
-                    dataset = collection
-                    sql = LOAD_ALL_DOCUMENTS_BY_DATASET
-                } else if (collection) {
-                    sql = LOAD_ALL_DOCUMENTS_BY_COLLECTION
-                } else {
-                    sql = LOAD_ALL_DOCUMENTS
-                }
+        Tuple2<String, Closure<Integer>> query = loadAllQuery(collection, includeDeleted, since, until)
+        Tuple2<String, String> keyset = loadAllKeyset(since)
+        return pagedIterable(query.v1 + keyset.v1, keyset.v2, query.v2, Instant.EPOCH, '', null)
+    }
 
-                if (!includeDeleted)
-                    sql += " AND deleted = false"
+    /**
+     * Like loadAll(), but the selection is split into numPartitions ranges of modified with roughly the same
+     * number of documents, that are read concurrently. Documents come in no particular order.
+     */
+    PartitionedScan loadAllPartitioned(String collection, int numPartitions, boolean includeDeleted = false,
+                                       Date since = null, Date until = null) {
+        Tuple2<String, Closure<Integer>> query = loadAllQuery(collection, includeDeleted, since, until)
+        return new PartitionedScan(this, numPartitions, { DataSource pool ->
+            return partitions(query, loadAllKeyset(since), partitionBounds(collection, numPartitions), null, pool)
+        } as PartitionedScan.Partitioner)
+    }
 
-                loadAllStatement = connection.prepareStatement(sql)
-                loadAllStatement.setFetchSize(100)
-                loadAllStatement.setTimestamp(1, new Timestamp(sinceTS))
-                loadAllStatement.setTimestamp(2, new Timestamp(untilTS))
+    /**
+     * Like loadAllPartitioned() for non-deleted documents, with the partitions given by bounds (see partitionBounds()).
+     * Each partition is read in (modified, id) order, starting after the given position. This makes it possible
+     * to resume an interrupted scan, see PartitionedScan.partitionOf().
+     *
+     * @param after (modified, id) of the last document processed, by partition
+     */
+    PartitionedScan loadAllPartitionedAfter(String collection, List<Instant> bounds, List<Tuple2<Instant, String>> after) {
+        Tuple2<String, Closure<Integer>> query = loadAllQuery(collection, false, null, null)
+        return new PartitionedScan(this, bounds.size() + 1, { DataSource pool ->
+            return partitions(query, loadAllKeyset(null), bounds, after, pool)
+        } as PartitionedScan.Partitioner)
+    }
+
+    private List<Iterable<Document>> partitions(Tuple2<String, Closure<Integer>> query, Tuple2<String, String> keyset,
+                                                List<Instant> bounds, List<Tuple2<Instant, String>> after,
+                                                DataSource pool) {
+        String rangeSql = query.v1 + MODIFIED_RANGE
+        List<Iterable<Document>> partitions = []
+        for (int p = 0; p <= bounds.size(); p++) {
+            Timestamp from = p == 0 ? new Timestamp(PGStatement.DATE_NEGATIVE_INFINITY) : Timestamp.from(bounds[p - 1])
+            Timestamp to = p == bounds.size() ? new Timestamp(PGStatement.DATE_POSITIVE_INFINITY) : Timestamp.from(bounds[p])
+            Closure<Integer> setParameters = { PreparedStatement statement ->
+                int i = query.v2.call(statement)
+                statement.setTimestamp(i++, from)
+                statement.setTimestamp(i++, to)
+                return i
+            }
+            Instant afterModified = after ? after[p].v1 : Instant.EPOCH
+            String afterId = after ? after[p].v2 : ''
+            partitions.add(pagedIterable(rangeSql + keyset.v1, keyset.v2, setParameters, afterModified, afterId, pool))
+        }
+        return partitions
+    }
 
-                if (dataset) {
-                    PGobject jsonb = new PGobject()
-                    jsonb.setType("jsonb")
-                    jsonb.setValue("""[{"@id":"${dataset}"}]""")
-                    loadAllStatement.setObject(3, jsonb)
-                } else if (collection) {
-                    loadAllStatement.setString(3, collection)
-                }
+    Iterable<Document> loadAllByType(String type) {
+        return loadPaged(LOAD_ALL_DOCUMENTS_BY_TYPE) { PreparedStatement statement ->
+            statement.setString(1, type)
+            return 2
+        }
+    }
 
-                ResultSet rs = loadAllStatement.executeQuery()
+    /**
+     * Load all non-deleted documents in a collection in (modified, id) order, starting after the given position.
+     * This makes it possible to resume an interrupted scan from the last document processed.
+     */
+    Iterable<Document> loadAllAfter(String collection, Instant afterModified = Instant.EPOCH, String afterId = '') {
+        return loadPaged(LOAD_ALL_ALIVE_DOCUMENTS_BY_COLLECTION, afterModified, afterId) { PreparedStatement statement ->
+            statement.setString(1, collection)
+            return 2
+        }
+    }
 
-                boolean more = rs.next()
-                if (!more) {
-                    try {
-                        connection.commit()
-                        connection.setAutoCommit(true)
-                    } finally {
-                        connection.close()
-                    }
-                }
+    /**
+     * @return one of the LOAD_ALL_* queries and a closure setting its parameters, see loadPaged()
+     */
+    @CompileStatic(SKIP)
+    private static Tuple2<String, Closure<Integer>> loadAllQuery(String collection, boolean includeDeleted, Date since, Date until) {
+        long untilTS = until?.getTime() ?: PGStatement.DATE_POSITIVE_INFINITY
+        long sinceTS = since?.getTime() ?: 0L
+
+        String sql
+        String dataset = null
+
+        if (collection ==~ /^(https?):.+/) {
+            dataset = collection
+            sql = LOAD_ALL_DOCUMENTS_BY_DATASET
+        } else if (collection) {
+            sql = LOAD_ALL_DOCUMENTS_BY_COLLECTION
+        } else {
+            sql = LOAD_ALL_DOCUMENTS
+        }
 
-                return new Iterator<Document>() {
-                    @Override
-                    Document next() {
-                        Document doc
-                        doc = assembleDocument(rs)
-                        more = rs.next()
-                        if (!more) {
-                            try {
-                                connection.commit()
-                                connection.setAutoCommit(true)
-                            } finally {
-                                connection.close()
-                            }
-                        }
-                        return doc
-                    }
+        if (!includeDeleted)
+            sql += " AND deleted = false"
 
-                    @Override
-                    boolean hasNext() {
-                        return more
-                    }
-                }
+        Closure<Integer> setParameters = { PreparedStatement statement ->
+            statement.setTimestamp(1, new Timestamp(sinceTS))
+            statement.setTimestamp(2, new Timestamp(untilTS))
+
+            if (dataset) {
+                PGobject jsonb = new PGobject()
+                jsonb.setType("jsonb")
+                jsonb.setValue("""[{"@id":"${dataset}"}]""")
+                statement.setObject(3, jsonb)
+                return 4
+            } else if (collection) {
+                statement.setString(3, collection)
+                return 4
             }
+            return 3
         }
+        return new Tuple2<>(sql, setParameters)
     }
 
-    Iterable<Document> loadAllByType(String type) {
-        return new Iterable<Document>() {
-            Iterator<Document> iterator() {
-                Connection connection = getOuterConnection()
-                connection.setAutoCommit(false)
-                PreparedStatement statement = connection.prepareStatement(LOAD_ALL_DOCUMENTS_BY_TYPE)
-                statement.setFetchSize(100)
-                statement.setString(1, type)
-
-                ResultSet rs = statement.executeQuery()
+    /**
+     * How to page a LOAD_ALL_* query. Documents are filtered on GREATEST(modified, generationDate), which doesn't
+     * bound modified. So when bounded by 'since' they are paged on that expression, otherwise on (modified, id).
+     *
+     * @return the paging SQL to append to the query, and the column holding the first key of a row
+     */
+    private static Tuple2<String, String> loadAllKeyset(Date since) {
+        return since != null
+                ? new Tuple2<>(GREATEST_MODIFIED_KEYSET_PAGE, 'greatestModified')
+                : new Tuple2<>(KEYSET_PAGE, 'modified')
+    }
 
-                boolean more = rs.next()
-                if (!more) {
-                    try {
-                        connection.commit()
-                        connection.setAutoCommit(true)
-                    } finally {
-                        connection.close()
+    /**
+     * Values of modified splitting the collection (or everything, for datasets) in numPartitions parts of
+     * about the same size. Approximate, since the other conditions of the selection aren't taken into account.
+     *
+     * The bounds are whole milliseconds, the precision of modified in documents, so that the partition of a
+     * document can be told from the document itself.
+     */
+    List<Instant> partitionBounds(String collection, int numPartitions) {
+        boolean byCollection = collection && !(collection ==~ /^(https?):.+/)
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement statement = null
+            ResultSet rs = null
+            try {
+                statement = connection.prepareStatement(byCollection ? GET_PARTITION_BOUNDS_BY_COLLECTION : GET_PARTITION_BOUNDS)
+                Double[] fractions = (1..<numPartitions).collect { int i -> (double) i / numPartitions } as Double[]
+                statement.setArray(1, connection.createArrayOf("float8", fractions))
+                if (byCollection) {
+                    statement.setString(2, collection)
+                }
+                rs = statement.executeQuery()
+                SortedSet<Instant> bounds = new TreeSet<>()
+                while (rs.next()) {
+                    Timestamp bound = rs.getTimestamp(1)
+                    if (bound != null) {
+                        bounds.add(bound.toInstant().truncatedTo(ChronoUnit.MILLIS))
                     }
                 }
+                return new ArrayList<Instant>(bounds)
+            } finally {
+                close(rs, statement)
+            }
+        }
+    }
 
-                return new Iterator<Document>() {
-                    @Override
-                    Document next() {
-                        Document doc
-                        doc = assembleDocument(rs)
-                        more = rs.next()
-                        if (!more) {
-                            try {
-                                connection.commit()
-                                connection.setAutoCommit(true)
-                            } finally {
-                                connection.close()
-                            }
-                        }
-                        return doc
-                    }
+    /**
+     * @param sql one of the LOAD_ALL_* queries, KEYSET_PAGE is appended to it
+     * @param setParameters sets the parameters of the query and returns the index of the next parameter
+     */
+    private Iterable<Document> loadPaged(String sql, Instant afterModified = Instant.EPOCH, String afterId = '',
+                                         Closure<Integer> setParameters) {
+        return pagedIterable(sql + KEYSET_PAGE, 'modified', setParameters, afterModified, afterId, null)
+    }
 
-                    @Override
-                    boolean hasNext() {
-                        return more
-                    }
+    /**
+     * @param keyColumn the column with the timestamp the page is ordered by, together with id
+     * @param connectionPool to read pages from, or null for the ordinary pool
+     */
+    private Iterable<Document> pagedIterable(String pageSql, String keyColumn, Closure<Integer> setParameters,
+                                             Instant afterModified, String afterId, DataSource connectionPool) {
+        KeysetDocumentIterator.PageLoader loader = { Instant modified, String id, int limit ->
+            if (connectionPool == null) {
+                return (KeysetDocumentIterator.Page) withDbConnection {
+                    loadPage(getMyConnection(), pageSql, keyColumn, modified, id, limit, setParameters)
                 }
             }
+            Connection connection = connectionPool.getConnection()
+            try {
+                return loadPage(connection, pageSql, keyColumn, modified, id, limit, setParameters)
+            } finally {
+                close(connection)
+            }
+        } as KeysetDocumentIterator.PageLoader
+
+        return new Iterable<Document>() {
+            Iterator<Document> iterator() {
+                return new KeysetDocumentIterator(loader, afterModified, afterId)
+            }
+        }
+    }
+
+    private static KeysetDocumentIterator.Page loadPage(Connection connection, String sql, String keyColumn,
+                                                        Instant afterModified, String afterId, int limit,
+                                                        Closure<Integer> setParameters) {
+        PreparedStatement statement = null
+        ResultSet rs = null
+        try {
+            statement = connection.prepareStatement(sql)
+            int i = setParameters.call(statement)
+            statement.setTimestamp(i++, Timestamp.from(afterModified))
+            statement.setString(i++, afterId)
+            statement.setInt(i, limit)
+
+            rs = statement.executeQuery()
+            List<Document> documents = []
+            Instant lastModified = afterModified
+            String lastId = afterId
+            while (rs.next()) {
+                documents.add(assembleDocument(rs))
+                lastModified = rs.getTimestamp(keyColumn).toInstant()
+                lastId = rs.getString("id")
+            }
+            return new KeysetDocumentIterator.Page(documents, lastModified, lastId)
+        } finally {
+            close(rs, statement)
         }
     }
 
@@ -2838,6 +3773,40 @@ class PostgreSQLComponent {
         }
     }
 
+    void removeState(String key) {
+        withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(DELETE_STATE)
+                preparedStatement.setString(1, key)
+                preparedStatement.executeUpdate()
+            } finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
+    /**
+     * Remove states with keys starting with keyPrefix that have an updatedAt (ISO-8601) before the given time.
+     *
+     * @return the number of states removed
+     */
+    int removeStatesUpdatedBefore(String keyPrefix, Instant before) {
+        return withDbConnection {
+            Connection connection = getMyConnection()
+            PreparedStatement preparedStatement = null
+            try {
+                preparedStatement = connection.prepareStatement(DELETE_STATES_UPDATED_BEFORE)
+                preparedStatement.setString(1, keyPrefix)
+                preparedStatement.setTimestamp(2, Timestamp.from(before))
+                return preparedStatement.executeUpdate()
+            } finally {
+                close(preparedStatement)
+            }
+        }
+    }
+
     /**
      * Returns the user-data map for each user _with the user id_ also inserted into the map.
      */
@@ -2922,7 +3891,8 @@ class PostgreSQLComponent {
     }
     
     enum NotificationType {
-        DEPENDENCY_CACHE_INVALIDATE
+        DEPENDENCY_CACHE_INVALIDATE,
+        EMBELLISHED_CACHE_INVALIDATE
         
         String id() {
             // Made lower case by PG when used as a relname, but not when used as a string.
@@ -2937,6 +3907,15 @@ class PostgreSQLComponent {
     }
     
     void sendNotification(NotificationType type, List<String> payload) {
+        withDbConnection {
+            sendNotification(type, payload, getMyConnection())
+        }
+    }
+
+    /**
+     * If the connection is in a transaction, the notification is sent when the transaction commits.
+     */
+    void sendNotification(NotificationType type, List<String> payload, Connection connection) {
         int MAX_BYTES_PER_CHAR_UNICODE_BMP = 3 // overly cautious
         
         def messages = []
@@ -2950,13 +3929,11 @@ class PostgreSQLComponent {
         }
         messages << s.toString()
         
-        withDbConnection {
-            for (String message : messages) {
-                try (PreparedStatement statement = getMyConnection().prepareStatement('SELECT pg_notify(?, ?)')) {
-                    statement.setString(1, type.id())
-                    statement.setString(2, message)
-                    statement.execute()
-                }
+        for (String message : messages) {
+            try (PreparedStatement statement = connection.prepareStatement('SELECT pg_notify(?, ?)')) {
+                statement.setString(1, type.id())
+                statement.setString(2, message)
+                statement.execute()
             }
         }
     }
@@ -3025,12 +4002,21 @@ class PostgreSQLComponent {
             if (type == NotificationType.DEPENDENCY_CACHE_INVALIDATE) {
                 dependencyCache.handleInvalidateNotification(payload)
             }
+            else if (type == NotificationType.EMBELLISHED_CACHE_INVALIDATE) {
+                if (payload.contains(EMBELLISHED_CACHE_INVALIDATE_ALL)) {
+                    embellishedCache.invalidateAll()
+                } else {
+                    embellishedCache.handleInvalidateNotification(payload)
+                }
+            }
             
             counter.labels(type.id()).inc()
         }
         
         private void onConnected() {
             dependencyCache.invalidateAll()
+            // Notifications might have been missed while not connected
+            embellishedCache.invalidateAll()
         }
     }
 
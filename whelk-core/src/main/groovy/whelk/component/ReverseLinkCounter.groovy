@@ -0,0 +1,193 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log4j2 as Log
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import static whelk.util.Jackson.mapper
+
+/**
+ * Collects changes to the reverse link counters (reverseLinks.totalItems and reverseLinks.totalItemsByRelation)
+ * of indexed documents, and applies them in _bulk update requests.
+ *
+ * Changes are summed per document and relation for a short while before they are sent, so that a batch of links
+ * to the same document becomes one update, and links that are added and removed again cancel out. Every update
+ * runs the same stored script with the changes as parameters, so that Elasticsearch only compiles it once.
+ */
+@Log
+@CompileStatic
+class ReverseLinkCounter {
+    static final String SCRIPT_ID = 'libris-reverse-links'
+
+    // An indexed document will always have reverseLinks.totalItems set to an integer,
+    // and reverseLinks.totalItemsByRelation set to a map, but reverseLinks.totalItemsByRelation['foo']
+    // doesn't necessarily exist at this time; hence the null check before trying to update the link counter.
+    // The outer "if (ctx._source.reverseLinks.totalItemsByRelation) {}" can be removed once we've
+    // reindexed once; it's just there so as to not break things too much before that.
+    private static final String SCRIPT_SOURCE = '''
+        ctx._source.reverseLinks.totalItems += params.total;
+        def byRelation = ctx._source.reverseLinks.totalItemsByRelation;
+        if (byRelation != null) {
+            for (e in params.byRelation.entrySet()) {
+                if (byRelation[e.getKey()] == null) {
+                    if (e.getValue() > 0) {
+                        byRelation[e.getKey()] = e.getValue();
+                    }
+                } else {
+                    byRelation[e.getKey()] += e.getValue();
+                }
+            }
+        }
+        '''.stripIndent().trim()
+
+    private static final long FLUSH_INTERVAL_MS = 1000
+    private static final int MAX_PENDING_DOCS = 500
+    private static final int RETRY_ON_CONFLICT = 5
+
+    private final ElasticClient client
+    private final Timer timer = new Timer("${ReverseLinkCounter.class.getSimpleName()}-timer", true)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false)
+    private volatile boolean closed = false
+
+    // index -> document id -> relation -> change
+    private Map<String, Map<String, Map<String, Integer>>> pending = [:]
+    private int pendingDocs = 0
+
+    ReverseLinkCounter(ElasticClient client) {
+        this.client = client
+        timer.scheduleAtFixedRate({ flushQuietly() }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS)
+    }
+
+    /**
+     * Store the script used for the updates. It can be replaced while documents are being updated.
+     */
+    void putScript() {
+        Map body = ['script': ['lang': 'painless', 'source': SCRIPT_SOURCE]]
+        client.performRequest('PUT', "/_scripts/${SCRIPT_ID}", mapper.writeValueAsString(body))
+    }
+
+    void add(String index, String elasticId, String relation, int delta) {
+        boolean full
+        synchronized (this) {
+            Map<String, Integer> byRelation = pending.computeIfAbsent(index, { [:] })
+                    .computeIfAbsent(elasticId, { pendingDocs++; [:] })
+            byRelation.merge(relation, delta, Integer::sum)
+            full = pendingDocs >= MAX_PENDING_DOCS
+        }
+
+        if (full && !closed && flushScheduled.compareAndSet(false, true)) {
+            try {
+                timer.schedule({
+                    flushScheduled.set(false)
+                    flushQuietly()
+                }, 0)
+            }
+            catch (IllegalStateException ignored) {
+                // Closed meanwhile
+            }
+        }
+    }
+
+    /**
+     * Send all pending changes now. Changes that fail due to an Elasticsearch error are kept for the next flush.
+     */
+    void flush() {
+        Map<String, Map<String, Map<String, Integer>>> changes
+        synchronized (this) {
+            if (pendingDocs == 0) {
+                return
+            }
+            changes = pending
+            pending = [:]
+            pendingDocs = 0
+        }
+
+        List<Tuple> sent = []
+        StringBuilder bulk = new StringBuilder()
+        changes.each { String index, Map<String, Map<String, Integer>> docs ->
+            docs.each { String id, Map<String, Integer> byRelation ->
+                byRelation.values().removeIf { it == 0 }
+                if (byRelation) {
+                    bulk.append(updateAction(index, id)).append('\n')
+                    bulk.append(updateScript(byRelation)).append('\n')
+                    sent << new Tuple(index, id, byRelation)
+                }
+            }
+        }
+        if (!sent) {
+            return
+        }
+
+        Map response
+        try {
+            response = client.performRequest('POST', '/_bulk', bulk.toString(), ElasticSearch.BULK_CONTENT_TYPE)
+        }
+        catch (Exception e) {
+            log.warn("Failed to update ${sent.size()} reverse link counters: $e, will retry", e)
+            sent.each { Tuple t -> readd(t) }
+            return
+        }
+
+        if (response.errors) {
+            ((List<Map>) response.items).eachWithIndex { Map item, int i ->
+                Map result = (Map) item['update']
+                if (!result?.error) {
+                    return
+                }
+                Tuple t = sent[i]
+                int status = (int) result.status
+                if (status == 404) {
+                    // OK. All dependers must be removed before the dependee in lddb. But the index update can happen
+                    // in any order, so the dependee might already be gone when trying to update the counter.
+                    log.info("Could not update reverse link counter ${t[2]} for ${t[1]}, it does not exist")
+                } else if (status >= 500 || status == 409 || status == 429) {
+                    log.warn("Failed to update reverse link counter ${t[2]} for ${t[1]}: ${result.error}, will retry")
+                    readd(t)
+                } else {
+                    log.warn("Failed to update reverse link counter ${t[2]} for ${t[1]}: ${result.error}")
+                }
+            }
+        }
+        log.debug("Updated ${sent.size()} reverse link counters in ${response.took} ms")
+    }
+
+    /**
+     * Stop flushing periodically and send all pending changes. Changes that fail now, or are added after this,
+     * are lost.
+     */
+    void close() {
+        closed = true
+        timer.cancel()
+        flushQuietly()
+        synchronized (this) {
+            if (pendingDocs > 0) {
+                log.warn("Could not update reverse link counters of ${pendingDocs} documents before closing")
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush()
+        }
+        catch (Exception e) {
+            log.warn("Error updating reverse link counters: $e", e)
+        }
+    }
+
+    private void readd(Tuple t) {
+        ((Map<String, Integer>) t[2]).each { String relation, Integer delta ->
+            add((String) t[0], (String) t[1], relation, delta)
+        }
+    }
+
+    private static String updateAction(String index, String id) {
+        return mapper.writeValueAsString(['update': ['_index': index, '_id': id, 'retry_on_conflict': RETRY_ON_CONFLICT]])
+    }
+
+    private static String updateScript(Map<String, Integer> byRelation) {
+        int total = (int) byRelation.values().sum()
+        return mapper.writeValueAsString(['script': ['id': SCRIPT_ID, 'params': ['total': total, 'byRelation': byRelation]]])
+    }
+}
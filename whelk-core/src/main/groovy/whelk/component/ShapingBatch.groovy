@@ -0,0 +1,78 @@
+package whelk.component
+
+import groovy.transform.CompileStatic
+import whelk.Document
+import whelk.JsonLd
+import whelk.Whelk
+
+/**
+ * What shaping a batch of documents for the index needs from storage, loaded up front for the whole batch
+ * instead of once per document (see ElasticSearch.createBulkEntries).
+ *
+ * - Incoming link counts for all documents are fetched in a single query.
+ * - Documents linked from the batch are loaded in one bulk load. Documents needed further out while embellishing
+ *   are loaded on demand, but only once per batch, since documents in a batch tend to link to the same things.
+ *
+ * Not thread safe, a batch should be shaped by a single thread.
+ */
+@CompileStatic
+class ShapingBatch {
+    private final Whelk whelk
+    // system id -> relation -> count
+    private final Map<String, Map<String, Long>> incomingLinkCounts
+    // iri -> system id, null if there is no such document
+    private final Map<String, String> systemIdsByIri = new HashMap<>()
+    // system id -> document data
+    private final Map<String, Map> docsBySystemId = new HashMap<>()
+
+    ShapingBatch(Whelk whelk, Collection<Document> docs, Collection<String> systemIds) {
+        this.whelk = whelk
+        this.incomingLinkCounts = whelk.storage.getIncomingLinkCountsByIdAndRelation(systemIds.unique(false))
+
+        Set<String> links = new HashSet<>()
+        for (Document doc : docs) {
+            JsonLd.getExternalReferences(doc.data).each { links.add(it.iri) }
+        }
+        loadDocs(links)
+    }
+
+    /**
+     * @return relation -> count for a document in the batch
+     */
+    Map<String, Long> getIncomingLinkCountByIdAndRelation(String systemId) {
+        Map<String, Long> counts = incomingLinkCounts[systemId]
+        return counts != null
+                ? new TreeMap<String, Long>(counts)
+                : whelk.storage.getIncomingLinkCountByIdAndRelation(systemId)
+    }
+
+    /**
+     * Same as loading the documents from storage, but only loads each of them once per batch.
+     * Each document is returned once, even if several of the IRIs are for it (e.g. record and thing IRIs).
+     * The caller gets its own copies and is free to modify them.
+     */
+    Iterable<Map> loadDocs(Iterable<String> iris) {
+        List<String> missing = iris.findAll { !systemIdsByIri.containsKey(it) }
+        if (missing) {
+            // Not Whelk.bulkLoad(), it only returns one of several IRIs for the same document
+            Map<String, String> systemIds = whelk.resolveSystemIds(missing)
+            Collection<String> toLoad = systemIds.values().unique(false).findAll { !docsBySystemId.containsKey(it) }
+            Map<String, Document> loaded = whelk.bulkLoadBySystemIds(toLoad)
+            loaded.each { String systemId, Document doc -> docsBySystemId.put(systemId, doc.data) }
+            missing.each { String iri ->
+                String systemId = systemIds[iri]
+                systemIdsByIri.put(iri, systemId != null && docsBySystemId.containsKey(systemId) ? systemId : null)
+            }
+        }
+
+        Set<String> returned = new HashSet<>()
+        List<Map> result = []
+        for (String iri : iris) {
+            String systemId = systemIdsByIri[iri]
+            if (systemId != null && returned.add(systemId)) {
+                result.add(Document.deepCopy(docsBySystemId[systemId]))
+            }
+        }
+        return result
+    }
+}
@@ -0,0 +1,68 @@
+package whelk.util
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator
+import groovy.transform.CompileStatic
+
+/**
+ * Serialization of document data for caches and other internal storage.
+ *
+ * SMILE is binary JSON. Repeated keys (@id, @type, @graph, ...) and short string values
+ * (type names, vocabulary terms) are written once per document and back-referenced after that,
+ * and parsing doesn't have to deal with text escaping or number formatting. It is both smaller
+ * and faster to parse than JSON text.
+ *
+ * Encoded data is self-describing (SMILE has a header), so use decodeAny() to read
+ * data that might have been written with another codec, e.g. before a configuration change.
+ *
+ * Used for the card and document caches, the in-process embellished cache and lddb__embellished only.
+ * Data that must be readable by something else than the whelk (e.g. lddb.data) is still JSON, so the load
+ * paths reading it (assembleDocument, loadFromSql, the cache loaders in CachingPostgreSQLComponent, OAI-PMH
+ * ResultIterator) still parse JSON text. Only reads served from the caches avoid that.
+ */
+@CompileStatic
+enum DocumentCodec {
+    JSON(Jackson.mapper),
+    SMILE(Jackson.mapper(SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+            .build()))
+
+    public static final String PROPERTY_NAME = 'documentCodec'
+    public static final DocumentCodec DEFAULT = SMILE
+
+    // ":)\n"
+    private static final byte[] SMILE_HEADER = [(byte) 0x3A, (byte) 0x29, (byte) 0x0A] as byte[]
+
+    private final ObjectMapper mapper
+
+    private DocumentCodec(ObjectMapper mapper) {
+        this.mapper = mapper
+    }
+
+    byte[] encode(Map data) {
+        return mapper.writeValueAsBytes(data)
+    }
+
+    Map decode(byte[] bytes) {
+        return mapper.readValue(bytes, Map)
+    }
+
+    static Map decodeAny(byte[] bytes) {
+        return detect(bytes).decode(bytes)
+    }
+
+    static DocumentCodec detect(byte[] bytes) {
+        if (bytes.length >= SMILE_HEADER.length
+                && bytes[0] == SMILE_HEADER[0] && bytes[1] == SMILE_HEADER[1] && bytes[2] == SMILE_HEADER[2]) {
+            return SMILE
+        }
+        return JSON
+    }
+
+    static DocumentCodec fromProperties(Properties properties) {
+        String name = properties.getProperty(PROPERTY_NAME)
+        return name ? valueOf(name.toUpperCase()) : DEFAULT
+    }
+}
@@ -1,5 +1,7 @@
 package whelk.util;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -166,6 +168,10 @@ public class FresnelUtil {
 
     private record DerivedLensCacheKey(Object types, LensGroupChain lensGroupChain, List<LensGroupChain> minus) {}
     private record LensCacheKey(Object types, LensGroupChain lensGroupChain) {}
+    private record LensedCardKey(String id, Lens lens, List<Options> options) {}
+    private record LensedCard(Map<String, Object> thing, Map<String, Object> lensedThing) {}
+
+    private static final int LENSED_CARD_CACHE_SIZE = 50_000;
 
     private static final Logger logger = LogManager.getLogger(FresnelUtil.class);
 
@@ -176,12 +182,20 @@ public class FresnelUtil {
     private final Map<DerivedLensCacheKey, List<ShowProperty>> derivedLensCache = new ConcurrentHashMap<>();
     private final Map<LensCacheKey, List<ShowProperty>> lensCache = new ConcurrentHashMap<>();
 
+    // Linked cards are lensed the same way in every document they are embellished into.
+    // An entry is only used if the card is still equal to the one it was lensed from.
+    private final Cache<LensedCardKey, LensedCard> lensedCardCache = CacheBuilder.newBuilder()
+            .maximumSize(LENSED_CARD_CACHE_SIZE)
+            .recordStats()
+            .build();
+
     private static final String TMP_ID_KEY = "_tmpId";
 
     public FresnelUtil(JsonLd jsonLd) {
         this.jsonLd = jsonLd;
         this.fallbackLocales = jsonLd.locales.stream().map(LangCode::new).toList();
         this.formats = new Formats(getUnsafe(jsonLd.displayData, "formatters", null));
+        Metrics.cacheMetrics.addCache("lensedCardCache", lensedCardCache);
     }
 
     public String asFormattedString(Object thing, Lens lens, String locale) {
@@ -212,8 +226,16 @@ public class FresnelUtil {
         return _mapThroughLens(thing, lens, options, preserveLinks).thing();
     }
 
+    /**
+     * Things with an @id are assumed to be cards (or chips) of linked resources, and are cached by id, lens and
+     * content when no links are to be preserved.
+     */
     public LensMappingBatch mapBatchThroughLens(List<Map<String, Object>> things, Lens lens, Collection<Options> options, Collection<String> preserveLinks) {
-        List<LensMappingResult> mappings = things.stream().map(t -> _mapThroughLens(t, lens, options, preserveLinks)).toList();
+        List<LensMappingResult> mappings = things.stream()
+                .map(t -> preserveLinks.isEmpty()
+                        ? mapCardThroughLens(t, lens, options)
+                        : _mapThroughLens(t, lens, options, preserveLinks))
+                .toList();
 
         List<Map<String, Object>> lensedThings = new ArrayList<>();
         Map<String, List<FresnelUtil.LinkRestoration>> idToPreservedLinks = new HashMap<>();
@@ -229,6 +251,15 @@ public class FresnelUtil {
         return new LensMappingBatch(lensedThings, idToPreservedLinks);
     }
 
+    /**
+     * Forget lensed cards of changed resources. Not required for correctness, since a cached card is only used
+     * for an equal card, but frees the space at once.
+     */
+    public void invalidateLensedCards(Collection<String> ids) {
+        Set<String> idSet = new HashSet<>(ids);
+        lensedCardCache.asMap().keySet().removeIf(key -> idSet.contains(key.id()));
+    }
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     public void insertComputedLabels(Object data, String locale) {
         DocumentUtil.traverse(data, (var value, var path) -> {
@@ -446,6 +477,23 @@ public class FresnelUtil {
         return new LensMapper(thing, lens, options, preserveLinks).map();
     }
 
+    private LensMappingResult mapCardThroughLens(Map<String, Object> thing, Lens lens, Collection<Options> options) {
+        if (!(thing.get(ID_KEY) instanceof String id)) {
+            return _mapThroughLens(thing, lens, options, List.of());
+        }
+
+        var key = new LensedCardKey(id, lens, List.copyOf(options));
+        var cached = lensedCardCache.getIfPresent(key);
+        if (cached != null && cached.thing().equals(thing)) {
+            // Callers modify the lensed things
+            return new LensMappingResult(Document.deepCopy(cached.lensedThing()), List.of());
+        }
+
+        var result = _mapThroughLens(thing, lens, options, List.of());
+        lensedCardCache.put(key, new LensedCard(Document.deepCopy(thing), Document.deepCopy(result.thing())));
+        return result;
+    }
+
     private record LensMappingResult(Map<String, Object> thing, List<LinkRestoration> preservedLinks) {}
 
     private record LinkRestoration(List<Object> path, String key, Object links) {
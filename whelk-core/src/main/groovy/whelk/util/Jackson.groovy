@@ -1,5 +1,6 @@
 package whelk.util
 
+import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonProcessingException
 import com.fasterxml.jackson.core.Version
@@ -11,8 +12,8 @@ import com.fasterxml.jackson.databind.module.SimpleModule
 class Jackson {
     public static final ObjectMapper mapper = mapper()
     
-    static ObjectMapper mapper() {
-        ObjectMapper mapper = new ObjectMapper()
+    static ObjectMapper mapper(JsonFactory factory = new JsonFactory()) {
+        ObjectMapper mapper = new ObjectMapper(factory)
         def module = new SimpleModule(GStringSerializer.class.getSimpleName(), GStringSerializer.version)
         module.addSerializer(GString, new GStringSerializer())
         mapper.registerModule(module)
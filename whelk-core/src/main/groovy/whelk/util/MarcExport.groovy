@@ -14,8 +14,49 @@ import whelk.converter.marc.JsonLD2MarcXMLConverter
 
 @Log4j2
 class MarcExport {
+    /**
+     * The profile independent part of a virtual MARC record: the bib record and its auth and holding records.
+     * Kept as MARC XML since MarcRecords are modified when shaped by a profile.
+     */
+    static class ConvertedRecord {
+        final String systemId
+        final String bibXml
+        final List<String> authXmls
+        // by sigel
+        final Map<String, String> holdingXmls
+        // Only the images of the thing, resolved, for 956 fields. null if there are none.
+        final Document images
+
+        ConvertedRecord(String systemId, String bibXml, List<String> authXmls, Map<String, String> holdingXmls,
+                        Document images) {
+            this.systemId = systemId
+            this.bibXml = bibXml
+            this.authXmls = authXmls
+            this.holdingXmls = holdingXmls
+            this.images = images
+        }
+
+        int approximateSize() {
+            int chars = bibXml.length()
+            authXmls.each { chars += it.length() }
+            holdingXmls.each { sigel, xml -> chars += xml.length() }
+            return 2 * chars
+        }
+    }
+
     static Vector<MarcRecord> compileVirtualMarcRecord(ExportProfile profile, Document rootDocument,
                                                        Whelk whelk, JsonLD2MarcXMLConverter toMarcXmlConverter) {
+        ConvertedRecord converted = convert(rootDocument, whelk, toMarcXmlConverter)
+        if (converted == null)
+            return null
+        return compileVirtualMarcRecord(profile, converted)
+    }
+
+    /**
+     * Convert the bib record and the auth and holding records it links or is linked from.
+     * Returns null if the bib record can't be converted.
+     */
+    static ConvertedRecord convert(Document rootDocument, Whelk whelk, JsonLD2MarcXMLConverter toMarcXmlConverter) {
         String bibXmlString = toXmlString(rootDocument, toMarcXmlConverter)
         if (bibXmlString == null)
             return null
@@ -29,7 +70,7 @@ class MarcExport {
             }
         }
 
-        def auths = new HashSet<MarcRecord>()
+        List<String> auths = []
         auth_ids.each { String auth_id ->
             Document authDoc = null
             try {
@@ -43,30 +84,45 @@ class MarcExport {
             }
             if (authDoc != null) {
                 String xmlString = toXmlString(authDoc, toMarcXmlConverter)
-                if (xmlString != null)
-                    auths.add(MarcXmlRecordReader.fromXml(xmlString))
-            }
-
-            def it = auths.iterator()
-            while (it.hasNext()) {
-                MarcRecord auth = it.next()
-                if (auth.getFields("001").size() == 0)
-                    it.remove()
+                if (xmlString != null && MarcXmlRecordReader.fromXml(xmlString).getFields("001").size() > 0)
+                    auths.add(xmlString)
             }
         }
 
         List<Document> holdingDocuments = whelk.getAttachedHoldings(rootDocument.getThingIdentifiers())
-        def holdings = new TreeMap<String, MarcRecord>()
+        def holdings = new TreeMap<String, String>()
 
         for (Document holding : holdingDocuments) {
             try {
-                holdings.put(holding.getHeldBySigel(), MarcXmlRecordReader.fromXml(toXmlString(holding, toMarcXmlConverter)))
+                String xmlString = toXmlString(holding, toMarcXmlConverter)
+                MarcXmlRecordReader.fromXml(xmlString)
+                holdings.put(holding.getHeldBySigel(), xmlString)
             } catch (Exception e) {
                 log.warn("Failed adding holding record when compiling MARC for " + rootDocument.getShortId(), e)
             }
         }
 
-        MarcRecord bibRecord = MarcXmlRecordReader.fromXml(bibXmlString)
+        Document images = null
+        try {
+            images = images(rootDocument)
+        } catch (Exception e) {
+            log.warn("Failed to insert images for: " + rootDocument.getShortId(), e)
+        }
+
+        return new ConvertedRecord(rootDocument.getShortId(), bibXmlString, auths, holdings, images)
+    }
+
+    /**
+     * Shape a converted record by a profile. The converted record is left as it is.
+     */
+    static Vector<MarcRecord> compileVirtualMarcRecord(ExportProfile profile, ConvertedRecord converted) {
+        def auths = new HashSet<MarcRecord>()
+        converted.authXmls.each { auths.add(MarcXmlRecordReader.fromXml(it)) }
+
+        def holdings = new TreeMap<String, MarcRecord>()
+        converted.holdingXmls.each { sigel, xml -> holdings.put(sigel, MarcXmlRecordReader.fromXml(xml)) }
+
+        MarcRecord bibRecord = MarcXmlRecordReader.fromXml(converted.bibXml)
 
         // remove any existing 003
         ListIterator li = bibRecord.listIterator()
@@ -74,18 +130,42 @@ class MarcExport {
             if (((Field) li.next()).getTag() == "003")
                 li.remove()
 
-        try {
-            profile.maybeAdd956Images(bibRecord, rootDocument);
-        } catch (Exception e) {
-            log.warn("Failed to insert images for: " + rootDocument.getShortId(), e)
+        if (converted.images != null) {
+            try {
+                profile.maybeAdd956Images(bibRecord, converted.images)
+            } catch (Exception e) {
+                log.warn("Failed to insert images for: " + converted.systemId, e)
+            }
         }
 
         try {
             return profile.mergeRecord(bibRecord, holdings, auths)
         } catch (Exception e) {
-            log.warn("Failed to mangle marc record through profile: " + rootDocument.getShortId(), e)
+            log.warn("Failed to mangle marc record through profile: " + converted.systemId, e)
+            return null
+        }
+    }
+
+    private static Document images(Document rootDocument) {
+        List images = []
+        for (def imageLink : JsonLd.asList(rootDocument.getThing()?.get("image"))) {
+            if (!(imageLink instanceof Map)) {
+                continue
+            }
+            def uri = imageLink[JsonLd.ID_KEY]
+            if (JsonLd.isLink((Map) imageLink)) {
+                Map embedded = uri instanceof String ? rootDocument.getEmbedded((String) uri) : null
+                if (embedded != null) {
+                    images.add(new LinkedHashMap(embedded) + [(JsonLd.ID_KEY): uri])
+                }
+            } else {
+                images.add(imageLink)
+            }
+        }
+        if (images.isEmpty()) {
             return null
         }
+        return new Document([(JsonLd.GRAPH_KEY): [[:], ["image": images]]])
     }
 
     /**
@@ -1,6 +1,7 @@
 package whelk.util
 
 import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
 import io.prometheus.client.Summary
 import io.prometheus.client.guava.cache.CacheMetricsCollector
 
@@ -21,4 +22,10 @@ class Metrics {
             .name("client_call_status")
             .help("External response status.")
             .register()
+
+    public static final Gauge offHeapBytes = Gauge.build()
+            .labelNames("store", "state")
+            .name("offheap_store_bytes")
+            .help("Bytes used, reserved and allowed by off-heap stores.")
+            .register()
 }
@@ -0,0 +1,317 @@
+package whelk.util;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte arrays stored outside the Java heap, in a fixed budget of direct ByteBuffer slabs.
+ * <p>
+ * Memory is handed out in chunks of a set of size classes (each 25% larger than the previous), memcached style.
+ * A slab is assigned to a size class when a chunk of that class is needed and there is no free chunk of it.
+ * A slab that has gone empty can be assigned to another size class.
+ * <p>
+ * Entries are referenced by a {@link Slot}. A slot must be {@link #free(Slot)}d when no longer used,
+ * typically from the removal listener of the cache holding the slots.
+ * Reading a slot that is freed concurrently returns null instead of (possibly) reused memory.
+ * <p>
+ * The owner is expected to bound the total size, e.g. with a cache weighed by {@link #chunkSize(int)}.
+ * If the mix of sizes changes so that all slabs have been claimed by other size classes, the slab least recently
+ * allocated from is reclaimed: its entries are dropped, i.e. read as null, and the owner has to load them again.
+ * Only data larger than a slab is kept on the heap.
+ */
+public class OffHeapStore {
+    private static final int MIN_CHUNK_SIZE = 128;
+    private static final double GROWTH_FACTOR = 1.25;
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+    private final String name;
+    private final int slabSize;
+    private final int maxSlabs;
+    private final int[] chunkSizes;
+
+    private final List<Slab> slabs = new ArrayList<>();
+    // Slabs with free chunks, by size class
+    private final List<ArrayDeque<Slab>> partialSlabs = new ArrayList<>();
+    // Slabs without entries, free to be assigned to any size class
+    private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<>();
+    private long bytesUsed = 0;
+    private long bytesOnHeap = 0;
+    private long slabsReclaimed = 0;
+    private long allocations = 0;
+
+    public OffHeapStore(String name, long maxSizeBytes) {
+        this(name, maxSizeBytes, DEFAULT_SLAB_SIZE);
+    }
+
+    public OffHeapStore(String name, long maxSizeBytes, int slabSize) {
+        this.name = name;
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.max(1, maxSizeBytes / slabSize);
+
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_CHUNK_SIZE; size < slabSize; size = (int) Math.ceil(size * GROWTH_FACTOR / 8) * 8) {
+            sizes.add(size);
+        }
+        sizes.add(slabSize);
+        chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+        for (int ignored : chunkSizes) {
+            partialSlabs.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @return a slot holding a copy of data
+     */
+    public Slot put(byte[] data) {
+        if (data.length == 0) {
+            return new Slot(-1, 0, -1, 0);
+        }
+        int sizeClass = sizeClass(data.length);
+
+        synchronized (this) {
+            Slot slot = sizeClass >= 0 ? allocate(sizeClass, data.length) : null;
+            if (slot == null) {
+                slot = new Slot(-1, 0, -1, data.length);
+                slot.onHeap = data.clone();
+                bytesOnHeap += data.length;
+                updateGauges();
+                return slot;
+            }
+            ByteBuffer slab = slabs.get(slot.slab).buffer.duplicate();
+            slab.position(slot.offset);
+            slab.put(data);
+
+            bytesUsed += chunkSizes[sizeClass];
+            updateGauges();
+            return slot;
+        }
+    }
+
+    /**
+     * @return a copy of the data in the slot, or null if the slot has been freed
+     */
+    public byte[] get(Slot slot) {
+        if (slot.length == 0) {
+            return slot.freed ? null : new byte[0];
+        }
+        if (slot.onHeap != null) {
+            byte[] data = slot.onHeap;
+            return slot.freed || data == null ? null : data.clone();
+        }
+        byte[] data = new byte[slot.length];
+        ByteBuffer slab = slabs.get(slot.slab).buffer.duplicate();
+        slab.position(slot.offset);
+        slab.get(data);
+
+        // Like StampedLock.validate(). The chunk is only reused after the slot has been marked as freed,
+        // so if we didn't see freed after copying, the copy is from before any reuse.
+        VarHandle.acquireFence();
+        return slot.freed ? null : data;
+    }
+
+    public void free(Slot slot) {
+        if (slot.length == 0 || slot.freed) {
+            return;
+        }
+        synchronized (this) {
+            if (slot.freed) {
+                return;
+            }
+            slot.freed = true;
+            if (slot.onHeap != null) {
+                bytesOnHeap -= slot.length;
+                slot.onHeap = null;
+                updateGauges();
+                return;
+            }
+            Slab slab = slabs.get(slot.slab);
+            boolean wasFull = slab.numFree == 0;
+            slab.release(slot.offset / chunkSizes[slot.sizeClass]);
+            if (slab.isEmpty()) {
+                partialSlabs.get(slab.sizeClass).remove(slab);
+                emptySlabs.push(slab);
+            } else if (wasFull) {
+                partialSlabs.get(slab.sizeClass).push(slab);
+            }
+            bytesUsed -= chunkSizes[slot.sizeClass];
+            updateGauges();
+        }
+    }
+
+    /**
+     * @return the number of bytes data of the given length occupies in the store
+     */
+    public int chunkSize(int length) {
+        int sizeClass = sizeClass(length);
+        return sizeClass < 0 ? length : chunkSizes[sizeClass];
+    }
+
+    public synchronized long bytesUsed() {
+        return bytesUsed;
+    }
+
+    public synchronized long bytesOnHeap() {
+        return bytesOnHeap;
+    }
+
+    public synchronized long bytesReserved() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    /**
+     * @return the number of times a slab has been taken from one size class with its entries dropped
+     */
+    public synchronized long slabsReclaimed() {
+        return slabsReclaimed;
+    }
+
+    public long capacity() {
+        return (long) maxSlabs * slabSize;
+    }
+
+    private int sizeClass(int length) {
+        // Few size classes, linear search is fine
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (length <= chunkSizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Slot allocate(int sizeClass, int length) {
+        ArrayDeque<Slab> partial = partialSlabs.get(sizeClass);
+        Slab slab = partial.peek();
+        if (slab == null) {
+            slab = emptySlabs.poll();
+            if (slab == null && slabs.size() < maxSlabs) {
+                slab = new Slab(slabs.size(), ByteBuffer.allocateDirect(slabSize));
+                slabs.add(slab);
+            }
+            if (slab == null) {
+                slab = reclaim();
+            }
+            if (slab == null) {
+                return null;
+            }
+            slab.assign(sizeClass, slabSize / chunkSizes[sizeClass]);
+            partial.push(slab);
+        }
+
+        int chunk = slab.take();
+        slab.lastAllocation = ++allocations;
+        if (slab.numFree == 0) {
+            partial.remove(slab);
+        }
+        Slot slot = new Slot(slab.index, chunk * chunkSizes[sizeClass], sizeClass, length);
+        slab.chunks[chunk] = slot;
+        return slot;
+    }
+
+    /**
+     * Drop all entries in the slab least recently allocated from, so that it can be assigned to another size class.
+     * Its entries are likely to be the oldest, like in the LRU caches using the store.
+     */
+    private Slab reclaim() {
+        Slab victim = null;
+        for (Slab slab : slabs) {
+            if (slab.sizeClass >= 0 && (victim == null || slab.lastAllocation < victim.lastAllocation)) {
+                victim = slab;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+
+        for (Slot slot : victim.chunks) {
+            if (slot != null) {
+                slot.freed = true;
+                bytesUsed -= chunkSizes[slot.sizeClass];
+            }
+        }
+        // Make sure freed is visible before the chunks are overwritten, see get()
+        VarHandle.fullFence();
+        partialSlabs.get(victim.sizeClass).remove(victim);
+        victim.clear();
+        slabsReclaimed++;
+        return victim;
+    }
+
+    private void updateGauges() {
+        Metrics.offHeapBytes.labels(name, "used").set(bytesUsed);
+        Metrics.offHeapBytes.labels(name, "reserved").set((double) slabs.size() * slabSize);
+        Metrics.offHeapBytes.labels(name, "capacity").set((double) maxSlabs * slabSize);
+        Metrics.offHeapBytes.labels(name, "heap_fallback").set(bytesOnHeap);
+    }
+
+    private static class Slab {
+        final int index;
+        final ByteBuffer buffer;
+        int sizeClass = -1;
+        // live slots by chunk index
+        Slot[] chunks = new Slot[0];
+        // stack of free chunk indexes
+        int[] free = new int[0];
+        int numFree = 0;
+        long lastAllocation = 0;
+
+        Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        void assign(int sizeClass, int numChunks) {
+            if (this.sizeClass == sizeClass && chunks.length == numChunks) {
+                return;
+            }
+            this.sizeClass = sizeClass;
+            chunks = new Slot[numChunks];
+            free = new int[numChunks];
+            clear();
+        }
+
+        void clear() {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = null;
+                free[i] = chunks.length - 1 - i;
+            }
+            numFree = chunks.length;
+        }
+
+        int take() {
+            return free[--numFree];
+        }
+
+        void release(int chunk) {
+            chunks[chunk] = null;
+            free[numFree++] = chunk;
+        }
+
+        boolean isEmpty() {
+            return numFree == chunks.length;
+        }
+    }
+
+    public static class Slot {
+        final int slab;
+        final int offset;
+        final int sizeClass;
+        final int length;
+        volatile boolean freed = false;
+        volatile byte[] onHeap;
+
+        private Slot(int slab, int offset, int sizeClass, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.sizeClass = sizeClass;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+    }
+}
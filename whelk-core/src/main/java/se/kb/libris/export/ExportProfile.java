@@ -754,10 +754,18 @@ public class ExportProfile {
 
     // https://id.kb.se/vocab/ImageObject -> bib 956
     public void maybeAdd956Images(MarcRecord record, Document document) {
-        if (!getProperty("add956images", "off").equalsIgnoreCase("ON")) {
+        if (!shouldAdd956Images()) {
             return;
         }
 
+        add956Images(record, document);
+    }
+
+    public boolean shouldAdd956Images() {
+        return getProperty("add956images", "off").equalsIgnoreCase("ON");
+    }
+
+    public static void add956Images(MarcRecord record, Document document) {
         int imageIx = 0;
         for (var imageLink : JsonLd.asList(document.getThing().get("image"))) {
             var uri = (String) DocumentUtil.getAtPath(imageLink, List.of(JsonLd.ID_KEY));
@@ -10,6 +10,8 @@ import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
 import java.sql.Timestamp
+import java.time.Instant
+import java.time.LocalDate
 
 @Log
 class PostgreSQLComponentSpec extends Specification {
@@ -111,4 +113,57 @@ class PostgreSQLComponentSpec extends Specification {
         cs1 == cs2
     }
 
+    def "should collect normalized identifier values for duplicate lookups"() {
+        given:
+        Document doc = new Document(["@graph": [
+                ["@id": "testid", "identifiedBy": [["@type": "SystemNumber", "value": "(Abc)123x"]]],
+                ["@id": "testid#it",
+                 "identifiedBy": [
+                         ["@type": "ISBN", "value": "91-7000-150-x"],
+                         ["@type": "ISSN", "value": ["1234-567x", "2345-6789"], "marc:canceledIssn": "0000-000x"],
+                         ["@type": "URI", "value": "http://Example.org/x"],
+                         ["@type": "ISNI", "value": "0000000121032683"],
+                         "not an identifier"],
+                 "indirectlyIdentifiedBy": [["@type": "ISBN", "value": "9789170001507"]]]]])
+
+        expect:
+        PostgreSQLComponent.identifierValues(doc) == [
+                new Tuple2('ISBN', '91-7000-150-X'),
+                new Tuple2('ISSN', '1234-567X'),
+                new Tuple2('ISSN', '2345-6789'),
+                new Tuple2('ISSN:canceled', '0000-000X'),
+                new Tuple2('URI', 'http://Example.org/x'),
+                new Tuple2('ISBN:indirect', '9789170001507'),
+                new Tuple2('SystemNumber', '(Abc)123x'),
+        ] as Set
+    }
+
+    def "should move a changed document between daily change counts"() {
+        given:
+        Date yesterday = Date.from(Instant.parse('2024-03-01T23:59:00Z'))
+        Date today = Date.from(Instant.parse('2024-03-02T08:00:00Z'))
+        def counted = []
+        stmt.setObject(1, _) >> { counted << [it[1]] }
+        stmt.setString(2, _) >> { counted.last() << it[1] }
+        stmt.setLong(4, _) >> { counted.last() << it[1] }
+
+        when:
+        PostgreSQLComponent.countDailyChange('testid', 'Instance', yesterday, 'Print', today, conn)
+
+        then:
+        counted == [
+                [LocalDate.parse('2024-03-01'), 'Instance', -1L],
+                [LocalDate.parse('2024-03-02'), 'Print', 1L],
+        ]
+    }
+
+    def "should not count a document again when it is changed on the same day"() {
+        when:
+        PostgreSQLComponent.countDailyChange('testid', 'Print', Date.from(Instant.parse('2024-03-02T08:00:00Z')),
+                'Print', Date.from(Instant.parse('2024-03-02T09:00:00Z')), conn)
+
+        then:
+        0 * conn.prepareStatement(_)
+    }
+
 }
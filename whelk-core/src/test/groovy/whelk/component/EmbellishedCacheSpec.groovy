@@ -0,0 +1,61 @@
+package whelk.component
+
+import spock.lang.Specification
+import whelk.util.DocumentCodec
+
+import java.nio.charset.StandardCharsets
+
+class EmbellishedCacheSpec extends Specification {
+    static final Map DATA = ['@graph': [
+            ['@id': 'https://libris.kb.se/x', '@type': 'Record', 'mainEntity': ['@id': 'https://libris.kb.se/x#it']],
+            ['@id': 'https://libris.kb.se/x#it', '@type': 'Instance', 'instanceOf': ['@id': 'https://libris.kb.se/y#it']]
+    ]]
+
+    def "reads back data written with any codec"() {
+        given:
+        def cache = new EmbellishedCache(1024 * 1024)
+        cache.put('x', codec.encode(DATA), ['y'], cache.generation())
+
+        expect:
+        cache.get('x').data == DATA
+
+        where:
+        codec << DocumentCodec.values()
+    }
+
+    def "reads back JSON text as written to lddb__embellished by migrations"() {
+        given:
+        def cache = new EmbellishedCache(1024 * 1024)
+        byte[] json = '{"@graph": [{"@id": "https://libris.kb.se/x", "@type": "Record"}]}'.getBytes(StandardCharsets.UTF_8)
+        cache.put('x', json, [], cache.generation())
+
+        expect:
+        cache.get('x').data == ['@graph': [['@id': 'https://libris.kb.se/x', '@type': 'Record']]]
+        cache.get('x').data == ['@graph': [['@id': 'https://libris.kb.se/x', '@type': 'Record']]]
+    }
+
+    def "evicts documents embellished with a changed document"() {
+        given:
+        def cache = new EmbellishedCache(1024 * 1024)
+        cache.put('x', DocumentCodec.SMILE.encode(DATA), ['y'], cache.generation())
+
+        when:
+        cache.evictDependers('y')
+
+        then:
+        cache.get('x') == null
+    }
+
+    def "does not cache a document loaded before an eviction"() {
+        given:
+        def cache = new EmbellishedCache(1024 * 1024)
+        long generation = cache.generation()
+        cache.evictDependers('y')
+
+        when:
+        cache.put('x', DocumentCodec.SMILE.encode(DATA), ['y'], generation)
+
+        then:
+        cache.get('x') == null
+    }
+}
@@ -0,0 +1,35 @@
+package whelk.util
+
+import spock.lang.Specification
+
+class DocumentCodecSpec extends Specification {
+    static final Map DATA = ['@graph': [
+            ['@id': 'https://libris.kb.se/x', '@type': 'Record', 'mainEntity': ['@id': 'https://libris.kb.se/x#it']],
+            ['@id': 'https://libris.kb.se/x#it', '@type': 'Instance', 'extent': [['@type': 'Extent', 'label': ['123 s.']]]]
+    ]]
+
+    def "round trip"() {
+        expect:
+        codec.decode(codec.encode(DATA)) == DATA
+
+        where:
+        codec << DocumentCodec.values()
+    }
+
+    def "decode data written with any codec"() {
+        given:
+        byte[] bytes = codec.encode(DATA)
+
+        expect:
+        DocumentCodec.detect(bytes) == codec
+        DocumentCodec.decodeAny(bytes) == DATA
+
+        where:
+        codec << DocumentCodec.values()
+    }
+
+    def "SMILE is smaller than JSON"() {
+        expect:
+        DocumentCodec.SMILE.encode(DATA).length < DocumentCodec.JSON.encode(DATA).length
+    }
+}
@@ -1,6 +1,7 @@
 package whelk.util
 
 import spock.lang.Specification
+import whelk.Document
 import whelk.JsonLd
 import whelk.component.ElasticSearch
 
@@ -1336,6 +1337,25 @@ class FresnelUtilSpec extends Specification {
         ]
     }
 
+    def "reuse lensed cards only while they are unchanged"() {
+        given:
+        var fresnel = new FresnelUtil(ld)
+        var lens = FresnelUtil.NestedLenses.CHIP_TO_TOKEN
+        var options = [FresnelUtil.Options.TAKE_ALL_ALTERNATE, FresnelUtil.Options.SKIP_MAP_VOCAB_TERMS]
+        var card = ['@id': 'https://id.kb.se/p1', '@type': 'Person', 'name': 'Heliogabalus', 'lifeSpan': '203-222', 'description': ['Romersk kejsare']]
+
+        when:
+        var first = fresnel.mapBatchThroughLens([card], lens, options, []).lensedThings().first()
+        first['name'] = 'modified by caller'
+        var second = fresnel.mapBatchThroughLens([Document.deepCopy(card)], lens, options, []).lensedThings().first()
+        card['name'] = 'Elagabalus'
+        var changed = fresnel.mapBatchThroughLens([card], lens, options, []).lensedThings().first()
+
+        then:
+        second == ['@id': 'https://id.kb.se/p1', '@type': 'Person', 'name': 'Heliogabalus', 'lifeSpan': '203-222']
+        changed == ['@id': 'https://id.kb.se/p1', '@type': 'Person', 'name': 'Elagabalus', 'lifeSpan': '203-222']
+    }
+
     def "merge properties"() {
         given:
         def displayData = [
@@ -0,0 +1,143 @@
+package whelk.util
+
+import spock.lang.Specification
+
+class OffHeapStoreSpec extends Specification {
+
+    def "put and get"() {
+        given:
+        def store = new OffHeapStore('test', 1024 * 1024, 64 * 1024)
+        def data = bytes(size)
+
+        when:
+        def slot = store.put(data)
+
+        then:
+        store.get(slot) == data
+        store.bytesUsed() == store.chunkSize(size) || size == 0
+
+        where:
+        size << [0, 1, 128, 129, 5000, 64 * 1024]
+    }
+
+    def "freed slot is read as missing and chunk is reused"() {
+        given:
+        def store = new OffHeapStore('test', 64 * 1024, 64 * 1024)
+        def slot = store.put(bytes(1000))
+
+        when:
+        store.free(slot)
+        def other = store.put(bytes(1000, 7))
+
+        then:
+        store.get(slot) == null
+        store.get(other) == bytes(1000, 7)
+        store.bytesUsed() == store.chunkSize(1000)
+    }
+
+    def "reclaims a slab claimed by another size class when there is no room"() {
+        given:
+        def store = new OffHeapStore('test', 64 * 1024, 64 * 1024)
+        def large = store.put(bytes(40 * 1024))
+
+        when:
+        def small = store.put(bytes(100))
+
+        then:
+        store.get(large) == null
+        store.get(small) == bytes(100)
+        store.bytesOnHeap() == 0
+        store.bytesUsed() == store.chunkSize(100)
+        store.bytesReserved() == 64 * 1024
+        store.slabsReclaimed() == 1
+
+        when:
+        store.free(large)
+        store.free(small)
+
+        then:
+        store.get(small) == null
+        store.bytesUsed() == 0
+    }
+
+    def "empty slab is reused by another size class"() {
+        given:
+        def store = new OffHeapStore('test', 64 * 1024, 64 * 1024)
+        def large = store.put(bytes(40 * 1024))
+
+        when:
+        store.free(large)
+        def small = store.put(bytes(100))
+
+        then:
+        store.get(small) == bytes(100)
+        store.bytesOnHeap() == 0
+        store.slabsReclaimed() == 0
+    }
+
+    def "falls back to heap for data larger than a slab"() {
+        given:
+        def store = new OffHeapStore('test', 64 * 1024, 64 * 1024)
+
+        when:
+        def huge = store.put(bytes(64 * 1024 + 1))
+
+        then:
+        store.get(huge) == bytes(64 * 1024 + 1)
+        store.bytesOnHeap() == 64 * 1024 + 1
+
+        when:
+        store.free(huge)
+
+        then:
+        store.get(huge) == null
+        store.bytesOnHeap() == 0
+    }
+
+    def "stays off heap when the size distribution changes"() {
+        given:
+        def store = new OffHeapStore('test', 256 * 1024, 64 * 1024)
+        // Bounded by total chunk size like the caches using the store, oldest evicted first
+        LinkedList<Tuple2<OffHeapStore.Slot, byte[]>> entries = []
+        long weight = 0
+        def put = { int size, int seed ->
+            def data = bytes(size, seed)
+            while (weight + store.chunkSize(size) > store.capacity()) {
+                def evicted = entries.removeFirst()
+                weight -= store.chunkSize(evicted.v1.length())
+                store.free(evicted.v1)
+            }
+            entries.add(new Tuple2(store.put(data), data))
+            weight += store.chunkSize(size)
+        }
+
+        when:
+        1000.times { put(1000 + it % 200, it) }
+
+        then:
+        store.bytesOnHeap() == 0
+
+        when:
+        1000.times { put(15000 + it % 3000, it) }
+
+        then:
+        store.bytesOnHeap() == 0
+        entries.every { store.get(it.v1) == null || store.get(it.v1) == it.v2 }
+        store.get(entries.last().v1) == entries.last().v2
+
+        when:
+        1000.times { put(300 + it % 100, it) }
+
+        then:
+        store.bytesOnHeap() == 0
+        store.get(entries.last().v1) == entries.last().v2
+    }
+
+    private static byte[] bytes(int size, int seed = 0) {
+        byte[] b = new byte[size]
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte) (i + seed)
+        }
+        return b
+    }
+}